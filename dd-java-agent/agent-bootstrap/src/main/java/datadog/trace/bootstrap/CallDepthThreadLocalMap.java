@@ -1,36 +1,171 @@
 package datadog.trace.bootstrap;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Utility to track nested instrumentation.
  *
  * <p>For example, this can be used to track nested calls to super() in constructors by calling
  * #incrementCallDepth at the beginning of each constructor.
+ *
+ * <p>Each key is given a small integer slot, and depths are kept in a per thread array indexed by
+ * slot. Instrumentation should look its slot up once, see {@link #slotFor(Object)}, so that
+ * tracking depths neither hashes nor boxes. If virtual threads are enabled, the depths of virtual
+ * threads are kept in a map by thread instead of a thread local, so that they don't get a
+ * ThreadLocalMap each. They only size their array for the slots they use and are dropped once every
+ * depth is reset.
  */
 public class CallDepthThreadLocalMap {
-  private static final ThreadLocal<Map<Object, Integer>> TLS =
-      new ThreadLocal<Map<Object, Integer>>() {
-        @Override
-        public Map<Object, Integer> initialValue() {
-          return new HashMap<>();
-        }
-      };
+  private static final ThreadLocal<CallDepths> TLS = new ThreadLocal<>();
 
-  public static int incrementCallDepth(final Object k) {
-    final Map<Object, Integer> map = TLS.get();
-    Integer depth = map.get(k);
-    if (depth == null) {
-      depth = 0;
-    } else {
-      depth += 1;
+  private static final ConcurrentMap<Object, Integer> SLOTS = new ConcurrentHashMap<>();
+
+  /** Depths of the virtual threads in a call, if virtual threads are enabled. */
+  private static final ConcurrentMap<Thread, CallDepths> VIRTUAL_THREAD_DEPTHS =
+      new ConcurrentHashMap<>();
+
+  /** Size of VIRTUAL_THREAD_DEPTHS above which threads which ended without a reset are purged. */
+  private static final int MIN_PURGE_THRESHOLD = 1024;
+
+  private static volatile int purgeThreshold = MIN_PURGE_THRESHOLD;
+
+  private static volatile boolean virtualThreadsEnabled = false;
+
+  /** Class of virtual threads, null if the JVM doesn't have them. */
+  private static final Class<?> VIRTUAL_THREAD_CLASS = findVirtualThreadClass();
+
+  /**
+   * Slots are never released, so keys should be constants, like the name of the instrumented
+   * library's class.
+   *
+   * @return the slot of the key, the same for equal keys
+   */
+  public static int slotFor(final Object key) {
+    final Integer slot = SLOTS.get(key);
+    if (slot != null) {
+      return slot;
+    }
+    synchronized (SLOTS) {
+      final Integer existing = SLOTS.get(key);
+      if (existing != null) {
+        return existing;
+      }
+      final int newSlot = SLOTS.size();
+      SLOTS.put(key, newSlot);
+      return newSlot;
     }
-    map.put(k, depth);
-    return depth;
   }
 
+  /** Looks up the slot of the key on each call, prefer {@link #incrementCallDepth(int)}. */
+  public static int incrementCallDepth(final Object k) {
+    return incrementCallDepth(slotFor(k));
+  }
+
+  /** Looks up the slot of the key on each call, prefer {@link #reset(int)}. */
   public static void reset(final Object k) {
-    TLS.get().remove(k);
+    reset(slotFor(k));
+  }
+
+  /** Called by the agent on startup, before installing instrumentation. */
+  public static void enableVirtualThreads() {
+    virtualThreadsEnabled = true;
+  }
+
+  /** @return the depth before this call, 0 for the outermost call */
+  public static int incrementCallDepth(final int slot) {
+    final Thread thread = Thread.currentThread();
+    if (isVirtualThread(thread)) {
+      CallDepths depths = VIRTUAL_THREAD_DEPTHS.get(thread);
+      if (depths == null) {
+        depths = new CallDepths(true);
+        VIRTUAL_THREAD_DEPTHS.put(thread, depths);
+        if (VIRTUAL_THREAD_DEPTHS.size() > purgeThreshold) {
+          purgeEndedThreads();
+        }
+      }
+      return depths.increment(slot);
+    }
+    CallDepths depths = TLS.get();
+    if (depths == null) {
+      depths = new CallDepths(false);
+      TLS.set(depths);
+    }
+    return depths.increment(slot);
+  }
+
+  public static void reset(final int slot) {
+    final Thread thread = Thread.currentThread();
+    if (isVirtualThread(thread)) {
+      final CallDepths depths = VIRTUAL_THREAD_DEPTHS.get(thread);
+      if (depths != null && depths.reset(slot) && depths.tracked == 0) {
+        VIRTUAL_THREAD_DEPTHS.remove(thread);
+      }
+      return;
+    }
+    final CallDepths depths = TLS.get();
+    if (depths != null) {
+      depths.reset(slot);
+    }
+  }
+
+  private static boolean isVirtualThread(final Thread thread) {
+    return virtualThreadsEnabled && thread.getClass() == VIRTUAL_THREAD_CLASS;
+  }
+
+  /** Drops the depths of threads which ended in a call, so that they can be collected. */
+  private static void purgeEndedThreads() {
+    final Iterator<Thread> threads = VIRTUAL_THREAD_DEPTHS.keySet().iterator();
+    while (threads.hasNext()) {
+      if (!threads.next().isAlive()) {
+        threads.remove();
+      }
+    }
+    purgeThreshold = Math.max(MIN_PURGE_THRESHOLD, 2 * VIRTUAL_THREAD_DEPTHS.size());
+  }
+
+  private static Class<?> findVirtualThreadClass() {
+    try {
+      return Class.forName("java.lang.VirtualThread");
+    } catch (final Throwable e) {
+      return null;
+    }
+  }
+
+  private static final class CallDepths {
+    private final boolean compact;
+    /** Calls counted since the last reset, by slot. */
+    private int[] calls;
+    /** Number of slots with calls counted. */
+    int tracked = 0;
+
+    CallDepths(final boolean compact) {
+      this.compact = compact;
+      // Other threads make room for every slot handed out so far, so they rarely need to grow.
+      calls = new int[compact ? 0 : SLOTS.size()];
+    }
+
+    int increment(final int slot) {
+      if (slot >= calls.length) {
+        calls = Arrays.copyOf(calls, compact ? slot + 1 : Math.max(slot + 1, SLOTS.size()));
+      }
+      final int depth = calls[slot]++;
+      if (depth == 0) {
+        tracked++;
+      }
+      return depth;
+    }
+
+    /** @return false if no call was counted */
+    boolean reset(final int slot) {
+      if (slot >= calls.length || calls[slot] == 0) {
+        return false;
+      }
+      calls[slot] = 0;
+      tracked--;
+      return true;
+    }
   }
 }
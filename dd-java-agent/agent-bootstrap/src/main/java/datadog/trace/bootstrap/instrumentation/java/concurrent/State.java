@@ -2,7 +2,7 @@ package datadog.trace.bootstrap.instrumentation.java.concurrent;
 
 import datadog.trace.bootstrap.ContextStore;
 import datadog.trace.context.TraceScope;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 import lombok.extern.slf4j.Slf4j;
 
 @Slf4j
@@ -16,25 +16,29 @@ public class State {
         }
       };
 
-  private final AtomicReference<TraceScope.Continuation> continuationRef =
-      new AtomicReference<>(null);
+  private static final AtomicReferenceFieldUpdater<State, TraceScope.Continuation> CONTINUATION =
+      AtomicReferenceFieldUpdater.newUpdater(
+          State.class, TraceScope.Continuation.class, "continuation");
+
+  // Updated in place rather than through an AtomicReference, so that each task costs one object.
+  private volatile TraceScope.Continuation continuation = null;
 
   private State() {}
 
   public boolean setContinuation(final TraceScope.Continuation continuation) {
-    final boolean result = continuationRef.compareAndSet(null, continuation);
+    final boolean result = CONTINUATION.compareAndSet(this, null, continuation);
     if (!result) {
       log.debug(
           "Failed to set continuation because another continuation is already set {}: new: {}, old: {}",
           this,
           continuation,
-          continuationRef.get());
+          this.continuation);
     }
     return result;
   }
 
   public void closeContinuation() {
-    final TraceScope.Continuation continuation = continuationRef.getAndSet(null);
+    final TraceScope.Continuation continuation = CONTINUATION.getAndSet(this, null);
     if (continuation != null) {
       // We have opened this continuation, we shall not close parent scope when we close it,
       // otherwise owners of that scope will get confused.
@@ -43,6 +47,6 @@ public class State {
   }
 
   public TraceScope.Continuation getAndResetContinuation() {
-    return continuationRef.getAndSet(null);
+    return CONTINUATION.getAndSet(this, null);
   }
 }
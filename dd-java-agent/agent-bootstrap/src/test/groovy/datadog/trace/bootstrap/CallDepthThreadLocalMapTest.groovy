@@ -1,5 +1,6 @@
 package datadog.trace.bootstrap
 
+import spock.lang.Requires
 import spock.lang.Specification
 
 class CallDepthThreadLocalMapTest extends Specification {
@@ -32,4 +33,70 @@ class CallDepthThreadLocalMapTest extends Specification {
     CallDepthThreadLocalMap.incrementCallDepth(k1) == 1
     CallDepthThreadLocalMap.incrementCallDepth(k2) == 1
   }
+
+  def "tracks more keys than the initial capacity"() {
+    setup:
+    def keys = (1..20).collect { new Object() }
+
+    expect:
+    keys.every { CallDepthThreadLocalMap.incrementCallDepth(it) == 0 }
+    keys.every { CallDepthThreadLocalMap.incrementCallDepth(it) == 1 }
+
+    when:
+    keys.take(10).each { CallDepthThreadLocalMap.reset(it) }
+
+    then:
+    keys.take(10).every { CallDepthThreadLocalMap.incrementCallDepth(it) == 0 }
+    keys.drop(10).every { CallDepthThreadLocalMap.incrementCallDepth(it) == 2 }
+
+    cleanup:
+    keys.each { CallDepthThreadLocalMap.reset(it) }
+  }
+
+  def "equal keys share a slot"() {
+    setup:
+    def slot = CallDepthThreadLocalMap.slotFor("test.SlotKey")
+
+    expect:
+    CallDepthThreadLocalMap.slotFor(new String("test.SlotKey")) == slot
+    CallDepthThreadLocalMap.slotFor("test.OtherSlotKey") != slot
+
+    CallDepthThreadLocalMap.incrementCallDepth(slot) == 0
+    CallDepthThreadLocalMap.incrementCallDepth("test.SlotKey") == 1
+
+    when:
+    CallDepthThreadLocalMap.reset(slot)
+
+    then:
+    CallDepthThreadLocalMap.incrementCallDepth(slot) == 0
+
+    cleanup:
+    CallDepthThreadLocalMap.reset(slot)
+  }
+
+  @Requires({ CallDepthThreadLocalMap.VIRTUAL_THREAD_CLASS != null })
+  def "virtual threads keep their depths in a map only while in a call"() {
+    setup:
+    CallDepthThreadLocalMap.enableVirtualThreads()
+    def slot = CallDepthThreadLocalMap.slotFor("test.VirtualThreadKey")
+    def depths = []
+    def tracked = []
+
+    when:
+    def thread = Thread.ofVirtual().start {
+      depths << CallDepthThreadLocalMap.incrementCallDepth(slot)
+      depths << CallDepthThreadLocalMap.incrementCallDepth(slot)
+      tracked << CallDepthThreadLocalMap.VIRTUAL_THREAD_DEPTHS.containsKey(Thread.currentThread())
+      CallDepthThreadLocalMap.reset(slot)
+      tracked << CallDepthThreadLocalMap.VIRTUAL_THREAD_DEPTHS.containsKey(Thread.currentThread())
+      depths << CallDepthThreadLocalMap.incrementCallDepth(slot)
+      CallDepthThreadLocalMap.reset(slot)
+    }
+    thread.join()
+
+    then:
+    depths == [0, 1, 0]
+    tracked == [true, false]
+    CallDepthThreadLocalMap.VIRTUAL_THREAD_DEPTHS.isEmpty()
+  }
 }
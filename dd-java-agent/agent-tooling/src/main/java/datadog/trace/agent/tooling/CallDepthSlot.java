@@ -0,0 +1,17 @@
+package datadog.trace.agent.tooling;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Binds an int advice parameter to the {@link datadog.trace.bootstrap.CallDepthThreadLocalMap}
+ * slot of the instrumentation's {@link Instrumenter.Default#callDepthKey()}.
+ *
+ * <p>The slot is assigned when the instrumentation is installed and inlined as a constant, so that
+ * advice doesn't look it up on every call.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.PARAMETER)
+public @interface CallDepthSlot {}
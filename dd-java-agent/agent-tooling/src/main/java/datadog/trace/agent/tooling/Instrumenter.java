@@ -8,6 +8,7 @@ import datadog.trace.agent.tooling.context.InstrumentationContextProvider;
 import datadog.trace.agent.tooling.muzzle.Reference;
 import datadog.trace.agent.tooling.muzzle.ReferenceMatcher;
 import datadog.trace.api.Config;
+import datadog.trace.bootstrap.CallDepthThreadLocalMap;
 import java.security.ProtectionDomain;
 import java.util.Arrays;
 import java.util.Collections;
@@ -17,6 +18,7 @@ import java.util.SortedSet;
 import java.util.TreeSet;
 import lombok.extern.slf4j.Slf4j;
 import net.bytebuddy.agent.builder.AgentBuilder;
+import net.bytebuddy.asm.Advice;
 import net.bytebuddy.description.method.MethodDescription;
 import net.bytebuddy.description.type.TypeDescription;
 import net.bytebuddy.matcher.ElementMatcher;
@@ -94,10 +96,16 @@ public interface Instrumenter {
 
     private AgentBuilder.Identified.Extendable applyInstrumentationTransformers(
         AgentBuilder.Identified.Extendable agentBuilder) {
+      Advice.WithCustomMapping customMapping = Advice.withCustomMapping();
+      final String callDepthKey = callDepthKey();
+      if (callDepthKey != null) {
+        customMapping =
+            customMapping.bind(CallDepthSlot.class, CallDepthThreadLocalMap.slotFor(callDepthKey));
+      }
       for (final Map.Entry<? extends ElementMatcher, String> entry : transformers().entrySet()) {
         agentBuilder =
             agentBuilder.transform(
-                new AgentBuilder.Transformer.ForAdvice()
+                new AgentBuilder.Transformer.ForAdvice(customMapping)
                     .include(Utils.getBootstrapProxy(), Utils.getAgentClassLoader())
                     .withExceptionHandler(ExceptionHandlers.defaultExceptionHandler())
                     .advice(entry.getKey(), entry.getValue()));
@@ -211,6 +219,17 @@ public interface Instrumenter {
       return Collections.EMPTY_MAP;
     }
 
+    /**
+     * Instrumentations sharing a key share their call depth, so that nested calls to either one
+     * are tracked once.
+     *
+     * @return the key of the call depth bound to {@link CallDepthSlot} parameters, or null if the
+     *     advice doesn't track one
+     */
+    protected String callDepthKey() {
+      return null;
+    }
+
     protected boolean defaultEnabled() {
       return Config.get().isIntegrationsEnabled();
     }
@@ -9,6 +9,7 @@ import akka.http.scaladsl.HttpExt;
 import akka.http.scaladsl.model.HttpRequest;
 import akka.http.scaladsl.model.HttpResponse;
 import com.google.auto.service.AutoService;
+import datadog.trace.agent.tooling.CallDepthSlot;
 import datadog.trace.agent.tooling.Instrumenter;
 import datadog.trace.bootstrap.CallDepthThreadLocalMap;
 import io.opentracing.Scope;
@@ -40,6 +41,11 @@ public final class AkkaHttpClientInstrumentation extends Instrumenter.Default {
     return named("akka.http.scaladsl.HttpExt");
   }
 
+  @Override
+  protected String callDepthKey() {
+    return "akka.http.scaladsl.HttpExt";
+  }
+
   @Override
   public String[] helperClassNames() {
     return new String[] {
@@ -70,6 +76,7 @@ public final class AkkaHttpClientInstrumentation extends Instrumenter.Default {
   public static class SingleRequestAdvice {
     @Advice.OnMethodEnter(suppress = Throwable.class)
     public static Scope methodEnter(
+        @CallDepthSlot final int callDepthSlot,
         @Advice.Argument(value = 0, readOnly = false) HttpRequest request) {
       /*
       Versions 10.0 and 10.1 have slightly different structure that is hard to distinguish so here
@@ -77,7 +84,7 @@ public final class AkkaHttpClientInstrumentation extends Instrumenter.Default {
       In the future we may want to separate these, but since lots of code is reused we would need to come up
       with way of continuing to reusing it.
        */
-      final int callDepth = CallDepthThreadLocalMap.incrementCallDepth(HttpExt.class);
+      final int callDepth = CallDepthThreadLocalMap.incrementCallDepth(callDepthSlot);
       if (callDepth > 0) {
         return null;
       }
@@ -97,6 +104,7 @@ public final class AkkaHttpClientInstrumentation extends Instrumenter.Default {
 
     @Advice.OnMethodExit(onThrowable = Throwable.class, suppress = Throwable.class)
     public static void methodExit(
+        @CallDepthSlot final int callDepthSlot,
         @Advice.Argument(value = 0) final HttpRequest request,
         @Advice.This final HttpExt thiz,
         @Advice.Return final Future<HttpResponse> responseFuture,
@@ -105,7 +113,7 @@ public final class AkkaHttpClientInstrumentation extends Instrumenter.Default {
       if (scope == null) {
         return;
       }
-      CallDepthThreadLocalMap.reset(HttpExt.class);
+      CallDepthThreadLocalMap.reset(callDepthSlot);
 
       final Span span = scope.span();
 
@@ -10,6 +10,7 @@ import static net.bytebuddy.matcher.ElementMatchers.not;
 import static net.bytebuddy.matcher.ElementMatchers.takesArgument;
 
 import com.google.auto.service.AutoService;
+import datadog.trace.agent.tooling.CallDepthSlot;
 import datadog.trace.agent.tooling.Instrumenter;
 import datadog.trace.bootstrap.CallDepthThreadLocalMap;
 import io.opentracing.Scope;
@@ -29,7 +30,6 @@ import net.bytebuddy.matcher.ElementMatcher;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.HttpClient;
 import org.apache.http.client.ResponseHandler;
 import org.apache.http.client.methods.HttpUriRequest;
 
@@ -45,6 +45,11 @@ public class ApacheHttpClientInstrumentation extends Instrumenter.Default {
     return safeHasSuperType(named("org.apache.http.client.HttpClient"));
   }
 
+  @Override
+  protected String callDepthKey() {
+    return "org.apache.http.client.HttpClient";
+  }
+
   @Override
   public String[] helperClassNames() {
     return new String[] {
@@ -71,6 +76,7 @@ public class ApacheHttpClientInstrumentation extends Instrumenter.Default {
 
     @Advice.OnMethodEnter(suppress = Throwable.class)
     public static Scope methodEnter(
+        @CallDepthSlot final int callDepthSlot,
         @Advice.Argument(0) final HttpUriRequest request,
         // ResponseHandler could be either slot, but not both.
         @Advice.Argument(
@@ -85,7 +91,7 @@ public class ApacheHttpClientInstrumentation extends Instrumenter.Default {
                 typing = Assigner.Typing.DYNAMIC,
                 readOnly = false)
             Object handler2) {
-      final int callDepth = CallDepthThreadLocalMap.incrementCallDepth(HttpClient.class);
+      final int callDepth = CallDepthThreadLocalMap.incrementCallDepth(callDepthSlot);
       if (callDepth > 0) {
         return null;
       }
@@ -114,6 +120,7 @@ public class ApacheHttpClientInstrumentation extends Instrumenter.Default {
 
     @Advice.OnMethodExit(onThrowable = Throwable.class, suppress = Throwable.class)
     public static void methodExit(
+        @CallDepthSlot final int callDepthSlot,
         @Advice.Enter final Scope scope,
         @Advice.Return final Object result,
         @Advice.Thrown final Throwable throwable) {
@@ -129,7 +136,7 @@ public class ApacheHttpClientInstrumentation extends Instrumenter.Default {
           DECORATE.beforeFinish(span);
         } finally {
           scope.close();
-          CallDepthThreadLocalMap.reset(HttpClient.class);
+          CallDepthThreadLocalMap.reset(callDepthSlot);
         }
       }
     }
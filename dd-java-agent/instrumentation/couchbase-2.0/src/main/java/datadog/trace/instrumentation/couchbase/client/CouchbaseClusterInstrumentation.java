@@ -8,8 +8,8 @@ import static net.bytebuddy.matcher.ElementMatchers.named;
 import static net.bytebuddy.matcher.ElementMatchers.not;
 import static net.bytebuddy.matcher.ElementMatchers.returns;
 
-import com.couchbase.client.java.CouchbaseCluster;
 import com.google.auto.service.AutoService;
+import datadog.trace.agent.tooling.CallDepthSlot;
 import datadog.trace.agent.tooling.Instrumenter;
 import datadog.trace.bootstrap.CallDepthThreadLocalMap;
 import java.lang.reflect.Method;
@@ -35,6 +35,11 @@ public class CouchbaseClusterInstrumentation extends Instrumenter.Default {
                 .or(named("com.couchbase.client.java.CouchbaseAsyncCluster")));
   }
 
+  @Override
+  protected String callDepthKey() {
+    return "com.couchbase.client.java.CouchbaseCluster";
+  }
+
   @Override
   public String[] helperClassNames() {
     return new String[] {
@@ -60,19 +65,20 @@ public class CouchbaseClusterInstrumentation extends Instrumenter.Default {
   public static class CouchbaseClientAdvice {
 
     @Advice.OnMethodEnter
-    public static int trackCallDepth() {
-      return CallDepthThreadLocalMap.incrementCallDepth(CouchbaseCluster.class);
+    public static int trackCallDepth(@CallDepthSlot final int callDepthSlot) {
+      return CallDepthThreadLocalMap.incrementCallDepth(callDepthSlot);
     }
 
     @Advice.OnMethodExit
     public static void subscribeResult(
+        @CallDepthSlot final int callDepthSlot,
         @Advice.Enter final int callDepth,
         @Advice.Origin final Method method,
         @Advice.Return(readOnly = false) Observable result) {
       if (callDepth > 0) {
         return;
       }
-      CallDepthThreadLocalMap.reset(CouchbaseCluster.class);
+      CallDepthThreadLocalMap.reset(callDepthSlot);
       result = Observable.create(new CouchbaseOnSubscribe(result, method, null));
     }
   }
@@ -16,6 +16,9 @@ public class SessionMethodUtils {
   public static final Set<String> SCOPE_ONLY_METHODS =
       new HashSet<>(Arrays.asList("immediateLoad", "internalLoad"));
 
+  private static final int CALL_DEPTH_SLOT =
+      CallDepthThreadLocalMap.slotFor(SessionMethodUtils.class.getName());
+
   // Starts a scope as a child from a Span, where the Span is attached to the given spanKey using
   // the given contextStore.
   public static <TARGET, ENTITY> SessionState startScopeFrom(
@@ -31,7 +34,7 @@ public class SessionMethodUtils {
       return null; // No state found. We aren't in a Session.
     }
 
-    final int depth = CallDepthThreadLocalMap.incrementCallDepth(SessionMethodUtils.class);
+    final int depth = CallDepthThreadLocalMap.incrementCallDepth(CALL_DEPTH_SLOT);
     if (depth > 0) {
       return null; // This method call is being traced already.
     }
@@ -64,7 +67,7 @@ public class SessionMethodUtils {
       return;
     }
 
-    CallDepthThreadLocalMap.reset(SessionMethodUtils.class);
+    CallDepthThreadLocalMap.reset(CALL_DEPTH_SLOT);
     final Scope scope = sessionState.getMethodScope();
     final Span span = scope.span();
     if (span != null && sessionState.hasChildSpan) {
@@ -9,6 +9,7 @@ import static net.bytebuddy.matcher.ElementMatchers.named;
 import static net.bytebuddy.matcher.ElementMatchers.not;
 
 import com.google.auto.service.AutoService;
+import datadog.trace.agent.tooling.CallDepthSlot;
 import datadog.trace.agent.tooling.Instrumenter;
 import datadog.trace.bootstrap.CallDepthThreadLocalMap;
 import datadog.trace.bootstrap.ContextStore;
@@ -41,6 +42,11 @@ public class HttpUrlConnectionInstrumentation extends Instrumenter.Default {
         .and(not(named("sun.net.www.protocol.https.HttpsURLConnectionImpl")));
   }
 
+  @Override
+  protected String callDepthKey() {
+    return "java.net.HttpURLConnection";
+  }
+
   @Override
   public String[] helperClassNames() {
     return new String[] {
@@ -72,6 +78,7 @@ public class HttpUrlConnectionInstrumentation extends Instrumenter.Default {
 
     @Advice.OnMethodEnter(suppress = Throwable.class)
     public static HttpUrlState methodEnter(
+        @CallDepthSlot final int callDepthSlot,
         @Advice.This final HttpURLConnection thiz,
         @Advice.FieldValue("connected") final boolean connected) {
 
@@ -80,7 +87,7 @@ public class HttpUrlConnectionInstrumentation extends Instrumenter.Default {
       final HttpUrlState state = contextStore.putIfAbsent(thiz, HttpUrlState.FACTORY);
 
       synchronized (state) {
-        final int callDepth = CallDepthThreadLocalMap.incrementCallDepth(HttpURLConnection.class);
+        final int callDepth = CallDepthThreadLocalMap.incrementCallDepth(callDepthSlot);
         if (callDepth > 0) {
           return null;
         }
@@ -99,6 +106,7 @@ public class HttpUrlConnectionInstrumentation extends Instrumenter.Default {
 
     @Advice.OnMethodExit(onThrowable = Throwable.class, suppress = Throwable.class)
     public static void methodExit(
+        @CallDepthSlot final int callDepthSlot,
         @Advice.Enter final HttpUrlState state,
         @Advice.FieldValue("responseCode") final int responseCode,
         @Advice.Thrown final Throwable throwable,
@@ -118,7 +126,7 @@ public class HttpUrlConnectionInstrumentation extends Instrumenter.Default {
         }
       }
 
-      CallDepthThreadLocalMap.reset(HttpURLConnection.class);
+      CallDepthThreadLocalMap.reset(callDepthSlot);
     }
   }
 
@@ -12,6 +12,7 @@ import static net.bytebuddy.matcher.ElementMatchers.not;
 import static net.bytebuddy.matcher.ElementMatchers.takesArguments;
 
 import com.google.auto.service.AutoService;
+import datadog.trace.agent.tooling.CallDepthSlot;
 import datadog.trace.agent.tooling.Instrumenter;
 import datadog.trace.bootstrap.CallDepthThreadLocalMap;
 import io.opentracing.Scope;
@@ -40,6 +41,11 @@ public final class PreparedStatementInstrumentation extends Instrumenter.Default
     return not(isInterface()).and(safeHasSuperType(named("java.sql.PreparedStatement")));
   }
 
+  @Override
+  protected String callDepthKey() {
+    return "java.sql.PreparedStatement";
+  }
+
   @Override
   public String[] helperClassNames() {
     final List<String> helpers = new ArrayList<>(JDBCConnectionUrlParser.values().length + 9);
@@ -71,8 +77,9 @@ public final class PreparedStatementInstrumentation extends Instrumenter.Default
   public static class PreparedStatementAdvice {
 
     @Advice.OnMethodEnter(suppress = Throwable.class)
-    public static Scope startSpan(@Advice.This final PreparedStatement statement) {
-      final int callDepth = CallDepthThreadLocalMap.incrementCallDepth(PreparedStatement.class);
+    public static Scope startSpan(
+        @CallDepthSlot final int callDepthSlot, @Advice.This final PreparedStatement statement) {
+      final int callDepth = CallDepthThreadLocalMap.incrementCallDepth(callDepthSlot);
       if (callDepth > 0) {
         return null;
       }
@@ -93,12 +100,14 @@ public final class PreparedStatementInstrumentation extends Instrumenter.Default
 
     @Advice.OnMethodExit(onThrowable = Throwable.class, suppress = Throwable.class)
     public static void stopSpan(
-        @Advice.Enter final Scope scope, @Advice.Thrown final Throwable throwable) {
+        @CallDepthSlot final int callDepthSlot,
+        @Advice.Enter final Scope scope,
+        @Advice.Thrown final Throwable throwable) {
       if (scope != null) {
         DECORATE.onError(scope.span(), throwable);
         DECORATE.beforeFinish(scope.span());
         scope.close();
-        CallDepthThreadLocalMap.reset(PreparedStatement.class);
+        CallDepthThreadLocalMap.reset(callDepthSlot);
       }
     }
   }
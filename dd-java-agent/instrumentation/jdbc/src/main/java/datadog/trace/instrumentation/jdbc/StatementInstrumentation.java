@@ -12,6 +12,7 @@ import static net.bytebuddy.matcher.ElementMatchers.not;
 import static net.bytebuddy.matcher.ElementMatchers.takesArgument;
 
 import com.google.auto.service.AutoService;
+import datadog.trace.agent.tooling.CallDepthSlot;
 import datadog.trace.agent.tooling.Instrumenter;
 import datadog.trace.bootstrap.CallDepthThreadLocalMap;
 import io.opentracing.Scope;
@@ -40,6 +41,11 @@ public final class StatementInstrumentation extends Instrumenter.Default {
     return not(isInterface()).and(safeHasSuperType(named("java.sql.Statement")));
   }
 
+  @Override
+  protected String callDepthKey() {
+    return "java.sql.Statement";
+  }
+
   @Override
   public String[] helperClassNames() {
     final List<String> helpers = new ArrayList<>(JDBCConnectionUrlParser.values().length + 9);
@@ -72,8 +78,10 @@ public final class StatementInstrumentation extends Instrumenter.Default {
 
     @Advice.OnMethodEnter(suppress = Throwable.class)
     public static Scope startSpan(
-        @Advice.Argument(0) final String sql, @Advice.This final Statement statement) {
-      final int callDepth = CallDepthThreadLocalMap.incrementCallDepth(Statement.class);
+        @CallDepthSlot final int callDepthSlot,
+        @Advice.Argument(0) final String sql,
+        @Advice.This final Statement statement) {
+      final int callDepth = CallDepthThreadLocalMap.incrementCallDepth(callDepthSlot);
       if (callDepth > 0) {
         return null;
       }
@@ -94,12 +102,14 @@ public final class StatementInstrumentation extends Instrumenter.Default {
 
     @Advice.OnMethodExit(onThrowable = Throwable.class, suppress = Throwable.class)
     public static void stopSpan(
-        @Advice.Enter final Scope scope, @Advice.Thrown final Throwable throwable) {
+        @CallDepthSlot final int callDepthSlot,
+        @Advice.Enter final Scope scope,
+        @Advice.Thrown final Throwable throwable) {
       if (scope != null) {
         DECORATE.onError(scope.span(), throwable);
         DECORATE.beforeFinish(scope.span());
         scope.close();
-        CallDepthThreadLocalMap.reset(Statement.class);
+        CallDepthThreadLocalMap.reset(callDepthSlot);
       }
     }
   }
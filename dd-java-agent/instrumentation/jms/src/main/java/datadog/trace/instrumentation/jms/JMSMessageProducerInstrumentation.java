@@ -9,6 +9,7 @@ import static net.bytebuddy.matcher.ElementMatchers.not;
 import static net.bytebuddy.matcher.ElementMatchers.takesArgument;
 
 import com.google.auto.service.AutoService;
+import datadog.trace.agent.tooling.CallDepthSlot;
 import datadog.trace.agent.tooling.Instrumenter;
 import datadog.trace.bootstrap.CallDepthThreadLocalMap;
 import io.opentracing.Scope;
@@ -37,6 +38,11 @@ public final class JMSMessageProducerInstrumentation extends Instrumenter.Defaul
     return not(isInterface()).and(safeHasSuperType(named("javax.jms.MessageProducer")));
   }
 
+  @Override
+  protected String callDepthKey() {
+    return "javax.jms.MessageProducer";
+  }
+
   @Override
   public String[] helperClassNames() {
     return new String[] {
@@ -68,8 +74,10 @@ public final class JMSMessageProducerInstrumentation extends Instrumenter.Defaul
 
     @Advice.OnMethodEnter(suppress = Throwable.class)
     public static Scope startSpan(
-        @Advice.Argument(0) final Message message, @Advice.This final MessageProducer producer) {
-      final int callDepth = CallDepthThreadLocalMap.incrementCallDepth(MessageProducer.class);
+        @CallDepthSlot final int callDepthSlot,
+        @Advice.Argument(0) final Message message,
+        @Advice.This final MessageProducer producer) {
+      final int callDepth = CallDepthThreadLocalMap.incrementCallDepth(callDepthSlot);
       if (callDepth > 0) {
         return null;
       }
@@ -98,13 +106,15 @@ public final class JMSMessageProducerInstrumentation extends Instrumenter.Defaul
 
     @Advice.OnMethodExit(onThrowable = Throwable.class, suppress = Throwable.class)
     public static void stopSpan(
-        @Advice.Enter final Scope scope, @Advice.Thrown final Throwable throwable) {
+        @CallDepthSlot final int callDepthSlot,
+        @Advice.Enter final Scope scope,
+        @Advice.Thrown final Throwable throwable) {
 
       if (scope != null) {
         PRODUCER_DECORATE.onError(scope, throwable);
         PRODUCER_DECORATE.beforeFinish(scope);
         scope.close();
-        CallDepthThreadLocalMap.reset(MessageProducer.class);
+        CallDepthThreadLocalMap.reset(callDepthSlot);
       }
     }
   }
@@ -113,10 +123,11 @@ public final class JMSMessageProducerInstrumentation extends Instrumenter.Defaul
 
     @Advice.OnMethodEnter(suppress = Throwable.class)
     public static Scope startSpan(
+        @CallDepthSlot final int callDepthSlot,
         @Advice.Argument(0) final Destination destination,
         @Advice.Argument(1) final Message message,
         @Advice.This final MessageProducer producer) {
-      final int callDepth = CallDepthThreadLocalMap.incrementCallDepth(MessageProducer.class);
+      final int callDepth = CallDepthThreadLocalMap.incrementCallDepth(callDepthSlot);
       if (callDepth > 0) {
         return null;
       }
@@ -138,12 +149,14 @@ public final class JMSMessageProducerInstrumentation extends Instrumenter.Defaul
 
     @Advice.OnMethodExit(onThrowable = Throwable.class, suppress = Throwable.class)
     public static void stopSpan(
-        @Advice.Enter final Scope scope, @Advice.Thrown final Throwable throwable) {
+        @CallDepthSlot final int callDepthSlot,
+        @Advice.Enter final Scope scope,
+        @Advice.Thrown final Throwable throwable) {
       if (scope != null) {
         PRODUCER_DECORATE.onError(scope, throwable);
         PRODUCER_DECORATE.beforeFinish(scope);
         scope.close();
-        CallDepthThreadLocalMap.reset(MessageProducer.class);
+        CallDepthThreadLocalMap.reset(callDepthSlot);
       }
     }
   }
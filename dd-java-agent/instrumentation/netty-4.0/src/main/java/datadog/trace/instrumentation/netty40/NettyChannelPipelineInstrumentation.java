@@ -10,6 +10,7 @@ import static net.bytebuddy.matcher.ElementMatchers.returns;
 import static net.bytebuddy.matcher.ElementMatchers.takesArgument;
 
 import com.google.auto.service.AutoService;
+import datadog.trace.agent.tooling.CallDepthSlot;
 import datadog.trace.agent.tooling.Instrumenter;
 import datadog.trace.bootstrap.CallDepthThreadLocalMap;
 import datadog.trace.context.TraceScope;
@@ -52,6 +53,11 @@ public class NettyChannelPipelineInstrumentation extends Instrumenter.Default {
     return not(isInterface()).and(safeHasSuperType(named("io.netty.channel.ChannelPipeline")));
   }
 
+  @Override
+  protected String callDepthKey() {
+    return "io.netty.channel.ChannelPipeline";
+  }
+
   @Override
   public String[] helperClassNames() {
     return new String[] {
@@ -98,12 +104,13 @@ public class NettyChannelPipelineInstrumentation extends Instrumenter.Default {
    */
   public static class ChannelPipelineAddAdvice {
     @Advice.OnMethodEnter
-    public static int checkDepth() {
-      return CallDepthThreadLocalMap.incrementCallDepth(ChannelPipeline.class);
+    public static int checkDepth(@CallDepthSlot final int callDepthSlot) {
+      return CallDepthThreadLocalMap.incrementCallDepth(callDepthSlot);
     }
 
     @Advice.OnMethodExit(suppress = Throwable.class)
     public static void addHandler(
+        @CallDepthSlot final int callDepthSlot,
         @Advice.Enter final int depth,
         @Advice.This final ChannelPipeline pipeline,
         @Advice.Argument(2) final ChannelHandler handler) {
@@ -141,7 +148,7 @@ public class NettyChannelPipelineInstrumentation extends Instrumenter.Default {
       } catch (final IllegalArgumentException e) {
         // Prevented adding duplicate handlers.
       } finally {
-        CallDepthThreadLocalMap.reset(ChannelPipeline.class);
+        CallDepthThreadLocalMap.reset(callDepthSlot);
       }
     }
   }
@@ -97,8 +97,12 @@ public class NettyChannelPipelineInstrumentation extends Instrumenter.Default {
    * currently implemented.
    */
   public static class ChannelPipelineAddAdvice {
+    /**
+     * @return the call depth key of the traced handler type, or null if the handler isn't traced or
+     *     is already being added
+     */
     @Advice.OnMethodEnter
-    public static int checkDepth(@Advice.Argument(2) final ChannelHandler handler) {
+    public static String checkDepth(@Advice.Argument(2) final ChannelHandler handler) {
       // Previously we used one unique call depth tracker for all handlers, using
       // ChannelPipeline.class as a key.
       // The problem with this approach is that it does not work with netty's
@@ -108,15 +112,33 @@ public class NettyChannelPipelineInstrumentation extends Instrumenter.Default {
       // Using the specific handler key instead of the generic ChannelPipeline.class will help us
       // both to handle such cases and avoid adding our additional handlers in case of internal
       // calls of `addLast` to other method overloads with a compatible signature.
-      return CallDepthThreadLocalMap.incrementCallDepth(handler.getClass());
+      // Call depth slots are never released, so only the traced handler types are tracked, keyed
+      // by name, rather than every handler class.
+      final String key;
+      if (handler instanceof HttpServerCodec) {
+        key = HttpServerCodec.class.getName();
+      } else if (handler instanceof HttpRequestDecoder) {
+        key = HttpRequestDecoder.class.getName();
+      } else if (handler instanceof HttpResponseEncoder) {
+        key = HttpResponseEncoder.class.getName();
+      } else if (handler instanceof HttpClientCodec) {
+        key = HttpClientCodec.class.getName();
+      } else if (handler instanceof HttpRequestEncoder) {
+        key = HttpRequestEncoder.class.getName();
+      } else if (handler instanceof HttpResponseDecoder) {
+        key = HttpResponseDecoder.class.getName();
+      } else {
+        return null;
+      }
+      return CallDepthThreadLocalMap.incrementCallDepth(key) == 0 ? key : null;
     }
 
     @Advice.OnMethodExit(suppress = Throwable.class)
     public static void addHandler(
-        @Advice.Enter final int depth,
+        @Advice.Enter final String key,
         @Advice.This final ChannelPipeline pipeline,
         @Advice.Argument(2) final ChannelHandler handler) {
-      if (depth > 0) {
+      if (key == null) {
         return;
       }
 
@@ -150,7 +172,7 @@ public class NettyChannelPipelineInstrumentation extends Instrumenter.Default {
       } catch (final IllegalArgumentException e) {
         // Prevented adding duplicate handlers.
       } finally {
-        CallDepthThreadLocalMap.reset(handler.getClass());
+        CallDepthThreadLocalMap.reset(key);
       }
     }
   }
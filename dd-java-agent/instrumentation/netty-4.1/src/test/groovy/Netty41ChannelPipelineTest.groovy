@@ -0,0 +1,79 @@
+import datadog.trace.agent.test.AgentTestRunner
+import datadog.trace.instrumentation.netty41.server.HttpServerRequestTracingHandler
+import datadog.trace.instrumentation.netty41.server.HttpServerTracingHandler
+import io.netty.channel.Channel
+import io.netty.channel.ChannelHandlerContext
+import io.netty.channel.ChannelInitializer
+import io.netty.channel.embedded.EmbeddedChannel
+import io.netty.handler.codec.http.HttpRequestDecoder
+import io.netty.handler.codec.http.HttpServerCodec
+
+class Netty41ChannelPipelineTest extends AgentTestRunner {
+
+  def "tracing handler is added once when the codec is added twice"() {
+    setup:
+    def channel = new EmbeddedChannel()
+
+    when:
+    channel.pipeline().addLast("codec1", new HttpServerCodec())
+    channel.pipeline().addLast("codec2", new HttpServerCodec())
+
+    then:
+    channel.pipeline().names().count { it == HttpServerTracingHandler.name } == 1
+    channel.pipeline().names().indexOf(HttpServerTracingHandler.name) ==
+      channel.pipeline().names().indexOf("codec1") + 1
+
+    cleanup:
+    channel.close()
+  }
+
+  def "tracing handler is added for a codec added by a channel initializer"() {
+    setup:
+    def initializer = new ChannelInitializer<Channel>() {
+      @Override
+      protected void initChannel(Channel ch) {
+        ch.pipeline().addLast("codec", new HttpServerCodec())
+      }
+    }
+
+    when:
+    def channel = new EmbeddedChannel(initializer)
+
+    then:
+    channel.pipeline().names().count { it == HttpServerTracingHandler.name } == 1
+    channel.pipeline().names().indexOf(HttpServerTracingHandler.name) ==
+      channel.pipeline().names().indexOf("codec") + 1
+
+    cleanup:
+    channel?.close()
+  }
+
+  def "nested adds only skip the handlers of the type being added"() {
+    setup:
+    def channel = new EmbeddedChannel()
+    def decoder = new HttpRequestDecoder() {
+      @Override
+      void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        super.handlerAdded(ctx)
+        // Added while the add of this decoder is still on the stack.
+        ctx.pipeline().addLast("nestedDecoder", new HttpRequestDecoder())
+        ctx.pipeline().addLast("nestedCodec", new HttpServerCodec())
+      }
+    }
+
+    when:
+    channel.pipeline().addLast("decoder", decoder)
+
+    then:
+    channel.pipeline().names().count { it == HttpServerRequestTracingHandler.name } == 1
+    channel.pipeline().names().count { it == HttpServerTracingHandler.name } == 1
+    channel.pipeline().names().indexOf(HttpServerTracingHandler.name) ==
+      channel.pipeline().names().indexOf("nestedCodec") + 1
+    // Added once the outermost add returns.
+    channel.pipeline().names().indexOf(HttpServerRequestTracingHandler.name) ==
+      channel.pipeline().names().indexOf(HttpServerTracingHandler.name) + 1
+
+    cleanup:
+    channel.close()
+  }
+}
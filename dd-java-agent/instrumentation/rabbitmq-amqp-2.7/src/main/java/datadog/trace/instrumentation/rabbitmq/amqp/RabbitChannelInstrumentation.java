@@ -23,6 +23,7 @@ import com.rabbitmq.client.Connection;
 import com.rabbitmq.client.Consumer;
 import com.rabbitmq.client.GetResponse;
 import com.rabbitmq.client.MessageProperties;
+import datadog.trace.agent.tooling.CallDepthSlot;
 import datadog.trace.agent.tooling.Instrumenter;
 import datadog.trace.api.DDTags;
 import datadog.trace.bootstrap.CallDepthThreadLocalMap;
@@ -55,6 +56,11 @@ public class RabbitChannelInstrumentation extends Instrumenter.Default {
     return not(isInterface()).and(safeHasSuperType(named("com.rabbitmq.client.Channel")));
   }
 
+  @Override
+  protected String callDepthKey() {
+    return "com.rabbitmq.client.Channel";
+  }
+
   @Override
   public String[] helperClassNames() {
     return new String[] {
@@ -108,8 +114,10 @@ public class RabbitChannelInstrumentation extends Instrumenter.Default {
   public static class ChannelMethodAdvice {
     @Advice.OnMethodEnter
     public static Scope startSpan(
-        @Advice.This final Channel channel, @Advice.Origin("Channel.#m") final String method) {
-      final int callDepth = CallDepthThreadLocalMap.incrementCallDepth(Channel.class);
+        @CallDepthSlot final int callDepthSlot,
+        @Advice.This final Channel channel,
+        @Advice.Origin("Channel.#m") final String method) {
+      final int callDepth = CallDepthThreadLocalMap.incrementCallDepth(callDepthSlot);
       if (callDepth > 0) {
         return null;
       }
@@ -129,12 +137,14 @@ public class RabbitChannelInstrumentation extends Instrumenter.Default {
 
     @Advice.OnMethodExit(onThrowable = Throwable.class, suppress = Throwable.class)
     public static void stopSpan(
-        @Advice.Enter final Scope scope, @Advice.Thrown final Throwable throwable) {
+        @CallDepthSlot final int callDepthSlot,
+        @Advice.Enter final Scope scope,
+        @Advice.Thrown final Throwable throwable) {
       if (scope != null) {
         DECORATE.onError(scope, throwable);
         DECORATE.beforeFinish(scope);
         scope.close();
-        CallDepthThreadLocalMap.reset(Channel.class);
+        CallDepthThreadLocalMap.reset(callDepthSlot);
       }
     }
   }
@@ -189,9 +199,10 @@ public class RabbitChannelInstrumentation extends Instrumenter.Default {
   public static class ChannelGetAdvice {
     @Advice.OnMethodEnter
     public static long takeTimestamp(
+        @CallDepthSlot final int callDepthSlot,
         @Advice.Local("placeholderScope") Scope placeholderScope,
         @Advice.Local("callDepth") int callDepth) {
-      callDepth = CallDepthThreadLocalMap.incrementCallDepth(Channel.class);
+      callDepth = CallDepthThreadLocalMap.incrementCallDepth(callDepthSlot);
       // Don't want RabbitCommandInstrumentation to mess up our actual parent span.
       placeholderScope = GlobalTracer.get().scopeManager().activate(NoopSpan.INSTANCE, false);
       return System.currentTimeMillis();
@@ -199,6 +210,7 @@ public class RabbitChannelInstrumentation extends Instrumenter.Default {
 
     @Advice.OnMethodExit(onThrowable = Throwable.class, suppress = Throwable.class)
     public static void extractAndStartSpan(
+        @CallDepthSlot final int callDepthSlot,
         @Advice.This final Channel channel,
         @Advice.Argument(0) final String queue,
         @Advice.Enter final long startTime,
@@ -255,7 +267,7 @@ public class RabbitChannelInstrumentation extends Instrumenter.Default {
         CONSUMER_DECORATE.beforeFinish(span);
       } finally {
         span.finish();
-        CallDepthThreadLocalMap.reset(Channel.class);
+        CallDepthThreadLocalMap.reset(callDepthSlot);
       }
     }
   }
@@ -14,6 +14,9 @@ import reactor.core.CoreSubscriber;
  * <p>This instrumentation is similar to java-concurrent instrumentation in a sense that it doesn't
  * create any new spans. Instead it makes sure that existing span is propagated through Flux/Mono
  * execution.
+ *
+ * <p>Each operator of a chain subscribes to the one before it on the same thread, so the span is
+ * only activated by the outermost subscription and again wherever subscription hops threads.
  */
 public class FluxAndMonoSubscribeAdvice {
 
@@ -24,7 +27,7 @@ public class FluxAndMonoSubscribeAdvice {
         subscriber
             .currentContext()
             .getOrDefault(ReactorCoreAdviceUtils.PUBLISHER_CONTEXT_KEY, null);
-    if (span != null) {
+    if (span != null && !ReactorCoreAdviceUtils.isActive(span)) {
       final Scope scope = GlobalTracer.get().scopeManager().activate(span, false);
       ((TraceScope) scope).setAsyncPropagation(true);
       return scope;
@@ -34,9 +37,11 @@ public class FluxAndMonoSubscribeAdvice {
 
   @Advice.OnMethodExit(onThrowable = Throwable.class, suppress = Throwable.class)
   public static void methodExit(
-      @Advice.Enter final Scope scope, @Advice.Thrown final Throwable throwable) {
+      @Advice.Argument(0) final CoreSubscriber subscriber,
+      @Advice.Enter final Scope scope,
+      @Advice.Thrown final Throwable throwable) {
     if (throwable != null) {
-      ReactorCoreAdviceUtils.finishSpanIfPresent(scope.span(), throwable);
+      ReactorCoreAdviceUtils.finishSpanIfPresent(subscriber.currentContext(), throwable);
     }
     if (scope != null) {
       scope.close();
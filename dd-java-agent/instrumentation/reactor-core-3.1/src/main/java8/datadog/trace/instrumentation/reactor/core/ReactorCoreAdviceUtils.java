@@ -3,8 +3,11 @@ package datadog.trace.instrumentation.reactor.core;
 import static io.opentracing.log.Fields.ERROR_OBJECT;
 import static reactor.core.publisher.Operators.lift;
 
+import datadog.trace.context.TraceScope;
+import io.opentracing.Scope;
 import io.opentracing.Span;
 import io.opentracing.tag.Tags;
+import io.opentracing.util.GlobalTracer;
 import java.util.Collections;
 import java.util.function.Function;
 import lombok.extern.slf4j.Slf4j;
@@ -41,6 +44,14 @@ public class ReactorCoreAdviceUtils {
     return lift((scannable, subscriber) -> new TracingSubscriber<>(subscriber));
   }
 
+  /** @return true if the span is active and propagated to async work, so needs no new scope */
+  public static boolean isActive(final Span span) {
+    final Scope scope = GlobalTracer.get().scopeManager().active();
+    return scope instanceof TraceScope
+        && scope.span() == span
+        && ((TraceScope) scope).isAsyncPropagating();
+  }
+
   public static void finishSpanIfPresent(final Context context, final Throwable throwable) {
     finishSpanIfPresent(context.getOrDefault(PUBLISHER_CONTEXT_KEY, (Span) null), throwable);
   }
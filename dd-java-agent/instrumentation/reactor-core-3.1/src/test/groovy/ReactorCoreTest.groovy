@@ -1,5 +1,6 @@
 import datadog.trace.agent.test.AgentTestRunner
 import datadog.trace.api.Trace
+import datadog.trace.context.ScopeListener
 import datadog.trace.instrumentation.reactor.core.ReactorCoreAdviceUtils
 import io.opentracing.Scope
 import io.opentracing.tag.Tags
@@ -8,19 +9,38 @@ import org.reactivestreams.Subscriber
 import org.reactivestreams.Subscription
 import reactor.core.publisher.Flux
 import reactor.core.publisher.Mono
+import reactor.core.scheduler.Schedulers
 import spock.lang.Shared
 
 import java.time.Duration
+import java.util.concurrent.atomic.AtomicInteger
 
 class ReactorCoreTest extends AgentTestRunner {
 
   public static final String EXCEPTION_MESSAGE = "test exception"
 
+  static final AtomicInteger PUBLISHER_SCOPES_CLOSED = new AtomicInteger()
+
   @Shared
   def addOne = { i -> addOneFunc(i) }
   @Shared
   def throwException = { throw new RuntimeException(EXCEPTION_MESSAGE) }
 
+  def setupSpec() {
+    TEST_TRACER.addScopeListener(new ScopeListener() {
+      @Override
+      void afterScopeActivated() {
+      }
+
+      @Override
+      void afterScopeClosed() {
+        if (GlobalTracer.get().activeSpan()?.operationName == "publisher-parent") {
+          PUBLISHER_SCOPES_CLOSED.incrementAndGet()
+        }
+      }
+    })
+  }
+
   def "Publisher '#name' test"() {
     when:
     def result = runUnderTrace(publisher)
@@ -72,6 +92,10 @@ class ReactorCoreTest extends AgentTestRunner {
     "two operations flux" | [8, 9]   | 4         | Flux.fromIterable([6, 7]).map(addOne).map(addOne)
     "delayed flux"        | [8, 9]   | 2         | Flux.fromIterable([7, 8]).delayElements(Duration.ofMillis(100)).map(addOne)
     "delayed twice flux"  | [10, 11] | 4         | Flux.fromIterable([8, 9]).delayElements(Duration.ofMillis(100)).map(addOne).delayElements(Duration.ofMillis(100)).map(addOne)
+    "publishOn mono"      | 6        | 1         | Mono.just(5).publishOn(Schedulers.parallel()).map(addOne)
+    "subscribeOn mono"    | 7        | 1         | Mono.just(6).subscribeOn(Schedulers.single()).map(addOne)
+    "publishOn flux"      | [8, 9]   | 2         | Flux.fromIterable([7, 8]).publishOn(Schedulers.parallel()).map(addOne)
+    "subscribeOn flux"    | [9, 10]  | 2         | Flux.fromIterable([8, 9]).subscribeOn(Schedulers.single()).map(addOne)
 
     "mono from callable"  | 12       | 2         | Mono.fromCallable({ addOneFunc(10) }).map(addOne)
   }
@@ -168,6 +192,62 @@ class ReactorCoreTest extends AgentTestRunner {
     "basic flux failure" | 1         | Flux.fromIterable([5, 6]).map(addOne).map({ throwException() })
   }
 
+  def "Publisher '#name' subscribed on one thread activates its span once"() {
+    setup:
+    PUBLISHER_SCOPES_CLOSED.set(0)
+
+    when:
+    def result = runUnderTrace(publisher)
+
+    then:
+    result == expected
+    // One scope is closed by runUnderTrace, the other is activated by the outermost subscription.
+    // The operators it subscribes to on the same thread find the span already active.
+    PUBLISHER_SCOPES_CLOSED.get() == 2
+
+    where:
+    name                  | expected | publisher
+    "basic mono"          | 2        | Mono.just(1).map(addOne)
+    "two operations mono" | 4        | Mono.just(2).map(addOne).map(addOne)
+    "basic flux"          | [6, 7]   | Flux.fromIterable([5, 6]).map(addOne)
+    "two operations flux" | [8, 9]   | Flux.fromIterable([6, 7]).map(addOne).map(addOne)
+  }
+
+  def "Publisher '#name' subscription failure"() {
+    when:
+    failSubscriptionUnderTrace(publisher)
+
+    then:
+    assertTraces(1) {
+      trace(0, 2) {
+        span(0) {
+          resourceName "trace-parent"
+          operationName "trace-parent"
+          parent()
+          tags {
+            "$Tags.COMPONENT.key" "trace"
+            defaultTags()
+          }
+        }
+        span(1) {
+          resourceName "publisher-parent"
+          operationName "publisher-parent"
+          childOf(span(0))
+          errored true
+          tags {
+            errorTags(RuntimeException, EXCEPTION_MESSAGE)
+            defaultTags()
+          }
+        }
+      }
+    }
+
+    where:
+    name         | publisher
+    "basic mono" | Mono.just(1)
+    "basic flux" | Flux.fromIterable([5, 6])
+  }
+
   def "Publisher '#name' cancel"() {
     when:
     cancelUnderTrace(publisher)
@@ -243,6 +323,33 @@ class ReactorCoreTest extends AgentTestRunner {
     })
   }
 
+  @Trace(operationName = "trace-parent", resourceName = "trace-parent")
+  def failSubscriptionUnderTrace(def publisher) {
+    final Scope scope = GlobalTracer.get().buildSpan("publisher-parent").startActive(true)
+    publisher = ReactorCoreAdviceUtils.setPublisherSpan(publisher, scope.span())
+    scope.close()
+
+    try {
+      // Throws out of the subscribe calls of the publisher's operators
+      publisher.subscribe(new Subscriber<Integer>() {
+        void onSubscribe(Subscription subscription) {
+          throw new RuntimeException(EXCEPTION_MESSAGE)
+        }
+
+        void onNext(Integer t) {
+        }
+
+        void onError(Throwable error) {
+        }
+
+        void onComplete() {
+        }
+      })
+    } catch (RuntimeException ignored) {
+      // Later versions report the failure to onError instead of rethrowing it.
+    }
+  }
+
   @Trace(operationName = "addOne", resourceName = "addOne")
   def static addOneFunc(int i) {
     return i + 1
@@ -29,15 +29,13 @@ public class TracedSubscriber<T> extends Subscriber<T> {
   @Override
   public void onStart() {
     final Span span = spanRef.get();
-    if (span != null) {
-      try (final Scope scope = scopeManager.activate(span, false)) {
-        if (scope instanceof TraceScope) {
-          ((TraceScope) scope).setAsyncPropagation(true);
-        }
-        delegate.onStart();
-      }
-    } else {
+    final Scope scope = span != null ? activate(span) : null;
+    try {
       delegate.onStart();
+    } finally {
+      if (scope != null) {
+        scope.close();
+      }
     }
   }
 
@@ -45,13 +43,15 @@ public class TracedSubscriber<T> extends Subscriber<T> {
   public void onNext(final T value) {
     final Span span = spanRef.get();
     if (span != null) {
-      try (final Scope scope = scopeManager.activate(span, false)) {
-        if (scope instanceof TraceScope) {
-          ((TraceScope) scope).setAsyncPropagation(true);
-        }
+      final Scope scope = activate(span);
+      try {
         delegate.onNext(value);
       } catch (final Throwable e) {
         onError(e);
+      } finally {
+        if (scope != null) {
+          scope.close();
+        }
       }
     } else {
       delegate.onNext(value);
@@ -63,10 +63,8 @@ public class TracedSubscriber<T> extends Subscriber<T> {
     final Span span = spanRef.getAndSet(null);
     if (span != null) {
       boolean errored = false;
-      try (final Scope scope = scopeManager.activate(span, false)) {
-        if (scope instanceof TraceScope) {
-          ((TraceScope) scope).setAsyncPropagation(true);
-        }
+      final Scope scope = activate(span);
+      try {
         delegate.onCompleted();
       } catch (final Throwable e) {
         // Repopulate the spanRef for onError
@@ -74,6 +72,9 @@ public class TracedSubscriber<T> extends Subscriber<T> {
         onError(e);
         errored = true;
       } finally {
+        if (scope != null) {
+          scope.close();
+        }
         // finish called by onError, so don't finish again.
         if (!errored) {
           decorator.beforeFinish(span);
@@ -89,16 +90,17 @@ public class TracedSubscriber<T> extends Subscriber<T> {
   public void onError(final Throwable e) {
     final Span span = spanRef.getAndSet(null);
     if (span != null) {
-      try (final Scope scope = scopeManager.activate(span, false)) {
-        if (scope instanceof TraceScope) {
-          ((TraceScope) scope).setAsyncPropagation(true);
-        }
+      final Scope scope = activate(span);
+      try {
         decorator.onError(span, e);
         delegate.onError(e);
       } catch (final Throwable e2) {
         decorator.onError(span, e2);
         throw e2;
       } finally {
+        if (scope != null) {
+          scope.close();
+        }
         decorator.beforeFinish(span);
         span.finish();
       }
@@ -106,4 +108,24 @@ public class TracedSubscriber<T> extends Subscriber<T> {
       delegate.onError(e);
     }
   }
+
+  /**
+   * Signals are mostly delivered on the thread which subscribed, where the span is still active,
+   * so a scope is only activated once the observable hops to another thread.
+   *
+   * @return the activated scope, or null if the span is already active and propagated
+   */
+  private Scope activate(final Span span) {
+    final Scope active = scopeManager.active();
+    if (active instanceof TraceScope
+        && active.span() == span
+        && ((TraceScope) active).isAsyncPropagating()) {
+      return null;
+    }
+    final Scope scope = scopeManager.activate(span, false);
+    if (scope instanceof TraceScope) {
+      ((TraceScope) scope).setAsyncPropagation(true);
+    }
+    return scope;
+  }
 }
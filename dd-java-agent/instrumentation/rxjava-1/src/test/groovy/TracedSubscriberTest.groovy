@@ -0,0 +1,240 @@
+import datadog.trace.agent.decorator.BaseDecorator
+import datadog.trace.agent.test.AgentTestRunner
+import datadog.trace.context.TraceScope
+import datadog.trace.instrumentation.rxjava.TracedOnSubscribe
+import io.opentracing.Scope
+import io.opentracing.util.GlobalTracer
+import rx.Observable
+import rx.Subscriber
+import rx.schedulers.Schedulers
+import spock.lang.Timeout
+
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+import static datadog.trace.agent.test.utils.TraceUtils.basicSpan
+import static datadog.trace.agent.test.utils.TraceUtils.runUnderTrace
+
+@Timeout(10)
+class TracedSubscriberTest extends AgentTestRunner {
+
+  static final BaseDecorator DECORATOR = new BaseDecorator() {
+    protected String[] instrumentationNames() {
+      return new String[0]
+    }
+
+    protected String spanType() {
+      return null
+    }
+
+    protected String component() {
+      return null
+    }
+  }
+
+  def "signals on the subscribing thread run in the scope that started the span"() {
+    setup:
+    def source = new TestSource(false)
+    def subscriber = new TestSubscriber()
+
+    when:
+    runUnderTrace("parent") {
+      traced(source).subscribe(subscriber)
+      source.await()
+    }
+    subscriber.await()
+
+    then:
+    subscriber.values == [1, 2]
+    subscriber.scopes.size() == 3
+    subscriber.scopes.every { it.is(source.subscribeScope) }
+    assertTraces(1) {
+      trace(0, 2) {
+        basicSpan(it, 0, "parent")
+        basicSpan(it, 1, "traced", span(0))
+      }
+    }
+  }
+
+  def "signals after subscribeOn run in the scope that started the span"() {
+    setup:
+    def source = new TestSource(false)
+    def subscriber = new TestSubscriber()
+
+    when:
+    runUnderTrace("parent") {
+      traced(source).subscribeOn(Schedulers.newThread()).subscribe(subscriber)
+      source.await()
+    }
+    subscriber.await()
+
+    then:
+    subscriber.values == [1, 2]
+    subscriber.scopes.size() == 3
+    subscriber.scopes.every { it.is(source.subscribeScope) }
+    assertTraces(1) {
+      trace(0, 2) {
+        basicSpan(it, 0, "parent")
+        basicSpan(it, 1, "traced", span(0))
+      }
+    }
+  }
+
+  def "signals emitted on another thread activate the span"() {
+    setup:
+    def source = new TestSource(true)
+    def subscriber = new TestSubscriber()
+
+    when:
+    runUnderTrace("parent") {
+      traced(source).subscribe(subscriber)
+      source.await()
+    }
+    subscriber.await()
+
+    then:
+    subscriber.values == [1, 2]
+    subscriber.scopes.size() == 3
+    subscriber.scopes.every {
+      !it.is(source.subscribeScope) && ((TraceScope) it).isAsyncPropagating()
+    }
+    subscriber.scopes*.span().every { it.is(source.subscribeScope.span()) }
+    source.scopeAfterEmit == null
+    assertTraces(1) {
+      trace(0, 2) {
+        basicSpan(it, 0, "parent")
+        basicSpan(it, 1, "traced", span(0))
+      }
+    }
+  }
+
+  def "signals after observeOn run under the span"() {
+    setup:
+    def source = new TestSource(false)
+    def subscriber = new TestSubscriber()
+
+    when:
+    runUnderTrace("parent") {
+      traced(source).observeOn(Schedulers.newThread()).subscribe(subscriber)
+      source.await()
+    }
+    subscriber.await()
+
+    then:
+    subscriber.values == [1, 2]
+    subscriber.scopes.size() == 3
+    subscriber.scopes*.span().every { it.is(source.subscribeScope.span()) }
+    assertTraces(1) {
+      trace(0, 2) {
+        basicSpan(it, 0, "parent")
+        basicSpan(it, 1, "traced", span(0))
+      }
+    }
+  }
+
+  def "errors emitted on another thread finish the span with the error"() {
+    setup:
+    def error = new RuntimeException("boom")
+    def source = new TestSource(true, error)
+    def subscriber = new TestSubscriber()
+
+    when:
+    runUnderTrace("parent") {
+      traced(source).subscribe(subscriber)
+      source.await()
+    }
+    subscriber.await()
+
+    then:
+    subscriber.error.is(error)
+    subscriber.scopes*.span() == [source.subscribeScope.span()]
+    source.scopeAfterEmit == null
+    assertTraces(1) {
+      trace(0, 2) {
+        basicSpan(it, 0, "parent")
+        basicSpan(it, 1, "traced", span(0), error)
+      }
+    }
+  }
+
+  def traced(TestSource source) {
+    return Observable.create(new TracedOnSubscribe(Observable.create(source), "traced", DECORATOR))
+  }
+
+  /** Emits 1 and 2, or an error, and records the scopes active when subscribed and after emitting */
+  static class TestSource implements Observable.OnSubscribe<Integer> {
+    final boolean newThread
+    final Throwable error
+    final CountDownLatch terminated = new CountDownLatch(1)
+    volatile Scope subscribeScope
+    volatile Scope scopeAfterEmit
+
+    TestSource(boolean newThread, Throwable error = null) {
+      this.newThread = newThread
+      this.error = error
+    }
+
+    @Override
+    void call(Subscriber<? super Integer> subscriber) {
+      subscribeScope = GlobalTracer.get().scopeManager().active()
+      if (newThread) {
+        // A plain thread, so nothing is propagated to it by the executor instrumentation.
+        Thread.start { emit(subscriber) }
+      } else {
+        emit(subscriber)
+      }
+    }
+
+    void emit(Subscriber<? super Integer> subscriber) {
+      try {
+        if (error == null) {
+          subscriber.onNext(1)
+          subscriber.onNext(2)
+          subscriber.onCompleted()
+        } else {
+          subscriber.onError(error)
+        }
+        scopeAfterEmit = GlobalTracer.get().scopeManager().active()
+      } finally {
+        // Counted down once the traced subscriber has finished the span.
+        terminated.countDown()
+      }
+    }
+
+    void await() {
+      assert terminated.await(5, TimeUnit.SECONDS)
+    }
+  }
+
+  /** Records the scope active for each signal */
+  static class TestSubscriber extends Subscriber<Integer> {
+    final List<Integer> values = new CopyOnWriteArrayList<>()
+    final List<Scope> scopes = new CopyOnWriteArrayList<>()
+    final CountDownLatch terminated = new CountDownLatch(1)
+    volatile Throwable error
+
+    @Override
+    void onNext(Integer value) {
+      scopes.add(GlobalTracer.get().scopeManager().active())
+      values.add(value)
+    }
+
+    @Override
+    void onCompleted() {
+      scopes.add(GlobalTracer.get().scopeManager().active())
+      terminated.countDown()
+    }
+
+    @Override
+    void onError(Throwable e) {
+      scopes.add(GlobalTracer.get().scopeManager().active())
+      error = e
+      terminated.countDown()
+    }
+
+    void await() {
+      assert terminated.await(5, TimeUnit.SECONDS)
+    }
+  }
+}
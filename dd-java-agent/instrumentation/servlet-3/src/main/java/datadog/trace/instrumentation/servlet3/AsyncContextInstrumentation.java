@@ -10,6 +10,7 @@ import static net.bytebuddy.matcher.ElementMatchers.named;
 import static net.bytebuddy.matcher.ElementMatchers.not;
 
 import com.google.auto.service.AutoService;
+import datadog.trace.agent.tooling.CallDepthSlot;
 import datadog.trace.agent.tooling.Instrumenter;
 import datadog.trace.bootstrap.CallDepthThreadLocalMap;
 import io.opentracing.Span;
@@ -41,6 +42,11 @@ public final class AsyncContextInstrumentation extends Instrumenter.Default {
     return not(isInterface()).and(safeHasSuperType(named("javax.servlet.AsyncContext")));
   }
 
+  @Override
+  protected String callDepthKey() {
+    return "javax.servlet.AsyncContext";
+  }
+
   @Override
   public Map<? extends ElementMatcher<? super MethodDescription>, String> transformers() {
     return singletonMap(
@@ -56,8 +62,10 @@ public final class AsyncContextInstrumentation extends Instrumenter.Default {
 
     @Advice.OnMethodEnter(suppress = Throwable.class)
     public static boolean enter(
-        @Advice.This final AsyncContext context, @Advice.AllArguments final Object[] args) {
-      final int depth = CallDepthThreadLocalMap.incrementCallDepth(AsyncContext.class);
+        @CallDepthSlot final int callDepthSlot,
+        @Advice.This final AsyncContext context,
+        @Advice.AllArguments final Object[] args) {
+      final int depth = CallDepthThreadLocalMap.incrementCallDepth(callDepthSlot);
       if (depth > 0) {
         return false;
       }
@@ -90,9 +98,10 @@ public final class AsyncContextInstrumentation extends Instrumenter.Default {
     }
 
     @Advice.OnMethodExit(suppress = Throwable.class, onThrowable = Throwable.class)
-    public static void exit(@Advice.Enter final boolean topLevel) {
+    public static void exit(
+        @CallDepthSlot final int callDepthSlot, @Advice.Enter final boolean topLevel) {
       if (topLevel) {
-        CallDepthThreadLocalMap.reset(AsyncContext.class);
+        CallDepthThreadLocalMap.reset(callDepthSlot);
       }
     }
   }
@@ -7,6 +7,7 @@ import static net.bytebuddy.matcher.ElementMatchers.not;
 import static net.bytebuddy.matcher.ElementMatchers.returns;
 
 import com.google.auto.service.AutoService;
+import datadog.trace.agent.tooling.CallDepthSlot;
 import datadog.trace.agent.tooling.Instrumenter;
 import datadog.trace.bootstrap.CallDepthThreadLocalMap;
 import java.util.HashMap;
@@ -34,6 +35,11 @@ public final class MemcachedClientInstrumentation extends Instrumenter.Default {
     return named(MEMCACHED_PACKAGE + ".MemcachedClient");
   }
 
+  @Override
+  protected String callDepthKey() {
+    return MEMCACHED_PACKAGE + ".MemcachedClient";
+  }
+
   @Override
   public String[] helperClassNames() {
     return new String[] {
@@ -77,18 +83,19 @@ public final class MemcachedClientInstrumentation extends Instrumenter.Default {
   public static class AsyncOperationAdvice {
 
     @Advice.OnMethodEnter(suppress = Throwable.class)
-    public static boolean methodEnter() {
-      return CallDepthThreadLocalMap.incrementCallDepth(MemcachedClient.class) <= 0;
+    public static boolean methodEnter(@CallDepthSlot final int callDepthSlot) {
+      return CallDepthThreadLocalMap.incrementCallDepth(callDepthSlot) <= 0;
     }
 
     @Advice.OnMethodExit(suppress = Throwable.class)
     public static void methodExit(
+        @CallDepthSlot final int callDepthSlot,
         @Advice.Enter final boolean shouldInjectListener,
         @Advice.This final MemcachedClient client,
         @Advice.Origin("#m") final String methodName,
         @Advice.Return final OperationFuture future) {
       if (shouldInjectListener && future != null) {
-        CallDepthThreadLocalMap.reset(MemcachedClient.class);
+        CallDepthThreadLocalMap.reset(callDepthSlot);
         final OperationCompletionListener listener =
             new OperationCompletionListener(client.getConnection(), methodName);
         future.addListener(listener);
@@ -99,18 +106,19 @@ public final class MemcachedClientInstrumentation extends Instrumenter.Default {
   public static class AsyncGetAdvice {
 
     @Advice.OnMethodEnter(suppress = Throwable.class)
-    public static boolean methodEnter() {
-      return CallDepthThreadLocalMap.incrementCallDepth(MemcachedClient.class) <= 0;
+    public static boolean methodEnter(@CallDepthSlot final int callDepthSlot) {
+      return CallDepthThreadLocalMap.incrementCallDepth(callDepthSlot) <= 0;
     }
 
     @Advice.OnMethodExit(suppress = Throwable.class)
     public static void methodExit(
+        @CallDepthSlot final int callDepthSlot,
         @Advice.Enter final boolean shouldInjectListener,
         @Advice.This final MemcachedClient client,
         @Advice.Origin("#m") final String methodName,
         @Advice.Return final GetFuture future) {
       if (shouldInjectListener && future != null) {
-        CallDepthThreadLocalMap.reset(MemcachedClient.class);
+        CallDepthThreadLocalMap.reset(callDepthSlot);
         final GetCompletionListener listener =
             new GetCompletionListener(client.getConnection(), methodName);
         future.addListener(listener);
@@ -121,18 +129,19 @@ public final class MemcachedClientInstrumentation extends Instrumenter.Default {
   public static class AsyncBulkAdvice {
 
     @Advice.OnMethodEnter(suppress = Throwable.class)
-    public static boolean methodEnter() {
-      return CallDepthThreadLocalMap.incrementCallDepth(MemcachedClient.class) <= 0;
+    public static boolean methodEnter(@CallDepthSlot final int callDepthSlot) {
+      return CallDepthThreadLocalMap.incrementCallDepth(callDepthSlot) <= 0;
     }
 
     @Advice.OnMethodExit(suppress = Throwable.class)
     public static void methodExit(
+        @CallDepthSlot final int callDepthSlot,
         @Advice.Enter final boolean shouldInjectListener,
         @Advice.This final MemcachedClient client,
         @Advice.Origin("#m") final String methodName,
         @Advice.Return final BulkFuture future) {
       if (shouldInjectListener && future != null) {
-        CallDepthThreadLocalMap.reset(MemcachedClient.class);
+        CallDepthThreadLocalMap.reset(callDepthSlot);
         final BulkGetCompletionListener listener =
             new BulkGetCompletionListener(client.getConnection(), methodName);
         future.addListener(listener);
@@ -144,8 +153,10 @@ public final class MemcachedClientInstrumentation extends Instrumenter.Default {
 
     @Advice.OnMethodEnter(suppress = Throwable.class)
     public static SyncCompletionListener methodEnter(
-        @Advice.This final MemcachedClient client, @Advice.Origin("#m") final String methodName) {
-      if (CallDepthThreadLocalMap.incrementCallDepth(MemcachedClient.class) <= 0) {
+        @CallDepthSlot final int callDepthSlot,
+        @Advice.This final MemcachedClient client,
+        @Advice.Origin("#m") final String methodName) {
+      if (CallDepthThreadLocalMap.incrementCallDepth(callDepthSlot) <= 0) {
         return new SyncCompletionListener(client.getConnection(), methodName);
       } else {
         return null;
@@ -154,10 +165,11 @@ public final class MemcachedClientInstrumentation extends Instrumenter.Default {
 
     @Advice.OnMethodExit(onThrowable = Throwable.class, suppress = Throwable.class)
     public static void methodExit(
+        @CallDepthSlot final int callDepthSlot,
         @Advice.Enter final SyncCompletionListener listener,
         @Advice.Thrown final Throwable thrown) {
       if (listener != null) {
-        CallDepthThreadLocalMap.reset(MemcachedClient.class);
+        CallDepthThreadLocalMap.reset(callDepthSlot);
         listener.done(thrown);
       }
     }
@@ -15,6 +15,7 @@ import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.twilio.Twilio;
+import datadog.trace.agent.tooling.CallDepthSlot;
 import datadog.trace.agent.tooling.Instrumenter;
 import datadog.trace.bootstrap.CallDepthThreadLocalMap;
 import datadog.trace.context.TraceScope;
@@ -45,6 +46,11 @@ public class TwilioAsyncInstrumentation extends Instrumenter.Default {
             .or(named("com.twilio.base.Updater")));
   }
 
+  @Override
+  protected String callDepthKey() {
+    return "com.twilio.Twilio";
+  }
+
   /** Return the helper classes which will be available for use in instrumentation. */
   @Override
   public String[] helperClassNames() {
@@ -87,13 +93,15 @@ public class TwilioAsyncInstrumentation extends Instrumenter.Default {
     /** Method entry instrumentation. */
     @Advice.OnMethodEnter(suppress = Throwable.class)
     public static Scope methodEnter(
-        @Advice.This final Object that, @Advice.Origin("#m") final String methodName) {
+        @CallDepthSlot final int callDepthSlot,
+        @Advice.This final Object that,
+        @Advice.Origin("#m") final String methodName) {
 
       // Ensure that we only create a span for the top-level Twilio client method; except in the
       // case of async operations where we want visibility into how long the task was delayed from
       // starting. Our call depth checker does not span threads, so the async case is handled
       // automatically for us.
-      final int callDepth = CallDepthThreadLocalMap.incrementCallDepth(Twilio.class);
+      final int callDepth = CallDepthThreadLocalMap.incrementCallDepth(callDepthSlot);
       if (callDepth > 0) {
         return null;
       }
@@ -118,6 +126,7 @@ public class TwilioAsyncInstrumentation extends Instrumenter.Default {
     /** Method exit instrumentation. */
     @Advice.OnMethodExit(onThrowable = Throwable.class, suppress = Throwable.class)
     public static void methodExit(
+        @CallDepthSlot final int callDepthSlot,
         @Advice.Enter final Scope scope,
         @Advice.Thrown final Throwable throwable,
         @Advice.Return final ListenableFuture response) {
@@ -141,7 +150,7 @@ public class TwilioAsyncInstrumentation extends Instrumenter.Default {
           }
         } finally {
           scope.close(); // won't finish the span.
-          CallDepthThreadLocalMap.reset(Twilio.class); // reset call depth count
+          CallDepthThreadLocalMap.reset(callDepthSlot); // reset call depth count
         }
       }
     }
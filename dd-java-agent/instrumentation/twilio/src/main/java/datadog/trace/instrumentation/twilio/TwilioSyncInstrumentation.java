@@ -10,7 +10,7 @@ import static net.bytebuddy.matcher.ElementMatchers.named;
 import static net.bytebuddy.matcher.ElementMatchers.not;
 
 import com.google.auto.service.AutoService;
-import com.twilio.Twilio;
+import datadog.trace.agent.tooling.CallDepthSlot;
 import datadog.trace.agent.tooling.Instrumenter;
 import datadog.trace.bootstrap.CallDepthThreadLocalMap;
 import io.opentracing.Scope;
@@ -42,6 +42,11 @@ public class TwilioSyncInstrumentation extends Instrumenter.Default {
             .or(named("com.twilio.base.Updater")));
   }
 
+  @Override
+  protected String callDepthKey() {
+    return "com.twilio.Twilio";
+  }
+
   /** Return the helper classes which will be available for use in instrumentation. */
   @Override
   public String[] helperClassNames() {
@@ -82,13 +87,15 @@ public class TwilioSyncInstrumentation extends Instrumenter.Default {
     /** Method entry instrumentation. */
     @Advice.OnMethodEnter(suppress = Throwable.class)
     public static Scope methodEnter(
-        @Advice.This final Object that, @Advice.Origin("#m") final String methodName) {
+        @CallDepthSlot final int callDepthSlot,
+        @Advice.This final Object that,
+        @Advice.Origin("#m") final String methodName) {
 
       // Ensure that we only create a span for the top-level Twilio client method; except in the
       // case of async operations where we want visibility into how long the task was delayed from
       // starting. Our call depth checker does not span threads, so the async case is handled
       // automatically for us.
-      final int callDepth = CallDepthThreadLocalMap.incrementCallDepth(Twilio.class);
+      final int callDepth = CallDepthThreadLocalMap.incrementCallDepth(callDepthSlot);
       if (callDepth > 0) {
         return null;
       }
@@ -105,6 +112,7 @@ public class TwilioSyncInstrumentation extends Instrumenter.Default {
     /** Method exit instrumentation. */
     @Advice.OnMethodExit(onThrowable = Throwable.class, suppress = Throwable.class)
     public static void methodExit(
+        @CallDepthSlot final int callDepthSlot,
         @Advice.Enter final Scope scope,
         @Advice.Thrown final Throwable throwable,
         @Advice.Return final Object response) {
@@ -119,7 +127,7 @@ public class TwilioSyncInstrumentation extends Instrumenter.Default {
           DECORATE.beforeFinish(span);
         } finally {
           scope.close();
-          CallDepthThreadLocalMap.reset(Twilio.class); // reset call depth count
+          CallDepthThreadLocalMap.reset(callDepthSlot); // reset call depth count
         }
       }
     }
@@ -51,7 +51,27 @@ public class Config {
   public static final String TRACE_AGENT_PORT = "trace.agent.port";
   public static final String AGENT_PORT_LEGACY = "agent.port";
   public static final String AGENT_UNIX_DOMAIN_SOCKET = "trace.agent.unix.domain.socket";
+  public static final String WRITER_MAX_PENDING_PAYLOADS = "trace.writer.max.pending.payloads";
+  public static final String WRITER_MAX_PENDING_BYTES = "trace.writer.max.pending.bytes";
+  public static final String WRITER_DROP_POLICY = "trace.writer.drop.policy";
+  public static final String WRITER_SENDER_THREADS = "trace.writer.sender.threads";
+  public static final String WRITER_SHARDS = "trace.writer.shards";
+  public static final String WRITER_SPOOL_DIR = "trace.writer.spool.dir";
+  public static final String WRITER_SPOOL_MAX_BYTES = "trace.writer.spool.max.bytes";
+  public static final String WRITER_SPOOL_MAX_AGE = "trace.writer.spool.max.age";
+  public static final String WRITER_FLUSH_MIN_DELAY = "trace.writer.flush.min.delay";
+  public static final String WRITER_FLUSH_MAX_DELAY = "trace.writer.flush.max.delay";
+  public static final String WRITER_FLUSH_TARGET_BYTES = "trace.writer.flush.target.bytes";
+  public static final String HEALTH_METRICS_ENABLED = "trace.health.metrics.enabled";
+  public static final String AGENT_TIMEOUT = "trace.agent.timeout";
+  public static final String AGENT_GZIP_ENABLED = "trace.agent.gzip.enabled";
+  public static final String AGENT_V05_ENABLED = "trace.agent.v0.5.enabled";
   public static final String PRIORITY_SAMPLING = "priority.sampling";
+  public static final String PRIORITY_SAMPLING_DROP_EARLY = "priority.sampling.drop.early";
+  public static final String TRACE_RATE_LIMIT = "trace.rate.limit";
+  public static final String TRACE_RATE_LIMIT_PER_ENDPOINT = "trace.rate.limit.per.endpoint";
+  public static final String TRACE_RATE_LIMIT_SLOW_THRESHOLD_MS =
+      "trace.rate.limit.slow.threshold.ms";
   public static final String TRACE_RESOLVER_ENABLED = "trace.resolver.enabled";
   public static final String SERVICE_MAPPING = "service.mapping";
   public static final String GLOBAL_TAGS = "trace.global.tags";
@@ -73,6 +93,13 @@ public class Config {
   public static final String DB_CLIENT_HOST_SPLIT_BY_INSTANCE = "trace.db.client.split-by-instance";
   public static final String SPLIT_BY_TAGS = "trace.split-by-tags";
   public static final String PARTIAL_FLUSH_MIN_SPANS = "trace.partial.flush.min.spans";
+  public static final String SPAN_RECYCLING_ENABLED = "trace.span.recycling.enabled";
+  public static final String SPAN_LEAK_DETECTION_SAMPLE_RATE =
+      "trace.span.leak.detection.sample.rate";
+  public static final String TRACE_MAX_SPANS = "trace.max.spans";
+  public static final String TRACE_MAX_BYTES = "trace.max.bytes";
+  public static final String PENDING_TRACES_MAX_SPANS = "trace.pending.max.spans";
+  public static final String VIRTUAL_THREADS_ENABLED = "trace.virtual.threads.enabled";
   public static final String RUNTIME_CONTEXT_FIELD_INJECTION =
       "trace.runtime.context.field.injection";
   public static final String PROPAGATION_STYLE_EXTRACT = "propagation.style.extract";
@@ -106,10 +133,28 @@ public class Config {
   public static final String DEFAULT_AGENT_HOST = "localhost";
   public static final int DEFAULT_TRACE_AGENT_PORT = 8126;
   public static final String DEFAULT_AGENT_UNIX_DOMAIN_SOCKET = null;
+  private static final int DEFAULT_WRITER_MAX_PENDING_PAYLOADS = 4;
+  private static final int DEFAULT_WRITER_MAX_PENDING_BYTES = 20 * 1024 * 1024; // 20 MB
+  private static final WriterDropPolicy DEFAULT_WRITER_DROP_POLICY = WriterDropPolicy.DROP_OLDEST;
+  private static final int DEFAULT_WRITER_SENDER_THREADS = 1;
+  private static final int DEFAULT_WRITER_SHARDS = 1;
+  private static final int DEFAULT_WRITER_SPOOL_MAX_BYTES = 128 * 1024 * 1024; // 128 MB
+  private static final int DEFAULT_WRITER_SPOOL_MAX_AGE = 600; // seconds
+  private static final int DEFAULT_WRITER_FLUSH_MIN_DELAY = 100; // millis
+  private static final int DEFAULT_WRITER_FLUSH_MAX_DELAY = 2000; // millis
+  private static final int DEFAULT_WRITER_FLUSH_TARGET_BYTES = 1024 * 1024; // 1 MB
+  private static final boolean DEFAULT_HEALTH_METRICS_ENABLED = false;
+  private static final int DEFAULT_AGENT_TIMEOUT = 1; // seconds
+  private static final boolean DEFAULT_AGENT_GZIP_ENABLED = false;
+  private static final boolean DEFAULT_AGENT_V05_ENABLED = false;
 
   private static final boolean DEFAULT_RUNTIME_CONTEXT_FIELD_INJECTION = true;
 
   private static final boolean DEFAULT_PRIORITY_SAMPLING_ENABLED = true;
+  private static final boolean DEFAULT_PRIORITY_SAMPLING_DROP_EARLY = false;
+  private static final int DEFAULT_TRACE_RATE_LIMIT = 0;
+  private static final int DEFAULT_TRACE_RATE_LIMIT_PER_ENDPOINT = 0;
+  private static final int DEFAULT_TRACE_RATE_LIMIT_SLOW_THRESHOLD_MS = 1000;
   private static final boolean DEFAULT_TRACE_RESOLVER_ENABLED = true;
   private static final Set<Integer> DEFAULT_HTTP_SERVER_ERROR_STATUSES =
       parseIntegerRangeSet("500-599", "default");
@@ -121,6 +166,12 @@ public class Config {
   private static final boolean DEFAULT_DB_CLIENT_HOST_SPLIT_BY_INSTANCE = false;
   private static final String DEFAULT_SPLIT_BY_TAGS = "";
   private static final int DEFAULT_PARTIAL_FLUSH_MIN_SPANS = 1000;
+  private static final boolean DEFAULT_SPAN_RECYCLING_ENABLED = false;
+  private static final float DEFAULT_SPAN_LEAK_DETECTION_SAMPLE_RATE = 0.0f;
+  private static final int DEFAULT_TRACE_MAX_SPANS = 0;
+  private static final int DEFAULT_TRACE_MAX_BYTES = 0;
+  private static final int DEFAULT_PENDING_TRACES_MAX_SPANS = 0;
+  private static final boolean DEFAULT_VIRTUAL_THREADS_ENABLED = false;
   private static final String DEFAULT_PROPAGATION_STYLE_EXTRACT = PropagationStyle.DATADOG.name();
   private static final String DEFAULT_PROPAGATION_STYLE_INJECT = PropagationStyle.DATADOG.name();
   private static final boolean DEFAULT_JMX_FETCH_ENABLED = true;
@@ -145,6 +196,12 @@ public class Config {
     HAYSTACK
   }
 
+  /** Which payload the agent writer discards when too many are waiting to be sent. */
+  public enum WriterDropPolicy {
+    DROP_OLDEST,
+    DROP_NEWEST
+  }
+
   /** A tag intended for internal use only, hence not added to the public api DDTags class. */
   private static final String INTERNAL_HOST_NAME = "_dd.hostname";
 
@@ -161,7 +218,26 @@ public class Config {
   @Getter private final String agentHost;
   @Getter private final int agentPort;
   @Getter private final String agentUnixDomainSocket;
+  @Getter private final int writerMaxPendingPayloads;
+  @Getter private final int writerMaxPendingBytes;
+  @Getter private final WriterDropPolicy writerDropPolicy;
+  @Getter private final int writerSenderThreads;
+  @Getter private final int writerShards;
+  @Getter private final String writerSpoolDir;
+  @Getter private final int writerSpoolMaxBytes;
+  @Getter private final int writerSpoolMaxAge;
+  @Getter private final int writerFlushMinDelay;
+  @Getter private final int writerFlushMaxDelay;
+  @Getter private final int writerFlushTargetBytes;
+  @Getter private final boolean healthMetricsEnabled;
+  @Getter private final int agentTimeout;
+  @Getter private final boolean agentGzipEnabled;
+  @Getter private final boolean agentV05Enabled;
   @Getter private final boolean prioritySamplingEnabled;
+  @Getter private final boolean prioritySamplingDropEarly;
+  @Getter private final int traceRateLimit;
+  @Getter private final int traceRateLimitPerEndpoint;
+  @Getter private final int traceRateLimitSlowThresholdMs;
   @Getter private final boolean traceResolverEnabled;
   @Getter private final Map<String, String> serviceMapping;
   private final Map<String, String> globalTags;
@@ -177,6 +253,12 @@ public class Config {
   @Getter private final boolean dbClientSplitByInstance;
   @Getter private final Set<String> splitByTags;
   @Getter private final Integer partialFlushMinSpans;
+  @Getter private final boolean spanRecyclingEnabled;
+  @Getter private final float spanLeakDetectionSampleRate;
+  @Getter private final int traceMaxSpans;
+  @Getter private final int traceMaxBytes;
+  @Getter private final int pendingTracesMaxSpans;
+  @Getter private final boolean virtualThreadsEnabled;
   @Getter private final boolean runtimeContextFieldInjection;
   @Getter private final Set<PropagationStyle> propagationStylesToExtract;
   @Getter private final Set<PropagationStyle> propagationStylesToInject;
@@ -226,8 +308,49 @@ public class Config {
             getIntegerSettingFromEnvironment(AGENT_PORT_LEGACY, DEFAULT_TRACE_AGENT_PORT));
     agentUnixDomainSocket =
         getSettingFromEnvironment(AGENT_UNIX_DOMAIN_SOCKET, DEFAULT_AGENT_UNIX_DOMAIN_SOCKET);
+    writerMaxPendingPayloads =
+        getIntegerSettingFromEnvironment(
+            WRITER_MAX_PENDING_PAYLOADS, DEFAULT_WRITER_MAX_PENDING_PAYLOADS);
+    writerMaxPendingBytes =
+        getIntegerSettingFromEnvironment(
+            WRITER_MAX_PENDING_BYTES, DEFAULT_WRITER_MAX_PENDING_BYTES);
+    writerDropPolicy =
+        getEnumSettingFromEnvironment(
+            WRITER_DROP_POLICY, DEFAULT_WRITER_DROP_POLICY, WriterDropPolicy.class);
+    writerSenderThreads =
+        getIntegerSettingFromEnvironment(WRITER_SENDER_THREADS, DEFAULT_WRITER_SENDER_THREADS);
+    writerShards = getIntegerSettingFromEnvironment(WRITER_SHARDS, DEFAULT_WRITER_SHARDS);
+    writerSpoolDir = getSettingFromEnvironment(WRITER_SPOOL_DIR, null);
+    writerSpoolMaxBytes =
+        getIntegerSettingFromEnvironment(WRITER_SPOOL_MAX_BYTES, DEFAULT_WRITER_SPOOL_MAX_BYTES);
+    writerSpoolMaxAge =
+        getIntegerSettingFromEnvironment(WRITER_SPOOL_MAX_AGE, DEFAULT_WRITER_SPOOL_MAX_AGE);
+    writerFlushMinDelay =
+        getIntegerSettingFromEnvironment(WRITER_FLUSH_MIN_DELAY, DEFAULT_WRITER_FLUSH_MIN_DELAY);
+    writerFlushMaxDelay =
+        getIntegerSettingFromEnvironment(WRITER_FLUSH_MAX_DELAY, DEFAULT_WRITER_FLUSH_MAX_DELAY);
+    writerFlushTargetBytes =
+        getIntegerSettingFromEnvironment(
+            WRITER_FLUSH_TARGET_BYTES, DEFAULT_WRITER_FLUSH_TARGET_BYTES);
+    healthMetricsEnabled =
+        getBooleanSettingFromEnvironment(HEALTH_METRICS_ENABLED, DEFAULT_HEALTH_METRICS_ENABLED);
+    agentTimeout = getIntegerSettingFromEnvironment(AGENT_TIMEOUT, DEFAULT_AGENT_TIMEOUT);
+    agentGzipEnabled =
+        getBooleanSettingFromEnvironment(AGENT_GZIP_ENABLED, DEFAULT_AGENT_GZIP_ENABLED);
+    agentV05Enabled =
+        getBooleanSettingFromEnvironment(AGENT_V05_ENABLED, DEFAULT_AGENT_V05_ENABLED);
     prioritySamplingEnabled =
         getBooleanSettingFromEnvironment(PRIORITY_SAMPLING, DEFAULT_PRIORITY_SAMPLING_ENABLED);
+    prioritySamplingDropEarly =
+        getBooleanSettingFromEnvironment(
+            PRIORITY_SAMPLING_DROP_EARLY, DEFAULT_PRIORITY_SAMPLING_DROP_EARLY);
+    traceRateLimit = getIntegerSettingFromEnvironment(TRACE_RATE_LIMIT, DEFAULT_TRACE_RATE_LIMIT);
+    traceRateLimitPerEndpoint =
+        getIntegerSettingFromEnvironment(
+            TRACE_RATE_LIMIT_PER_ENDPOINT, DEFAULT_TRACE_RATE_LIMIT_PER_ENDPOINT);
+    traceRateLimitSlowThresholdMs =
+        getIntegerSettingFromEnvironment(
+            TRACE_RATE_LIMIT_SLOW_THRESHOLD_MS, DEFAULT_TRACE_RATE_LIMIT_SLOW_THRESHOLD_MS);
     traceResolverEnabled =
         getBooleanSettingFromEnvironment(TRACE_RESOLVER_ENABLED, DEFAULT_TRACE_RESOLVER_ENABLED);
     serviceMapping = getMapSettingFromEnvironment(SERVICE_MAPPING, null);
@@ -270,6 +393,18 @@ public class Config {
 
     partialFlushMinSpans =
         getIntegerSettingFromEnvironment(PARTIAL_FLUSH_MIN_SPANS, DEFAULT_PARTIAL_FLUSH_MIN_SPANS);
+    spanRecyclingEnabled =
+        getBooleanSettingFromEnvironment(SPAN_RECYCLING_ENABLED, DEFAULT_SPAN_RECYCLING_ENABLED);
+    spanLeakDetectionSampleRate =
+        getFloatSettingFromEnvironment(
+            SPAN_LEAK_DETECTION_SAMPLE_RATE, DEFAULT_SPAN_LEAK_DETECTION_SAMPLE_RATE);
+    traceMaxSpans = getIntegerSettingFromEnvironment(TRACE_MAX_SPANS, DEFAULT_TRACE_MAX_SPANS);
+    traceMaxBytes = getIntegerSettingFromEnvironment(TRACE_MAX_BYTES, DEFAULT_TRACE_MAX_BYTES);
+    pendingTracesMaxSpans =
+        getIntegerSettingFromEnvironment(
+            PENDING_TRACES_MAX_SPANS, DEFAULT_PENDING_TRACES_MAX_SPANS);
+    virtualThreadsEnabled =
+        getBooleanSettingFromEnvironment(VIRTUAL_THREADS_ENABLED, DEFAULT_VIRTUAL_THREADS_ENABLED);
 
     runtimeContextFieldInjection =
         getBooleanSettingFromEnvironment(
@@ -339,8 +474,48 @@ public class Config {
             getPropertyIntegerValue(properties, AGENT_PORT_LEGACY, parent.agentPort));
     agentUnixDomainSocket =
         properties.getProperty(AGENT_UNIX_DOMAIN_SOCKET, parent.agentUnixDomainSocket);
+    writerMaxPendingPayloads =
+        getPropertyIntegerValue(
+            properties, WRITER_MAX_PENDING_PAYLOADS, parent.writerMaxPendingPayloads);
+    writerMaxPendingBytes =
+        getPropertyIntegerValue(properties, WRITER_MAX_PENDING_BYTES, parent.writerMaxPendingBytes);
+    writerDropPolicy =
+        getPropertyEnumValue(
+            properties, WRITER_DROP_POLICY, parent.writerDropPolicy, WriterDropPolicy.class);
+    writerSenderThreads =
+        getPropertyIntegerValue(properties, WRITER_SENDER_THREADS, parent.writerSenderThreads);
+    writerShards = getPropertyIntegerValue(properties, WRITER_SHARDS, parent.writerShards);
+    writerSpoolDir = properties.getProperty(WRITER_SPOOL_DIR, parent.writerSpoolDir);
+    writerSpoolMaxBytes =
+        getPropertyIntegerValue(properties, WRITER_SPOOL_MAX_BYTES, parent.writerSpoolMaxBytes);
+    writerSpoolMaxAge =
+        getPropertyIntegerValue(properties, WRITER_SPOOL_MAX_AGE, parent.writerSpoolMaxAge);
+    writerFlushMinDelay =
+        getPropertyIntegerValue(properties, WRITER_FLUSH_MIN_DELAY, parent.writerFlushMinDelay);
+    writerFlushMaxDelay =
+        getPropertyIntegerValue(properties, WRITER_FLUSH_MAX_DELAY, parent.writerFlushMaxDelay);
+    writerFlushTargetBytes =
+        getPropertyIntegerValue(
+            properties, WRITER_FLUSH_TARGET_BYTES, parent.writerFlushTargetBytes);
+    healthMetricsEnabled =
+        getPropertyBooleanValue(properties, HEALTH_METRICS_ENABLED, parent.healthMetricsEnabled);
+    agentTimeout = getPropertyIntegerValue(properties, AGENT_TIMEOUT, parent.agentTimeout);
+    agentGzipEnabled =
+        getPropertyBooleanValue(properties, AGENT_GZIP_ENABLED, parent.agentGzipEnabled);
+    agentV05Enabled =
+        getPropertyBooleanValue(properties, AGENT_V05_ENABLED, parent.agentV05Enabled);
     prioritySamplingEnabled =
         getPropertyBooleanValue(properties, PRIORITY_SAMPLING, parent.prioritySamplingEnabled);
+    prioritySamplingDropEarly =
+        getPropertyBooleanValue(
+            properties, PRIORITY_SAMPLING_DROP_EARLY, parent.prioritySamplingDropEarly);
+    traceRateLimit = getPropertyIntegerValue(properties, TRACE_RATE_LIMIT, parent.traceRateLimit);
+    traceRateLimitPerEndpoint =
+        getPropertyIntegerValue(
+            properties, TRACE_RATE_LIMIT_PER_ENDPOINT, parent.traceRateLimitPerEndpoint);
+    traceRateLimitSlowThresholdMs =
+        getPropertyIntegerValue(
+            properties, TRACE_RATE_LIMIT_SLOW_THRESHOLD_MS, parent.traceRateLimitSlowThresholdMs);
     traceResolverEnabled =
         getPropertyBooleanValue(properties, TRACE_RESOLVER_ENABLED, parent.traceResolverEnabled);
     serviceMapping = getPropertyMapValue(properties, SERVICE_MAPPING, parent.serviceMapping);
@@ -384,6 +559,17 @@ public class Config {
 
     partialFlushMinSpans =
         getPropertyIntegerValue(properties, PARTIAL_FLUSH_MIN_SPANS, parent.partialFlushMinSpans);
+    spanRecyclingEnabled =
+        getPropertyBooleanValue(properties, SPAN_RECYCLING_ENABLED, parent.spanRecyclingEnabled);
+    spanLeakDetectionSampleRate =
+        getPropertyFloatValue(
+            properties, SPAN_LEAK_DETECTION_SAMPLE_RATE, parent.spanLeakDetectionSampleRate);
+    traceMaxSpans = getPropertyIntegerValue(properties, TRACE_MAX_SPANS, parent.traceMaxSpans);
+    traceMaxBytes = getPropertyIntegerValue(properties, TRACE_MAX_BYTES, parent.traceMaxBytes);
+    pendingTracesMaxSpans =
+        getPropertyIntegerValue(properties, PENDING_TRACES_MAX_SPANS, parent.pendingTracesMaxSpans);
+    virtualThreadsEnabled =
+        getPropertyBooleanValue(properties, VIRTUAL_THREADS_ENABLED, parent.virtualThreadsEnabled);
 
     runtimeContextFieldInjection =
         getPropertyBooleanValue(
@@ -710,6 +896,23 @@ public class Config {
     return result;
   }
 
+  /**
+   * Calls {@link #getSettingFromEnvironment(String, String)} and converts the result to an enum
+   * constant, ignoring case.
+   */
+  private static <T extends Enum<T>> T getEnumSettingFromEnvironment(
+      final String name, final T defaultValue, final Class<T> clazz) {
+    final String value = getSettingFromEnvironment(name, null);
+    try {
+      return value == null || value.trim().isEmpty()
+          ? defaultValue
+          : Enum.valueOf(clazz, value.trim().toUpperCase());
+    } catch (final IllegalArgumentException e) {
+      log.warn("Invalid configuration for " + name, e);
+      return defaultValue;
+    }
+  }
+
   private Set<Integer> getIntegerRangeSettingFromEnvironment(
       final String name, final Set<Integer> defaultValue) {
     final String value = getSettingFromEnvironment(name, null);
@@ -769,6 +972,25 @@ public class Config {
     return value == null || value.trim().isEmpty() ? defaultValue : Integer.valueOf(value);
   }
 
+  private static Float getPropertyFloatValue(
+      final Properties properties, final String name, final Float defaultValue) {
+    final String value = properties.getProperty(name);
+    return value == null || value.trim().isEmpty() ? defaultValue : Float.valueOf(value);
+  }
+
+  private static <T extends Enum<T>> T getPropertyEnumValue(
+      final Properties properties, final String name, final T defaultValue, final Class<T> clazz) {
+    final String value = properties.getProperty(name);
+    try {
+      return value == null || value.trim().isEmpty()
+          ? defaultValue
+          : Enum.valueOf(clazz, value.trim().toUpperCase());
+    } catch (final IllegalArgumentException e) {
+      log.warn("Invalid configuration for " + name, e);
+      return defaultValue;
+    }
+  }
+
   private static <T extends Enum<T>> Set<T> getPropertySetValue(
       final Properties properties, final String name, final Class<T> clazz) {
     final String value = properties.getProperty(name);
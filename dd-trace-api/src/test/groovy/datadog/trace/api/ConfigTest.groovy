@@ -5,14 +5,18 @@ import org.junit.contrib.java.lang.system.EnvironmentVariables
 import org.junit.contrib.java.lang.system.RestoreSystemProperties
 import spock.lang.Specification
 
+import static datadog.trace.api.Config.AGENT_GZIP_ENABLED
 import static datadog.trace.api.Config.AGENT_HOST
 import static datadog.trace.api.Config.AGENT_PORT_LEGACY
+import static datadog.trace.api.Config.AGENT_TIMEOUT
 import static datadog.trace.api.Config.AGENT_UNIX_DOMAIN_SOCKET
+import static datadog.trace.api.Config.AGENT_V05_ENABLED
 import static datadog.trace.api.Config.CONFIGURATION_FILE
 import static datadog.trace.api.Config.DB_CLIENT_HOST_SPLIT_BY_INSTANCE
 import static datadog.trace.api.Config.DEFAULT_JMX_FETCH_STATSD_PORT
 import static datadog.trace.api.Config.GLOBAL_TAGS
 import static datadog.trace.api.Config.HEADER_TAGS
+import static datadog.trace.api.Config.HEALTH_METRICS_ENABLED
 import static datadog.trace.api.Config.HTTP_CLIENT_ERROR_STATUSES
 import static datadog.trace.api.Config.HTTP_CLIENT_HOST_SPLIT_BY_DOMAIN
 import static datadog.trace.api.Config.HTTP_SERVER_ERROR_STATUSES
@@ -24,8 +28,10 @@ import static datadog.trace.api.Config.JMX_FETCH_STATSD_HOST
 import static datadog.trace.api.Config.JMX_FETCH_STATSD_PORT
 import static datadog.trace.api.Config.JMX_TAGS
 import static datadog.trace.api.Config.PARTIAL_FLUSH_MIN_SPANS
+import static datadog.trace.api.Config.PENDING_TRACES_MAX_SPANS
 import static datadog.trace.api.Config.PREFIX
 import static datadog.trace.api.Config.PRIORITY_SAMPLING
+import static datadog.trace.api.Config.PRIORITY_SAMPLING_DROP_EARLY
 import static datadog.trace.api.Config.PROPAGATION_STYLE_EXTRACT
 import static datadog.trace.api.Config.PROPAGATION_STYLE_INJECT
 import static datadog.trace.api.Config.RUNTIME_CONTEXT_FIELD_INJECTION
@@ -33,12 +39,31 @@ import static datadog.trace.api.Config.RUNTIME_ID_TAG
 import static datadog.trace.api.Config.SERVICE_MAPPING
 import static datadog.trace.api.Config.SERVICE_NAME
 import static datadog.trace.api.Config.SERVICE_TAG
+import static datadog.trace.api.Config.SPAN_LEAK_DETECTION_SAMPLE_RATE
+import static datadog.trace.api.Config.SPAN_RECYCLING_ENABLED
 import static datadog.trace.api.Config.SPAN_TAGS
 import static datadog.trace.api.Config.SPLIT_BY_TAGS
 import static datadog.trace.api.Config.TRACE_AGENT_PORT
 import static datadog.trace.api.Config.TRACE_ENABLED
+import static datadog.trace.api.Config.TRACE_MAX_BYTES
+import static datadog.trace.api.Config.TRACE_MAX_SPANS
+import static datadog.trace.api.Config.TRACE_RATE_LIMIT
+import static datadog.trace.api.Config.TRACE_RATE_LIMIT_PER_ENDPOINT
+import static datadog.trace.api.Config.TRACE_RATE_LIMIT_SLOW_THRESHOLD_MS
 import static datadog.trace.api.Config.TRACE_REPORT_HOSTNAME
 import static datadog.trace.api.Config.TRACE_RESOLVER_ENABLED
+import static datadog.trace.api.Config.VIRTUAL_THREADS_ENABLED
+import static datadog.trace.api.Config.WRITER_DROP_POLICY
+import static datadog.trace.api.Config.WRITER_MAX_PENDING_BYTES
+import static datadog.trace.api.Config.WRITER_MAX_PENDING_PAYLOADS
+import static datadog.trace.api.Config.WRITER_FLUSH_MAX_DELAY
+import static datadog.trace.api.Config.WRITER_FLUSH_MIN_DELAY
+import static datadog.trace.api.Config.WRITER_FLUSH_TARGET_BYTES
+import static datadog.trace.api.Config.WRITER_SENDER_THREADS
+import static datadog.trace.api.Config.WRITER_SHARDS
+import static datadog.trace.api.Config.WRITER_SPOOL_DIR
+import static datadog.trace.api.Config.WRITER_SPOOL_MAX_AGE
+import static datadog.trace.api.Config.WRITER_SPOOL_MAX_BYTES
 import static datadog.trace.api.Config.WRITER_TYPE
 
 class ConfigTest extends Specification {
@@ -71,7 +96,26 @@ class ConfigTest extends Specification {
     config.agentHost == "localhost"
     config.agentPort == 8126
     config.agentUnixDomainSocket == null
+    config.writerMaxPendingPayloads == 4
+    config.writerMaxPendingBytes == 20 * 1024 * 1024
+    config.writerDropPolicy == Config.WriterDropPolicy.DROP_OLDEST
+    config.writerSenderThreads == 1
+    config.writerShards == 1
+    config.writerSpoolDir == null
+    config.writerSpoolMaxBytes == 128 * 1024 * 1024
+    config.writerSpoolMaxAge == 600
+    config.writerFlushMinDelay == 100
+    config.writerFlushMaxDelay == 2000
+    config.writerFlushTargetBytes == 1024 * 1024
+    config.healthMetricsEnabled == false
+    config.agentTimeout == 1
+    config.agentGzipEnabled == false
+    config.agentV05Enabled == false
     config.prioritySamplingEnabled == true
+    config.prioritySamplingDropEarly == false
+    config.traceRateLimit == 0
+    config.traceRateLimitPerEndpoint == 0
+    config.traceRateLimitSlowThresholdMs == 1000
     config.traceResolverEnabled == true
     config.serviceMapping == [:]
     config.mergedSpanTags == [:]
@@ -83,6 +127,12 @@ class ConfigTest extends Specification {
     config.dbClientSplitByInstance == false
     config.splitByTags == [].toSet()
     config.partialFlushMinSpans == 1000
+    config.spanRecyclingEnabled == false
+    config.spanLeakDetectionSampleRate == 0.0f
+    config.traceMaxSpans == 0
+    config.traceMaxBytes == 0
+    config.pendingTracesMaxSpans == 0
+    config.virtualThreadsEnabled == false
     config.reportHostName == false
     config.runtimeContextFieldInjection == true
     config.propagationStylesToExtract.toList() == [Config.PropagationStyle.DATADOG]
@@ -113,7 +163,26 @@ class ConfigTest extends Specification {
     prop.setProperty(TRACE_AGENT_PORT, "123")
     prop.setProperty(AGENT_UNIX_DOMAIN_SOCKET, "somepath")
     prop.setProperty(AGENT_PORT_LEGACY, "456")
+    prop.setProperty(WRITER_MAX_PENDING_PAYLOADS, "2")
+    prop.setProperty(WRITER_MAX_PENDING_BYTES, "1000")
+    prop.setProperty(WRITER_DROP_POLICY, "drop_newest")
+    prop.setProperty(WRITER_SENDER_THREADS, "3")
+    prop.setProperty(WRITER_SHARDS, "4")
+    prop.setProperty(WRITER_SPOOL_DIR, "/tmp/spool")
+    prop.setProperty(WRITER_SPOOL_MAX_BYTES, "1000")
+    prop.setProperty(WRITER_SPOOL_MAX_AGE, "60")
+    prop.setProperty(WRITER_FLUSH_MIN_DELAY, "10")
+    prop.setProperty(WRITER_FLUSH_MAX_DELAY, "5000")
+    prop.setProperty(WRITER_FLUSH_TARGET_BYTES, "2000")
+    prop.setProperty(HEALTH_METRICS_ENABLED, "true")
+    prop.setProperty(AGENT_TIMEOUT, "10")
+    prop.setProperty(AGENT_GZIP_ENABLED, "true")
+    prop.setProperty(AGENT_V05_ENABLED, "true")
     prop.setProperty(PRIORITY_SAMPLING, "false")
+    prop.setProperty(PRIORITY_SAMPLING_DROP_EARLY, "true")
+    prop.setProperty(TRACE_RATE_LIMIT, "100")
+    prop.setProperty(TRACE_RATE_LIMIT_PER_ENDPOINT, "10")
+    prop.setProperty(TRACE_RATE_LIMIT_SLOW_THRESHOLD_MS, "500")
     prop.setProperty(TRACE_RESOLVER_ENABLED, "false")
     prop.setProperty(SERVICE_MAPPING, "a:1")
     prop.setProperty(GLOBAL_TAGS, "b:2")
@@ -126,6 +195,12 @@ class ConfigTest extends Specification {
     prop.setProperty(DB_CLIENT_HOST_SPLIT_BY_INSTANCE, "true")
     prop.setProperty(SPLIT_BY_TAGS, "some.tag1,some.tag2,some.tag1")
     prop.setProperty(PARTIAL_FLUSH_MIN_SPANS, "15")
+    prop.setProperty(SPAN_RECYCLING_ENABLED, "true")
+    prop.setProperty(SPAN_LEAK_DETECTION_SAMPLE_RATE, "0.5")
+    prop.setProperty(TRACE_MAX_SPANS, "100")
+    prop.setProperty(TRACE_MAX_BYTES, "10000")
+    prop.setProperty(PENDING_TRACES_MAX_SPANS, "1000")
+    prop.setProperty(VIRTUAL_THREADS_ENABLED, "true")
     prop.setProperty(TRACE_REPORT_HOSTNAME, "true")
     prop.setProperty(RUNTIME_CONTEXT_FIELD_INJECTION, "false")
     prop.setProperty(PROPAGATION_STYLE_EXTRACT, "Datadog, B3")
@@ -147,7 +222,26 @@ class ConfigTest extends Specification {
     config.agentHost == "somehost"
     config.agentPort == 123
     config.agentUnixDomainSocket == "somepath"
+    config.writerMaxPendingPayloads == 2
+    config.writerMaxPendingBytes == 1000
+    config.writerDropPolicy == Config.WriterDropPolicy.DROP_NEWEST
+    config.writerSenderThreads == 3
+    config.writerShards == 4
+    config.writerSpoolDir == "/tmp/spool"
+    config.writerSpoolMaxBytes == 1000
+    config.writerSpoolMaxAge == 60
+    config.writerFlushMinDelay == 10
+    config.writerFlushMaxDelay == 5000
+    config.writerFlushTargetBytes == 2000
+    config.healthMetricsEnabled == true
+    config.agentTimeout == 10
+    config.agentGzipEnabled == true
+    config.agentV05Enabled == true
     config.prioritySamplingEnabled == false
+    config.prioritySamplingDropEarly == true
+    config.traceRateLimit == 100
+    config.traceRateLimitPerEndpoint == 10
+    config.traceRateLimitSlowThresholdMs == 500
     config.traceResolverEnabled == false
     config.serviceMapping == [a: "1"]
     config.mergedSpanTags == [b: "2", c: "3"]
@@ -159,6 +253,12 @@ class ConfigTest extends Specification {
     config.dbClientSplitByInstance == true
     config.splitByTags == ["some.tag1", "some.tag2"].toSet()
     config.partialFlushMinSpans == 15
+    config.spanRecyclingEnabled == true
+    config.spanLeakDetectionSampleRate == 0.5f
+    config.traceMaxSpans == 100
+    config.traceMaxBytes == 10000
+    config.pendingTracesMaxSpans == 1000
+    config.virtualThreadsEnabled == true
     config.reportHostName == true
     config.runtimeContextFieldInjection == false
     config.propagationStylesToExtract.toList() == [Config.PropagationStyle.DATADOG, Config.PropagationStyle.B3]
@@ -180,7 +280,26 @@ class ConfigTest extends Specification {
     System.setProperty(PREFIX + TRACE_AGENT_PORT, "123")
     System.setProperty(PREFIX + AGENT_UNIX_DOMAIN_SOCKET, "somepath")
     System.setProperty(PREFIX + AGENT_PORT_LEGACY, "456")
+    System.setProperty(PREFIX + WRITER_MAX_PENDING_PAYLOADS, "2")
+    System.setProperty(PREFIX + WRITER_MAX_PENDING_BYTES, "1000")
+    System.setProperty(PREFIX + WRITER_DROP_POLICY, "drop_newest")
+    System.setProperty(PREFIX + WRITER_SENDER_THREADS, "3")
+    System.setProperty(PREFIX + WRITER_SHARDS, "4")
+    System.setProperty(PREFIX + WRITER_SPOOL_DIR, "/tmp/spool")
+    System.setProperty(PREFIX + WRITER_SPOOL_MAX_BYTES, "1000")
+    System.setProperty(PREFIX + WRITER_SPOOL_MAX_AGE, "60")
+    System.setProperty(PREFIX + WRITER_FLUSH_MIN_DELAY, "10")
+    System.setProperty(PREFIX + WRITER_FLUSH_MAX_DELAY, "5000")
+    System.setProperty(PREFIX + WRITER_FLUSH_TARGET_BYTES, "2000")
+    System.setProperty(PREFIX + HEALTH_METRICS_ENABLED, "true")
+    System.setProperty(PREFIX + AGENT_TIMEOUT, "10")
+    System.setProperty(PREFIX + AGENT_GZIP_ENABLED, "true")
+    System.setProperty(PREFIX + AGENT_V05_ENABLED, "true")
     System.setProperty(PREFIX + PRIORITY_SAMPLING, "false")
+    System.setProperty(PREFIX + PRIORITY_SAMPLING_DROP_EARLY, "true")
+    System.setProperty(PREFIX + TRACE_RATE_LIMIT, "100")
+    System.setProperty(PREFIX + TRACE_RATE_LIMIT_PER_ENDPOINT, "10")
+    System.setProperty(PREFIX + TRACE_RATE_LIMIT_SLOW_THRESHOLD_MS, "500")
     System.setProperty(PREFIX + TRACE_RESOLVER_ENABLED, "false")
     System.setProperty(PREFIX + SERVICE_MAPPING, "a:1")
     System.setProperty(PREFIX + GLOBAL_TAGS, "b:2")
@@ -193,6 +312,12 @@ class ConfigTest extends Specification {
     System.setProperty(PREFIX + DB_CLIENT_HOST_SPLIT_BY_INSTANCE, "true")
     System.setProperty(PREFIX + SPLIT_BY_TAGS, "some.tag3, some.tag2, some.tag1")
     System.setProperty(PREFIX + PARTIAL_FLUSH_MIN_SPANS, "25")
+    System.setProperty(PREFIX + SPAN_RECYCLING_ENABLED, "true")
+    System.setProperty(PREFIX + SPAN_LEAK_DETECTION_SAMPLE_RATE, "0.5")
+    System.setProperty(PREFIX + TRACE_MAX_SPANS, "100")
+    System.setProperty(PREFIX + TRACE_MAX_BYTES, "10000")
+    System.setProperty(PREFIX + PENDING_TRACES_MAX_SPANS, "1000")
+    System.setProperty(PREFIX + VIRTUAL_THREADS_ENABLED, "true")
     System.setProperty(PREFIX + TRACE_REPORT_HOSTNAME, "true")
     System.setProperty(PREFIX + RUNTIME_CONTEXT_FIELD_INJECTION, "false")
     System.setProperty(PREFIX + PROPAGATION_STYLE_EXTRACT, "Datadog, B3")
@@ -214,7 +339,26 @@ class ConfigTest extends Specification {
     config.agentHost == "somehost"
     config.agentPort == 123
     config.agentUnixDomainSocket == "somepath"
+    config.writerMaxPendingPayloads == 2
+    config.writerMaxPendingBytes == 1000
+    config.writerDropPolicy == Config.WriterDropPolicy.DROP_NEWEST
+    config.writerSenderThreads == 3
+    config.writerShards == 4
+    config.writerSpoolDir == "/tmp/spool"
+    config.writerSpoolMaxBytes == 1000
+    config.writerSpoolMaxAge == 60
+    config.writerFlushMinDelay == 10
+    config.writerFlushMaxDelay == 5000
+    config.writerFlushTargetBytes == 2000
+    config.healthMetricsEnabled == true
+    config.agentTimeout == 10
+    config.agentGzipEnabled == true
+    config.agentV05Enabled == true
     config.prioritySamplingEnabled == false
+    config.prioritySamplingDropEarly == true
+    config.traceRateLimit == 100
+    config.traceRateLimitPerEndpoint == 10
+    config.traceRateLimitSlowThresholdMs == 500
     config.traceResolverEnabled == false
     config.serviceMapping == [a: "1"]
     config.mergedSpanTags == [b: "2", c: "3"]
@@ -226,6 +370,12 @@ class ConfigTest extends Specification {
     config.dbClientSplitByInstance == true
     config.splitByTags == ["some.tag3", "some.tag2", "some.tag1"].toSet()
     config.partialFlushMinSpans == 25
+    config.spanRecyclingEnabled == true
+    config.spanLeakDetectionSampleRate == 0.5f
+    config.traceMaxSpans == 100
+    config.traceMaxBytes == 10000
+    config.pendingTracesMaxSpans == 1000
+    config.virtualThreadsEnabled == true
     config.reportHostName == true
     config.runtimeContextFieldInjection == false
     config.propagationStylesToExtract.toList() == [Config.PropagationStyle.DATADOG, Config.PropagationStyle.B3]
@@ -290,6 +440,8 @@ class ConfigTest extends Specification {
     System.setProperty(PREFIX + AGENT_HOST, " ")
     System.setProperty(PREFIX + TRACE_AGENT_PORT, " ")
     System.setProperty(PREFIX + AGENT_PORT_LEGACY, "invalid")
+    System.setProperty(PREFIX + WRITER_MAX_PENDING_PAYLOADS, "invalid")
+    System.setProperty(PREFIX + WRITER_DROP_POLICY, "some garbage")
     System.setProperty(PREFIX + PRIORITY_SAMPLING, "3")
     System.setProperty(PREFIX + TRACE_RESOLVER_ENABLED, " ")
     System.setProperty(PREFIX + SERVICE_MAPPING, " ")
@@ -311,6 +463,8 @@ class ConfigTest extends Specification {
     config.writerType == " "
     config.agentHost == " "
     config.agentPort == 8126
+    config.writerMaxPendingPayloads == 4
+    config.writerDropPolicy == Config.WriterDropPolicy.DROP_OLDEST
     config.prioritySamplingEnabled == false
     config.traceResolverEnabled == true
     config.serviceMapping == [:]
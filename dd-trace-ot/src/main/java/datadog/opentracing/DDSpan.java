@@ -55,7 +55,13 @@ public class DDSpan implements Span, MutableSpan {
    */
   private final AtomicLong durationNano = new AtomicLong();
 
-  /** Implementation detail. Stores the weak reference to this span. Used by TraceCollection. */
+  /** Implementation detail. Set to 1 while the span is counted by its PendingTrace. */
+  volatile int registered;
+
+  /**
+   * Implementation detail. Stores the weak reference to this span if its PendingTrace is sampled
+   * for leak detection.
+   */
   volatile WeakReference<DDSpan> ref;
 
   /**
@@ -125,7 +131,7 @@ public class DDSpan implements Span, MutableSpan {
    */
   @JsonIgnore
   public final boolean isRootSpan() {
-    return "0".equals(context.getParentId());
+    return context.getParentIdAsLong() == 0;
   }
 
   @Override
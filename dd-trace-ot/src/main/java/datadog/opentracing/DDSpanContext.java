@@ -4,12 +4,11 @@ import com.fasterxml.jackson.annotation.JsonIgnore;
 import datadog.opentracing.decorators.AbstractDecorator;
 import datadog.trace.api.DDTags;
 import datadog.trace.api.sampling.PrioritySampling;
+import datadog.trace.common.util.UnsignedLongs;
 import java.util.Collections;
-import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicReference;
 import lombok.extern.slf4j.Slf4j;
 
 /**
@@ -27,6 +26,7 @@ public class DDSpanContext implements io.opentracing.SpanContext {
   public static final String ORIGIN_KEY = "_dd.origin";
 
   private static final Map<String, Number> EMPTY_METRICS = Collections.emptyMap();
+  private static final Map<String, String> EMPTY_BAGGAGE = Collections.emptyMap();
 
   // Shared with other span contexts
   /** For technical reasons, the ref to the original tracer */
@@ -35,16 +35,25 @@ public class DDSpanContext implements io.opentracing.SpanContext {
   /** The collection of all span related to this one */
   private final PendingTrace trace;
 
-  /** Baggage is associated with the whole trace and shared with other spans */
-  private final Map<String, String> baggageItems;
+  /**
+   * Baggage is associated with the whole trace and shared with other spans. Spans without baggage
+   * share an empty map, which is only replaced by a map of their own when an item is first set.
+   */
+  private volatile Map<String, String> baggageItems;
 
   // Not Shared with other span contexts
-  private final String traceId;
-  private final String spanId;
-  private final String parentId;
+  // Unsigned 64 bit ids, only converted to strings at the API boundaries
+  private final long traceId;
+  private final long spanId;
+  private final long parentId;
 
-  /** Tags are associated to the current span, they will not propagate to the children span */
-  private final Map<String, Object> tags = new ConcurrentHashMap<>();
+  /**
+   * Tags are associated to the current span, they will not propagate to the children span. They
+   * are kept with the metrics, in tables which another span may reuse once this one is written.
+   */
+  private final SpanTables tables;
+  /** The generation of the tables when this context was created, see {@link SpanTables} */
+  private final int generation;
 
   /** The service name is required, otherwise the span are dropped by the agent */
   private volatile String serviceName;
@@ -65,8 +74,12 @@ public class DDSpanContext implements io.opentracing.SpanContext {
   private boolean samplingPriorityLocked = false;
   /** The origin of the trace. (eg. Synthetics) */
   private final String origin;
-  /** Metrics on the span */
-  private final AtomicReference<Map<String, Number>> metrics = new AtomicReference<>();
+
+  /**
+   * False for the spans of a trace dropped early, which only propagate the context. Their tags and
+   * metrics are ignored and they are not written. See {@link PendingTrace#isDroppedEarly()}.
+   */
+  private final boolean recorded;
 
   // Additional Metadata
   private final String threadName = Thread.currentThread().getName();
@@ -87,27 +100,89 @@ public class DDSpanContext implements io.opentracing.SpanContext {
       final Map<String, Object> tags,
       final PendingTrace trace,
       final DDTracer tracer) {
+    this(
+        UnsignedLongs.parse(traceId, 10),
+        UnsignedLongs.parse(spanId, 10),
+        UnsignedLongs.parse(parentId, 10),
+        serviceName,
+        operationName,
+        resourceName,
+        samplingPriority,
+        origin,
+        baggageItems,
+        errorFlag,
+        spanType,
+        tags,
+        trace,
+        tracer);
+  }
 
+  public DDSpanContext(
+      final long traceId,
+      final long spanId,
+      final long parentId,
+      final String serviceName,
+      final String operationName,
+      final String resourceName,
+      final int samplingPriority,
+      final String origin,
+      final Map<String, String> baggageItems,
+      final boolean errorFlag,
+      final String spanType,
+      final Map<String, Object> tags,
+      final PendingTrace trace,
+      final DDTracer tracer) {
+    this(
+        traceId,
+        spanId,
+        parentId,
+        serviceName,
+        operationName,
+        resourceName,
+        samplingPriority,
+        origin,
+        baggageItems,
+        errorFlag,
+        spanType,
+        tags,
+        trace,
+        tracer,
+        new SpanTables());
+  }
+
+  /** @param tables new tables, or tables recycled from a written span */
+  DDSpanContext(
+      final long traceId,
+      final long spanId,
+      final long parentId,
+      final String serviceName,
+      final String operationName,
+      final String resourceName,
+      final int samplingPriority,
+      final String origin,
+      final Map<String, String> baggageItems,
+      final boolean errorFlag,
+      final String spanType,
+      final Map<String, Object> tags,
+      final PendingTrace trace,
+      final DDTracer tracer,
+      final SpanTables tables) {
     assert tracer != null;
     assert trace != null;
     this.tracer = tracer;
     this.trace = trace;
 
-    assert traceId != null;
-    assert spanId != null;
-    assert parentId != null;
     this.traceId = traceId;
     this.spanId = spanId;
     this.parentId = parentId;
+    this.tables = tables;
+    generation = tables.getGeneration();
+    recorded = !trace.isDroppedEarly();
 
-    if (baggageItems == null) {
-      this.baggageItems = new ConcurrentHashMap<>(0);
-    } else {
-      this.baggageItems = baggageItems;
-    }
+    this.baggageItems = baggageItems == null ? EMPTY_BAGGAGE : baggageItems;
 
-    if (tags != null) {
-      this.tags.putAll(tags);
+    if (tags != null && recorded) {
+      this.tables.tags.putAll(tags);
     }
 
     this.serviceName = serviceName;
@@ -121,22 +196,64 @@ public class DDSpanContext implements io.opentracing.SpanContext {
       setSamplingPriority(samplingPriority);
     }
 
-    if (origin != null) {
-      this.tags.put(ORIGIN_KEY, origin);
+    if (recorded) {
+      if (origin != null) {
+        this.tables.tags.put(ORIGIN_KEY, origin);
+      }
+      this.tables.tags.put(DDTags.THREAD_NAME, threadName);
+      this.tables.tags.put(DDTags.THREAD_ID, threadId);
+    }
+  }
+
+  boolean isRecorded() {
+    return recorded;
+  }
+
+  /** @return false once the span's trace has been written and its tables reused */
+  private boolean isCurrent() {
+    return tables.getGeneration() == generation;
+  }
+
+  /**
+   * Called once the span's trace has been written. From then on the tags and metrics of this
+   * context are empty and changes to them are ignored.
+   *
+   * @return the tables to reuse, or null if they have already been released
+   */
+  SpanTables releaseTables() {
+    synchronized (tables) {
+      if (!isCurrent()) {
+        return null;
+      }
+      tables.recycle();
+      return tables;
     }
-    this.tags.put(DDTags.THREAD_NAME, threadName);
-    this.tags.put(DDTags.THREAD_ID, threadId);
   }
 
   public String getTraceId() {
-    return traceId;
+    return UnsignedLongs.toString(traceId);
   }
 
   public String getParentId() {
-    return parentId;
+    return UnsignedLongs.toString(parentId);
   }
 
   public String getSpanId() {
+    return UnsignedLongs.toString(spanId);
+  }
+
+  @JsonIgnore
+  public long getTraceIdAsLong() {
+    return traceId;
+  }
+
+  @JsonIgnore
+  public long getParentIdAsLong() {
+    return parentId;
+  }
+
+  @JsonIgnore
+  public long getSpanIdAsLong() {
     return spanId;
   }
 
@@ -247,6 +364,19 @@ public class DDSpanContext implements io.opentracing.SpanContext {
     }
   }
 
+  /** @return true if the sampling priority was extracted or injected, and can't be changed */
+  public boolean isSamplingPriorityLocked() {
+    if (trace != null) {
+      final DDSpan rootSpan = trace.getRootSpan();
+      if (null != rootSpan && rootSpan.context() != this) {
+        return rootSpan.context().isSamplingPriorityLocked();
+      }
+    }
+    synchronized (this) {
+      return samplingPriorityLocked;
+    }
+  }
+
   public String getOrigin() {
     final DDSpan rootSpan = trace.getRootSpan();
     if (null != rootSpan) {
@@ -257,6 +387,15 @@ public class DDSpanContext implements io.opentracing.SpanContext {
   }
 
   public void setBaggageItem(final String key, final String value) {
+    Map<String, String> baggageItems = this.baggageItems;
+    if (baggageItems == EMPTY_BAGGAGE) {
+      synchronized (this) {
+        if (this.baggageItems == EMPTY_BAGGAGE) {
+          this.baggageItems = new ConcurrentHashMap<>(4);
+        }
+        baggageItems = this.baggageItems;
+      }
+    }
     baggageItems.put(key, value);
   }
 
@@ -287,36 +426,45 @@ public class DDSpanContext implements io.opentracing.SpanContext {
   }
 
   public Map<String, Number> getMetrics() {
-    final Map<String, Number> metrics = this.metrics.get();
-    return metrics == null ? EMPTY_METRICS : metrics;
+    final Map<String, Number> metrics = tables.metrics;
+    return metrics == null || !isCurrent() ? EMPTY_METRICS : tables.view(metrics, generation);
   }
 
   public void setMetric(final String key, final Number value) {
-    if (metrics.get() == null) {
-      metrics.compareAndSet(null, new ConcurrentHashMap<String, Number>());
+    if (!recorded) {
+      return;
     }
-    if (value instanceof Float) {
-      metrics.get().put(key, value.doubleValue());
-    } else {
-      metrics.get().put(key, value);
+    synchronized (tables) {
+      if (!isCurrent()) {
+        return;
+      }
+      if (tables.metrics == null) {
+        tables.metrics = new MetricMap();
+      }
+      if (value instanceof Float) {
+        tables.metrics.put(key, value.doubleValue());
+      } else {
+        tables.metrics.put(key, value);
+      }
     }
   }
+
   /**
    * Add a tag to the span. Tags are not propagated to the children
    *
    * @param tag the tag-name
    * @param value the value of the tag. tags with null values are ignored.
    */
-  public synchronized void setTag(final String tag, final Object value) {
+  public void setTag(final String tag, final Object value) {
     if (value == null || (value instanceof String && ((String) value).isEmpty())) {
-      tags.remove(tag);
+      putTag(tag, null);
       return;
     }
 
     boolean addTag = true;
 
-    // Call decorators
-    final List<AbstractDecorator> decorators = tracer.getSpanContextDecorators(tag);
+    // Call decorators, even if the span isn't recorded: they may keep the trace
+    final AbstractDecorator[] decorators = tracer.getDecorators(tag);
     if (decorators != null) {
       for (final AbstractDecorator decorator : decorators) {
         try {
@@ -331,12 +479,35 @@ public class DDSpanContext implements io.opentracing.SpanContext {
     }
 
     if (addTag) {
-      tags.put(tag, value);
+      putTag(tag, value);
     }
   }
 
-  public synchronized Map<String, Object> getTags() {
-    return Collections.unmodifiableMap(tags);
+  /**
+   * Store a tag, or remove it if the value is null. Ignored if the span isn't recorded or once the
+   * tables have been reused.
+   */
+  private void putTag(final String tag, final Object value) {
+    if (!recorded) {
+      return;
+    }
+    synchronized (tables) {
+      if (!isCurrent()) {
+        return;
+      }
+      if (value == null) {
+        tables.tags.remove(tag);
+      } else {
+        tables.tags.put(tag, value);
+      }
+    }
+  }
+
+  /** @return a read-only view of the tags, which is empty once the span's tables are reused */
+  public Map<String, Object> getTags() {
+    return isCurrent()
+        ? tables.view(tables.tags, generation)
+        : Collections.<String, Object>emptyMap();
   }
 
   @Override
@@ -344,11 +515,11 @@ public class DDSpanContext implements io.opentracing.SpanContext {
     final StringBuilder s =
         new StringBuilder()
             .append("DDSpan [ t_id=")
-            .append(traceId)
+            .append(getTraceId())
             .append(", s_id=")
-            .append(spanId)
+            .append(getSpanId())
             .append(", p_id=")
-            .append(parentId)
+            .append(getParentId())
             .append("] trace=")
             .append(getServiceName())
             .append("/")
@@ -360,9 +531,7 @@ public class DDSpanContext implements io.opentracing.SpanContext {
     if (errorFlag) {
       s.append(" *errored*");
     }
-    if (tags != null) {
-      s.append(" tags=").append(new TreeMap(tags));
-    }
+    s.append(" tags=").append(new TreeMap(getTags()));
     return s.toString();
   }
 }
@@ -11,7 +11,7 @@ import datadog.trace.api.Config;
 import datadog.trace.api.interceptor.MutableSpan;
 import datadog.trace.api.interceptor.TraceInterceptor;
 import datadog.trace.api.sampling.PrioritySampling;
-import datadog.trace.common.sampling.RateByServiceSampler;
+import datadog.trace.common.sampling.PrioritySampler;
 import datadog.trace.common.sampling.Sampler;
 import datadog.trace.common.writer.DDAgentWriter;
 import datadog.trace.common.writer.DDApi;
@@ -27,6 +27,7 @@ import io.opentracing.propagation.TextMap;
 import java.io.Closeable;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
@@ -37,7 +38,6 @@ import java.util.Properties;
 import java.util.ServiceConfigurationError;
 import java.util.ServiceLoader;
 import java.util.SortedSet;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.ThreadLocalRandom;
 import lombok.Getter;
@@ -54,7 +54,7 @@ public class DDTracer implements io.opentracing.Tracer, Closeable, datadog.trace
   /** Sampler defines the sampling policy in order to reduce the number of traces for instance */
   final Sampler sampler;
   /** Scope manager is in charge of managing the scopes from which spans are created */
-  final ContextualScopeManager scopeManager = new ContextualScopeManager();
+  final ContextualScopeManager scopeManager;
 
   /** A set of tags that are added only to the application's root span */
   private final Map<String, String> localRootSpanTags;
@@ -65,6 +65,14 @@ public class DDTracer implements io.opentracing.Tracer, Closeable, datadog.trace
 
   /** number of spans in a pending trace before they get flushed */
   @Getter private final int partialFlushMinSpans;
+  /** Tables of spans whose traces have been written, null unless span recycling is enabled */
+  private final SpanPool spanPool;
+  /** Fraction of traces whose spans are tracked for leaks, see {@link PendingTrace#clean()} */
+  private final float spanLeakDetectionSampleRate;
+  /** Only record the root span of traces dropped by priority sampling */
+  private final boolean dropEarly;
+  /** Caps on the spans held by pending traces */
+  private final TraceLimits traceLimits;
 
   /**
    * JVM shutdown callback, keeping a reference to it to remove this if DDTracer gets destroyed
@@ -73,8 +81,7 @@ public class DDTracer implements io.opentracing.Tracer, Closeable, datadog.trace
   private final Thread shutdownCallback;
 
   /** Span context decorators */
-  private final Map<String, List<AbstractDecorator>> spanContextDecorators =
-      new ConcurrentHashMap<>();
+  private volatile DecoratorTable spanContextDecorators = DecoratorTable.EMPTY;
 
   private final SortedSet<TraceInterceptor> interceptors =
       new ConcurrentSkipListSet<>(
@@ -225,6 +232,17 @@ public class DDTracer implements io.opentracing.Tracer, Closeable, datadog.trace
     this.defaultSpanTags = defaultSpanTags;
     this.serviceNameMappings = serviceNameMappings;
     this.partialFlushMinSpans = partialFlushMinSpans;
+    scopeManager = new ContextualScopeManager(Config.get().isVirtualThreadsEnabled());
+    spanPool = Config.get().isSpanRecyclingEnabled() ? new SpanPool() : null;
+    spanLeakDetectionSampleRate = Config.get().getSpanLeakDetectionSampleRate();
+    dropEarly =
+        Config.get().isPrioritySamplingDropEarly() && sampler instanceof PrioritySampler;
+    traceLimits =
+        new TraceLimits(
+            Config.get().getTraceMaxSpans(),
+            Config.get().getTraceMaxBytes(),
+            Config.get().getPendingTracesMaxSpans(),
+            this);
 
     shutdownCallback = new ShutdownHook(this);
     try {
@@ -274,23 +292,34 @@ public class DDTracer implements io.opentracing.Tracer, Closeable, datadog.trace
    * @return the list of span context decorators
    */
   public List<AbstractDecorator> getSpanContextDecorators(final String tag) {
+    final AbstractDecorator[] decorators = spanContextDecorators.get(tag);
+    return decorators == null ? null : Collections.unmodifiableList(Arrays.asList(decorators));
+  }
+
+  /** @return the span context decorators for the tag, or null if there are none */
+  AbstractDecorator[] getDecorators(final String tag) {
     return spanContextDecorators.get(tag);
   }
 
+  float getSpanLeakDetectionSampleRate() {
+    return spanLeakDetectionSampleRate;
+  }
+
+  boolean isDropEarly() {
+    return dropEarly;
+  }
+
+  TraceLimits getTraceLimits() {
+    return traceLimits;
+  }
+
   /**
    * Add a new decorator in the list ({@link AbstractDecorator})
    *
    * @param decorator The decorator in the list
    */
-  public void addDecorator(final AbstractDecorator decorator) {
-
-    List<AbstractDecorator> list = spanContextDecorators.get(decorator.getMatchingTag());
-    if (list == null) {
-      list = new ArrayList<>();
-    }
-    list.add(decorator);
-
-    spanContextDecorators.put(decorator.getMatchingTag(), list);
+  public synchronized void addDecorator(final AbstractDecorator decorator) {
+    spanContextDecorators = spanContextDecorators.with(decorator);
     log.debug(
         "Decorator added: '{}' -> {}", decorator.getMatchingTag(), decorator.getClass().getName());
   }
@@ -356,26 +385,28 @@ public class DDTracer implements io.opentracing.Tracer, Closeable, datadog.trace
    * We use the sampler to know if the trace has to be reported/written. The sampler is called on
    * the first span (root span) of the trace. If the trace is marked as a sample, we report it.
    *
-   * @param trace a list of the spans related to the same trace
+   * @param trace a list of the spans related to the same trace. Lists are handed to the writer as
+   *     they are when there is no interceptor, and must not be changed afterwards.
    */
   void write(final Collection<DDSpan> trace) {
     if (trace.isEmpty()) {
       return;
     }
-    final ArrayList<DDSpan> writtenTrace;
+    final List<DDSpan> writtenTrace;
     if (interceptors.isEmpty()) {
-      writtenTrace = new ArrayList<>(trace);
+      writtenTrace = trace instanceof List ? (List<DDSpan>) trace : new ArrayList<>(trace);
     } else {
       Collection<? extends MutableSpan> interceptedTrace = new ArrayList<>(trace);
       for (final TraceInterceptor interceptor : interceptors) {
         interceptedTrace = interceptor.onTraceComplete(interceptedTrace);
       }
-      writtenTrace = new ArrayList<>(interceptedTrace.size());
+      final List<DDSpan> interceptedSpans = new ArrayList<>(interceptedTrace.size());
       for (final MutableSpan span : interceptedTrace) {
         if (span instanceof DDSpan) {
-          writtenTrace.add((DDSpan) span);
+          interceptedSpans.add((DDSpan) span);
         }
       }
+      writtenTrace = interceptedSpans;
     }
     incrementTraceCount();
     // TODO: current trace implementation doesn't guarantee that first span is the root span
@@ -385,6 +416,25 @@ public class DDTracer implements io.opentracing.Tracer, Closeable, datadog.trace
     }
   }
 
+  /**
+   * Called by the writer once the spans of a trace have been serialized. When span recycling is
+   * enabled and no interceptor could have kept references to them, the tag and metric tables of
+   * the spans are cleared and reused by new spans. The written spans then ignore further changes.
+   */
+  public void recycle(final List<DDSpan> trace) {
+    if (spanPool == null || !interceptors.isEmpty()) {
+      return;
+    }
+    for (final DDSpan span : trace) {
+      if (span.context().getTracer() == this) {
+        final SpanTables tables = span.context().releaseTables();
+        if (tables != null) {
+          spanPool.offer(tables);
+        }
+      }
+    }
+  }
+
   /** Increment the reported trace count, but do not write a trace. */
   void incrementTraceCount() {
     writer.incrementTraceCount();
@@ -476,9 +526,12 @@ public class DDTracer implements io.opentracing.Tracer, Closeable, datadog.trace
     }
 
     private DDSpan startSpan() {
-      final DDSpan span = new DDSpan(timestampMicro, buildSpanContext());
-      if (sampler instanceof RateByServiceSampler) {
-        ((RateByServiceSampler) sampler).initializeSamplingPriority(span);
+      final SpanTables recycled = spanPool == null ? null : spanPool.poll();
+      final DDSpan span =
+          new DDSpan(
+              timestampMicro, buildSpanContext(recycled == null ? new SpanTables() : recycled));
+      if (sampler instanceof PrioritySampler && span.context().isRecorded()) {
+        ((PrioritySampler) sampler).initializeSamplingPriority(span);
       }
       return span;
     }
@@ -593,22 +646,23 @@ public class DDTracer implements io.opentracing.Tracer, Closeable, datadog.trace
       return this;
     }
 
-    private String generateNewId() {
+    private long generateNewId() {
       // TODO: expand the range of numbers generated to be from 1 to uint 64 MAX
       // Ensure the generated ID is in a valid range:
-      return String.valueOf(ThreadLocalRandom.current().nextLong(1, Long.MAX_VALUE));
+      return ThreadLocalRandom.current().nextLong(1, Long.MAX_VALUE);
     }
 
     /**
      * Build the SpanContext, if the actual span has a parent, the following attributes must be
      * propagated: - ServiceName - Baggage - Trace (a list of all spans related) - SpanType
      *
+     * @param tables the tag and metric tables of the span, possibly recycled
      * @return the context
      */
-    private DDSpanContext buildSpanContext() {
-      final String traceId;
-      final String spanId = generateNewId();
-      final String parentSpanId;
+    private DDSpanContext buildSpanContext(final SpanTables tables) {
+      final long traceId;
+      final long spanId = generateNewId();
+      final long parentSpanId;
       final Map<String, String> baggage;
       final PendingTrace parentTrace;
       final int samplingPriority;
@@ -629,8 +683,8 @@ public class DDTracer implements io.opentracing.Tracer, Closeable, datadog.trace
       // root span, parentContext will be null at this point.
       if (parentContext instanceof DDSpanContext) {
         final DDSpanContext ddsc = (DDSpanContext) parentContext;
-        traceId = ddsc.getTraceId();
-        parentSpanId = ddsc.getSpanId();
+        traceId = ddsc.getTraceIdAsLong();
+        parentSpanId = ddsc.getSpanIdAsLong();
         baggage = ddsc.getBaggageItems();
         parentTrace = ddsc.getTrace();
         samplingPriority = PrioritySampling.UNSET;
@@ -643,14 +697,14 @@ public class DDTracer implements io.opentracing.Tracer, Closeable, datadog.trace
         if (parentContext instanceof ExtractedContext) {
           // Propagate external trace
           final ExtractedContext extractedContext = (ExtractedContext) parentContext;
-          traceId = extractedContext.getTraceId();
-          parentSpanId = extractedContext.getSpanId();
+          traceId = extractedContext.getTraceIdAsLong();
+          parentSpanId = extractedContext.getSpanIdAsLong();
           samplingPriority = extractedContext.getSamplingPriority();
           baggage = extractedContext.getBaggage();
         } else {
           // Start a new trace
           traceId = generateNewId();
-          parentSpanId = "0";
+          parentSpanId = 0;
           samplingPriority = PrioritySampling.UNSET;
           baggage = null;
         }
@@ -690,7 +744,8 @@ public class DDTracer implements io.opentracing.Tracer, Closeable, datadog.trace
               spanType,
               tags,
               parentTrace,
-              DDTracer.this);
+              DDTracer.this,
+              tables);
 
       // Apply Decorators to handle any tags that may have been set via the builder.
       for (final Map.Entry<String, Object> tag : tags.entrySet()) {
@@ -702,7 +757,7 @@ public class DDTracer implements io.opentracing.Tracer, Closeable, datadog.trace
         boolean addTag = true;
 
         // Call decorators
-        final List<AbstractDecorator> decorators = getSpanContextDecorators(tag.getKey());
+        final AbstractDecorator[] decorators = getDecorators(tag.getKey());
         if (decorators != null) {
           for (final AbstractDecorator decorator : decorators) {
             try {
@@ -0,0 +1,83 @@
+package datadog.opentracing;
+
+import datadog.opentracing.decorators.AbstractDecorator;
+import java.util.Arrays;
+
+/**
+ * Immutable dispatch table from tag names to the decorators matching them.
+ *
+ * <p>Every tag set on every span is looked up here and most tags have no decorator, so a miss is
+ * usually a single probe of an open addressed array. Tag names are interned when the table is
+ * built and tags are nearly always set with constants, so hits compare by reference before falling
+ * back to equals. Adding a decorator builds a new table.
+ */
+final class DecoratorTable {
+  static final DecoratorTable EMPTY =
+      new DecoratorTable(new String[8], new AbstractDecorator[8][], 0);
+
+  private final String[] tags;
+  private final AbstractDecorator[][] decorators;
+  private final int size;
+
+  private DecoratorTable(
+      final String[] tags, final AbstractDecorator[][] decorators, final int size) {
+    this.tags = tags;
+    this.decorators = decorators;
+    this.size = size;
+  }
+
+  /** @return the decorators matching the tag in insertion order, or null if there are none */
+  AbstractDecorator[] get(final String tag) {
+    final int index = indexOf(tags, tag);
+    return tags[index] == null ? null : decorators[index];
+  }
+
+  /** @return the number of distinct tags with decorators */
+  int size() {
+    return size;
+  }
+
+  /** @return a table with the decorator added after the ones matching the same tag */
+  DecoratorTable with(final AbstractDecorator decorator) {
+    final String tag = decorator.getMatchingTag().intern();
+    final boolean newTag = tags[indexOf(tags, tag)] == null;
+    // Keep at most half the slots used so that misses stay cheap.
+    final int length = newTag && (size + 1) * 2 > tags.length ? tags.length * 2 : tags.length;
+
+    final String[] newTags = new String[length];
+    final AbstractDecorator[][] newDecorators = new AbstractDecorator[length][];
+    for (int i = 0; i < tags.length; i++) {
+      if (tags[i] != null) {
+        final int index = indexOf(newTags, tags[i]);
+        newTags[index] = tags[i];
+        newDecorators[index] = decorators[i];
+      }
+    }
+
+    final int index = indexOf(newTags, tag);
+    if (newTags[index] == null) {
+      newTags[index] = tag;
+      newDecorators[index] = new AbstractDecorator[] {decorator};
+    } else {
+      final AbstractDecorator[] existing = newDecorators[index];
+      final AbstractDecorator[] added = Arrays.copyOf(existing, existing.length + 1);
+      added[existing.length] = decorator;
+      newDecorators[index] = added;
+    }
+    return new DecoratorTable(newTags, newDecorators, newTag ? size + 1 : size);
+  }
+
+  private static int indexOf(final String[] tags, final String tag) {
+    final int mask = tags.length - 1;
+    final int hash = tag.hashCode();
+    int index = (hash ^ (hash >>> 16)) & mask;
+    String candidate;
+    while ((candidate = tags[index]) != null) {
+      if (candidate == tag || candidate.equals(tag)) {
+        return index;
+      }
+      index = (index + 1) & mask;
+    }
+    return index;
+  }
+}
@@ -0,0 +1,246 @@
+package datadog.opentracing;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Map of span metrics keeping ints, longs and doubles in primitive slots.
+ *
+ * <p>Values are only boxed when read, which for most spans happens once during serialization. Other
+ * number types are kept as they are. Concurrency follows {@link TagMap}: writes are synchronized by
+ * the owning context and reads don't lock. A slot's type and value can't be written at once, so a
+ * new key is only written after them, and updating a key replaces the slots rather than rewriting
+ * the pair in place.
+ */
+final class MetricMap extends AbstractMap<String, Number> {
+  /** Must be a power of two. */
+  private static final int INITIAL_CAPACITY = 8;
+
+  private static final byte INT = 1;
+  private static final byte LONG = 2;
+  private static final byte DOUBLE = 3;
+  private static final byte OTHER = 4;
+
+  private volatile Slots slots = new Slots(INITIAL_CAPACITY);
+  private volatile int size = 0;
+
+  private static final class Slots {
+    /** Written last when a key is added, so that readers finding a key see its type and value. */
+    final AtomicReferenceArray<String> keys;
+    final byte[] types;
+    final long[] values;
+    /** Allocated for the first number which doesn't fit a primitive slot. */
+    Number[] others;
+
+    Slots(final int capacity) {
+      keys = new AtomicReferenceArray<>(capacity);
+      types = new byte[capacity];
+      values = new long[capacity];
+    }
+
+    int indexOf(final Object key) {
+      final int mask = keys.length() - 1;
+      final int hash = key.hashCode();
+      int index = (hash ^ (hash >>> 16)) & mask;
+      String candidate;
+      while ((candidate = keys.get(index)) != null) {
+        if (candidate == key || candidate.equals(key)) {
+          return index;
+        }
+        index = (index + 1) & mask;
+      }
+      return index;
+    }
+
+    void set(final int index, final Number value) {
+      if (value instanceof Integer) {
+        values[index] = value.intValue();
+        types[index] = INT;
+      } else if (value instanceof Long) {
+        values[index] = value.longValue();
+        types[index] = LONG;
+      } else if (value instanceof Double) {
+        values[index] = Double.doubleToRawLongBits(value.doubleValue());
+        types[index] = DOUBLE;
+      } else {
+        if (others == null) {
+          others = new Number[keys.length()];
+        }
+        others[index] = value;
+        types[index] = OTHER;
+      }
+    }
+
+    Number get(final int index) {
+      switch (types[index]) {
+        case INT:
+          return (int) values[index];
+        case LONG:
+          return values[index];
+        case DOUBLE:
+          return Double.longBitsToDouble(values[index]);
+        case OTHER:
+          final Number[] others = this.others;
+          return others == null ? null : others[index];
+        default:
+          return null;
+      }
+    }
+
+    /** Adds a key which isn't in the slots yet. */
+    void add(final int index, final String key, final Number value) {
+      set(index, value);
+      keys.set(index, key);
+    }
+
+    void copyTo(final Slots copy, final String skippedKey) {
+      for (int i = 0; i < keys.length(); i++) {
+        final String key = keys.get(i);
+        final Number value = key == null ? null : get(i);
+        if (key != null && key != skippedKey && value != null) {
+          copy.add(copy.indexOf(key), key, value);
+        }
+      }
+    }
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public boolean containsKey(final Object key) {
+    return get(key) != null;
+  }
+
+  @Override
+  public Number get(final Object key) {
+    if (key == null) {
+      return null;
+    }
+    final Slots slots = this.slots;
+    final int index = slots.indexOf(key);
+    return slots.keys.get(index) == null ? null : slots.get(index);
+  }
+
+  @Override
+  public Number put(final String key, final Number value) {
+    if (key == null || value == null) {
+      throw new NullPointerException();
+    }
+    final Slots slots = this.slots;
+    final int index = slots.indexOf(key);
+    final String existingKey = slots.keys.get(index);
+    if (existingKey != null) {
+      final Number previous = slots.get(index);
+      final Slots copy = new Slots(slots.keys.length());
+      slots.copyTo(copy, existingKey);
+      copy.add(copy.indexOf(key), key, value);
+      this.slots = copy;
+      return previous;
+    }
+    if ((size + 1) * 4 > slots.keys.length() * 3) {
+      final Slots copy = new Slots(slots.keys.length() * 2);
+      slots.copyTo(copy, null);
+      copy.add(copy.indexOf(key), key, value);
+      this.slots = copy;
+    } else {
+      slots.add(index, key, value);
+    }
+    size++;
+    return null;
+  }
+
+  @Override
+  public Number remove(final Object key) {
+    if (key == null) {
+      return null;
+    }
+    final Slots slots = this.slots;
+    final int index = slots.indexOf(key);
+    final String existingKey = slots.keys.get(index);
+    if (existingKey == null) {
+      return null;
+    }
+    final Slots copy = new Slots(slots.keys.length());
+    slots.copyTo(copy, existingKey);
+    this.slots = copy;
+    size--;
+    return slots.get(index);
+  }
+
+  /** Keeps the current capacity, like {@link TagMap#clear()}. */
+  @Override
+  public void clear() {
+    final Slots slots = this.slots;
+    for (int i = 0; i < slots.keys.length(); i++) {
+      slots.keys.set(i, null);
+    }
+    Arrays.fill(slots.types, (byte) 0);
+    slots.others = null;
+    size = 0;
+  }
+
+  @Override
+  public Set<Entry<String, Number>> entrySet() {
+    return new AbstractSet<Entry<String, Number>>() {
+      @Override
+      public Iterator<Entry<String, Number>> iterator() {
+        return new EntryIterator(slots);
+      }
+
+      @Override
+      public int size() {
+        return size;
+      }
+    };
+  }
+
+  private static final class EntryIterator implements Iterator<Entry<String, Number>> {
+    private final Slots slots;
+    private int next = -1;
+    private Entry<String, Number> nextEntry;
+
+    EntryIterator(final Slots slots) {
+      this.slots = slots;
+      advance();
+    }
+
+    private void advance() {
+      nextEntry = null;
+      while (nextEntry == null && ++next < slots.keys.length()) {
+        final String key = slots.keys.get(next);
+        final Number value = key == null ? null : slots.get(next);
+        if (value != null) {
+          nextEntry = new SimpleImmutableEntry<>(key, value);
+        }
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      return nextEntry != null;
+    }
+
+    @Override
+    public Entry<String, Number> next() {
+      if (nextEntry == null) {
+        throw new NoSuchElementException();
+      }
+      final Entry<String, Number> entry = nextEntry;
+      advance();
+      return entry;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
@@ -1,14 +1,15 @@
 package datadog.opentracing;
 
 import datadog.opentracing.scopemanager.ContinuableScope;
+import datadog.trace.api.sampling.PrioritySampling;
 import datadog.trace.common.util.Clock;
+import datadog.trace.common.util.UnsignedLongs;
 import java.io.Closeable;
 import java.lang.ref.Reference;
 import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
-import java.util.ArrayList;
+import java.util.AbstractList;
 import java.util.Collections;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -17,18 +18,34 @@ import java.util.concurrent.ConcurrentLinkedDeque;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import lombok.extern.slf4j.Slf4j;
 
 @Slf4j
 public class PendingTrace extends ConcurrentLinkedDeque<DDSpan> {
   private static final AtomicReference<SpanCleaner> SPAN_CLEANER = new AtomicReference<>();
 
+  private static final AtomicIntegerFieldUpdater<DDSpan> SPAN_REGISTERED =
+      AtomicIntegerFieldUpdater.newUpdater(DDSpan.class, "registered");
+  private static final AtomicIntegerFieldUpdater<ContinuableScope.Continuation>
+      CONTINUATION_REGISTERED =
+          AtomicIntegerFieldUpdater.newUpdater(ContinuableScope.Continuation.class, "registered");
+  private static final AtomicIntegerFieldUpdater<PendingTrace> RATE_LIMIT_DECISION =
+      AtomicIntegerFieldUpdater.newUpdater(PendingTrace.class, "rateLimitDecision");
+
+  private static final int UNDECIDED = 0;
+  private static final int KEPT = 1;
+  private static final int DROPPED = 2;
+
   private final DDTracer tracer;
-  private final String traceId;
+  private final long traceId;
   private final Map<String, String> serviceNameMappings;
 
   // TODO: consider moving these time fields into DDTracer to ensure that traces have precise
@@ -38,11 +55,40 @@ public class PendingTrace extends ConcurrentLinkedDeque<DDSpan> {
   /** Nano second ticks value at trace start */
   private final long startNanoTicks;
 
-  private final ReferenceQueue referenceQueue = new ReferenceQueue();
-  private final Set<WeakReference<?>> weakReferences =
-      Collections.newSetFromMap(new ConcurrentHashMap<WeakReference<?>, Boolean>());
-
+  /**
+   * Spans and continuations are reference counted: each one is counted once when registered and
+   * once when finished or closed, and the trace is written when the count drops back to zero.
+   */
   private final AtomicInteger pendingReferenceCount = new AtomicInteger(0);
+
+  /** Number of spans held by this deque, counted separately since its size() is linear. */
+  private final AtomicInteger completedSpanCount = new AtomicInteger(0);
+
+  /** Estimated size of the spans held by this deque, only counted if traces are capped by size. */
+  private final AtomicLong completedSpanBytes = new AtomicLong(0);
+
+  /** Number of spans finished once a cap of {@link TraceLimits} was exceeded. */
+  private final AtomicInteger truncatedSpanCount = new AtomicInteger(0);
+
+  /** Number of spans started once the trace was dropped early, which are never added. */
+  private final AtomicInteger unrecordedSpanCount = new AtomicInteger(0);
+
+  /**
+   * Completed spans beyond the first partialFlushMinSpans ones. They are kept out of this deque
+   * until their chunk is full and flushed, or the trace is written. Only allocated once a span is
+   * added to it.
+   */
+  private final AtomicReference<Chunk> chunk = new AtomicReference<>();
+
+  /**
+   * Only set for traces sampled for leak detection. Their spans and continuations are also tracked
+   * with weak references so that the SpanCleaner can discard the trace if one of them is garbage
+   * collected without being finished. Other traces leaking a span are never written, and only
+   * counted by TraceLimits once collected along with their spans.
+   */
+  private final ReferenceQueue referenceQueue;
+
+  private final Set<WeakReference<?>> weakReferences;
   /**
    * During a trace there are cases where the root span must be accessed (e.g. priority sampling and
    * trace-search tags).
@@ -58,16 +104,41 @@ public class PendingTrace extends ConcurrentLinkedDeque<DDSpan> {
   /** Ensure a trace is never written multiple times */
   private final AtomicBoolean isWritten = new AtomicBoolean(false);
 
+  /**
+   * Whether the rate limiting sampler keeps the trace, decided once so that the partial traces
+   * flushed before the root span finishes are all kept or all dropped along with the rest.
+   */
+  private volatile int rateLimitDecision = UNDECIDED;
+
+  /** Counts the trace and releases its spans if it is garbage collected unwritten */
+  private final TraceLimits.TrackedTrace trackedTrace;
+
   PendingTrace(
       final DDTracer tracer, final String traceId, final Map<String, String> serviceNameMappings) {
+    this(tracer, UnsignedLongs.parse(traceId, 10), serviceNameMappings);
+  }
+
+  PendingTrace(
+      final DDTracer tracer, final long traceId, final Map<String, String> serviceNameMappings) {
     this.tracer = tracer;
     this.traceId = traceId;
     this.serviceNameMappings = serviceNameMappings;
 
     startTimeNano = Clock.currentNanoTime();
     startNanoTicks = Clock.currentNanoTicks();
-
-    addPendingTrace();
+    trackedTrace = tracer.getTraceLimits().track(this, isWritten, completedSpanCount);
+
+    final float leakDetectionSampleRate = tracer.getSpanLeakDetectionSampleRate();
+    if (leakDetectionSampleRate > 0
+        && ThreadLocalRandom.current().nextFloat() < leakDetectionSampleRate) {
+      referenceQueue = new ReferenceQueue();
+      weakReferences =
+          Collections.newSetFromMap(new ConcurrentHashMap<WeakReference<?>, Boolean>());
+      addPendingTrace();
+    } else {
+      referenceQueue = null;
+      weakReferences = null;
+    }
   }
 
   /**
@@ -85,48 +156,52 @@ public class PendingTrace extends ConcurrentLinkedDeque<DDSpan> {
   }
 
   public void registerSpan(final DDSpan span) {
-    if (traceId == null || span.context() == null) {
-      log.error(
-          "Failed to register span ({}) due to null PendingTrace traceId or null span context",
-          span);
+    if (span.context() == null) {
+      log.error("Failed to register span ({}) due to null span context", span);
       return;
     }
-    if (!traceId.equals(span.context().getTraceId())) {
+    if (traceId != span.context().getTraceIdAsLong()) {
       log.debug("{} - span registered for wrong trace ({})", span, traceId);
       return;
     }
+    if (!span.context().isRecorded()) {
+      unrecordedSpanCount.incrementAndGet();
+      return;
+    }
     rootSpan.compareAndSet(null, new WeakReference<>(span));
-    synchronized (span) {
-      if (null == span.ref) {
+    // Spans register themselves when started, before any other thread can finish them, so the weak
+    // reference is always set by the time expireSpan needs it.
+    if (SPAN_REGISTERED.compareAndSet(span, 0, 1)) {
+      if (weakReferences != null) {
         span.ref = new WeakReference<DDSpan>(span, referenceQueue);
         weakReferences.add(span.ref);
-        final int count = pendingReferenceCount.incrementAndGet();
-        log.debug("traceId: {} -- registered span {}. count = {}", traceId, span, count);
-      } else {
-        log.debug("span {} already registered in trace {}", span, traceId);
       }
+      final int count = pendingReferenceCount.incrementAndGet();
+      log.debug("traceId: {} -- registered span {}. count = {}", traceId, span, count);
+    } else {
+      log.debug("span {} already registered in trace {}", span, traceId);
     }
   }
 
   private void expireSpan(final DDSpan span) {
-    if (traceId == null || span.context() == null) {
-      log.error(
-          "Failed to expire span ({}) due to null PendingTrace traceId or null span context", span);
+    if (span.context() == null) {
+      log.error("Failed to expire span ({}) due to null span context", span);
       return;
     }
-    if (!traceId.equals(span.context().getTraceId())) {
+    if (traceId != span.context().getTraceIdAsLong()) {
       log.debug("{} - span expired for wrong trace ({})", span, traceId);
       return;
     }
-    synchronized (span) {
-      if (null == span.ref) {
-        log.debug("span {} not registered in trace {}", span, traceId);
-      } else {
-        weakReferences.remove(span.ref);
-        span.ref.clear();
+    if (SPAN_REGISTERED.compareAndSet(span, 1, 0)) {
+      final WeakReference<DDSpan> ref = span.ref;
+      if (ref != null) {
+        weakReferences.remove(ref);
+        ref.clear();
         span.ref = null;
-        expireReference();
       }
+      expireReference();
+    } else {
+      log.debug("span {} not registered in trace {}", span, traceId);
     }
   }
 
@@ -135,28 +210,96 @@ public class PendingTrace extends ConcurrentLinkedDeque<DDSpan> {
       log.debug("{} - added to trace, but not complete.", span);
       return;
     }
-    if (traceId == null || span.context() == null) {
-      log.error(
-          "Failed to add span ({}) due to null PendingTrace traceId or null span context", span);
+    if (span.context() == null) {
+      log.error("Failed to add span ({}) due to null span context", span);
       return;
     }
-    if (!traceId.equals(span.getTraceId())) {
+    if (traceId != span.context().getTraceIdAsLong()) {
       log.debug("{} - added to a mismatched trace.", span);
       return;
     }
+    if (!span.context().isRecorded()) {
+      return;
+    }
 
     if (!isWritten.get()) {
       if (serviceNameMappings.containsKey(span.getServiceName())) {
         span.setServiceName(serviceNameMappings.get(span.getServiceName()));
       }
 
-      addFirst(span);
+      if (retainSpan(span)) {
+        final int partialFlushMinSpans = tracer.getPartialFlushMinSpans();
+        final int completedSpans = completedSpanCount.incrementAndGet();
+        // Traces of up to partialFlushMinSpans spans are kept in this deque, only the spans
+        // beyond are flushed in chunks.
+        if (partialFlushMinSpans > 0 && completedSpans > partialFlushMinSpans) {
+          final Chunk fullChunk = addToChunk(span);
+          if (fullChunk != null) {
+            // The span isn't expired yet, so the trace can't be written in the meantime.
+            partialFlush(fullChunk);
+          }
+        } else {
+          addFirst(span);
+        }
+      }
     } else {
       log.debug("{} - finished after trace reported.", span);
     }
     expireSpan(span);
   }
 
+  /** @return false if the span is dropped to keep the trace within the tracer's limits */
+  private boolean retainSpan(final DDSpan span) {
+    final TraceLimits limits = tracer.getTraceLimits();
+    if (!limits.isEnabled()) {
+      return true;
+    }
+    final int size = limits.estimateSize(span);
+    if (limits.isExceeded(completedSpanCount.get(), completedSpanBytes.get(), size)
+        && !span.context().getErrorFlag()
+        && span != getRootSpan()
+        && truncatedSpanCount.incrementAndGet() % TraceLimits.SAMPLE_INTERVAL != 0) {
+      log.debug("{} - dropped from trace {} exceeding its limits.", span, traceId);
+      return false;
+    }
+    completedSpanBytes.addAndGet(size);
+    limits.acquire(1);
+    return true;
+  }
+
+  /**
+   * When the tracer drops traces early, spans started once the root span's sampling priority drops
+   * the trace are not recorded. They still propagate the context, and their number is reported on
+   * the root span. A trace kept again later, e.g. by a manual keep on the root span, records the
+   * spans started from then on.
+   *
+   * @return true if new spans of this trace should not be recorded
+   */
+  boolean isDroppedEarly() {
+    if (!tracer.isDropEarly()) {
+      return false;
+    }
+    final DDSpan rootSpan = getRootSpan();
+    if (rootSpan == null) {
+      return false;
+    }
+    final int samplingPriority = rootSpan.context().getSamplingPriority();
+    return samplingPriority != PrioritySampling.UNSET
+        && samplingPriority <= PrioritySampling.SAMPLER_DROP;
+  }
+
+  /** @return null until {@link #decideRateLimit} is called, then whether the trace is kept */
+  public Boolean getRateLimitDecision() {
+    final int decision = rateLimitDecision;
+    return decision == UNDECIDED ? null : decision == KEPT;
+  }
+
+  /** @return the decision for the trace, which is the first one given if several threads race */
+  public boolean decideRateLimit(final boolean kept) {
+    RATE_LIMIT_DECISION.compareAndSet(this, UNDECIDED, kept ? KEPT : DROPPED);
+    return rateLimitDecision == KEPT;
+  }
+
   public DDSpan getRootSpan() {
     final WeakReference<DDSpan> rootRef = rootSpan.get();
     return rootRef == null ? null : rootRef.get();
@@ -167,30 +310,31 @@ public class PendingTrace extends ConcurrentLinkedDeque<DDSpan> {
    * completed, so we need to wait till continuations are de-referenced before reporting.
    */
   public void registerContinuation(final ContinuableScope.Continuation continuation) {
-    synchronized (continuation) {
-      if (continuation.ref == null) {
+    if (CONTINUATION_REGISTERED.compareAndSet(continuation, 0, 1)) {
+      if (weakReferences != null) {
         continuation.ref =
             new WeakReference<ContinuableScope.Continuation>(continuation, referenceQueue);
         weakReferences.add(continuation.ref);
-        final int count = pendingReferenceCount.incrementAndGet();
-        log.debug(
-            "traceId: {} -- registered continuation {}. count = {}", traceId, continuation, count);
-      } else {
-        log.debug("continuation {} already registered in trace {}", continuation, traceId);
       }
+      final int count = pendingReferenceCount.incrementAndGet();
+      log.debug(
+          "traceId: {} -- registered continuation {}. count = {}", traceId, continuation, count);
+    } else {
+      log.debug("continuation {} already registered in trace {}", continuation, traceId);
     }
   }
 
   public void cancelContinuation(final ContinuableScope.Continuation continuation) {
-    synchronized (continuation) {
-      if (continuation.ref == null) {
-        log.debug("continuation {} not registered in trace {}", continuation, traceId);
-      } else {
-        weakReferences.remove(continuation.ref);
-        continuation.ref.clear();
+    if (CONTINUATION_REGISTERED.compareAndSet(continuation, 1, 0)) {
+      final WeakReference<ContinuableScope.Continuation> ref = continuation.ref;
+      if (ref != null) {
+        weakReferences.remove(ref);
+        ref.clear();
         continuation.ref = null;
-        expireReference();
       }
+      expireReference();
+    } else {
+      log.debug("continuation {} not registered in trace {}", continuation, traceId);
     }
   }
 
@@ -198,46 +342,110 @@ public class PendingTrace extends ConcurrentLinkedDeque<DDSpan> {
     final int count = pendingReferenceCount.decrementAndGet();
     if (count == 0) {
       write();
-    } else {
-      if (tracer.getPartialFlushMinSpans() > 0 && size() > tracer.getPartialFlushMinSpans()) {
-        synchronized (this) {
-          if (size() > tracer.getPartialFlushMinSpans()) {
-            final DDSpan rootSpan = getRootSpan();
-            final List<DDSpan> partialTrace = new ArrayList(size());
-            final Iterator<DDSpan> it = iterator();
-            while (it.hasNext()) {
-              final DDSpan span = it.next();
-              if (span != rootSpan) {
-                partialTrace.add(span);
-                it.remove();
-              }
-            }
-            log.debug("Writing partial trace {} of size {}", traceId, partialTrace.size());
-            tracer.write(partialTrace);
-          }
+    }
+    log.debug("traceId: {} -- Expired reference. count = {}", traceId, count);
+  }
+
+  /**
+   * Adds the span to the current chunk, starting a new one if needed, without locking the trace.
+   *
+   * @return the chunk if the span was the last one it was waiting for, so that it is flushed
+   */
+  private Chunk addToChunk(final DDSpan span) {
+    while (true) {
+      Chunk current = chunk.get();
+      if (current == null) {
+        current = new Chunk(tracer.getPartialFlushMinSpans());
+        if (!chunk.compareAndSet(null, current)) {
+          continue;
+        }
+      }
+      final int index = current.claimed.getAndIncrement();
+      if (index < current.size) {
+        current.set(index, span);
+        if (span == getRootSpan()) {
+          current.rootIndex = index;
         }
+        if (index == current.size - 1) {
+          // Other threads may still be filling their slots, the next span starts a new chunk.
+          chunk.compareAndSet(current, null);
+        }
+        return current.filled.incrementAndGet() == current.size ? current : null;
       }
+      chunk.compareAndSet(current, null);
     }
-    log.debug("traceId: {} -- Expired reference. count = {}", traceId, count);
+  }
+
+  /**
+   * Writes the spans of a full chunk as a partial trace. They are handed to the writer in the
+   * chunk: the trace isn't locked and the spans aren't copied. The root span is kept in this deque
+   * to be written with the rest of the trace.
+   */
+  private void partialFlush(final Chunk fullChunk) {
+    final int rootIndex = fullChunk.rootIndex;
+    if (rootIndex >= 0) {
+      addLast(fullChunk.get(rootIndex));
+    }
+    final List<DDSpan> partialTrace = new ChunkSpans(fullChunk, rootIndex);
+    if (partialTrace.isEmpty()) {
+      return;
+    }
+    long partialTraceBytes = 0;
+    for (final DDSpan span : partialTrace) {
+      partialTraceBytes += tracer.getTraceLimits().estimateSize(span);
+    }
+    completedSpanCount.addAndGet(-partialTrace.size());
+    completedSpanBytes.addAndGet(-partialTraceBytes);
+    tracer.getTraceLimits().release(partialTrace.size());
+    log.debug("Writing partial trace {} of size {}", traceId, partialTrace.size());
+    tracer.write(partialTrace);
   }
 
   private synchronized void write() {
     if (isWritten.compareAndSet(false, true)) {
+      // Every span has been added by now, so the last chunk isn't being filled anymore.
+      final Chunk lastChunk = chunk.getAndSet(null);
+      if (lastChunk != null) {
+        // Most recently completed first, like the spans added to this deque.
+        for (int i = 0; i < lastChunk.filled.get(); i++) {
+          addFirst(lastChunk.get(i));
+        }
+      }
       removePendingTrace();
+      tracer.getTraceLimits().release(completedSpanCount.get());
+      tracer.getTraceLimits().untrack(trackedTrace);
+      final int truncated = truncatedSpanCount.get();
+      final int dropped =
+          truncated - truncated / TraceLimits.SAMPLE_INTERVAL + unrecordedSpanCount.get();
+      final DDSpan rootSpan = getRootSpan();
+      if (dropped > 0 && rootSpan != null) {
+        rootSpan.context().setMetric(TraceLimits.DROPPED_SPANS_METRIC, dropped);
+      }
       if (!isEmpty()) {
-        log.debug("Writing {} spans to {}.", size(), tracer.writer);
+        log.debug("Writing {} spans to {}.", completedSpanCount.get(), tracer.writer);
         tracer.write(this);
       }
     }
   }
 
+  /**
+   * Discards the trace if one of its spans or continuations was garbage collected without being
+   * finished. Does nothing unless the trace was sampled for leak detection.
+   *
+   * @return true if leaked references were found
+   */
   public synchronized boolean clean() {
+    if (referenceQueue == null) {
+      return false;
+    }
     Reference ref;
     int count = 0;
     while ((ref = referenceQueue.poll()) != null) {
       weakReferences.remove(ref);
       if (isWritten.compareAndSet(false, true)) {
         removePendingTrace();
+        tracer.getTraceLimits().release(completedSpanCount.get());
+        tracer.getTraceLimits().untrack(trackedTrace);
         // preserve throughput count.
         // Don't report the trace because the data comes from buggy uses of the api and is suspect.
         tracer.incrementTraceCount();
@@ -254,6 +462,69 @@ public class PendingTrace extends ConcurrentLinkedDeque<DDSpan> {
     return count > 0;
   }
 
+  /**
+   * A fixed number of completed spans, flushed once full. Threads claim slots with a counter and
+   * count the slots they have filled, so the thread filling the last one flushes the chunk. Slots
+   * are allocated by segments as they are claimed, so that small traces don't allocate a whole
+   * chunk.
+   */
+  private static final class Chunk {
+    private static final int SEGMENT_SIZE = 32;
+
+    private final int size;
+    private final AtomicReferenceArray<DDSpan[]> segments;
+    private final AtomicInteger claimed = new AtomicInteger(0);
+    private final AtomicInteger filled = new AtomicInteger(0);
+    /** Slot of the root span if it was added to this chunk, -1 otherwise */
+    private volatile int rootIndex = -1;
+
+    private Chunk(final int size) {
+      this.size = size;
+      segments = new AtomicReferenceArray<>((size + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+    }
+
+    /** Published to the flushing thread by the increment of the filled count which follows. */
+    private void set(final int index, final DDSpan span) {
+      final int segmentIndex = index / SEGMENT_SIZE;
+      DDSpan[] segment = segments.get(segmentIndex);
+      if (segment == null) {
+        segment = new DDSpan[Math.min(SEGMENT_SIZE, size - segmentIndex * SEGMENT_SIZE)];
+        if (!segments.compareAndSet(segmentIndex, null, segment)) {
+          segment = segments.get(segmentIndex);
+        }
+      }
+      segment[index % SEGMENT_SIZE] = span;
+    }
+
+    private DDSpan get(final int index) {
+      return segments.get(index / SEGMENT_SIZE)[index % SEGMENT_SIZE];
+    }
+  }
+
+  /** The spans of a full chunk, in the order they completed, optionally skipping one of them. */
+  private static final class ChunkSpans extends AbstractList<DDSpan> {
+    private final Chunk chunk;
+    private final int skippedIndex;
+
+    private ChunkSpans(final Chunk chunk, final int skippedIndex) {
+      this.chunk = chunk;
+      this.skippedIndex = skippedIndex;
+    }
+
+    @Override
+    public DDSpan get(final int index) {
+      if (index < 0 || index >= size()) {
+        throw new IndexOutOfBoundsException();
+      }
+      return chunk.get(skippedIndex >= 0 && index >= skippedIndex ? index + 1 : index);
+    }
+
+    @Override
+    public int size() {
+      return skippedIndex >= 0 ? chunk.size - 1 : chunk.size;
+    }
+  }
+
   private void addPendingTrace() {
     final SpanCleaner cleaner = SPAN_CLEANER.get();
     if (cleaner != null) {
@@ -0,0 +1,59 @@
+package datadog.opentracing;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded pool of the tag and metric tables of spans whose traces have been written.
+ *
+ * <p>Tables are released by the writer thread and taken by application threads, so a thread local
+ * pool would never be refilled. Instead the writer spreads released tables over a shared array of
+ * slots, and each application thread probes the slots from a position derived from its id. This
+ * keeps threads mostly apart without allocating anything to enqueue or dequeue. When the probed
+ * slots are all empty or all full the pool is skipped: new tables are allocated, or the released
+ * ones are left to the garbage collector.
+ */
+final class SpanPool {
+  static final int DEFAULT_CAPACITY = 1024;
+  private static final int MAX_PROBES = 8;
+
+  private final AtomicReferenceArray<SpanTables> slots;
+  private final int mask;
+  private final AtomicInteger offerCursor = new AtomicInteger();
+
+  SpanPool() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  /** @param capacity rounded up to a power of two */
+  SpanPool(final int capacity) {
+    final int size = Math.max(MAX_PROBES, Integer.highestOneBit(Math.max(1, capacity - 1)) << 1);
+    slots = new AtomicReferenceArray<>(size);
+    mask = size - 1;
+  }
+
+  /** @return recycled tables, or null if none are available */
+  SpanTables poll() {
+    final int start = (int) Thread.currentThread().getId() * MAX_PROBES;
+    for (int i = 0; i < MAX_PROBES; i++) {
+      final int index = (start + i) & mask;
+      final SpanTables tables = slots.get(index);
+      if (tables != null && slots.compareAndSet(index, tables, null)) {
+        return tables;
+      }
+    }
+    return null;
+  }
+
+  /** @return false if the probed slots are full */
+  boolean offer(final SpanTables tables) {
+    final int start = offerCursor.getAndAdd(MAX_PROBES);
+    for (int i = 0; i < MAX_PROBES; i++) {
+      final int index = (start + i) & mask;
+      if (slots.get(index) == null && slots.compareAndSet(index, null, tables)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,144 @@
+package datadog.opentracing;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * The tag and metric tables of a span, which are reused by new spans once the span's trace has been
+ * written. See {@link SpanPool}.
+ *
+ * <p>Only the tables are reused, never the span or its context: the application may still hold a
+ * reference to a written span. Each context records the generation of its tables when it is
+ * created, and ignores them once they have been recycled, so a late call through a stale reference
+ * cannot change the span which now uses them.
+ *
+ * <p>Writes to the tables, and recycling them, are guarded by the instance lock.
+ */
+final class SpanTables {
+  final TagMap tags = new TagMap();
+
+  /** Only allocated once the first metric is set */
+  volatile MetricMap metrics;
+
+  private volatile int generation = 0;
+
+  int getGeneration() {
+    return generation;
+  }
+
+  /**
+   * Drop the tags and metrics, which may hold on to large values, and detach the tables from the
+   * context using them.
+   */
+  synchronized void recycle() {
+    generation++;
+    tags.clear();
+    if (metrics != null) {
+      metrics.clear();
+    }
+  }
+
+  /**
+   * A read-only view of one of the tables, which is empty once they have been recycled. The
+   * generation is checked after every read, so a view held on to after the span was written never
+   * shows the tags or metrics of the span now using the tables.
+   */
+  <V> Map<String, V> view(final Map<String, V> table, final int generation) {
+    return new View<>(this, table, generation);
+  }
+
+  private static final class View<V> extends AbstractMap<String, V> {
+    private final SpanTables tables;
+    private final Map<String, V> table;
+    private final int generation;
+
+    View(final SpanTables tables, final Map<String, V> table, final int generation) {
+      this.tables = tables;
+      this.table = table;
+      this.generation = generation;
+    }
+
+    private boolean isCurrent() {
+      return tables.getGeneration() == generation;
+    }
+
+    @Override
+    public int size() {
+      final int size = table.size();
+      return isCurrent() ? size : 0;
+    }
+
+    @Override
+    public boolean containsKey(final Object key) {
+      return get(key) != null;
+    }
+
+    @Override
+    public V get(final Object key) {
+      final V value = table.get(key);
+      return isCurrent() ? value : null;
+    }
+
+    @Override
+    public Set<Entry<String, V>> entrySet() {
+      return new AbstractSet<Entry<String, V>>() {
+        @Override
+        public Iterator<Entry<String, V>> iterator() {
+          return new ViewIterator<>(View.this);
+        }
+
+        @Override
+        public int size() {
+          return View.this.size();
+        }
+      };
+    }
+  }
+
+  /** Stops as soon as the tables have been recycled, dropping the entry read at that point. */
+  private static final class ViewIterator<V> implements Iterator<Map.Entry<String, V>> {
+    private final View<V> view;
+    private final Iterator<Map.Entry<String, V>> entries;
+    private Map.Entry<String, V> nextEntry;
+
+    ViewIterator(final View<V> view) {
+      this.view = view;
+      entries = view.table.entrySet().iterator();
+      advance();
+    }
+
+    private void advance() {
+      nextEntry = null;
+      if (entries.hasNext()) {
+        final Map.Entry<String, V> entry = entries.next();
+        if (view.isCurrent()) {
+          nextEntry = entry;
+        }
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      return nextEntry != null;
+    }
+
+    @Override
+    public Map.Entry<String, V> next() {
+      if (nextEntry == null) {
+        throw new NoSuchElementException();
+      }
+      final Map.Entry<String, V> entry = nextEntry;
+      advance();
+      return entry;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
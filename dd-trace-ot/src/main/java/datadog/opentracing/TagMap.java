@@ -0,0 +1,193 @@
+package datadog.opentracing;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Map of span tags backed by a single open addressed array of interleaved keys and values.
+ *
+ * <p>Spans usually hold a handful of tags set by one thread, so this avoids the per entry nodes of
+ * a ConcurrentHashMap and only grows on demand. Tag names are mostly constants, so keys are
+ * compared by reference before falling back to equals.
+ *
+ * <p>Writes must be synchronized by the owning context. Reads don't lock: the table is replaced
+ * rather than rehashed in place, so readers always probe a consistent table even if they miss a
+ * concurrent write. A new key is written after its value with an ordered write, so readers finding
+ * the key also find the value. Like ConcurrentHashMap, null keys and values are not supported.
+ */
+final class TagMap extends AbstractMap<String, Object> {
+  /** Must be a power of two. */
+  private static final int INITIAL_CAPACITY = 16;
+
+  /** Keys at even indexes, each followed by its value. */
+  private volatile AtomicReferenceArray<Object> table =
+      new AtomicReferenceArray<>(INITIAL_CAPACITY * 2);
+
+  private volatile int size = 0;
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public boolean containsKey(final Object key) {
+    return get(key) != null;
+  }
+
+  @Override
+  public Object get(final Object key) {
+    if (key == null) {
+      return null;
+    }
+    final AtomicReferenceArray<Object> table = this.table;
+    final int index = indexOf(table, key);
+    return table.get(index) == null ? null : table.get(index + 1);
+  }
+
+  @Override
+  public Object put(final String key, final Object value) {
+    if (key == null || value == null) {
+      throw new NullPointerException();
+    }
+    AtomicReferenceArray<Object> table = this.table;
+    int index = indexOf(table, key);
+    if (table.get(index) != null) {
+      final Object previous = table.get(index + 1);
+      table.lazySet(index + 1, value);
+      return previous;
+    }
+    // Keep the load factor under 3/4 so that probes stay short.
+    if ((size + 1) * 8 > table.length() * 3) {
+      table = copy(table, null, table.length() * 2);
+      index = indexOf(table, key);
+      table.lazySet(index + 1, value);
+      table.lazySet(index, key);
+      this.table = table;
+    } else {
+      table.lazySet(index + 1, value);
+      table.lazySet(index, key);
+    }
+    size++;
+    return null;
+  }
+
+  @Override
+  public Object remove(final Object key) {
+    if (key == null) {
+      return null;
+    }
+    final AtomicReferenceArray<Object> table = this.table;
+    final int index = indexOf(table, key);
+    if (table.get(index) == null) {
+      return null;
+    }
+    // Removals are rare, rebuilding the table avoids shifting entries under concurrent readers.
+    this.table = copy(table, table.get(index), table.length());
+    size--;
+    return table.get(index + 1);
+  }
+
+  /** Keeps the current capacity, so that recycled spans don't need to grow their tags again. */
+  @Override
+  public void clear() {
+    final AtomicReferenceArray<Object> table = this.table;
+    for (int i = 0; i < table.length(); i++) {
+      table.lazySet(i, null);
+    }
+    size = 0;
+  }
+
+  @Override
+  public Set<Entry<String, Object>> entrySet() {
+    return new AbstractSet<Entry<String, Object>>() {
+      @Override
+      public Iterator<Entry<String, Object>> iterator() {
+        return new EntryIterator(table);
+      }
+
+      @Override
+      public int size() {
+        return size;
+      }
+    };
+  }
+
+  /** @return the index of the key, or of the empty slot where it would be inserted */
+  private static int indexOf(final AtomicReferenceArray<Object> table, final Object key) {
+    final int mask = table.length() - 1;
+    final int hash = key.hashCode();
+    // Shifting left keeps the index even.
+    int index = ((hash ^ (hash >>> 16)) << 1) & mask;
+    Object candidate;
+    while ((candidate = table.get(index)) != null) {
+      if (candidate == key || candidate.equals(key)) {
+        return index;
+      }
+      index = (index + 2) & mask;
+    }
+    return index;
+  }
+
+  /** The copy is published by the volatile write of the table field. */
+  private static AtomicReferenceArray<Object> copy(
+      final AtomicReferenceArray<Object> table, final Object skippedKey, final int length) {
+    final AtomicReferenceArray<Object> copy = new AtomicReferenceArray<>(length);
+    for (int i = 0; i < table.length(); i += 2) {
+      final Object key = table.get(i);
+      if (key != null && key != skippedKey) {
+        final int index = indexOf(copy, key);
+        copy.lazySet(index, key);
+        copy.lazySet(index + 1, table.get(i + 1));
+      }
+    }
+    return copy;
+  }
+
+  private static final class EntryIterator implements Iterator<Entry<String, Object>> {
+    private final AtomicReferenceArray<Object> table;
+    private int next = -2;
+    private Entry<String, Object> nextEntry;
+
+    EntryIterator(final AtomicReferenceArray<Object> table) {
+      this.table = table;
+      advance();
+    }
+
+    /** Reads each key before its value, see {@link TagMap#put}. */
+    private void advance() {
+      nextEntry = null;
+      while (nextEntry == null && (next += 2) < table.length()) {
+        final Object key = table.get(next);
+        final Object value = key == null ? null : table.get(next + 1);
+        if (value != null) {
+          nextEntry = new SimpleImmutableEntry<>((String) key, value);
+        }
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      return nextEntry != null;
+    }
+
+    @Override
+    public Entry<String, Object> next() {
+      if (nextEntry == null) {
+        throw new NoSuchElementException();
+      }
+      final Entry<String, Object> entry = nextEntry;
+      advance();
+      return entry;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
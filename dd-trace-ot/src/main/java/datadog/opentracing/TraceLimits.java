@@ -0,0 +1,154 @@
+package datadog.opentracing;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Caps on the finished spans held by pending traces, so that a single runaway trace can't exhaust
+ * the heap before its root span finishes.
+ *
+ * <p>Each trace is capped by span count and by an estimate of its size, and all traces of a tracer
+ * together are capped by span count. Once a cap is exceeded, the trace is truncated: the root span
+ * and error spans are still kept, along with one in {@link #SAMPLE_INTERVAL} of the other spans.
+ * The number of spans dropped is reported on the root span. A cap of zero or less is disabled.
+ *
+ * <p>A trace leaking a span is never written, so pending traces are also tracked with a weak
+ * reference each. A trace garbage collected before being written still adds to the trace count, and
+ * its spans are released then.
+ */
+final class TraceLimits {
+  static final String DROPPED_SPANS_METRIC = "_dd.trace.dropped_spans";
+  static final int SAMPLE_INTERVAL = 100;
+
+  /** Rough size of a serialized span without its tags, and of each tag besides its text. */
+  private static final int SPAN_SIZE = 256;
+
+  private static final int TAG_SIZE = 16;
+
+  private final int maxSpans;
+  private final int maxBytes;
+  private final int maxPendingSpans;
+  private final DDTracer tracer;
+
+  /** Spans held by all pending traces, only counted if capped. */
+  private final AtomicInteger pendingSpans = new AtomicInteger(0);
+
+  private final ReferenceQueue<PendingTrace> collectedTraces = new ReferenceQueue<>();
+  private final Set<TrackedTrace> trackedTraces =
+      Collections.newSetFromMap(new ConcurrentHashMap<TrackedTrace, Boolean>());
+
+  TraceLimits(
+      final int maxSpans, final int maxBytes, final int maxPendingSpans, final DDTracer tracer) {
+    this.maxSpans = maxSpans;
+    this.maxBytes = maxBytes;
+    this.maxPendingSpans = maxPendingSpans;
+    this.tracer = tracer;
+  }
+
+  boolean isEnabled() {
+    return maxSpans > 0 || maxBytes > 0 || maxPendingSpans > 0;
+  }
+
+  /** @return the estimated size of the span, or 0 if traces are not capped by size */
+  int estimateSize(final DDSpan span) {
+    if (maxBytes <= 0) {
+      return 0;
+    }
+    int size = SPAN_SIZE;
+    for (final Map.Entry<String, Object> tag : span.context().getTags().entrySet()) {
+      final Object value = tag.getValue();
+      size += TAG_SIZE + tag.getKey().length();
+      size += value instanceof String ? ((String) value).length() : 8;
+    }
+    return size + span.context().getMetrics().size() * TAG_SIZE;
+  }
+
+  /** @return true if adding a span of this size to the trace would exceed a cap */
+  boolean isExceeded(final int traceSpans, final long traceBytes, final int spanSize) {
+    return (maxSpans > 0 && traceSpans >= maxSpans)
+        || (maxBytes > 0 && traceBytes + spanSize > maxBytes)
+        || (maxPendingSpans > 0 && isPendingSpansExceeded());
+  }
+
+  private boolean isPendingSpansExceeded() {
+    if (pendingSpans.get() < maxPendingSpans) {
+      return false;
+    }
+    releaseCollectedTraces();
+    return pendingSpans.get() >= maxPendingSpans;
+  }
+
+  /**
+   * Track a new pending trace, until it is written.
+   *
+   * @param written set once the spans of the trace have been released
+   * @param spans the spans of the trace acquired and not released yet
+   * @return the reference to pass to {@link #untrack}
+   */
+  TrackedTrace track(
+      final PendingTrace trace, final AtomicBoolean written, final AtomicInteger spans) {
+    releaseCollectedTraces();
+    final TrackedTrace tracked = new TrackedTrace(trace, collectedTraces, written, spans);
+    trackedTraces.add(tracked);
+    return tracked;
+  }
+
+  /** Called once the trace has been written and its spans released. */
+  void untrack(final TrackedTrace tracked) {
+    trackedTraces.remove(tracked);
+    tracked.clear();
+  }
+
+  void acquire(final int spans) {
+    if (maxPendingSpans > 0) {
+      releaseCollectedTraces();
+      pendingSpans.addAndGet(spans);
+    }
+  }
+
+  void release(final int spans) {
+    if (maxPendingSpans > 0) {
+      pendingSpans.addAndGet(-spans);
+    }
+  }
+
+  int getPendingSpans() {
+    return pendingSpans.get();
+  }
+
+  private void releaseCollectedTraces() {
+    Reference<? extends PendingTrace> ref;
+    while ((ref = collectedTraces.poll()) != null) {
+      final TrackedTrace tracked = (TrackedTrace) ref;
+      trackedTraces.remove(tracked);
+      // A collected trace can't be written anymore, so this only races with other releases.
+      if (tracked.written.compareAndSet(false, true)) {
+        release(tracked.spans.get());
+        // Not reported, like the traces discarded by the SpanCleaner, but still counted.
+        tracer.incrementTraceCount();
+      }
+    }
+  }
+
+  static final class TrackedTrace extends WeakReference<PendingTrace> {
+    private final AtomicBoolean written;
+    private final AtomicInteger spans;
+
+    private TrackedTrace(
+        final PendingTrace trace,
+        final ReferenceQueue<PendingTrace> queue,
+        final AtomicBoolean written,
+        final AtomicInteger spans) {
+      super(trace, queue);
+      this.written = written;
+      this.spans = spans;
+    }
+  }
+}
@@ -1,13 +1,11 @@
 package datadog.opentracing.propagation;
 
-import static datadog.opentracing.propagation.HttpCodec.ZERO;
 import static datadog.opentracing.propagation.HttpCodec.validateUInt64BitsID;
 
 import datadog.opentracing.DDSpanContext;
 import datadog.trace.api.sampling.PrioritySampling;
 import io.opentracing.SpanContext;
 import io.opentracing.propagation.TextMap;
-import java.math.BigInteger;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
@@ -38,23 +36,13 @@ class B3HttpCodec {
 
     @Override
     public void inject(final DDSpanContext context, final TextMap carrier) {
-      try {
-        // TODO: should we better store ids as BigInteger in context to avoid parsing it twice.
-        final BigInteger traceId = new BigInteger(context.getTraceId());
-        final BigInteger spanId = new BigInteger(context.getSpanId());
-
-        carrier.put(TRACE_ID_KEY, traceId.toString(HEX_RADIX).toLowerCase());
-        carrier.put(SPAN_ID_KEY, spanId.toString(HEX_RADIX).toLowerCase());
+      carrier.put(TRACE_ID_KEY, Long.toHexString(context.getTraceIdAsLong()));
+      carrier.put(SPAN_ID_KEY, Long.toHexString(context.getSpanIdAsLong()));
 
-        if (context.lockSamplingPriority()) {
-          carrier.put(
-              SAMPLING_PRIORITY_KEY, convertSamplingPriority(context.getSamplingPriority()));
-        }
-        log.debug("{} - B3 parent context injected", context.getTraceId());
-      } catch (final NumberFormatException e) {
-        log.debug(
-            "Cannot parse context id(s): {} {}", context.getTraceId(), context.getSpanId(), e);
+      if (context.lockSamplingPriority()) {
+        carrier.put(SAMPLING_PRIORITY_KEY, convertSamplingPriority(context.getSamplingPriority()));
       }
+      log.debug("{} - B3 parent context injected", context.getTraceId());
     }
 
     private String convertSamplingPriority(final int samplingPriority) {
@@ -77,8 +65,8 @@ class B3HttpCodec {
     public SpanContext extract(final TextMap carrier) {
       try {
         Map<String, String> tags = Collections.emptyMap();
-        String traceId = ZERO;
-        String spanId = ZERO;
+        long traceId = 0;
+        long spanId = 0;
         int samplingPriority = PrioritySampling.UNSET;
 
         for (final Map.Entry<String, String> entry : carrier) {
@@ -94,7 +82,7 @@ class B3HttpCodec {
             final int length = value.length();
             if (length > 32) {
               log.debug("Header {} exceeded max length of 32: {}", TRACE_ID_KEY, value);
-              traceId = "0";
+              traceId = 0;
               continue;
             } else if (length > 16) {
               trimmedValue = value.substring(length - 16);
@@ -116,7 +104,7 @@ class B3HttpCodec {
           }
         }
 
-        if (!ZERO.equals(traceId)) {
+        if (traceId != 0) {
           final ExtractedContext context =
               new ExtractedContext(
                   traceId,
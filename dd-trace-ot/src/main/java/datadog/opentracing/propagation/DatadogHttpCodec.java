@@ -1,6 +1,5 @@
 package datadog.opentracing.propagation;
 
-import static datadog.opentracing.propagation.HttpCodec.ZERO;
 import static datadog.opentracing.propagation.HttpCodec.validateUInt64BitsID;
 
 import datadog.opentracing.DDSpanContext;
@@ -62,8 +61,8 @@ class DatadogHttpCodec {
       try {
         Map<String, String> baggage = Collections.emptyMap();
         Map<String, String> tags = Collections.emptyMap();
-        String traceId = ZERO;
-        String spanId = ZERO;
+        long traceId = 0;
+        long spanId = 0;
         int samplingPriority = PrioritySampling.UNSET;
         String origin = null;
 
@@ -98,7 +97,7 @@ class DatadogHttpCodec {
           }
         }
 
-        if (!ZERO.equals(traceId)) {
+        if (traceId != 0) {
           final ExtractedContext context =
               new ExtractedContext(traceId, spanId, samplingPriority, origin, baggage, tags);
           context.lockSamplingPriority();
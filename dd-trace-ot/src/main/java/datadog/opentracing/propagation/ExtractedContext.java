@@ -1,5 +1,6 @@
 package datadog.opentracing.propagation;
 
+import datadog.trace.common.util.UnsignedLongs;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -7,8 +8,8 @@ import java.util.concurrent.atomic.AtomicBoolean;
  * Propagated data resulting from calling tracer.extract with header data from an incoming request.
  */
 public class ExtractedContext extends TagContext {
-  private final String traceId;
-  private final String spanId;
+  private final long traceId;
+  private final long spanId;
   private final int samplingPriority;
   private final Map<String, String> baggage;
   private final AtomicBoolean samplingPriorityLocked = new AtomicBoolean(false);
@@ -20,6 +21,22 @@ public class ExtractedContext extends TagContext {
       final String origin,
       final Map<String, String> baggage,
       final Map<String, String> tags) {
+    this(
+        UnsignedLongs.parse(traceId, 10),
+        UnsignedLongs.parse(spanId, 10),
+        samplingPriority,
+        origin,
+        baggage,
+        tags);
+  }
+
+  public ExtractedContext(
+      final long traceId,
+      final long spanId,
+      final int samplingPriority,
+      final String origin,
+      final Map<String, String> baggage,
+      final Map<String, String> tags) {
     super(origin, tags);
     this.traceId = traceId;
     this.spanId = spanId;
@@ -37,10 +54,18 @@ public class ExtractedContext extends TagContext {
   }
 
   public String getTraceId() {
-    return traceId;
+    return UnsignedLongs.toString(traceId);
   }
 
   public String getSpanId() {
+    return UnsignedLongs.toString(spanId);
+  }
+
+  public long getTraceIdAsLong() {
+    return traceId;
+  }
+
+  public long getSpanIdAsLong() {
     return spanId;
   }
 
@@ -1,6 +1,5 @@
 package datadog.opentracing.propagation;
 
-import static datadog.opentracing.propagation.HttpCodec.ZERO;
 import static datadog.opentracing.propagation.HttpCodec.validateUInt64BitsID;
 
 import datadog.opentracing.DDSpanContext;
@@ -60,8 +59,8 @@ public class HaystackHttpCodec {
       try {
         Map<String, String> baggage = Collections.emptyMap();
         Map<String, String> tags = Collections.emptyMap();
-        String traceId = ZERO;
-        String spanId = ZERO;
+        long traceId = 0;
+        long spanId = 0;
         int samplingPriority = PrioritySampling.SAMPLER_KEEP;
         String origin = null; // Always null
 
@@ -92,7 +91,7 @@ public class HaystackHttpCodec {
           }
         }
 
-        if (!ZERO.equals(traceId)) {
+        if (traceId != 0) {
           final ExtractedContext context =
               new ExtractedContext(traceId, spanId, samplingPriority, origin, baggage, tags);
           context.lockSamplingPriority();
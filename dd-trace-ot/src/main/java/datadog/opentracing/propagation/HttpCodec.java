@@ -2,6 +2,7 @@ package datadog.opentracing.propagation;
 
 import datadog.opentracing.DDSpanContext;
 import datadog.trace.api.Config;
+import datadog.trace.common.util.UnsignedLongs;
 import io.opentracing.SpanContext;
 import io.opentracing.propagation.TextMap;
 import java.io.UnsupportedEncodingException;
@@ -18,7 +19,6 @@ public class HttpCodec {
 
   // uint 64 bits max value, 2^64 - 1
   static final BigInteger UINT64_MAX = new BigInteger("2").pow(64).subtract(BigInteger.ONE);
-  static final String ZERO = "0";
 
   public interface Injector {
 
@@ -115,19 +115,13 @@ public class HttpCodec {
    *
    * @param value the String that contains the ID
    * @param radix radix to use to parse the ID
-   * @return the ID in String format if it passes validations, "0" otherwise
+   * @return the ID as an unsigned long if it passes validations
    * @throws IllegalArgumentException if value cannot be converted to integer or doesn't conform to
    *     required boundaries
    */
-  static String validateUInt64BitsID(final String value, final int radix)
+  static long validateUInt64BitsID(final String value, final int radix)
       throws IllegalArgumentException {
-    final BigInteger parsedValue = new BigInteger(value, radix);
-    if (parsedValue.compareTo(BigInteger.ZERO) == -1 || parsedValue.compareTo(UINT64_MAX) == 1) {
-      throw new IllegalArgumentException(
-          "ID out of range, must be between 0 and 2^64-1, got: " + value);
-    }
-    // We use decimals
-    return parsedValue.toString();
+    return UnsignedLongs.parse(value, radix);
   }
 
   /** URL encode value */
@@ -5,15 +5,45 @@ import datadog.trace.context.ScopeListener;
 import io.opentracing.Scope;
 import io.opentracing.ScopeManager;
 import io.opentracing.Span;
-import java.util.Deque;
-import java.util.List;
-import java.util.concurrent.ConcurrentLinkedDeque;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import lombok.extern.slf4j.Slf4j;
 
+@Slf4j
 public class ContextualScopeManager implements ScopeManager {
-  static final ThreadLocal<Scope> tlsScope = new ThreadLocal<>();
-  final Deque<ScopeContext> scopeContexts = new ConcurrentLinkedDeque<>();
-  final List<ScopeListener> scopeListeners = new CopyOnWriteArrayList<>();
+  /** Only set on threads which activated a scope, so that looking up the active one is free. */
+  static final ThreadLocal<ScopeStack> tlsScope = new ThreadLocal<>();
+
+  /**
+   * Stacks of the virtual threads with an active scope, if virtual threads are enabled. Kept out of
+   * thread locals so that virtual threads don't get a ThreadLocalMap each.
+   */
+  static final ConcurrentMap<Thread, ScopeStack> virtualThreadScopes = new ConcurrentHashMap<>();
+
+  /** Size of virtualThreadScopes above which threads which ended with a scope open are purged. */
+  private static final int MIN_PURGE_THRESHOLD = 1024;
+
+  private static volatile int purgeThreshold = MIN_PURGE_THRESHOLD;
+
+  /** Class of virtual threads, null if the JVM doesn't have them. */
+  private static final Class<?> VIRTUAL_THREAD_CLASS = findVirtualThreadClass();
+
+  // Arrays replaced on write, so that activations iterate them without allocating.
+  private volatile ScopeContext[] scopeContexts = new ScopeContext[0];
+  private volatile ScopeListener[] scopeListeners = new ScopeListener[0];
+
+  /** Keep compact stacks out of thread locals on virtual threads, see {@link ScopeStack}. */
+  private final boolean virtualThreadsEnabled;
+
+  public ContextualScopeManager() {
+    this(false);
+  }
+
+  public ContextualScopeManager(final boolean virtualThreadsEnabled) {
+    this.virtualThreadsEnabled = virtualThreadsEnabled;
+  }
 
   @Override
   public Scope activate(final Span span, final boolean finishOnClose) {
@@ -36,16 +66,98 @@ public class ContextualScopeManager implements ScopeManager {
         return csm.active();
       }
     }
-    return tlsScope.get();
+    final Thread thread = Thread.currentThread();
+    final ScopeStack stack =
+        isVirtualThread(thread) ? virtualThreadScopes.get(thread) : tlsScope.get();
+    return stack == null ? null : stack.active();
   }
 
   @Deprecated
-  public void addScopeContext(final ScopeContext context) {
-    scopeContexts.addFirst(context);
+  public synchronized void addScopeContext(final ScopeContext context) {
+    final ScopeContext[] contexts = new ScopeContext[scopeContexts.length + 1];
+    contexts[0] = context;
+    System.arraycopy(scopeContexts, 0, contexts, 1, scopeContexts.length);
+    scopeContexts = contexts;
   }
 
   /** Attach a listener to scope activation events */
-  public void addScopeListener(final ScopeListener listener) {
-    scopeListeners.add(listener);
+  public synchronized void addScopeListener(final ScopeListener listener) {
+    final ScopeListener[] listeners = Arrays.copyOf(scopeListeners, scopeListeners.length + 1);
+    listeners[scopeListeners.length] = listener;
+    scopeListeners = listeners;
+  }
+
+  /** Push the scope on the current thread's stack and notify listeners. */
+  ScopeStack activated(final Scope scope) {
+    final Thread thread = Thread.currentThread();
+    ScopeStack stack;
+    if (isVirtualThread(thread)) {
+      stack = virtualThreadScopes.get(thread);
+      if (stack == null) {
+        stack = new ScopeStack(true);
+        virtualThreadScopes.put(thread, stack);
+        if (virtualThreadScopes.size() > purgeThreshold) {
+          purgeEndedThreads();
+        }
+      }
+    } else {
+      stack = tlsScope.get();
+      if (stack == null) {
+        stack = new ScopeStack(false);
+        tlsScope.set(stack);
+      }
+    }
+    stack.push(scope);
+    afterScopeActivated();
+    return stack;
+  }
+
+  /** Pop the scope from the stack it was pushed on, if it's still on top, and notify listeners. */
+  void closed(final Scope scope, final ScopeStack stack) {
+    final ScopeListener[] listeners = scopeListeners;
+    for (final ScopeListener listener : listeners) {
+      listener.afterScopeClosed();
+    }
+    if (stack.pop(scope)) {
+      if (stack.active() == null) {
+        // Popped by the owning thread, so this is still its stack.
+        if (stack.compact) {
+          virtualThreadScopes.remove(Thread.currentThread());
+        }
+      } else if (listeners.length > 0) {
+        afterScopeActivated();
+      }
+    } else {
+      log.debug("Tried to close {} scope when {} is on top. Ignoring!", scope, active());
+    }
+  }
+
+  private boolean isVirtualThread(final Thread thread) {
+    return virtualThreadsEnabled && thread.getClass() == VIRTUAL_THREAD_CLASS;
+  }
+
+  /** Drops the stacks of threads which ended with a scope open, so that they can be collected. */
+  private static void purgeEndedThreads() {
+    final Iterator<Thread> threads = virtualThreadScopes.keySet().iterator();
+    while (threads.hasNext()) {
+      if (!threads.next().isAlive()) {
+        threads.remove();
+      }
+    }
+    purgeThreshold = Math.max(MIN_PURGE_THRESHOLD, 2 * virtualThreadScopes.size());
+  }
+
+  private static Class<?> findVirtualThreadClass() {
+    try {
+      return Class.forName("java.lang.VirtualThread");
+    } catch (final Throwable e) {
+      return null;
+    }
+  }
+
+  private void afterScopeActivated() {
+    for (final ScopeListener listener : scopeListeners) {
+      listener.afterScopeActivated();
+    }
   }
 }
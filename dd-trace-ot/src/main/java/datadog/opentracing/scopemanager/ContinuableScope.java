@@ -3,17 +3,19 @@ package datadog.opentracing.scopemanager;
 import datadog.opentracing.DDSpan;
 import datadog.opentracing.DDSpanContext;
 import datadog.opentracing.PendingTrace;
-import datadog.trace.context.ScopeListener;
 import datadog.trace.context.TraceScope;
 import io.opentracing.Scope;
 import java.io.Closeable;
 import java.lang.ref.WeakReference;
-import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 import lombok.extern.slf4j.Slf4j;
 
 @Slf4j
 public class ContinuableScope implements Scope, TraceScope {
+  private static final AtomicIntegerFieldUpdater<Continuation> CONTINUATION_USED =
+      AtomicIntegerFieldUpdater.newUpdater(Continuation.class, "used");
+
   /** ScopeManager holding the thread-local to this scope. */
   private final ContextualScopeManager scopeManager;
   /**
@@ -24,12 +26,12 @@ public class ContinuableScope implements Scope, TraceScope {
   private final boolean finishOnClose;
   /** Count of open scope and continuations */
   private final AtomicInteger openCount;
-  /** Scope to placed in the thread local after close. May be null. */
-  private final Scope toRestore;
+  /** Stack of the thread which activated this scope. */
+  private final ScopeStack scopeStack;
   /** Continuation that created this scope. May be null. */
   private final Continuation continuation;
   /** Flag to propagate this scope across async boundaries. */
-  private final AtomicBoolean isAsyncPropagating = new AtomicBoolean(false);
+  private volatile boolean isAsyncPropagating = false;
 
   ContinuableScope(
       final ContextualScopeManager scopeManager,
@@ -50,11 +52,7 @@ public class ContinuableScope implements Scope, TraceScope {
     this.continuation = continuation;
     this.spanUnderScope = spanUnderScope;
     this.finishOnClose = finishOnClose;
-    toRestore = scopeManager.tlsScope.get();
-    scopeManager.tlsScope.set(this);
-    for (final ScopeListener listener : scopeManager.scopeListeners) {
-      listener.afterScopeActivated();
-    }
+    scopeStack = scopeManager.activated(this);
   }
 
   @Override
@@ -67,23 +65,7 @@ public class ContinuableScope implements Scope, TraceScope {
       spanUnderScope.finish();
     }
 
-    for (final ScopeListener listener : scopeManager.scopeListeners) {
-      listener.afterScopeClosed();
-    }
-
-    if (scopeManager.tlsScope.get() == this) {
-      scopeManager.tlsScope.set(toRestore);
-      if (toRestore != null) {
-        for (final ScopeListener listener : scopeManager.scopeListeners) {
-          listener.afterScopeActivated();
-        }
-      }
-    } else {
-      log.debug(
-          "Tried to close {} scope when {} is on top. Ignoring!",
-          this,
-          scopeManager.tlsScope.get());
-    }
+    scopeManager.closed(this, scopeStack);
   }
 
   @Override
@@ -93,12 +75,12 @@ public class ContinuableScope implements Scope, TraceScope {
 
   @Override
   public boolean isAsyncPropagating() {
-    return isAsyncPropagating.get();
+    return isAsyncPropagating;
   }
 
   @Override
   public void setAsyncPropagation(final boolean value) {
-    isAsyncPropagating.set(value);
+    isAsyncPropagating = value;
   }
 
   /**
@@ -121,9 +103,15 @@ public class ContinuableScope implements Scope, TraceScope {
   }
 
   public class Continuation implements Closeable, TraceScope.Continuation {
+    /** Set to 1 while the continuation is counted by its PendingTrace. */
+    public volatile int registered;
+
+    /** Only set if the PendingTrace is sampled for leak detection. */
     public WeakReference<Continuation> ref;
 
-    private final AtomicBoolean used = new AtomicBoolean(false);
+    /** Set to 1 once activated or closed. */
+    volatile int used;
+
     private final PendingTrace trace;
 
     private Continuation() {
@@ -135,7 +123,7 @@ public class ContinuableScope implements Scope, TraceScope {
 
     @Override
     public ContinuableScope activate() {
-      if (used.compareAndSet(false, true)) {
+      if (CONTINUATION_USED.compareAndSet(this, 0, 1)) {
         final ContinuableScope scope =
             new ContinuableScope(scopeManager, openCount, this, spanUnderScope, finishOnClose);
         log.debug("Activating continuation {}, scope: {}", this, scope);
@@ -155,7 +143,7 @@ public class ContinuableScope implements Scope, TraceScope {
 
     @Override
     public void close(final boolean closeContinuationScope) {
-      if (used.compareAndSet(false, true)) {
+      if (CONTINUATION_USED.compareAndSet(this, 0, 1)) {
         trace.cancelContinuation(this);
         if (closeContinuationScope) {
           ContinuableScope.this.close();
@@ -0,0 +1,53 @@
+package datadog.opentracing.scopemanager;
+
+import io.opentracing.Scope;
+import java.util.Arrays;
+
+/**
+ * Scopes activated on a thread, the active one on top.
+ *
+ * <p>Each scope keeps a reference to the stack it was pushed on, so that closing it doesn't look up
+ * the thread local again. Only the owning thread may change the stack.
+ *
+ * <p>Compact stacks are meant for virtual threads, which may be counted by the million and rarely
+ * nest many scopes: they start smaller and are dropped by the scope manager once empty.
+ */
+final class ScopeStack {
+  private static final int INITIAL_CAPACITY = 16;
+  private static final int COMPACT_CAPACITY = 2;
+
+  private final Thread owner = Thread.currentThread();
+  final boolean compact;
+  private Scope[] scopes;
+  private int size = 0;
+
+  ScopeStack(final boolean compact) {
+    this.compact = compact;
+    scopes = new Scope[compact ? COMPACT_CAPACITY : INITIAL_CAPACITY];
+  }
+
+  /** @return the active scope, or null if there is none */
+  Scope active() {
+    return size == 0 ? null : scopes[size - 1];
+  }
+
+  void push(final Scope scope) {
+    if (size == scopes.length) {
+      scopes = Arrays.copyOf(scopes, size * 2);
+    }
+    scopes[size++] = scope;
+  }
+
+  /**
+   * Remove the scope if it is the active one, and the current thread owns this stack.
+   *
+   * @return false if the scope was not on top or is closed by another thread
+   */
+  boolean pop(final Scope scope) {
+    if (size == 0 || scopes[size - 1] != scope || Thread.currentThread() != owner) {
+      return false;
+    }
+    scopes[--size] = null;
+    return true;
+  }
+}
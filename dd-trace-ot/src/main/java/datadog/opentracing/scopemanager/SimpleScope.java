@@ -1,6 +1,5 @@
 package datadog.opentracing.scopemanager;
 
-import datadog.trace.context.ScopeListener;
 import io.opentracing.Scope;
 import io.opentracing.Span;
 
@@ -9,7 +8,7 @@ public class SimpleScope implements Scope {
   private final ContextualScopeManager scopeManager;
   private final Span spanUnderScope;
   private final boolean finishOnClose;
-  private final Scope toRestore;
+  private final ScopeStack scopeStack;
 
   public SimpleScope(
       final ContextualScopeManager scopeManager,
@@ -19,11 +18,7 @@ public class SimpleScope implements Scope {
     this.scopeManager = scopeManager;
     this.spanUnderScope = spanUnderScope;
     this.finishOnClose = finishOnClose;
-    toRestore = scopeManager.tlsScope.get();
-    scopeManager.tlsScope.set(this);
-    for (final ScopeListener listener : scopeManager.scopeListeners) {
-      listener.afterScopeActivated();
-    }
+    scopeStack = scopeManager.activated(this);
   }
 
   @Override
@@ -31,18 +26,7 @@ public class SimpleScope implements Scope {
     if (finishOnClose) {
       spanUnderScope.finish();
     }
-    for (final ScopeListener listener : scopeManager.scopeListeners) {
-      listener.afterScopeClosed();
-    }
-
-    if (scopeManager.tlsScope.get() == this) {
-      scopeManager.tlsScope.set(toRestore);
-      if (toRestore != null) {
-        for (final ScopeListener listener : scopeManager.scopeListeners) {
-          listener.afterScopeActivated();
-        }
-      }
-    }
+    scopeManager.closed(this, scopeStack);
   }
 
   @Override
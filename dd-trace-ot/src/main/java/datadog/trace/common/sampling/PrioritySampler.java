@@ -0,0 +1,10 @@
+package datadog.trace.common.sampling;
+
+import datadog.opentracing.DDSpan;
+
+/** A sampler which also sets the sampling priority of new traces. */
+public interface PrioritySampler extends Sampler {
+
+  /** If span is a root span, set the span context samplingPriority to keep or drop */
+  void initializeSamplingPriority(DDSpan span);
+}
@@ -1,33 +1,38 @@
 package datadog.trace.common.sampling;
 
-import static java.util.Collections.singletonMap;
-import static java.util.Collections.unmodifiableMap;
-
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.NumericNode;
 import datadog.opentracing.DDSpan;
 import datadog.trace.api.sampling.PrioritySampling;
 import datadog.trace.common.writer.DDApi.ResponseListener;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
-import java.util.concurrent.ThreadLocalRandom;
 import lombok.extern.slf4j.Slf4j;
 
 /**
  * A rate sampler which maintains different sample rates per service+env name.
  *
  * <p>The configuration of (serviceName,env)->rate is configured by the core agent.
+ *
+ * <p>Rates are looked up by service then env, so that no key is built for each root span. The
+ * decision is derived from the trace id, so that services sampling a trace at the same rate agree
+ * on it without coordination.
  */
 @Slf4j
-public class RateByServiceSampler implements Sampler, ResponseListener {
+public class RateByServiceSampler implements PrioritySampler, ResponseListener {
   /** Key for setting the default/baseline rate */
   private static final String DEFAULT_KEY = "service:,env:";
 
   private static final double DEFAULT_RATE = 1.0;
 
-  private volatile Map<String, RateSampler> serviceRates =
-      unmodifiableMap(singletonMap(DEFAULT_KEY, new RateSampler(DEFAULT_RATE)));
+  private static final String SERVICE_PREFIX = "service:";
+  private static final String ENV_PREFIX = ",env:";
+
+  private volatile ServiceRates serviceRates =
+      new ServiceRates(
+          Collections.<String, Map<String, RateSampler>>emptyMap(), new RateSampler(DEFAULT_RATE));
 
   @Override
   public boolean sample(final DDSpan span) {
@@ -36,7 +41,7 @@ public class RateByServiceSampler implements Sampler, ResponseListener {
     return true;
   }
 
-  /** If span is a root span, set the span context samplingPriority to keep or drop */
+  @Override
   public void initializeSamplingPriority(final DDSpan span) {
     if (span.isRootSpan()) {
       // Run the priority sampler on the new span
@@ -49,15 +54,7 @@ public class RateByServiceSampler implements Sampler, ResponseListener {
   }
 
   private void setSamplingPriorityOnSpanContext(final DDSpan span) {
-    final String serviceName = span.getServiceName();
-    final String env = getSpanEnv(span);
-    final String key = "service:" + serviceName + ",env:" + env;
-
-    final Map<String, RateSampler> rates = serviceRates;
-    RateSampler sampler = serviceRates.get(key);
-    if (sampler == null) {
-      sampler = rates.get(DEFAULT_KEY);
-    }
+    final RateSampler sampler = serviceRates.get(span.getServiceName(), getSpanEnv(span));
 
     if (sampler.sample(span)) {
       span.setSamplingPriority(PrioritySampling.SAMPLER_KEEP);
@@ -67,7 +64,8 @@ public class RateByServiceSampler implements Sampler, ResponseListener {
   }
 
   private static String getSpanEnv(final DDSpan span) {
-    return null == span.getTags().get("env") ? "" : String.valueOf(span.getTags().get("env"));
+    final Object env = span.context().getTags().get("env");
+    return null == env ? "" : String.valueOf(env);
   }
 
   @Override
@@ -75,14 +73,31 @@ public class RateByServiceSampler implements Sampler, ResponseListener {
     final JsonNode newServiceRates = responseJson.get("rate_by_service");
     if (null != newServiceRates) {
       log.debug("Update service sampler rates: {} -> {}", endpoint, responseJson);
-      final Map<String, RateSampler> updatedServiceRates = new HashMap<>();
+      final Map<String, Map<String, RateSampler>> updatedServiceRates = new HashMap<>();
+      RateSampler defaultSampler = null;
       final Iterator<String> itr = newServiceRates.fieldNames();
       while (itr.hasNext()) {
         final String key = itr.next();
         final JsonNode value = newServiceRates.get(key);
         try {
-          if (value instanceof NumericNode) {
-            updatedServiceRates.put(key, new RateSampler(value.doubleValue()));
+          final int envIndex = key.indexOf(ENV_PREFIX);
+          if (!key.startsWith(SERVICE_PREFIX) || envIndex < 0) {
+            log.debug("Unable to parse new service rate key {} -> {}", key, value);
+          } else if (value instanceof NumericNode) {
+            final RateSampler sampler = new RateSampler(value.doubleValue());
+            if (DEFAULT_KEY.equals(key)) {
+              defaultSampler = sampler;
+            } else {
+              // Interned, since service names are mostly constants which then match by reference.
+              final String service = key.substring(SERVICE_PREFIX.length(), envIndex).intern();
+              final String env = key.substring(envIndex + ENV_PREFIX.length()).intern();
+              Map<String, RateSampler> envRates = updatedServiceRates.get(service);
+              if (envRates == null) {
+                envRates = new HashMap<>();
+                updatedServiceRates.put(service, envRates);
+              }
+              envRates.put(env, sampler);
+            }
           } else {
             log.debug("Unable to parse new service rate {} -> {}", key, value);
           }
@@ -90,24 +105,54 @@ public class RateByServiceSampler implements Sampler, ResponseListener {
           log.debug("Unable to parse new service rate {} -> {}", key, value);
         }
       }
-      if (!updatedServiceRates.containsKey(DEFAULT_KEY)) {
-        updatedServiceRates.put(DEFAULT_KEY, new RateSampler(DEFAULT_RATE));
+      if (defaultSampler == null) {
+        defaultSampler = new RateSampler(DEFAULT_RATE);
       }
-      serviceRates = unmodifiableMap(updatedServiceRates);
+      serviceRates = new ServiceRates(updatedServiceRates, defaultSampler);
+    }
+  }
+
+  /** Immutable once published, replaced as a whole when the agent sends new rates. */
+  private static final class ServiceRates {
+    private final Map<String, Map<String, RateSampler>> byServiceAndEnv;
+    private final RateSampler defaultSampler;
+
+    private ServiceRates(
+        final Map<String, Map<String, RateSampler>> byServiceAndEnv,
+        final RateSampler defaultSampler) {
+      this.byServiceAndEnv = byServiceAndEnv;
+      this.defaultSampler = defaultSampler;
+    }
+
+    private RateSampler get(final String service, final String env) {
+      final Map<String, RateSampler> envRates = byServiceAndEnv.get(service);
+      if (envRates != null) {
+        final RateSampler sampler = envRates.get(env);
+        if (sampler != null) {
+          return sampler;
+        }
+      }
+      return defaultSampler;
     }
   }
 
   /**
    * This sampler sample the traces at a predefined rate.
    *
-   * <p>Keep (100 * `sample_rate`)% of the traces. It samples randomly, its main purpose is to
-   * reduce the integration footprint.
+   * <p>Keep (100 * `sample_rate`)% of the traces. The trace id is multiplied by a large prime, as
+   * the agent does, and the trace is kept if the result falls in the kept fraction of the unsigned
+   * 64 bit range.
    */
   private static class RateSampler extends AbstractSampler {
+    private static final long KNUTH_FACTOR = 1111111111111111111L;
+    private static final double TWO_POW_63 = 9.223372036854775808E18;
 
     /** The sample rate used */
     private final double sampleRate;
 
+    /** Unsigned upper bound of the kept hashes, unused if all traces are kept */
+    private final long threshold;
+
     /**
      * Build an instance of the sampler. The Sample rate is fixed for each instance.
      *
@@ -123,16 +168,26 @@ public class RateByServiceSampler implements Sampler, ResponseListener {
       }
 
       this.sampleRate = sampleRate;
+      // Scaled to 2^63 to stay in the range of a signed long, then shifted to cover 2^64.
+      threshold = ((long) (sampleRate * TWO_POW_63)) << 1;
       log.debug("Initializing the RateSampler, sampleRate: {} %", this.sampleRate * 100);
     }
 
     @Override
     public boolean doSample(final DDSpan span) {
-      final boolean sample = ThreadLocalRandom.current().nextFloat() <= sampleRate;
+      final boolean sample = sample(span.context().getTraceIdAsLong());
       log.debug("{} - Span is sampled: {}", span, sample);
       return sample;
     }
 
+    private boolean sample(final long traceId) {
+      if (sampleRate >= 1) {
+        return true;
+      }
+      // Unsigned comparison, offsetting both sides by the minimum value.
+      return (traceId * KNUTH_FACTOR) + Long.MIN_VALUE < threshold + Long.MIN_VALUE;
+    }
+
     public double getSampleRate() {
       return sampleRate;
     }
@@ -0,0 +1,183 @@
+package datadog.trace.common.sampling;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import datadog.opentracing.DDSpan;
+import datadog.opentracing.PendingTrace;
+import datadog.trace.api.sampling.PrioritySampling;
+import datadog.trace.common.writer.DDApi.ResponseListener;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Bounds the number of traces written per second, globally and per endpoint, on top of another
+ * sampler.
+ *
+ * <p>Endpoints are identified by the service and resource names of the trace's root span. Error
+ * traces and traces whose root span is slow get priority: they are not limited per endpoint and may
+ * use the last tenth of the global budget, which other traces leave untouched. Traces of endpoints
+ * beyond the first {@link #MAX_ENDPOINTS} share a single budget, so that high cardinality resource
+ * names can't grow the buckets without bounds.
+ *
+ * <p>The decision is taken once per trace, when its first part is written, and then applies to the
+ * partial traces flushed afterwards. Until the root span finishes, its duration so far tells if it
+ * is slow. Traces kept by the user, and traces whose sampling priority was already propagated to
+ * other services as kept, are never limited and don't use tokens. Neither do traces already marked
+ * dropped.
+ *
+ * <p>With priority sampling, the agent computes its stats from every trace it receives, including
+ * dropped ones. Traces beyond the limit are then still written, but marked dropped.
+ */
+@Slf4j
+public class RateLimitingSampler implements PrioritySampler, ResponseListener {
+  static final int MAX_ENDPOINTS = 1000;
+
+  private final Sampler delegate;
+  private final boolean prioritySampling;
+  private final TokenBucket globalBucket;
+  private final int reservedTokens;
+  private final int tracesPerSecondPerEndpoint;
+  private final long slowThresholdNanos;
+
+  private final ConcurrentMap<String, ConcurrentMap<String, TokenBucket>> endpointBuckets =
+      new ConcurrentHashMap<>();
+  private final AtomicInteger endpointCount = new AtomicInteger(0);
+  private final TokenBucket otherEndpointsBucket;
+
+  /**
+   * @param delegate the sampler deciding first whether traces are written
+   * @param tracesPerSecond global limit, disabled if zero or less
+   * @param tracesPerSecondPerEndpoint per endpoint limit, disabled if zero or less
+   * @param slowThresholdMillis root span duration from which a trace gets priority, disabled if
+   *     zero or less
+   */
+  public RateLimitingSampler(
+      final Sampler delegate,
+      final int tracesPerSecond,
+      final int tracesPerSecondPerEndpoint,
+      final int slowThresholdMillis) {
+    this.delegate = delegate;
+    prioritySampling = delegate instanceof PrioritySampler;
+    globalBucket = tracesPerSecond > 0 ? new TokenBucket(tracesPerSecond) : null;
+    reservedTokens = tracesPerSecond / 10;
+    this.tracesPerSecondPerEndpoint = tracesPerSecondPerEndpoint;
+    otherEndpointsBucket =
+        tracesPerSecondPerEndpoint > 0 ? new TokenBucket(tracesPerSecondPerEndpoint) : null;
+    slowThresholdNanos = TimeUnit.MILLISECONDS.toNanos(slowThresholdMillis);
+  }
+
+  @Override
+  public boolean sample(final DDSpan span) {
+    if (!delegate.sample(span)) {
+      return false;
+    }
+    final PendingTrace trace = span.context().getTrace();
+    Boolean decision = trace.getRateLimitDecision();
+    if (decision == null) {
+      DDSpan rootSpan = trace.getRootSpan();
+      if (rootSpan == null) {
+        rootSpan = span;
+      }
+      decision = trace.decideRateLimit(isKept(span, rootSpan, trace));
+    }
+    return decision || prioritySampling;
+  }
+
+  private boolean isKept(final DDSpan span, final DDSpan rootSpan, final PendingTrace trace) {
+    final int samplingPriority = rootSpan.context().getSamplingPriority();
+    if (samplingPriority >= PrioritySampling.USER_KEEP
+        || (samplingPriority == PrioritySampling.SAMPLER_KEEP
+            && rootSpan.context().isSamplingPriorityLocked())) {
+      return true;
+    }
+    if (samplingPriority != PrioritySampling.UNSET && samplingPriority <= 0) {
+      // Already dropped, only sent for the agent's stats.
+      return true;
+    }
+    final boolean priority = rootSpan.context().getErrorFlag() || isSlow(rootSpan, trace);
+    if (!priority && otherEndpointsBucket != null) {
+      final TokenBucket endpointBucket =
+          getEndpointBucket(rootSpan.getServiceName(), rootSpan.getResourceName());
+      if (!endpointBucket.tryAcquire()) {
+        log.debug("{} - Trace dropped by the endpoint rate limit", span);
+        return limit(rootSpan);
+      }
+    }
+    if (globalBucket != null
+        && !globalBucket.tryAcquire(priority ? 0 : reservedTokens, System.nanoTime())) {
+      log.debug("{} - Trace dropped by the global rate limit", span);
+      return limit(rootSpan);
+    }
+    return true;
+  }
+
+  /** @return false, once the trace is marked dropped if priority sampling still writes it */
+  private boolean limit(final DDSpan rootSpan) {
+    if (prioritySampling) {
+      rootSpan.context().setSamplingPriority(PrioritySampling.SAMPLER_DROP);
+    }
+    return false;
+  }
+
+  private boolean isSlow(final DDSpan rootSpan, final PendingTrace trace) {
+    if (slowThresholdNanos <= 0) {
+      return false;
+    }
+    final long durationNano =
+        rootSpan.isFinished()
+            ? rootSpan.getDurationNano()
+            : trace.getCurrentTimeNano() - rootSpan.getStartTime();
+    return durationNano >= slowThresholdNanos;
+  }
+
+  private TokenBucket getEndpointBucket(String service, String resource) {
+    // Concurrent maps don't accept null keys.
+    service = service == null ? "" : service;
+    resource = resource == null ? "" : resource;
+    ConcurrentMap<String, TokenBucket> resourceBuckets = endpointBuckets.get(service);
+    TokenBucket bucket = resourceBuckets == null ? null : resourceBuckets.get(resource);
+    if (bucket != null) {
+      return bucket;
+    }
+    if (endpointCount.incrementAndGet() > MAX_ENDPOINTS) {
+      endpointCount.decrementAndGet();
+      return otherEndpointsBucket;
+    }
+    if (resourceBuckets == null) {
+      final ConcurrentMap<String, TokenBucket> newBuckets = new ConcurrentHashMap<>();
+      resourceBuckets = endpointBuckets.putIfAbsent(service, newBuckets);
+      if (resourceBuckets == null) {
+        resourceBuckets = newBuckets;
+      }
+    }
+    final TokenBucket newBucket = new TokenBucket(tracesPerSecondPerEndpoint);
+    bucket = resourceBuckets.putIfAbsent(resource, newBucket);
+    if (bucket == null) {
+      return newBucket;
+    }
+    // Another thread added the endpoint first.
+    endpointCount.decrementAndGet();
+    return bucket;
+  }
+
+  @Override
+  public void initializeSamplingPriority(final DDSpan span) {
+    if (delegate instanceof PrioritySampler) {
+      ((PrioritySampler) delegate).initializeSamplingPriority(span);
+    }
+  }
+
+  @Override
+  public void onResponse(final String endpoint, final JsonNode responseJson) {
+    if (delegate instanceof ResponseListener) {
+      ((ResponseListener) delegate).onResponse(endpoint, responseJson);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "RateLimitingSampler { delegate=" + delegate + " }";
+  }
+}
@@ -17,13 +17,21 @@ public interface Sampler {
 
   final class Builder {
     public static Sampler forConfig(final Config config) {
-      final Sampler sampler;
+      Sampler sampler;
       if (config != null) {
         if (config.isPrioritySamplingEnabled()) {
           sampler = new RateByServiceSampler();
         } else {
           sampler = new AllSampler();
         }
+        if (config.getTraceRateLimit() > 0 || config.getTraceRateLimitPerEndpoint() > 0) {
+          sampler =
+              new RateLimitingSampler(
+                  sampler,
+                  config.getTraceRateLimit(),
+                  config.getTraceRateLimitPerEndpoint(),
+                  config.getTraceRateLimitSlowThresholdMs());
+        }
       } else {
         sampler = new AllSampler();
       }
@@ -0,0 +1,47 @@
+package datadog.trace.common.sampling;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free token bucket refilled at a fixed rate and holding at most one second of tokens.
+ *
+ * <p>Instead of a token count, the bucket keeps the time at which it will be full again, and a
+ * token is taken by pushing that time forward with a single compare and set.
+ */
+final class TokenBucket {
+  private final long nanosPerToken;
+  private final long capacityNanos;
+
+  /** Time at which the bucket will be full, in the past if it already is. */
+  private final AtomicLong fullAt;
+
+  /** @param tokensPerSecond greater than zero */
+  TokenBucket(final int tokensPerSecond) {
+    nanosPerToken = TimeUnit.SECONDS.toNanos(1) / tokensPerSecond;
+    capacityNanos = nanosPerToken * tokensPerSecond;
+    fullAt = new AtomicLong(System.nanoTime());
+  }
+
+  boolean tryAcquire() {
+    return tryAcquire(0, System.nanoTime());
+  }
+
+  /**
+   * @param reservedTokens tokens which must be left in the bucket after this one is taken
+   * @return true if a token was taken
+   */
+  boolean tryAcquire(final int reservedTokens, final long now) {
+    final long maxDebtNanos = capacityNanos - (reservedTokens + 1) * nanosPerToken;
+    while (true) {
+      final long current = fullAt.get();
+      final long start = current - now < 0 ? now : current;
+      if (start - now > maxDebtNanos) {
+        return false;
+      }
+      if (fullAt.compareAndSet(current, start + nanosPerToken)) {
+        return true;
+      }
+    }
+  }
+}
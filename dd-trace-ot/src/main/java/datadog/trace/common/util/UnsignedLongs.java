@@ -0,0 +1,72 @@
+package datadog.trace.common.util;
+
+/**
+ * Conversions of unsigned 64 bit integers, such as trace and span ids, held in the bits of a long.
+ * Values greater than {@link Long#MAX_VALUE} are negative longs.
+ */
+public final class UnsignedLongs {
+  private static final int MAX_RADIX = 16;
+  /** Indexed by radix, the largest value which can be multiplied by the radix without overflow. */
+  private static final long[] MAX_BEFORE_MULTIPLY = new long[MAX_RADIX + 1];
+  /** Indexed by radix, the largest digit which can be added to that value without overflow. */
+  private static final int[] MAX_DIGIT_AFTER_MULTIPLY = new int[MAX_RADIX + 1];
+
+  static {
+    for (int radix = 2; radix <= MAX_RADIX; radix++) {
+      // Unsigned division of 2^64 - 1 by the radix.
+      long quotient = ((-1L >>> 1) / radix) << 1;
+      long remainder = -1L - quotient * radix;
+      if (remainder >= radix || remainder < 0) {
+        quotient++;
+        remainder -= radix;
+      }
+      MAX_BEFORE_MULTIPLY[radix] = quotient;
+      MAX_DIGIT_AFTER_MULTIPLY[radix] = (int) remainder;
+    }
+  }
+
+  private UnsignedLongs() {}
+
+  /**
+   * @param radix between 2 and 16
+   * @throws NumberFormatException if the value isn't a valid unsigned 64 bit integer
+   */
+  public static long parse(final String value, final int radix) {
+    final int length = value.length();
+    if (length == 0) {
+      throw new NumberFormatException("Empty id");
+    }
+    long result = 0;
+    for (int i = 0; i < length; i++) {
+      final int digit = Character.digit(value.charAt(i), radix);
+      if (digit < 0) {
+        throw new NumberFormatException("Invalid id: " + value);
+      }
+      if (overflows(result, digit, radix)) {
+        throw new NumberFormatException(
+            "ID out of range, must be between 0 and 2^64-1, got: " + value);
+      }
+      result = result * radix + digit;
+    }
+    return result;
+  }
+
+  /** @return the decimal representation of the unsigned value */
+  public static String toString(final long value) {
+    if (value >= 0) {
+      return Long.toString(value);
+    }
+    final long quotient = (value >>> 1) / 5;
+    final long remainder = value - quotient * 10;
+    return Long.toString(quotient) + remainder;
+  }
+
+  private static boolean overflows(final long current, final int digit, final int radix) {
+    // The max is always positive, so a negative value has already gone past it.
+    final long max = MAX_BEFORE_MULTIPLY[radix];
+    if (current < 0 || current > max) {
+      return true;
+    }
+    return current == max && digit > MAX_DIGIT_AFTER_MULTIPLY[radix];
+  }
+}
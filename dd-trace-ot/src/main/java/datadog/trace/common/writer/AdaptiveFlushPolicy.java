@@ -0,0 +1,65 @@
+package datadog.trace.common.writer;
+
+import datadog.trace.common.util.Clock;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides how long the writer waits before flushing the traces serialized so far.
+ *
+ * <p>The delay is the time it takes to fill a payload of the target size at the recent arrival
+ * rate, bounded by a minimum and a maximum delay. Quiet services batch traces for up to the maximum
+ * delay instead of sending many tiny requests, busy ones flush sooner so that payloads don't grow
+ * much beyond the target. The arrival rate is an exponentially weighted moving average of the bytes
+ * serialized per millisecond between flushes, so a single burst only shortens the delay gradually.
+ *
+ * <p>This class is intentionally not threadsafe.
+ */
+class AdaptiveFlushPolicy {
+  /** Weight of the latest measurement in the moving average. */
+  private static final double ALPHA = 0.3;
+
+  private final long minDelayMillis;
+  private final long maxDelayMillis;
+  private final int targetPayloadBytes;
+
+  private double bytesPerMilli = 0;
+  private long lastFlushTicks;
+
+  AdaptiveFlushPolicy(
+      final long minDelayMillis, final long maxDelayMillis, final int targetPayloadBytes) {
+    this.minDelayMillis = Math.max(1, minDelayMillis);
+    this.maxDelayMillis = Math.max(this.minDelayMillis, maxDelayMillis);
+    this.targetPayloadBytes = targetPayloadBytes;
+    lastFlushTicks = Clock.currentNanoTicks();
+  }
+
+  /**
+   * Record the bytes serialized since the previous flush.
+   *
+   * @return the delay in milliseconds before the next flush
+   */
+  long onFlush(final int payloadBytes) {
+    return onFlush(payloadBytes, Clock.currentNanoTicks());
+  }
+
+  long onFlush(final int payloadBytes, final long nowTicks) {
+    final long elapsedMillis =
+        Math.max(1, TimeUnit.NANOSECONDS.toMillis(nowTicks - lastFlushTicks));
+    lastFlushTicks = nowTicks;
+    bytesPerMilli = ALPHA * ((double) payloadBytes / elapsedMillis) + (1 - ALPHA) * bytesPerMilli;
+    return getDelayMillis();
+  }
+
+  /** @return the delay in milliseconds before the next flush, given the current arrival rate */
+  long getDelayMillis() {
+    if (bytesPerMilli <= 0) {
+      return maxDelayMillis;
+    }
+    final double delay = targetPayloadBytes / bytesPerMilli;
+    return Math.max(minDelayMillis, Math.min(maxDelayMillis, (long) delay));
+  }
+
+  long getMaxDelayMillis() {
+    return maxDelayMillis;
+  }
+}
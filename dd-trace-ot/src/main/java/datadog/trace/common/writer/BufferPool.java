@@ -0,0 +1,45 @@
+package datadog.trace.common.writer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A pool of fixed size direct {@link ByteBuffer} segments which hold serialized traces off-heap
+ * until they are sent to the agent.
+ *
+ * <p>Segments are allocated on demand when the pool is empty. At most {@code maxPooledSegments} are
+ * retained on release, any segment beyond that is left for the GC to reclaim.
+ */
+class BufferPool {
+  static final int DEFAULT_SEGMENT_SIZE = 64 * 1024; // 64 KB
+  private static final int DEFAULT_MAX_POOLED_SEGMENTS = 16;
+
+  private final int segmentSize;
+  private final BlockingQueue<ByteBuffer> segments;
+
+  BufferPool() {
+    this(DEFAULT_SEGMENT_SIZE, DEFAULT_MAX_POOLED_SEGMENTS);
+  }
+
+  BufferPool(final int segmentSize, final int maxPooledSegments) {
+    this.segmentSize = segmentSize;
+    segments = new ArrayBlockingQueue<>(Math.max(1, maxPooledSegments));
+  }
+
+  int getSegmentSize() {
+    return segmentSize;
+  }
+
+  /** @return an empty segment, either recycled or freshly allocated */
+  ByteBuffer acquire() {
+    final ByteBuffer segment = segments.poll();
+    return segment == null ? ByteBuffer.allocateDirect(segmentSize) : segment;
+  }
+
+  /** Return a segment to the pool. The caller must not use the segment afterwards. */
+  void release(final ByteBuffer segment) {
+    segment.clear();
+    segments.offer(segment);
+  }
+}
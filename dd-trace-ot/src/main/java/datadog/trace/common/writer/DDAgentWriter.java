@@ -3,22 +3,26 @@ package datadog.trace.common.writer;
 import static datadog.trace.api.Config.DEFAULT_AGENT_HOST;
 import static datadog.trace.api.Config.DEFAULT_AGENT_UNIX_DOMAIN_SOCKET;
 import static datadog.trace.api.Config.DEFAULT_TRACE_AGENT_PORT;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
 import com.lmax.disruptor.EventFactory;
 import com.lmax.disruptor.EventHandler;
 import com.lmax.disruptor.EventTranslator;
 import com.lmax.disruptor.EventTranslatorOneArg;
+import com.lmax.disruptor.RingBuffer;
 import com.lmax.disruptor.SleepingWaitStrategy;
 import com.lmax.disruptor.dsl.Disruptor;
 import com.lmax.disruptor.dsl.ProducerType;
 import datadog.opentracing.DDSpan;
+import datadog.trace.api.Config;
 import datadog.trace.common.util.DaemonThreadFactory;
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Phaser;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ThreadFactory;
@@ -33,12 +37,21 @@ import lombok.extern.slf4j.Slf4j;
  * <p>Written traces are passed off to a disruptor so as to avoid blocking the application's thread.
  * If a flood of traces arrives that exceeds the disruptor ring size, the traces exceeding the
  * threshold will be counted and sampled.
+ *
+ * <p>Traces are flushed once the payload reaches {@link #FLUSH_PAYLOAD_BYTES}, or after a delay
+ * adapted to the rate traces arrive at by an {@link AdaptiveFlushPolicy}.
+ *
+ * <p>The writer can be split in shards, each with its own disruptor and serializing consumer, to
+ * spread contention between many application threads. A thread always writes to the same shard.
+ * Every shard builds its own payloads, which share the dispatcher's limits on pending payloads.
  */
 @Slf4j
 public class DDAgentWriter implements Writer {
   private static final int DISRUPTOR_BUFFER_SIZE = 8192;
   private static final int FLUSH_PAYLOAD_BYTES = 5_000_000; // 5 MB
-  private static final int FLUSH_PAYLOAD_DELAY = 1; // 1/second
+  // Keep enough segments around, per shard, for the payload being sent and the one being filled.
+  private static final int MAX_POOLED_SEGMENTS =
+      2 * FLUSH_PAYLOAD_BYTES / BufferPool.DEFAULT_SEGMENT_SIZE;
 
   private static final EventTranslatorOneArg<Event<List<DDSpan>>, List<DDSpan>> TRANSLATOR =
       new EventTranslatorOneArg<Event<List<DDSpan>>, List<DDSpan>>() {
@@ -55,6 +68,18 @@ public class DDAgentWriter implements Writer {
           event.shouldFlush = true;
         }
       };
+  private static final EventTranslatorOneArg<Event<List<DDSpan>>, CountDownLatch>
+      FLUSH_AND_NOTIFY_TRANSLATOR =
+          new EventTranslatorOneArg<Event<List<DDSpan>>, CountDownLatch>() {
+            @Override
+            public void translateTo(
+                final Event<List<DDSpan>> event,
+                final long sequence,
+                final CountDownLatch flushed) {
+              event.shouldFlush = true;
+              event.flushed = flushed;
+            }
+          };
 
   private static final ThreadFactory DISRUPTOR_THREAD_FACTORY =
       new DaemonThreadFactory("dd-trace-disruptor");
@@ -62,12 +87,14 @@ public class DDAgentWriter implements Writer {
       new DaemonThreadFactory("dd-trace-writer");
 
   private final DDApi api;
-  private final int flushFrequencySeconds;
-  private final Disruptor<Event<List<DDSpan>>> disruptor;
+  private final PayloadDispatcher dispatcher;
+  private final BufferPool bufferPool;
+  private final List<TraceConsumer> shards;
   private final ScheduledExecutorService scheduledWriterExecutor;
   private final AtomicInteger traceCount = new AtomicInteger(0);
-  private final AtomicReference<ScheduledFuture<?>> flushSchedule = new AtomicReference<>();
-  private final Phaser apiPhaser;
+  private final WriterHealth health;
+  /** Whether the health metrics are exposed over JMX. */
+  private final boolean healthMetricsEnabled;
   private volatile boolean running = false;
 
   public DDAgentWriter() {
@@ -75,40 +102,94 @@ public class DDAgentWriter implements Writer {
   }
 
   public DDAgentWriter(final DDApi api) {
-    this(api, DISRUPTOR_BUFFER_SIZE, FLUSH_PAYLOAD_DELAY);
+    this(api, Config.get());
+  }
+
+  public DDAgentWriter(final DDApi api, final Config config) {
+    this(api, DISRUPTOR_BUFFER_SIZE, true, config);
+  }
+
+  /** Used in the tests. */
+  private DDAgentWriter(final DDApi api, final int disruptorSize, final boolean scheduledFlushes) {
+    this(api, disruptorSize, scheduledFlushes, Config.get());
   }
 
   /**
-   * Used in the tests.
-   *
    * @param api
    * @param disruptorSize Rounded up to next power of 2
-   * @param flushFrequencySeconds value < 1 disables scheduled flushes
+   * @param scheduledFlushes false disables flushes other than by payload size or explicit ones
+   * @param config provides the shard count, the flush delay bounds, the sender thread count,
+   *     limits on payloads pending to be sent, the spool settings and whether to expose health
+   *     metrics
    */
-  private DDAgentWriter(final DDApi api, final int disruptorSize, final int flushFrequencySeconds) {
+  private DDAgentWriter(
+      final DDApi api,
+      final int disruptorSize,
+      final boolean scheduledFlushes,
+      final Config config) {
     this.api = api;
-    this.flushFrequencySeconds = flushFrequencySeconds;
-    disruptor =
-        new Disruptor<>(
-            new DisruptorEventFactory<List<DDSpan>>(),
-            Math.max(2, Integer.highestOneBit(disruptorSize - 1) << 1), // Next power of 2
-            DISRUPTOR_THREAD_FACTORY,
-            ProducerType.MULTI,
-            new SleepingWaitStrategy(0, TimeUnit.MILLISECONDS.toNanos(5)));
-    disruptor.handleEventsWith(new TraceConsumer());
-    scheduledWriterExecutor = Executors.newScheduledThreadPool(1, SCHEDULED_FLUSH_THREAD_FACTORY);
-    apiPhaser = new Phaser(); // Ensure API calls are completed when flushing
-    apiPhaser.register(); // Register on behalf of the scheduled executor thread.
+    final int shardCount = Math.max(1, config.getWriterShards());
+    bufferPool = new BufferPool(BufferPool.DEFAULT_SEGMENT_SIZE, shardCount * MAX_POOLED_SEGMENTS);
+    shards = new ArrayList<>(shardCount);
+    for (int i = 0; i < shardCount; i++) {
+      final AdaptiveFlushPolicy flushPolicy =
+          scheduledFlushes
+              ? new AdaptiveFlushPolicy(
+                  config.getWriterFlushMinDelay(),
+                  config.getWriterFlushMaxDelay(),
+                  config.getWriterFlushTargetBytes())
+              : null;
+      shards.add(new TraceConsumer(disruptorSize, flushPolicy));
+    }
+    // Also runs the sends, hence one thread per concurrent request to the agent.
+    scheduledWriterExecutor =
+        Executors.newScheduledThreadPool(
+            Math.max(1, config.getWriterSenderThreads()), SCHEDULED_FLUSH_THREAD_FACTORY);
+    dispatcher =
+        new PayloadDispatcher(
+            api,
+            scheduledWriterExecutor,
+            config.getWriterMaxPendingPayloads(),
+            config.getWriterMaxPendingBytes(),
+            config.getWriterDropPolicy(),
+            createSpool(config));
+    final List<RingBuffer<?>> ringBuffers = new ArrayList<>(shardCount);
+    for (final TraceConsumer shard : shards) {
+      ringBuffers.add(shard.disruptor.getRingBuffer());
+    }
+    health = new WriterHealth(api, dispatcher, ringBuffers);
+    healthMetricsEnabled = config.isHealthMetricsEnabled();
+  }
+
+  private static PayloadSpool createSpool(final Config config) {
+    if (config.getWriterSpoolDir() == null) {
+      return null;
+    }
+    try {
+      return new PayloadSpool(
+          new File(config.getWriterSpoolDir()),
+          config.getWriterSpoolMaxBytes(),
+          SECONDS.toMillis(config.getWriterSpoolMaxAge()));
+    } catch (final IOException e) {
+      log.warn(
+          "Unable to open spool directory {}. Spooling disabled.", config.getWriterSpoolDir(), e);
+      return null;
+    }
   }
 
   @Override
   public void write(final List<DDSpan> trace) {
     // We can't add events after shutdown otherwise it will never complete shutting down.
     if (running) {
-      final boolean published = disruptor.getRingBuffer().tryPublishEvent(TRANSLATOR, trace);
+      final boolean published =
+          shardFor(Thread.currentThread())
+              .disruptor
+              .getRingBuffer()
+              .tryPublishEvent(TRANSLATOR, trace);
       if (!published) {
         // We're discarding the trace, but we still want to count it.
         traceCount.incrementAndGet();
+        dispatcher.recordDropped(1, trace.size());
         log.debug("Trace written to overfilled buffer. Counted but dropping trace: {}", trace);
       }
     } else {
@@ -125,30 +206,60 @@ public class DDAgentWriter implements Writer {
     return api;
   }
 
+  /** @return the number of traces discarded because the writer couldn't keep up */
+  public long getDroppedTraceCount() {
+    return dispatcher.getDroppedTraces();
+  }
+
+  /** @return the number of spans discarded because the writer couldn't keep up */
+  public long getDroppedSpanCount() {
+    return dispatcher.getDroppedSpans();
+  }
+
+  /** @return the number of serialized bytes discarded because too many payloads were pending */
+  public long getDroppedBytes() {
+    return dispatcher.getDroppedBytes();
+  }
+
   @Override
   public void start() {
-    disruptor.start();
+    for (final TraceConsumer shard : shards) {
+      shard.disruptor.start();
+    }
     running = true;
-    scheduleFlush();
+    for (final TraceConsumer shard : shards) {
+      if (shard.flushPolicy != null) {
+        shard.scheduleFlush(shard.flushPolicy.getMaxDelayMillis());
+      }
+    }
+    if (healthMetricsEnabled) {
+      health.register();
+    }
   }
 
   @Override
   public void close() {
     running = false;
     flush();
-    disruptor.shutdown();
+    for (final TraceConsumer shard : shards) {
+      shard.disruptor.shutdown();
+    }
     scheduledWriterExecutor.shutdown();
+    dispatcher.close();
+    health.unregister();
   }
 
   /** This method will block until the flush is complete. */
   public void flush() {
     log.info("Flushing any remaining traces.");
-    // Register with the phaser so we can block until the flush completion.
-    apiPhaser.register();
-    disruptor.publishEvent(FLUSH_TRANSLATOR);
+    // Only counted down by the payloads of this flush, not by scheduled or size triggered ones.
+    final CountDownLatch flushed = new CountDownLatch(shards.size());
+    for (final TraceConsumer shard : shards) {
+      shard.disruptor.publishEvent(FLUSH_AND_NOTIFY_TRANSLATOR, flushed);
+    }
     try {
       // Allow thread to be interrupted.
-      apiPhaser.awaitAdvanceInterruptibly(apiPhaser.arriveAndDeregister());
+      flushed.await();
     } catch (final InterruptedException e) {
       log.warn("Waiting for flush interrupted.", e);
     }
@@ -159,20 +270,17 @@ public class DDAgentWriter implements Writer {
     return "DDAgentWriter { api=" + api + " }";
   }
 
-  private void scheduleFlush() {
-    if (flushFrequencySeconds > 0) {
-      final ScheduledFuture<?> previous =
-          flushSchedule.getAndSet(
-              scheduledWriterExecutor.schedule(flushTask, flushFrequencySeconds, SECONDS));
-      if (previous != null) {
-        previous.cancel(true);
-      }
-    }
+  private TraceConsumer shardFor(final Thread thread) {
+    return shards.size() == 1 ? shards.get(0) : shards.get((int) (thread.getId() % shards.size()));
   }
 
-  private final Runnable flushTask = new FlushTask();
-
   private class FlushTask implements Runnable {
+    private final Disruptor<Event<List<DDSpan>>> disruptor;
+
+    private FlushTask(final Disruptor<Event<List<DDSpan>>> disruptor) {
+      this.disruptor = disruptor;
+    }
+
     @Override
     public void run() {
       // Don't call flush() because it would block the thread also used for sending the traces.
@@ -180,10 +288,31 @@ public class DDAgentWriter implements Writer {
     }
   }
 
-  /** This class is intentionally not threadsafe. */
+  /** Drains the disruptor of one shard. This class is intentionally not threadsafe. */
   private class TraceConsumer implements EventHandler<Event<List<DDSpan>>> {
-    private List<byte[]> serializedTraces = new ArrayList<>();
-    private int payloadSize = 0;
+    private final Disruptor<Event<List<DDSpan>>> disruptor;
+    /** Null when scheduled flushes are disabled. */
+    private final AdaptiveFlushPolicy flushPolicy;
+
+    private final Runnable flushTask;
+    private final AtomicReference<ScheduledFuture<?>> flushSchedule = new AtomicReference<>();
+    private final TraceSerializer serializer =
+        api.usesStringTable()
+            ? new StringTableTraceSerializer(bufferPool)
+            : new TraceSerializer(bufferPool);
+
+    private TraceConsumer(final int disruptorSize, final AdaptiveFlushPolicy flushPolicy) {
+      this.flushPolicy = flushPolicy;
+      disruptor =
+          new Disruptor<>(
+              new DisruptorEventFactory<List<DDSpan>>(),
+              Math.max(2, Integer.highestOneBit(disruptorSize - 1) << 1), // Next power of 2
+              DISRUPTOR_THREAD_FACTORY,
+              ProducerType.MULTI,
+              new SleepingWaitStrategy(0, TimeUnit.MILLISECONDS.toNanos(5)));
+      disruptor.handleEventsWith(this);
+      flushTask = new FlushTask(disruptor);
+    }
 
     @Override
     public void onEvent(
@@ -193,68 +322,60 @@ public class DDAgentWriter implements Writer {
       if (trace != null) {
         traceCount.incrementAndGet();
         try {
-          final byte[] serializedTrace = api.serializeTrace(trace);
-          payloadSize += serializedTrace.length;
-          serializedTraces.add(serializedTrace);
-        } catch (final JsonProcessingException e) {
+          final long start = System.nanoTime();
+          serializer.serialize(trace);
+          health.onSerialized(trace.size(), System.nanoTime() - start);
+          if (!trace.isEmpty()) {
+            trace.get(0).context().getTracer().recycle(trace);
+          }
+        } catch (final IOException e) {
           log.warn("Error serializing trace", e);
         } catch (final Throwable e) {
           log.debug("Error while serializing trace", e);
         }
       }
-      if (event.shouldFlush || payloadSize >= FLUSH_PAYLOAD_BYTES) {
-        reportTraces();
+      if (event.shouldFlush || serializer.getPayloadSize() >= FLUSH_PAYLOAD_BYTES) {
+        reportTraces(event.flushed);
         event.shouldFlush = false;
+        event.flushed = null;
       }
     }
 
-    private void reportTraces() {
+    /** @param flushed counted down once the payload is sent, null unless flush() waits on it */
+    private void reportTraces(final CountDownLatch flushed) {
+      final int payloadSize = serializer.getPayloadSize();
       try {
-        if (serializedTraces.isEmpty()) {
-          apiPhaser.arrive(); // Allow flush to return
+        if (serializer.getTraceCount() == 0) {
+          if (flushed != null) {
+            dispatcher.dispatchEmpty(flushed); // Allow flush to return
+          }
           return;
-          // scheduleFlush called in finally block.
+          // Next flush scheduled in finally block.
         }
-        final List<byte[]> toSend = serializedTraces;
-        serializedTraces = new ArrayList<>(toSend.size());
-        // ^ Initialize with similar size to reduce arraycopy churn.
-
-        final int representativeCount = traceCount.getAndSet(0);
-        final int sizeInBytes = payloadSize;
-
-        // Run the actual IO task on a different thread to avoid blocking the consumer.
-        scheduledWriterExecutor.execute(
-            new Runnable() {
-              @Override
-              public void run() {
-                try {
-                  final boolean sent =
-                      api.sendSerializedTraces(representativeCount, sizeInBytes, toSend);
-                  if (sent) {
-                    log.debug("Successfully sent {} traces to the API", toSend.size());
-                  } else {
-                    log.debug(
-                        "Failed to send {} traces (representing {}) of size {} bytes to the API",
-                        toSend.size(),
-                        representativeCount,
-                        sizeInBytes);
-                  }
-                } catch (final Throwable e) {
-                  log.debug("Failed to send traces to the API: {}", e.getMessage());
-                } finally {
-                  apiPhaser.arrive(); // Flush completed.
-                }
-              }
-            });
+        // The dispatcher runs the actual IO task on a different thread to avoid blocking the
+        // consumer.
+        dispatcher.dispatch(serializer.finishPayload(), traceCount.getAndSet(0), flushed);
       } finally {
-        payloadSize = 0;
-        scheduleFlush();
+        if (flushPolicy != null) {
+          scheduleFlush(flushPolicy.onFlush(payloadSize));
+        }
+      }
+    }
+
+    private void scheduleFlush(final long delayMillis) {
+      final ScheduledFuture<?> previous =
+          flushSchedule.getAndSet(
+              scheduledWriterExecutor.schedule(flushTask, delayMillis, MILLISECONDS));
+      if (previous != null) {
+        previous.cancel(true);
       }
     }
   }
 
   private static class Event<T> {
     private volatile boolean shouldFlush = false;
+    /** Set by explicit flushes waiting for the payload to be sent. */
+    private volatile CountDownLatch flushed = null;
     private volatile T data = null;
   }
 
@@ -1,7 +1,6 @@
 package datadog.trace.common.writer;
 
 import com.fasterxml.jackson.core.JsonParseException;
-import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import datadog.opentracing.ContainerInfo;
@@ -10,12 +9,15 @@ import datadog.opentracing.DDTraceOTInfo;
 import datadog.trace.common.writer.unixdomainsockets.UnixDomainSocketFactory;
 import java.io.File;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 import lombok.extern.slf4j.Slf4j;
+import okhttp3.ConnectionPool;
 import okhttp3.HttpUrl;
 import okhttp3.MediaType;
 import okhttp3.OkHttpClient;
@@ -23,8 +25,8 @@ import okhttp3.Request;
 import okhttp3.RequestBody;
 import okhttp3.Response;
 import okio.BufferedSink;
-import org.msgpack.core.MessagePack;
-import org.msgpack.core.MessagePacker;
+import okio.GzipSink;
+import okio.Okio;
 import org.msgpack.jackson.dataformat.MessagePackFactory;
 
 /** The API pointing to a DD agent */
@@ -38,28 +40,67 @@ public class DDApi {
   private static final String DATADOG_META_TRACER_VERSION = "Datadog-Meta-Tracer-Version";
   private static final String DATADOG_CONTAINER_ID = "Datadog-Container-ID";
   private static final String X_DATADOG_TRACE_COUNT = "X-Datadog-Trace-Count";
+  private static final String CONTENT_ENCODING = "Content-Encoding";
+  private static final String GZIP = "gzip";
 
   private static final int HTTP_TIMEOUT = 1; // 1 second for conenct/read/write operations
+  private static final int MAX_CONNECTIONS = 1;
+  private static final long CONNECTION_KEEP_ALIVE_MINUTES = 5;
   private static final String TRACES_ENDPOINT_V3 = "v0.3/traces";
   private static final String TRACES_ENDPOINT_V4 = "v0.4/traces";
+  private static final String TRACES_ENDPOINT_V5 = "v0.5/traces";
+  /** An empty string table followed by no traces. */
+  private static final Object EMPTY_V5_PAYLOAD =
+      Arrays.asList(Collections.singletonList(""), Collections.emptyList());
   private static final long MILLISECONDS_BETWEEN_ERROR_LOG = TimeUnit.MINUTES.toMillis(5);
 
   private final List<ResponseListener> responseListeners = new ArrayList<>();
 
   private volatile long nextAllowedLogTime = 0;
 
+  private final AtomicLong sendCount = new AtomicLong(0);
+  private final AtomicLong sendNanos = new AtomicLong(0);
+  private final AtomicLong sentBytes = new AtomicLong(0);
+  /** Indexed by status code / 100, index 0 counts requests which got no response. */
+  private final AtomicLongArray responseCounts = new AtomicLongArray(6);
+
   private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper(new MessagePackFactory());
   private static final MediaType MSGPACK = MediaType.get("application/msgpack");
 
   private final OkHttpClient httpClient;
   private final HttpUrl tracesUrl;
+  private final boolean gzip;
+  private final boolean stringTable;
+  /** Serializes the traces given to {@link #sendTraces(List)}, guarded by itself. */
+  private final TraceSerializer serializer;
 
   public DDApi(final String host, final int port, final String unixDomainSocketPath) {
+    this(host, port, unixDomainSocketPath, HTTP_TIMEOUT, MAX_CONNECTIONS, false, false);
+  }
+
+  /**
+   * @param timeoutSeconds applied to connect, read and write operations
+   * @param maxConnections the number of requests expected to be sent concurrently, connections up
+   *     to that number are kept alive for reuse
+   * @param gzip whether trace payloads are sent gzip compressed
+   * @param v05Enabled whether to use the v0.5 string table format if the agent supports it
+   */
+  public DDApi(
+      final String host,
+      final int port,
+      final String unixDomainSocketPath,
+      final int timeoutSeconds,
+      final int maxConnections,
+      final boolean gzip,
+      final boolean v05Enabled) {
     this(
         host,
         port,
-        traceEndpointAvailable(getUrl(host, port, TRACES_ENDPOINT_V4), unixDomainSocketPath),
-        unixDomainSocketPath);
+        selectTracesEndpoint(host, port, unixDomainSocketPath, v05Enabled),
+        unixDomainSocketPath,
+        timeoutSeconds,
+        maxConnections,
+        gzip);
   }
 
   DDApi(
@@ -67,14 +108,33 @@ public class DDApi {
       final int port,
       final boolean v4EndpointsAvailable,
       final String unixDomainSocketPath) {
-    httpClient = buildHttpClient(unixDomainSocketPath);
+    this(
+        host,
+        port,
+        v4EndpointsAvailable ? TRACES_ENDPOINT_V4 : TRACES_ENDPOINT_V3,
+        unixDomainSocketPath,
+        HTTP_TIMEOUT,
+        MAX_CONNECTIONS,
+        false);
+  }
 
-    if (v4EndpointsAvailable) {
-      tracesUrl = getUrl(host, port, TRACES_ENDPOINT_V4);
-    } else {
+  private DDApi(
+      final String host,
+      final int port,
+      final String tracesEndpoint,
+      final String unixDomainSocketPath,
+      final int timeoutSeconds,
+      final int maxConnections,
+      final boolean gzip) {
+    httpClient = buildHttpClient(unixDomainSocketPath, timeoutSeconds, maxConnections);
+    this.gzip = gzip;
+
+    if (TRACES_ENDPOINT_V3.equals(tracesEndpoint)) {
       log.debug("API v0.4 endpoints not available. Downgrading to v0.3");
-      tracesUrl = getUrl(host, port, TRACES_ENDPOINT_V3);
     }
+    tracesUrl = getUrl(host, port, tracesEndpoint);
+    stringTable = TRACES_ENDPOINT_V5.equals(tracesEndpoint);
+    serializer = stringTable ? new StringTableTraceSerializer() : new TraceSerializer();
   }
 
   public void addResponseListener(final ResponseListener listener) {
@@ -90,27 +150,45 @@ public class DDApi {
    * @return the staus code returned
    */
   public boolean sendTraces(final List<List<DDSpan>> traces) {
-    final List<byte[]> serializedTraces = new ArrayList<>(traces.size());
-    int sizeInBytes = 0;
-    for (final List<DDSpan> trace : traces) {
-      try {
-        final byte[] serializedTrace = serializeTrace(trace);
-        sizeInBytes += serializedTrace.length;
-        serializedTraces.add(serializedTrace);
-      } catch (final JsonProcessingException e) {
-        log.warn("Error serializing trace", e);
+    final Payload payload;
+    // The payload holds on to its own segments, so only serialization needs the lock.
+    synchronized (serializer) {
+      for (final List<DDSpan> trace : traces) {
+        try {
+          serializer.serialize(trace);
+        } catch (final IOException e) {
+          log.warn("Error serializing trace", e);
+        }
       }
+      payload = serializer.finishPayload();
+    }
+    try {
+      return sendSerializedTraces(payload.getTraceCount(), payload);
+    } finally {
+      payload.release();
     }
-
-    return sendSerializedTraces(serializedTraces.size(), sizeInBytes, serializedTraces);
   }
 
-  byte[] serializeTrace(final List<DDSpan> trace) throws JsonProcessingException {
-    return OBJECT_MAPPER.writeValueAsBytes(trace);
+  /**
+   * Send an already serialized payload to the DD agent. The payload is not released.
+   *
+   * @param representativeCount the number of traces the payload stands for, including dropped ones
+   * @param payload the serialized traces
+   * @return true if the agent accepted the payload
+   */
+  boolean sendSerializedTraces(final int representativeCount, final Payload payload) {
+    final long start = System.nanoTime();
+    try {
+      return send(representativeCount, payload);
+    } finally {
+      sendCount.incrementAndGet();
+      sendNanos.addAndGet(System.nanoTime() - start);
+      sentBytes.addAndGet(payload.getSizeInBytes());
+    }
   }
 
-  boolean sendSerializedTraces(
-      final int representativeCount, final Integer sizeInBytes, final List<byte[]> traces) {
+  private boolean send(final int representativeCount, final Payload payload) {
+    final int traceCount = payload.getTraceCount();
     try {
       final RequestBody body =
           new RequestBody() {
@@ -121,41 +199,37 @@ public class DDApi {
 
             @Override
             public long contentLength() {
-              final int traceCount = traces.size();
-              // Need to allocate additional to handle MessagePacker.packArrayHeader
-              if (traceCount < (1 << 4)) {
-                return sizeInBytes + 1; // byte
-              } else if (traceCount < (1 << 16)) {
-                return sizeInBytes + 3; // byte + short
-              } else {
-                return sizeInBytes + 5; // byte + int
-              }
+              // The compressed size is only known once written, the body is sent chunked then.
+              return gzip ? -1 : payload.getSizeInBytes();
             }
 
             @Override
             public void writeTo(final BufferedSink sink) throws IOException {
-              final OutputStream out = sink.outputStream();
-              final MessagePacker packer = MessagePack.newDefaultPacker(out);
-              packer.packArrayHeader(traces.size());
-              for (final byte[] trace : traces) {
-                packer.writePayload(trace);
+              if (gzip) {
+                // Compress while writing rather than holding a compressed copy of the payload.
+                try (final BufferedSink gzipSink = Okio.buffer(new GzipSink(sink))) {
+                  payload.writeTo(gzipSink);
+                }
+              } else {
+                payload.writeTo(sink);
               }
-              packer.close();
-              out.close();
             }
           };
-      final Request request =
+      final Request.Builder builder =
           prepareRequest(tracesUrl)
-              .addHeader(X_DATADOG_TRACE_COUNT, String.valueOf(representativeCount))
-              .put(body)
-              .build();
+              .addHeader(X_DATADOG_TRACE_COUNT, String.valueOf(representativeCount));
+      if (gzip) {
+        builder.addHeader(CONTENT_ENCODING, GZIP);
+      }
+      final Request request = builder.put(body).build();
 
       try (final Response response = httpClient.newCall(request).execute()) {
+        recordResponse(response.code());
         if (response.code() != 200) {
           if (log.isDebugEnabled()) {
             log.debug(
                 "Error while sending {} of {} traces to the DD agent. Status: {}, Response: {}, Body: {}",
-                traces.size(),
+                traceCount,
                 representativeCount,
                 response.code(),
                 response.message(),
@@ -164,7 +238,7 @@ public class DDApi {
             nextAllowedLogTime = System.currentTimeMillis() + MILLISECONDS_BETWEEN_ERROR_LOG;
             log.warn(
                 "Error while sending {} of {} traces to the DD agent. Status: {} {} (going silent for {} minutes)",
-                traces.size(),
+                traceCount,
                 representativeCount,
                 response.code(),
                 response.message(),
@@ -175,7 +249,7 @@ public class DDApi {
 
         log.debug(
             "Successfully sent {} of {} traces to the DD agent.",
-            traces.size(),
+            traceCount,
             representativeCount);
 
         final String responseString = response.body().string().trim();
@@ -193,10 +267,11 @@ public class DDApi {
         return true;
       }
     } catch (final IOException e) {
+      recordResponse(0);
       if (log.isDebugEnabled()) {
         log.debug(
             "Error while sending "
-                + traces.size()
+                + traceCount
                 + " of "
                 + representativeCount
                 + " traces to the DD agent.",
@@ -205,7 +280,7 @@ public class DDApi {
         nextAllowedLogTime = System.currentTimeMillis() + MILLISECONDS_BETWEEN_ERROR_LOG;
         log.warn(
             "Error while sending {} of {} traces to the DD agent. {}: {} (going silent for {} minutes)",
-            traces.size(),
+            traceCount,
             representativeCount,
             e.getClass().getName(),
             e.getMessage(),
@@ -215,6 +290,63 @@ public class DDApi {
     }
   }
 
+  /** @return the number of payloads sent, successfully or not */
+  long getSendCount() {
+    return sendCount.get();
+  }
+
+  /** @return the total time spent sending payloads */
+  long getSendNanos() {
+    return sendNanos.get();
+  }
+
+  /** @return the total size of the payloads sent, before compression */
+  long getSentBytes() {
+    return sentBytes.get();
+  }
+
+  /**
+   * @param statusClass the first digit of the status code, or 0 for requests which got no response
+   * @return the number of responses received with a status code of that class
+   */
+  long getResponseCount(final int statusClass) {
+    return statusClass >= 0 && statusClass < responseCounts.length()
+        ? responseCounts.get(statusClass)
+        : 0;
+  }
+
+  private void recordResponse(final int statusCode) {
+    final int statusClass = statusCode / 100;
+    if (statusClass >= 0 && statusClass < responseCounts.length()) {
+      responseCounts.incrementAndGet(statusClass);
+    }
+  }
+
+  /**
+   * Whether payloads sent by this api must be serialized with a {@link StringTableTraceSerializer}
+   * rather than a {@link TraceSerializer}.
+   */
+  boolean usesStringTable() {
+    return stringTable;
+  }
+
+  private static String selectTracesEndpoint(
+      final String host,
+      final int port,
+      final String unixDomainSocketPath,
+      final boolean v05Enabled) {
+    if (v05Enabled) {
+      if (endpointAvailable(
+          getUrl(host, port, TRACES_ENDPOINT_V5), unixDomainSocketPath, EMPTY_V5_PAYLOAD, true)) {
+        return TRACES_ENDPOINT_V5;
+      }
+      log.debug("API v0.5 endpoint not available. Downgrading to v0.4");
+    }
+    return traceEndpointAvailable(getUrl(host, port, TRACES_ENDPOINT_V4), unixDomainSocketPath)
+        ? TRACES_ENDPOINT_V4
+        : TRACES_ENDPOINT_V3;
+  }
+
   private static boolean traceEndpointAvailable(
       final HttpUrl url, final String unixDomainSocketPath) {
     return endpointAvailable(url, unixDomainSocketPath, Collections.emptyList(), true);
@@ -226,7 +358,8 @@ public class DDApi {
       final Object data,
       final boolean retry) {
     try {
-      final OkHttpClient client = buildHttpClient(unixDomainSocketPath);
+      final OkHttpClient client =
+          buildHttpClient(unixDomainSocketPath, HTTP_TIMEOUT, MAX_CONNECTIONS);
       final RequestBody body = RequestBody.create(MSGPACK, OBJECT_MAPPER.writeValueAsBytes(data));
       final Request request = prepareRequest(url).put(body).build();
 
@@ -241,15 +374,20 @@ public class DDApi {
     return false;
   }
 
-  private static OkHttpClient buildHttpClient(final String unixDomainSocketPath) {
+  private static OkHttpClient buildHttpClient(
+      final String unixDomainSocketPath, final int timeoutSeconds, final int maxConnections) {
     OkHttpClient.Builder builder = new OkHttpClient.Builder();
     if (unixDomainSocketPath != null) {
       builder = builder.socketFactory(new UnixDomainSocketFactory(new File(unixDomainSocketPath)));
     }
     return builder
-        .connectTimeout(HTTP_TIMEOUT, TimeUnit.SECONDS)
-        .writeTimeout(HTTP_TIMEOUT, TimeUnit.SECONDS)
-        .readTimeout(HTTP_TIMEOUT, TimeUnit.SECONDS)
+        .connectTimeout(timeoutSeconds, TimeUnit.SECONDS)
+        .writeTimeout(timeoutSeconds, TimeUnit.SECONDS)
+        .readTimeout(timeoutSeconds, TimeUnit.SECONDS)
+        // Keep a connection per concurrent sender alive so requests don't pay for a new one.
+        .connectionPool(
+            new ConnectionPool(
+                Math.max(1, maxConnections), CONNECTION_KEEP_ALIVE_MINUTES, TimeUnit.MINUTES))
         .build();
   }
 
@@ -0,0 +1,92 @@
+package datadog.trace.common.writer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+
+/**
+ * A msgpack encoded list of traces ready to be sent to the agent.
+ *
+ * <p>The serialized traces are held in segments borrowed from a {@link BufferPool}. They must be
+ * given back with {@link #release()} once the payload has been sent or discarded. Payloads read
+ * back from a {@link PayloadSpool} have no pool.
+ */
+class Payload {
+  private final BufferPool pool;
+  private final byte[] header;
+  private final List<ByteBuffer> segments;
+  private final int traceCount;
+  private final int spanCount;
+  private final int sizeInBytes;
+
+  /**
+   * @param pool the pool the segments came from, or null if they aren't pooled
+   * @param header encoded bytes preceding the traces, i.e. the array header
+   * @param segments flipped segments containing the serialized traces
+   */
+  Payload(
+      final BufferPool pool,
+      final byte[] header,
+      final List<ByteBuffer> segments,
+      final int traceCount,
+      final int spanCount) {
+    this.pool = pool;
+    this.header = header;
+    this.segments = segments;
+    this.traceCount = traceCount;
+    this.spanCount = spanCount;
+
+    int size = header.length;
+    for (final ByteBuffer segment : segments) {
+      size += segment.remaining();
+    }
+    sizeInBytes = size;
+  }
+
+  int getTraceCount() {
+    return traceCount;
+  }
+
+  int getSpanCount() {
+    return spanCount;
+  }
+
+  /** @return the encoded size of the payload, header included */
+  int getSizeInBytes() {
+    return sizeInBytes;
+  }
+
+  /** Write the whole payload to the channel. Can be called multiple times, e.g. on retries. */
+  void writeTo(final WritableByteChannel channel) throws IOException {
+    final ByteBuffer headerBuffer = ByteBuffer.wrap(header);
+    while (headerBuffer.hasRemaining()) {
+      channel.write(headerBuffer);
+    }
+    for (final ByteBuffer segment : segments) {
+      final ByteBuffer buffer = segment.duplicate();
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+    }
+  }
+
+  /** Copy the whole payload to the buffer, which must have enough room left. */
+  void copyTo(final ByteBuffer buffer) {
+    buffer.put(header);
+    for (final ByteBuffer segment : segments) {
+      buffer.put(segment.duplicate());
+    }
+  }
+
+  /** Give the segments back to the pool. The payload must not be written afterwards. */
+  void release() {
+    if (pool == null) {
+      return;
+    }
+    for (final ByteBuffer segment : segments) {
+      pool.release(segment);
+    }
+    segments.clear();
+  }
+}
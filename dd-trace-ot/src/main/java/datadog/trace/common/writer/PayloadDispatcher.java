@@ -0,0 +1,320 @@
+package datadog.trace.common.writer;
+
+import datadog.trace.api.Config.WriterDropPolicy;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Hands serialized payloads over to the executor sending them to the agent.
+ *
+ * <p>The number of payloads and bytes waiting to be sent, including the one currently being sent,
+ * is bounded. When a new payload would exceed the bounds the {@link WriterDropPolicy} decides
+ * whether the oldest waiting payloads or the new one get discarded. A payload is always accepted
+ * when nothing else is pending, so a single oversized payload can still get through.
+ *
+ * <p>Every dispatched payload completes exactly once, either once it has been sent or when it is
+ * dropped, so that flushes don't wait on discarded payloads. Payloads may be sent concurrently, but
+ * completions are signalled in dispatch order: the latch given along with a payload is counted down
+ * once that payload and every payload dispatched before it have completed.
+ *
+ * <p>With a {@link PayloadSpool}, payloads which fail to be sent are spooled instead of discarded.
+ * Spooled payloads are replayed in order before the next payload is sent, so newer traces never
+ * reach the agent ahead of older ones. Until the spool has been drained, new payloads are spooled
+ * behind it rather than sent.
+ */
+@Slf4j
+class PayloadDispatcher {
+  private final DDApi api;
+  private final Executor executor;
+  private final int maxPendingPayloads;
+  private final long maxPendingBytes;
+  private final WriterDropPolicy dropPolicy;
+  /** Null when spooling is disabled. */
+  private final PayloadSpool spool;
+
+  /** Payloads waiting for the executor. Guarded by itself, as are the fields below. */
+  private final Deque<PendingPayload> queue = new ArrayDeque<>();
+  /** Payloads whose completion hasn't been signalled yet, in dispatch order. */
+  private final Deque<PendingPayload> outstanding = new ArrayDeque<>();
+  /** Payloads queued or being sent. */
+  private int pendingPayloads = 0;
+  /** Bytes of the payloads queued or being sent. */
+  private long pendingBytes = 0;
+
+  /** Traces represented by dropped payloads, reported along with the next payload sent. */
+  private final AtomicInteger unreportedTraceCount = new AtomicInteger(0);
+
+  private final AtomicLong droppedTraces = new AtomicLong(0);
+  private final AtomicLong droppedSpans = new AtomicLong(0);
+  private final AtomicLong droppedBytes = new AtomicLong(0);
+
+  /** Only one sender replays the spool at a time, to keep the spooled payloads in order. */
+  private final Object replayLock = new Object();
+
+  private final Runnable sendTask = new SendTask();
+
+  PayloadDispatcher(
+      final DDApi api,
+      final Executor executor,
+      final int maxPendingPayloads,
+      final long maxPendingBytes,
+      final WriterDropPolicy dropPolicy) {
+    this(api, executor, maxPendingPayloads, maxPendingBytes, dropPolicy, null);
+  }
+
+  PayloadDispatcher(
+      final DDApi api,
+      final Executor executor,
+      final int maxPendingPayloads,
+      final long maxPendingBytes,
+      final WriterDropPolicy dropPolicy,
+      final PayloadSpool spool) {
+    this.api = api;
+    this.executor = executor;
+    this.maxPendingPayloads = Math.max(1, maxPendingPayloads);
+    this.maxPendingBytes = maxPendingBytes;
+    this.dropPolicy = dropPolicy;
+    this.spool = spool;
+  }
+
+  /**
+   * Queue the payload to be sent, or drop it according to the drop policy.
+   *
+   * @param representativeCount the number of traces the payload stands for
+   */
+  void dispatch(final Payload payload, final int representativeCount) {
+    dispatch(payload, representativeCount, null);
+  }
+
+  /**
+   * Queue the payload to be sent, or drop it according to the drop policy.
+   *
+   * @param representativeCount the number of traces the payload stands for
+   * @param completed counted down once this payload and the ones dispatched before have completed,
+   *     may be null
+   */
+  void dispatch(
+      final Payload payload, final int representativeCount, final CountDownLatch completed) {
+    final PendingPayload pending = new PendingPayload(payload, representativeCount, completed);
+    final int size = payload.getSizeInBytes();
+    final List<PendingPayload> dropped = new ArrayList<>(1);
+    boolean accepted = true;
+    synchronized (queue) {
+      if (dropPolicy == WriterDropPolicy.DROP_OLDEST) {
+        while (isFull(size) && !queue.isEmpty()) {
+          final PendingPayload oldest = queue.pollFirst();
+          pendingPayloads--;
+          pendingBytes -= oldest.payload.getSizeInBytes();
+          dropped.add(oldest);
+        }
+      }
+      if (isFull(size)) {
+        accepted = false;
+        dropped.add(pending);
+      } else {
+        queue.addLast(pending);
+        pendingPayloads++;
+        pendingBytes += size;
+      }
+      outstanding.addLast(pending);
+    }
+
+    for (final PendingPayload droppedPayload : dropped) {
+      drop(droppedPayload);
+    }
+    if (accepted && dropped.isEmpty()) {
+      // Otherwise a dropped payload's send task is still queued and will pick up this payload.
+      executor.execute(sendTask);
+    }
+  }
+
+  /** Count the latch down once every payload dispatched so far has completed. */
+  void dispatchEmpty(final CountDownLatch completed) {
+    final PendingPayload marker = new PendingPayload(null, 0, completed);
+    synchronized (queue) {
+      outstanding.addLast(marker);
+    }
+    complete(marker);
+  }
+
+  long getDroppedTraces() {
+    return droppedTraces.get() + (spool == null ? 0 : spool.getDroppedTraces());
+  }
+
+  long getDroppedSpans() {
+    return droppedSpans.get() + (spool == null ? 0 : spool.getDroppedSpans());
+  }
+
+  long getDroppedBytes() {
+    return droppedBytes.get() + (spool == null ? 0 : spool.getDroppedBytes());
+  }
+
+  int getPendingPayloads() {
+    synchronized (queue) {
+      return pendingPayloads;
+    }
+  }
+
+  long getPendingBytes() {
+    synchronized (queue) {
+      return pendingBytes;
+    }
+  }
+
+  /** Stop spooling, spooled payloads are kept for the next run. */
+  void close() {
+    if (spool != null) {
+      spool.close();
+    }
+  }
+
+  /** Count traces discarded before they even made it into a payload. */
+  void recordDropped(final int traces, final int spans) {
+    droppedTraces.addAndGet(traces);
+    droppedSpans.addAndGet(spans);
+  }
+
+  private boolean isFull(final int size) {
+    return pendingPayloads > 0
+        && (pendingPayloads >= maxPendingPayloads || pendingBytes + size > maxPendingBytes);
+  }
+
+  private void drop(final PendingPayload pending) {
+    final Payload payload = pending.payload;
+    log.debug(
+        "Too many payloads pending. Dropping {} traces of {} bytes.",
+        payload.getTraceCount(),
+        payload.getSizeInBytes());
+    unreportedTraceCount.addAndGet(pending.representativeCount);
+    recordDropped(payload.getTraceCount(), payload.getSpanCount());
+    droppedBytes.addAndGet(payload.getSizeInBytes());
+    payload.release();
+    complete(pending); // Don't block flushes on a dropped payload.
+  }
+
+  private void send(final PendingPayload pending) {
+    final Payload payload = pending.payload;
+    final int representativeCount =
+        pending.representativeCount + unreportedTraceCount.getAndSet(0);
+    boolean sent = false;
+    try {
+      // Otherwise the payload is spooled behind the older ones.
+      if (spool == null || replaySpool()) {
+        sent = api.sendSerializedTraces(representativeCount, payload);
+        if (sent) {
+          log.debug("Successfully sent {} traces to the API", payload.getTraceCount());
+        } else {
+          log.debug(
+              "Failed to send {} traces (representing {}) of size {} bytes to the API",
+              payload.getTraceCount(),
+              representativeCount,
+              payload.getSizeInBytes());
+        }
+      }
+    } catch (final Throwable e) {
+      log.debug("Failed to send traces to the API: {}", e.getMessage());
+    } finally {
+      if (spool != null && !sent && spool.append(payload, representativeCount)) {
+        log.debug("Spooled {} traces to be sent later", payload.getTraceCount());
+      }
+      synchronized (queue) {
+        pendingPayloads--;
+        pendingBytes -= payload.getSizeInBytes();
+      }
+      payload.release();
+      complete(pending); // Flush completed.
+    }
+  }
+
+  /**
+   * Send spooled payloads in order until the spool is empty or a send fails.
+   *
+   * @return true if the spool has been drained
+   */
+  private boolean replaySpool() {
+    synchronized (replayLock) {
+      try {
+        PayloadSpool.Entry entry;
+        while ((entry = spool.peek()) != null) {
+          final Payload payload = entry.getPayload();
+          boolean sent = false;
+          try {
+            sent = api.sendSerializedTraces(entry.getRepresentativeCount(), payload);
+          } finally {
+            if (sent) {
+              spool.commit(entry);
+            } else {
+              spool.release(entry);
+            }
+          }
+          if (!sent) {
+            log.debug("Failed to send {} spooled traces to the API", payload.getTraceCount());
+            return false;
+          }
+          log.debug("Successfully sent {} spooled traces to the API", payload.getTraceCount());
+        }
+        return true;
+      } catch (final Throwable e) {
+        log.debug("Failed to send spooled traces to the API: {}", e.getMessage());
+        return false;
+      }
+    }
+  }
+
+  private void complete(final PendingPayload pending) {
+    List<CountDownLatch> latches = null;
+    synchronized (queue) {
+      pending.completed = true;
+      while (!outstanding.isEmpty() && outstanding.peekFirst().completed) {
+        final CountDownLatch latch = outstanding.pollFirst().latch;
+        if (latch != null) {
+          if (latches == null) {
+            latches = new ArrayList<>(1);
+          }
+          latches.add(latch);
+        }
+      }
+    }
+    if (latches != null) {
+      for (final CountDownLatch latch : latches) {
+        latch.countDown();
+      }
+    }
+  }
+
+  private class SendTask implements Runnable {
+    @Override
+    public void run() {
+      final PendingPayload pending;
+      synchronized (queue) {
+        pending = queue.pollFirst();
+      }
+      if (pending != null) {
+        send(pending);
+      }
+    }
+  }
+
+  private static class PendingPayload {
+    private final Payload payload;
+    private final int representativeCount;
+    /** Null unless a flush waits on this payload. */
+    private final CountDownLatch latch;
+
+    private boolean completed = false;
+
+    private PendingPayload(
+        final Payload payload, final int representativeCount, final CountDownLatch latch) {
+      this.payload = payload;
+      this.representativeCount = representativeCount;
+      this.latch = latch;
+    }
+  }
+}
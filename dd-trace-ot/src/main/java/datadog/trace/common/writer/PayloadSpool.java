@@ -0,0 +1,407 @@
+package datadog.trace.common.writer;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * An on-disk queue of payloads which couldn't be sent to the agent, to be replayed in order once
+ * the agent is reachable again.
+ *
+ * <p>Payloads are appended to memory mapped segment files in the spool directory, so they don't
+ * stay on the heap. Segments left over by a previous run are picked up again. The spool is bounded
+ * by the total size of its segment files, the oldest segment being dropped to make room, and by
+ * age, expired payloads being skipped on replay.
+ *
+ * <p>Each record is laid out as: int length (negated once replayed), int format version, long
+ * timestamp millis, int trace count, int span count, int representative count, followed by the
+ * payload bytes. The length is written last, a zero length marks the end of a segment's records.
+ * Records of another format version are skipped.
+ *
+ * <p>Segments are unmapped once deleted or when the spool is closed, rather than whenever the GC
+ * collects their buffers. The segment of the entry being replayed stays mapped until the entry is
+ * committed or released.
+ */
+@Slf4j
+class PayloadSpool {
+  static final int DEFAULT_SEGMENT_SIZE = 8 * 1024 * 1024; // 8 MB
+
+  private static final String SEGMENT_PREFIX = "dd-trace-spool-";
+  private static final String SEGMENT_SUFFIX = ".seg";
+  private static final int RECORD_HEADER_SIZE = 4 + 4 + 8 + 4 + 4 + 4;
+  static final int FORMAT_VERSION = 1;
+
+  private final File directory;
+  private final int segmentSize;
+  private final long maxBytes;
+  private final long maxAgeMillis;
+
+  /** Oldest first, the last one is being appended to. Guarded by this. */
+  private final Deque<Segment> segments = new ArrayDeque<>();
+
+  private long nextSegmentId = 0;
+  private long totalBytes = 0;
+  /** Segment of the entry handed out by {@link #peek()} and not released yet. */
+  private Segment readingSegment = null;
+
+  private boolean closed = false;
+
+  private final AtomicLong droppedTraces = new AtomicLong(0);
+  private final AtomicLong droppedSpans = new AtomicLong(0);
+  private final AtomicLong droppedBytes = new AtomicLong(0);
+
+  PayloadSpool(final File directory, final long maxBytes, final long maxAgeMillis)
+      throws IOException {
+    this(directory, DEFAULT_SEGMENT_SIZE, maxBytes, maxAgeMillis);
+  }
+
+  PayloadSpool(
+      final File directory, final int segmentSize, final long maxBytes, final long maxAgeMillis)
+      throws IOException {
+    this.directory = directory;
+    // A segment is never larger than the spool, unless a single payload needs it.
+    this.segmentSize = (int) Math.min(segmentSize, maxBytes);
+    this.maxBytes = maxBytes;
+    this.maxAgeMillis = maxAgeMillis;
+
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Unable to create spool directory " + directory);
+    }
+    loadSegments();
+  }
+
+  /**
+   * Copy the payload to the end of the spool.
+   *
+   * @return false if the payload was dropped because it doesn't fit in the spool
+   */
+  synchronized boolean append(final Payload payload, final int representativeCount) {
+    final int length = payload.getSizeInBytes();
+    final int recordSize = RECORD_HEADER_SIZE + length;
+    if (closed || recordSize > maxBytes) {
+      drop(payload.getTraceCount(), payload.getSpanCount(), length);
+      return false;
+    }
+
+    try {
+      Segment segment = segments.peekLast();
+      if (segment == null || segment.buffer.remaining() < recordSize) {
+        final int capacity = Math.max(segmentSize, recordSize);
+        while (!segments.isEmpty() && totalBytes + capacity > maxBytes) {
+          evict(segments.pollFirst());
+        }
+        segment = createSegment(capacity);
+      }
+
+      final MappedByteBuffer buffer = segment.buffer;
+      final int position = buffer.position();
+      buffer.position(position + 4);
+      buffer.putInt(FORMAT_VERSION);
+      buffer.putLong(System.currentTimeMillis());
+      buffer.putInt(payload.getTraceCount());
+      buffer.putInt(payload.getSpanCount());
+      buffer.putInt(representativeCount);
+      payload.copyTo(buffer);
+      buffer.putInt(position, length);
+      return true;
+    } catch (final IOException e) {
+      log.debug("Unable to spool payload to {}", directory, e);
+      drop(payload.getTraceCount(), payload.getSpanCount(), length);
+      return false;
+    }
+  }
+
+  /**
+   * @return the oldest payload not replayed yet, or null if there is none. It stays in the spool
+   *     until {@link #commit(Entry)} is called, and must be released by either {@link
+   *     #commit(Entry)} or {@link #release(Entry)}.
+   */
+  synchronized Entry peek() {
+    if (closed) {
+      return null;
+    }
+    final long expiry = System.currentTimeMillis() - maxAgeMillis;
+    final Iterator<Segment> iterator = segments.iterator();
+    while (iterator.hasNext()) {
+      final Segment segment = iterator.next();
+      final ByteBuffer buffer = segment.buffer;
+      while (segment.readPosition + RECORD_HEADER_SIZE <= buffer.capacity()) {
+        final int position = segment.readPosition;
+        final int length = buffer.getInt(position);
+        if (length == 0) {
+          break;
+        }
+        final int version = buffer.getInt(position + 4);
+        if (length > 0 && version != FORMAT_VERSION) {
+          log.debug("Skipping spooled payload of unknown format version {}", version);
+          droppedBytes.addAndGet(length);
+          buffer.putInt(position, -length);
+        } else if (length > 0 && buffer.getLong(position + 8) >= expiry) {
+          final ByteBuffer bytes = buffer.duplicate();
+          bytes.position(position + RECORD_HEADER_SIZE);
+          bytes.limit(position + RECORD_HEADER_SIZE + length);
+          final int traceCount = buffer.getInt(position + 16);
+          final int spanCount = buffer.getInt(position + 20);
+          final Payload payload =
+              new Payload(
+                  null,
+                  new byte[0],
+                  Collections.singletonList(bytes.slice()),
+                  traceCount,
+                  spanCount);
+          readingSegment = segment;
+          return new Entry(segment, position, payload, buffer.getInt(position + 24));
+        } else if (length > 0) {
+          log.debug("Dropping spooled payload older than {} ms", maxAgeMillis);
+          drop(buffer.getInt(position + 16), buffer.getInt(position + 20), length);
+          buffer.putInt(position, -length);
+        }
+        segment.readPosition = position + RECORD_HEADER_SIZE + Math.abs(length);
+      }
+      if (segment == segments.peekLast()) {
+        break;
+      }
+      // Fully replayed and no longer appended to.
+      iterator.remove();
+      delete(segment);
+    }
+    return null;
+  }
+
+  /** Mark the entry as replayed so it won't be returned again, and release it. */
+  synchronized void commit(final Entry entry) {
+    final ByteBuffer buffer = entry.segment.buffer;
+    final int length = buffer.getInt(entry.position);
+    if (length > 0) {
+      buffer.putInt(entry.position, -length);
+    }
+    release(entry);
+  }
+
+  /** Done with the entry, which will be returned again if not committed. */
+  synchronized void release(final Entry entry) {
+    final Segment segment = entry.segment;
+    if (segment != readingSegment) {
+      return;
+    }
+    readingSegment = null;
+    if (segment.deleted) {
+      unmapAndDelete(segment);
+    } else if (closed) {
+      unmap(segment.buffer);
+    }
+  }
+
+  /** Unmap the segments, which are kept on disk for the next run. */
+  synchronized void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    for (final Segment segment : segments) {
+      if (segment != readingSegment) {
+        unmap(segment.buffer);
+      }
+    }
+  }
+
+  long getDroppedTraces() {
+    return droppedTraces.get();
+  }
+
+  long getDroppedSpans() {
+    return droppedSpans.get();
+  }
+
+  long getDroppedBytes() {
+    return droppedBytes.get();
+  }
+
+  private void drop(final int traces, final int spans, final int bytes) {
+    droppedTraces.addAndGet(traces);
+    droppedSpans.addAndGet(spans);
+    droppedBytes.addAndGet(bytes);
+  }
+
+  private void evict(final Segment segment) {
+    final ByteBuffer buffer = segment.buffer;
+    int position = segment.readPosition;
+    while (position + RECORD_HEADER_SIZE <= buffer.capacity()) {
+      final int length = buffer.getInt(position);
+      if (length == 0) {
+        break;
+      }
+      if (length > 0 && buffer.getInt(position + 4) == FORMAT_VERSION) {
+        drop(buffer.getInt(position + 16), buffer.getInt(position + 20), length);
+      } else if (length > 0) {
+        droppedBytes.addAndGet(length);
+      }
+      position += RECORD_HEADER_SIZE + Math.abs(length);
+    }
+    log.debug("Spool is full. Dropping segment {}", segment.file);
+    delete(segment);
+  }
+
+  private Segment createSegment(final int capacity) throws IOException {
+    final File file = new File(directory, SEGMENT_PREFIX + nextSegmentId++ + SEGMENT_SUFFIX);
+    final Segment segment = new Segment(file, map(file, capacity));
+    segments.addLast(segment);
+    totalBytes += capacity;
+    return segment;
+  }
+
+  private void delete(final Segment segment) {
+    totalBytes -= segment.buffer.capacity();
+    if (segment == readingSegment) {
+      // Still being sent, deleted once released.
+      segment.deleted = true;
+    } else {
+      unmapAndDelete(segment);
+    }
+  }
+
+  private void unmapAndDelete(final Segment segment) {
+    unmap(segment.buffer);
+    if (!segment.file.delete()) {
+      log.debug("Unable to delete spool segment {}", segment.file);
+    }
+  }
+
+  private void loadSegments() throws IOException {
+    final File[] files =
+        directory.listFiles(
+            new FileFilter() {
+              @Override
+              public boolean accept(final File file) {
+                return file.isFile()
+                    && file.getName().startsWith(SEGMENT_PREFIX)
+                    && file.getName().endsWith(SEGMENT_SUFFIX);
+              }
+            });
+    if (files == null) {
+      return;
+    }
+    final long[] ids = new long[files.length];
+    for (int i = 0; i < files.length; i++) {
+      final String name = files[i].getName();
+      try {
+        ids[i] =
+            Long.parseLong(
+                name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+      } catch (final NumberFormatException e) {
+        ids[i] = -1;
+      }
+    }
+    Arrays.sort(ids);
+    for (final long id : ids) {
+      if (id < 0) {
+        continue;
+      }
+      final File file = new File(directory, SEGMENT_PREFIX + id + SEGMENT_SUFFIX);
+      final MappedByteBuffer buffer = map(file, (int) file.length());
+      // Find the end of the records to continue appending after them.
+      int position = 0;
+      while (position + RECORD_HEADER_SIZE <= buffer.capacity()) {
+        final int length = buffer.getInt(position);
+        if (length == 0) {
+          break;
+        }
+        position += RECORD_HEADER_SIZE + Math.abs(length);
+      }
+      buffer.position(Math.min(position, buffer.capacity()));
+      segments.addLast(new Segment(file, buffer));
+      totalBytes += buffer.capacity();
+      nextSegmentId = id + 1;
+    }
+    if (!segments.isEmpty()) {
+      log.debug("Found {} spooled segments in {}", segments.size(), directory);
+    }
+  }
+
+  private static MappedByteBuffer map(final File file, final int size) throws IOException {
+    try (final RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      // The mapping stays valid once the channel is closed.
+      return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+  }
+
+  /**
+   * Release the mapping now rather than when the buffer is collected. The buffer must not be used
+   * afterwards.
+   */
+  private static void unmap(final MappedByteBuffer buffer) {
+    try {
+      try {
+        // Java 9+
+        final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+        final Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+        theUnsafe.setAccessible(true);
+        invokeCleaner.invoke(theUnsafe.get(null), buffer);
+      } catch (final NoSuchMethodException e) {
+        // Java 7 and 8
+        final Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+        cleanerMethod.setAccessible(true);
+        final Object cleaner = cleanerMethod.invoke(buffer);
+        cleaner.getClass().getMethod("clean").invoke(cleaner);
+      }
+    } catch (final Throwable e) {
+      log.debug("Unable to unmap spool segment, left to the GC", e);
+    }
+  }
+
+  /** A spooled payload being replayed. */
+  static class Entry {
+    private final Segment segment;
+    private final int position;
+    private final Payload payload;
+    private final int representativeCount;
+
+    private Entry(
+        final Segment segment,
+        final int position,
+        final Payload payload,
+        final int representativeCount) {
+      this.segment = segment;
+      this.position = position;
+      this.payload = payload;
+      this.representativeCount = representativeCount;
+    }
+
+    Payload getPayload() {
+      return payload;
+    }
+
+    int getRepresentativeCount() {
+      return representativeCount;
+    }
+  }
+
+  private static class Segment {
+    private final File file;
+    /** Positioned at the end of the records. */
+    private final MappedByteBuffer buffer;
+    /** Records before this position have been replayed or dropped. */
+    private int readPosition = 0;
+    /** Set when deleted while its entry was being replayed. */
+    private boolean deleted = false;
+
+    private Segment(final File file, final MappedByteBuffer buffer) {
+      this.file = file;
+      this.buffer = buffer;
+    }
+  }
+}
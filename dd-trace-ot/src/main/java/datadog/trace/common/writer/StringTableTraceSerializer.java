@@ -0,0 +1,133 @@
+package datadog.trace.common.writer;
+
+import datadog.opentracing.DDSpan;
+import datadog.opentracing.DDSpanContext;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import org.msgpack.core.MessageBufferPacker;
+import org.msgpack.core.MessagePack;
+
+/**
+ * Serializes traces to the v0.5 agent format, where each string is written once per payload.
+ *
+ * <p>The payload is {@code [strings, traces]}. Spans are arrays of fixed length and refer to their
+ * service, name, resource, type and meta keys and values by index in the {@code strings} array.
+ * Index 0 is always the empty string, which also stands for null.
+ *
+ * <p>The string table is kept across the traces of a payload and reset by {@link
+ * #finishPayload()}. Strings interned by a trace that failed to serialize stay in the table unused.
+ *
+ * <p>This class is intentionally not threadsafe.
+ */
+public class StringTableTraceSerializer extends TraceSerializer {
+  private static final int SPAN_FIELD_COUNT = 12;
+
+  private final Map<String, Integer> stringIndexes = new HashMap<>();
+  /** The encoded strings of the table, in index order. */
+  private final MessageBufferPacker stringTable = MessagePack.newDefaultBufferPacker();
+  /** The packer's written byte count isn't reset by {@link MessageBufferPacker#clear()}. */
+  private long stringTableStart = 0;
+
+  public StringTableTraceSerializer() {
+    this(new BufferPool());
+  }
+
+  StringTableTraceSerializer(final BufferPool pool) {
+    super(pool);
+    resetStringTable();
+  }
+
+  /** @return the number of serialized bytes in the current payload, string table included */
+  @Override
+  public int getPayloadSize() {
+    return super.getPayloadSize() + (int) (stringTable.getTotalWrittenBytes() - stringTableStart);
+  }
+
+  @Override
+  Payload finishPayload() {
+    final Payload payload = super.finishPayload();
+    resetStringTable();
+    return payload;
+  }
+
+  @Override
+  byte[] payloadHeader(final int traceCount) {
+    final byte[] outerHeader = arrayHeader(2);
+    final byte[] tableHeader = arrayHeader(stringIndexes.size());
+    final byte[] strings = stringTable.toByteArray();
+    final byte[] tracesHeader = arrayHeader(traceCount);
+
+    final byte[] header =
+        new byte[outerHeader.length + tableHeader.length + strings.length + tracesHeader.length];
+    int offset = 0;
+    for (final byte[] part : new byte[][] {outerHeader, tableHeader, strings, tracesHeader}) {
+      System.arraycopy(part, 0, header, offset, part.length);
+      offset += part.length;
+    }
+    return header;
+  }
+
+  @Override
+  void writeSpan(final DDSpan span) throws IOException {
+    final DDSpanContext context = span.context();
+
+    packer.packArrayHeader(SPAN_FIELD_COUNT);
+    writeStringIndex(context.getServiceName());
+    writeStringIndex(context.getOperationName());
+    writeStringIndex(context.getResourceName());
+    writeId(context.getTraceIdAsLong());
+    writeId(context.getSpanIdAsLong());
+    writeId(context.getParentIdAsLong());
+    packer.packLong(span.getStartTime());
+    packer.packLong(span.getDurationNano());
+    packer.packInt(context.getErrorFlag() ? 1 : 0);
+    writeMeta(context.getBaggageItems(), context.getTags());
+    writeMetrics(context.getMetrics());
+    writeStringIndex(context.getSpanType());
+  }
+
+  /** Meta keys and values are written as string table indexes in this format. */
+  @Override
+  protected void writeMetaString(final String value) throws IOException {
+    writeStringIndex(value);
+  }
+
+  /** Metrics are always written as doubles in this format. */
+  private void writeMetrics(final Map<String, Number> metrics) throws IOException {
+    packer.packMapHeader(metrics.size());
+    for (final Map.Entry<String, Number> entry : metrics.entrySet()) {
+      writeStringIndex(entry.getKey());
+      final Number value = entry.getValue();
+      packer.packDouble(value == null ? 0 : value.doubleValue());
+    }
+  }
+
+  private void writeStringIndex(final String value) throws IOException {
+    packer.packInt(intern(value == null ? "" : value));
+  }
+
+  private int intern(final String value) throws IOException {
+    final Integer index = stringIndexes.get(value);
+    if (index != null) {
+      return index;
+    }
+    final int newIndex = stringIndexes.size();
+    stringIndexes.put(value, newIndex);
+    stringTable.packString(value);
+    return newIndex;
+  }
+
+  private void resetStringTable() {
+    stringIndexes.clear();
+    stringTable.clear();
+    stringTableStart = stringTable.getTotalWrittenBytes();
+    stringIndexes.put("", 0);
+    try {
+      stringTable.packString("");
+    } catch (final IOException e) {
+      // Can't happen, the table is written to memory.
+      throw new IllegalStateException(e);
+    }
+  }
+}
@@ -0,0 +1,371 @@
+package datadog.trace.common.writer;
+
+import datadog.opentracing.DDSpan;
+import datadog.opentracing.DDSpanContext;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.msgpack.core.MessagePack;
+import org.msgpack.core.MessagePacker;
+import org.msgpack.core.buffer.MessageBuffer;
+import org.msgpack.core.buffer.MessageBufferOutput;
+
+/**
+ * Serializes traces to the msgpack format expected by the DD agent.
+ *
+ * <p>Spans are written field by field by a reused {@link MessagePacker}. This avoids the reflective
+ * Jackson bean serialization of {@link DDSpan} along with the meta map and {@link BigInteger} ids
+ * it allocates for every span. The produced bytes are identical in content to what the Jackson
+ * annotations on {@link DDSpan} describe.
+ *
+ * <p>Traces are appended to the current payload, which lives in direct buffers borrowed from a
+ * {@link BufferPool}, until {@link #finishPayload()} hands it over for sending.
+ *
+ * <p>This class is intentionally not threadsafe.
+ */
+public class TraceSerializer {
+  private static final int SPAN_FIELD_COUNT = 12;
+
+  private static final byte UINT64_PREFIX = (byte) 0xcf;
+
+  // Encoded once rather than for every span.
+  private static final byte[] SERVICE_KEY = fieldName("service");
+  private static final byte[] NAME_KEY = fieldName("name");
+  private static final byte[] RESOURCE_KEY = fieldName("resource");
+  private static final byte[] TRACE_ID_KEY = fieldName("trace_id");
+  private static final byte[] SPAN_ID_KEY = fieldName("span_id");
+  private static final byte[] PARENT_ID_KEY = fieldName("parent_id");
+  private static final byte[] START_KEY = fieldName("start");
+  private static final byte[] DURATION_KEY = fieldName("duration");
+  private static final byte[] TYPE_KEY = fieldName("type");
+  private static final byte[] ERROR_KEY = fieldName("error");
+  private static final byte[] METRICS_KEY = fieldName("metrics");
+  private static final byte[] META_KEY = fieldName("meta");
+
+  private final BufferPool pool;
+  private final SegmentedOutput output;
+  final MessagePacker packer;
+  /** Scratch space for ids that don't fit in a signed long. */
+  private final byte[] uint64Buffer = new byte[9];
+
+  private int traceCount = 0;
+  private int spanCount = 0;
+
+  public TraceSerializer() {
+    this(new BufferPool());
+  }
+
+  TraceSerializer(final BufferPool pool) {
+    this.pool = pool;
+    output = new SegmentedOutput(pool);
+    packer = MessagePack.newDefaultPacker(output);
+  }
+
+  /**
+   * Append a trace, as a msgpack array of spans, to the current payload.
+   *
+   * <p>If serialization fails the partially written trace is discarded, leaving the payload intact.
+   *
+   * @param trace the spans of the trace
+   * @return the number of bytes added to the payload
+   */
+  public int serialize(final List<DDSpan> trace) throws IOException {
+    final int mark = output.getSize();
+    try {
+      packer.packArrayHeader(trace.size());
+      for (final DDSpan span : trace) {
+        writeSpan(span);
+      }
+      packer.flush();
+    } catch (final IOException | RuntimeException e) {
+      // The packer may still be writing into a segment, which the truncation could release.
+      packer.flush();
+      output.truncate(mark);
+      throw e;
+    }
+    traceCount++;
+    spanCount += trace.size();
+    return output.getSize() - mark;
+  }
+
+  /** @return the number of traces in the current payload */
+  public int getTraceCount() {
+    return traceCount;
+  }
+
+  /** @return the number of serialized bytes in the current payload */
+  public int getPayloadSize() {
+    return output.getSize();
+  }
+
+  /** Hand over the current payload and start a new, empty one. */
+  Payload finishPayload() {
+    final Payload payload =
+        new Payload(
+            pool, payloadHeader(traceCount), output.takeSegments(), traceCount, spanCount);
+    traceCount = 0;
+    spanCount = 0;
+    return payload;
+  }
+
+  /** @return the encoded bytes preceding the traces of the payload */
+  byte[] payloadHeader(final int traceCount) {
+    return arrayHeader(traceCount);
+  }
+
+  void writeSpan(final DDSpan span) throws IOException {
+    final DDSpanContext context = span.context();
+
+    packer.packMapHeader(SPAN_FIELD_COUNT);
+    packer.writePayload(SERVICE_KEY);
+    writeString(context.getServiceName());
+    packer.writePayload(NAME_KEY);
+    writeString(context.getOperationName());
+    packer.writePayload(RESOURCE_KEY);
+    writeString(context.getResourceName());
+    packer.writePayload(TRACE_ID_KEY);
+    writeId(context.getTraceIdAsLong());
+    packer.writePayload(SPAN_ID_KEY);
+    writeId(context.getSpanIdAsLong());
+    packer.writePayload(PARENT_ID_KEY);
+    writeId(context.getParentIdAsLong());
+    packer.writePayload(START_KEY);
+    packer.packLong(span.getStartTime());
+    packer.writePayload(DURATION_KEY);
+    packer.packLong(span.getDurationNano());
+    packer.writePayload(TYPE_KEY);
+    writeString(context.getSpanType());
+    packer.writePayload(ERROR_KEY);
+    packer.packInt(context.getErrorFlag() ? 1 : 0);
+    packer.writePayload(METRICS_KEY);
+    writeMetrics(context.getMetrics());
+    packer.writePayload(META_KEY);
+    writeMeta(context.getBaggageItems(), context.getTags());
+  }
+
+  /**
+   * Meta merges baggage and tags (stringified values), tags taking precedence. Keys and values are
+   * written by {@link #writeMetaString(String)}.
+   */
+  void writeMeta(final Map<String, String> baggage, final Map<String, Object> tags)
+      throws IOException {
+    int size = tags.size();
+    for (final String key : baggage.keySet()) {
+      if (!tags.containsKey(key)) {
+        size++;
+      }
+    }
+
+    packer.packMapHeader(size);
+    for (final Map.Entry<String, String> entry : baggage.entrySet()) {
+      if (!tags.containsKey(entry.getKey())) {
+        writeMetaString(entry.getKey());
+        writeMetaString(entry.getValue());
+      }
+    }
+    for (final Map.Entry<String, Object> entry : tags.entrySet()) {
+      writeMetaString(entry.getKey());
+      final Object value = entry.getValue();
+      writeMetaString(value instanceof String ? (String) value : String.valueOf(value));
+    }
+  }
+
+  /** Encodes a meta key or value, null values included. */
+  protected void writeMetaString(final String value) throws IOException {
+    writeString(value);
+  }
+
+  private void writeMetrics(final Map<String, Number> metrics) throws IOException {
+    packer.packMapHeader(metrics.size());
+    for (final Map.Entry<String, Number> entry : metrics.entrySet()) {
+      packer.packString(entry.getKey());
+      writeNumber(entry.getValue());
+    }
+  }
+
+  private void writeNumber(final Number value) throws IOException {
+    if (value == null) {
+      packer.packNil();
+    } else if (value instanceof Double || value instanceof Float || value instanceof BigDecimal) {
+      packer.packDouble(value.doubleValue());
+    } else if (value instanceof BigInteger) {
+      packer.packBigInteger((BigInteger) value);
+    } else {
+      packer.packLong(value.longValue());
+    }
+  }
+
+  private void writeString(final String value) throws IOException {
+    if (value == null) {
+      packer.packNil();
+    } else {
+      packer.packString(value);
+    }
+  }
+
+  /** Ids are unsigned 64 bit integers, values above {@link Long#MAX_VALUE} are negative. */
+  void writeId(final long value) throws IOException {
+    if (value >= 0) {
+      packer.packLong(value);
+    } else {
+      uint64Buffer[0] = UINT64_PREFIX;
+      for (int i = 8; i > 0; i--) {
+        uint64Buffer[i] = (byte) (value >>> ((8 - i) * 8));
+      }
+      packer.writePayload(uint64Buffer, 0, uint64Buffer.length);
+    }
+  }
+
+  /** Encode a field name, which is short and ASCII, as a msgpack fixstr. */
+  private static byte[] fieldName(final String name) {
+    final byte[] encoded = new byte[name.length() + 1];
+    encoded[0] = (byte) (0xa0 | name.length());
+    for (int i = 0; i < name.length(); i++) {
+      encoded[i + 1] = (byte) name.charAt(i);
+    }
+    return encoded;
+  }
+
+  /** Encode a msgpack array header without going through a packer. */
+  static byte[] arrayHeader(final int size) {
+    if (size < (1 << 4)) {
+      return new byte[] {(byte) (0x90 | size)};
+    } else if (size < (1 << 16)) {
+      return new byte[] {(byte) 0xdc, (byte) (size >>> 8), (byte) size};
+    } else {
+      return new byte[] {
+        (byte) 0xdd, (byte) (size >>> 24), (byte) (size >>> 16), (byte) (size >>> 8), (byte) size
+      };
+    }
+  }
+
+  /**
+   * Packer output appending to pooled segments.
+   *
+   * <p>The packer encodes straight into the free space of the current segment. A segment without
+   * room for the next value is closed early, leaving its tail unused. Only values larger than a
+   * whole segment are staged in a heap buffer and copied, as is everything when direct buffers
+   * can't be wrapped by msgpack on this platform.
+   */
+  private static final class SegmentedOutput implements MessageBufferOutput {
+    private final BufferPool pool;
+    private List<ByteBuffer> segments = new ArrayList<>();
+    /** The segment handed to the packer, null if it was given the staging buffer. */
+    private ByteBuffer writing = null;
+
+    private boolean wrapSegments = true;
+    private byte[] staging = new byte[0];
+    private MessageBuffer stagingBuffer = MessageBuffer.wrap(staging);
+    private int size = 0;
+
+    private SegmentedOutput(final BufferPool pool) {
+      this.pool = pool;
+    }
+
+    int getSize() {
+      return size;
+    }
+
+    @Override
+    public MessageBuffer next(final int minimumSize) {
+      if (wrapSegments && minimumSize <= pool.getSegmentSize()) {
+        ByteBuffer segment = currentSegment();
+        if (segment.remaining() < minimumSize) {
+          segment.limit(segment.position());
+          segment = currentSegment();
+        }
+        try {
+          final MessageBuffer buffer = MessageBuffer.wrap(segment);
+          writing = segment;
+          return buffer;
+        } catch (final UnsupportedOperationException e) {
+          wrapSegments = false;
+        }
+      }
+      writing = null;
+      if (staging.length < minimumSize) {
+        staging = new byte[Math.max(minimumSize, 8192)];
+        stagingBuffer = MessageBuffer.wrap(staging);
+      }
+      return stagingBuffer;
+    }
+
+    @Override
+    public void writeBuffer(final int length) {
+      if (writing == null) {
+        write(staging, 0, length);
+      } else {
+        writing.position(writing.position() + length);
+        size += length;
+        writing = null;
+      }
+    }
+
+    @Override
+    public void write(final byte[] buffer, int offset, int length) {
+      while (length > 0) {
+        final ByteBuffer segment = currentSegment();
+        final int count = Math.min(length, segment.remaining());
+        segment.put(buffer, offset, count);
+        offset += count;
+        length -= count;
+        size += count;
+      }
+    }
+
+    @Override
+    public void add(final byte[] buffer, final int offset, final int length) {
+      write(buffer, offset, length);
+    }
+
+    /** Discard everything written after {@code mark}. */
+    void truncate(final int mark) {
+      while (size > mark) {
+        final ByteBuffer segment = segments.get(segments.size() - 1);
+        final int excess = size - mark;
+        if (segment.position() <= excess) {
+          size -= segment.position();
+          segments.remove(segments.size() - 1);
+          pool.release(segment);
+        } else {
+          segment.position(segment.position() - excess);
+          segment.limit(segment.capacity());
+          size = mark;
+        }
+      }
+    }
+
+    /** @return the written segments, flipped for reading */
+    List<ByteBuffer> takeSegments() {
+      final List<ByteBuffer> written = segments;
+      for (final ByteBuffer segment : written) {
+        segment.flip();
+      }
+      segments = new ArrayList<>(written.size());
+      size = 0;
+      return written;
+    }
+
+    private ByteBuffer currentSegment() {
+      if (!segments.isEmpty()) {
+        final ByteBuffer last = segments.get(segments.size() - 1);
+        if (last.hasRemaining()) {
+          return last;
+        }
+      }
+      final ByteBuffer segment = pool.acquire();
+      segments.add(segment);
+      return segment;
+    }
+
+    @Override
+    public void flush() {}
+
+    @Override
+    public void close() {}
+  }
+}
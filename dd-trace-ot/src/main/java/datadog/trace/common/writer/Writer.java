@@ -64,7 +64,14 @@ public interface Writer extends Closeable {
     private static Writer createAgentWriter(final Config config) {
       return new DDAgentWriter(
           new DDApi(
-              config.getAgentHost(), config.getAgentPort(), config.getAgentUnixDomainSocket()));
+              config.getAgentHost(),
+              config.getAgentPort(),
+              config.getAgentUnixDomainSocket(),
+              config.getAgentTimeout(),
+              config.getWriterSenderThreads(),
+              config.isAgentGzipEnabled(),
+              config.isAgentV05Enabled()),
+          config);
     }
 
     private Builder() {}
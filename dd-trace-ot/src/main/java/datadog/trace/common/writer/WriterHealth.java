@@ -0,0 +1,167 @@
+package datadog.trace.common.writer;
+
+import com.lmax.disruptor.RingBuffer;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Collects the {@link WriterHealthMBean} metrics. Most are read from the writer's components when
+ * queried, only the serialization counters are updated by the writer.
+ */
+@Slf4j
+public class WriterHealth implements WriterHealthMBean {
+  static final String OBJECT_NAME = "datadog.trace:type=AgentWriter";
+
+  /** The bean currently registered. Guarded by the class. */
+  private static WriterHealth registered;
+
+  private final DDApi api;
+  private final PayloadDispatcher dispatcher;
+  private final List<RingBuffer<?>> ringBuffers;
+
+  private final AtomicLong tracesSerialized = new AtomicLong(0);
+  private final AtomicLong spansSerialized = new AtomicLong(0);
+  private final AtomicLong serializationNanos = new AtomicLong(0);
+
+  WriterHealth(
+      final DDApi api, final PayloadDispatcher dispatcher, final List<RingBuffer<?>> ringBuffers) {
+    this.api = api;
+    this.dispatcher = dispatcher;
+    this.ringBuffers = ringBuffers;
+  }
+
+  void onSerialized(final int spanCount, final long nanos) {
+    tracesSerialized.incrementAndGet();
+    spansSerialized.addAndGet(spanCount);
+    serializationNanos.addAndGet(nanos);
+  }
+
+  /** Replaces the bean of a previous writer, the latest one started being the one in use. */
+  void register() {
+    synchronized (WriterHealth.class) {
+      try {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        final ObjectName name = new ObjectName(OBJECT_NAME);
+        if (server.isRegistered(name)) {
+          server.unregisterMBean(name);
+        }
+        server.registerMBean(this, name);
+        registered = this;
+      } catch (final JMException e) {
+        log.debug("Unable to register writer health metrics", e);
+      }
+    }
+  }
+
+  void unregister() {
+    synchronized (WriterHealth.class) {
+      if (registered != this) {
+        return;
+      }
+      registered = null;
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(OBJECT_NAME));
+      } catch (final JMException e) {
+        log.debug("Unable to unregister writer health metrics", e);
+      }
+    }
+  }
+
+  @Override
+  public long getRingBufferSize() {
+    long size = 0;
+    for (final RingBuffer<?> ringBuffer : ringBuffers) {
+      size += ringBuffer.getBufferSize();
+    }
+    return size;
+  }
+
+  @Override
+  public long getRingBufferOccupancy() {
+    long occupancy = 0;
+    for (final RingBuffer<?> ringBuffer : ringBuffers) {
+      occupancy += ringBuffer.getBufferSize() - ringBuffer.remainingCapacity();
+    }
+    return occupancy;
+  }
+
+  @Override
+  public long getTracesSerialized() {
+    return tracesSerialized.get();
+  }
+
+  @Override
+  public long getSpansSerialized() {
+    return spansSerialized.get();
+  }
+
+  @Override
+  public long getSerializationNanos() {
+    return serializationNanos.get();
+  }
+
+  @Override
+  public long getPendingPayloads() {
+    return dispatcher.getPendingPayloads();
+  }
+
+  @Override
+  public long getPendingBytes() {
+    return dispatcher.getPendingBytes();
+  }
+
+  @Override
+  public long getPayloadsSent() {
+    return api.getSendCount();
+  }
+
+  @Override
+  public long getPayloadBytesSent() {
+    return api.getSentBytes();
+  }
+
+  @Override
+  public long getSendNanos() {
+    return api.getSendNanos();
+  }
+
+  @Override
+  public long getSuccessResponses() {
+    return api.getResponseCount(2);
+  }
+
+  @Override
+  public long getClientErrorResponses() {
+    return api.getResponseCount(4);
+  }
+
+  @Override
+  public long getServerErrorResponses() {
+    return api.getResponseCount(5);
+  }
+
+  @Override
+  public long getSendErrors() {
+    return api.getResponseCount(0);
+  }
+
+  @Override
+  public long getDroppedTraces() {
+    return dispatcher.getDroppedTraces();
+  }
+
+  @Override
+  public long getDroppedSpans() {
+    return dispatcher.getDroppedSpans();
+  }
+
+  @Override
+  public long getDroppedBytes() {
+    return dispatcher.getDroppedBytes();
+  }
+}
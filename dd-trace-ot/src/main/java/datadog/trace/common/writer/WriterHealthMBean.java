@@ -0,0 +1,52 @@
+package datadog.trace.common.writer;
+
+/**
+ * Health metrics of the {@link DDAgentWriter}, registered as {@value WriterHealth#OBJECT_NAME} for
+ * JMXFetch to report.
+ *
+ * <p>Counts and totals are cumulative since the writer started, their rates give e.g. the average
+ * serialization time per span or the average send latency over the collection period.
+ */
+public interface WriterHealthMBean {
+  /** @return the capacity of the ring buffers, all shards combined */
+  long getRingBufferSize();
+
+  /** @return the number of traces waiting in the ring buffers to be serialized */
+  long getRingBufferOccupancy();
+
+  long getTracesSerialized();
+
+  long getSpansSerialized();
+
+  long getSerializationNanos();
+
+  /** @return the number of payloads waiting to be sent or being sent */
+  long getPendingPayloads();
+
+  long getPendingBytes();
+
+  /** @return the number of payloads sent, successfully or not */
+  long getPayloadsSent();
+
+  long getPayloadBytesSent();
+
+  long getSendNanos();
+
+  /** @return the number of 2xx responses from the agent */
+  long getSuccessResponses();
+
+  /** @return the number of 4xx responses from the agent */
+  long getClientErrorResponses();
+
+  /** @return the number of 5xx responses from the agent */
+  long getServerErrorResponses();
+
+  /** @return the number of sends which got no response */
+  long getSendErrors();
+
+  long getDroppedTraces();
+
+  long getDroppedSpans();
+
+  long getDroppedBytes();
+}
@@ -156,11 +156,11 @@ class DDSpanBuilderTest extends Specification {
   def "should link to parent span"() {
     setup:
     final String spanId = "1"
-    final long expectedParentId = spanId
+    final String expectedParentId = spanId
 
     final DDSpanContext mockedContext = mock(DDSpanContext)
-    when(mockedContext.getTraceId()).thenReturn(spanId)
-    when(mockedContext.getSpanId()).thenReturn(spanId)
+    when(mockedContext.getTraceIdAsLong()).thenReturn(1L)
+    when(mockedContext.getSpanIdAsLong()).thenReturn(1L)
     when(mockedContext.getServiceName()).thenReturn("foo")
     when(mockedContext.getTrace()).thenReturn(new PendingTrace(tracer, "1", [:]))
 
@@ -429,7 +429,7 @@ class DDSpanBuilderTest extends Specification {
     span.samplingPriority == extractedContext.samplingPriority
     span.context().origin == extractedContext.origin
     span.context().baggageItems == extractedContext.baggage
-    span.context().@tags == extractedContext.tags + [(Config.RUNTIME_ID_TAG)  : config.getRuntimeId(),
+    span.context().tags == extractedContext.tags + [(Config.RUNTIME_ID_TAG)  : config.getRuntimeId(),
                                                      (Config.LANGUAGE_TAG_KEY): Config.LANGUAGE_TAG_VALUE,
                                                      (DDTags.THREAD_NAME)     : thread.name, (DDTags.THREAD_ID): thread.id]
 
@@ -450,7 +450,7 @@ class DDSpanBuilderTest extends Specification {
     span.samplingPriority == PrioritySampling.SAMPLER_KEEP // Since we're using the RateByServiceSampler
     span.context().origin == tagContext.origin
     span.context().baggageItems == [:]
-    span.context().@tags == tagContext.tags + [(Config.RUNTIME_ID_TAG)  : config.getRuntimeId(),
+    span.context().tags == tagContext.tags + [(Config.RUNTIME_ID_TAG)  : config.getRuntimeId(),
                                                (Config.LANGUAGE_TAG_KEY): Config.LANGUAGE_TAG_VALUE,
                                                (DDTags.THREAD_NAME)     : thread.name, (DDTags.THREAD_ID): thread.id]
 
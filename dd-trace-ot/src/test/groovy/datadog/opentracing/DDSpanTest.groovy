@@ -328,4 +328,23 @@ class DDSpanTest extends Specification {
     'manual.drop' | 1
     'manual.keep' | 1
   }
+
+  def "spans share an empty baggage map until an item is set"() {
+    setup:
+    def root = tracer.buildSpan("root").start()
+    def child = tracer.buildSpan("child").asChildOf(root).start()
+
+    expect:
+    root.context().baggageItems.is(child.context().baggageItems)
+    root.context().baggageItems.isEmpty()
+
+    when:
+    child.setBaggageItem("key", "value")
+    def grandChild = tracer.buildSpan("grandChild").asChildOf(child).start()
+
+    then:
+    root.context().baggageItems.isEmpty()
+    child.getBaggageItem("key") == "value"
+    grandChild.getBaggageItem("key") == "value"
+  }
 }
@@ -0,0 +1,28 @@
+package datadog.opentracing
+
+import datadog.opentracing.decorators.AbstractDecorator
+import spock.lang.Specification
+
+class DecoratorTableTest extends Specification {
+
+  def "decorators are grouped by tag in insertion order"() {
+    setup:
+    def decorators = (0..<40).collect { decorator("tag" + (it % 20)) }
+    def table = DecoratorTable.EMPTY
+    decorators.each { table = table.with(it) }
+
+    expect:
+    table.size() == 20
+    (0..<20).every {
+      table.get(new String("tag" + it)) as List == [decorators[it], decorators[it + 20]]
+    }
+    table.get("other") == null
+    DecoratorTable.EMPTY.size() == 0
+  }
+
+  def decorator(String tag) {
+    def decorator = new AbstractDecorator() {}
+    decorator.setMatchingTag(tag)
+    return decorator
+  }
+}
@@ -0,0 +1,80 @@
+package datadog.opentracing
+
+import spock.lang.Specification
+
+class MetricMapTest extends Specification {
+  def map = new MetricMap()
+
+  def "number types are preserved"() {
+    when:
+    map.put("metric", value)
+
+    then:
+    map.get("metric") == value
+    map.get("metric").getClass() == value.getClass()
+    map.entrySet().first().value.getClass() == value.getClass()
+
+    where:
+    value << [
+      1,
+      Integer.MIN_VALUE,
+      Long.MAX_VALUE,
+      -1L,
+      0.5d,
+      Double.NaN,
+      (short) 3,
+      new BigInteger("18446744073709551615"),
+      new BigDecimal("1.25")
+    ]
+  }
+
+  def "behaves like a map as it grows and shrinks"() {
+    setup:
+    def expected = [:]
+
+    when:
+    (1..50).each {
+      def value = it % 3 == 0 ? it * 0.5d : it % 3 == 1 ? (long) it : new BigInteger("$it")
+      map.put("key" + it, value)
+      expected.put("key" + it, value)
+    }
+    (1..50).step(4) {
+      map.remove("key" + it)
+      expected.remove("key" + it)
+    }
+
+    then:
+    map == expected
+    map.size() == expected.size()
+    map.remove("missing") == null
+  }
+
+  def "concurrent readers never see a value with another type"() {
+    setup:
+    def longValue = Long.MAX_VALUE
+    def doubleValue = 0.5d
+    map.put("metric", longValue)
+    def running = true
+    def torn = []
+
+    when:
+    def reader = Thread.start {
+      while (running) {
+        def value = map.get("metric")
+        if (value != longValue && value != doubleValue) {
+          torn << value
+        }
+      }
+    }
+    (1..1_000_000).each {
+      synchronized (map) {
+        map.put("metric", it % 2 == 0 ? longValue : doubleValue)
+      }
+    }
+    running = false
+    reader.join()
+
+    then:
+    torn.isEmpty()
+  }
+}
@@ -2,6 +2,8 @@ package datadog.opentracing
 
 import datadog.trace.agent.test.utils.ConfigUtils
 import datadog.trace.api.Config
+import datadog.trace.api.DDTags
+import datadog.trace.api.sampling.PrioritySampling
 import datadog.trace.common.writer.ListWriter
 import datadog.trace.util.gc.GCUtils
 import spock.lang.Specification
@@ -9,10 +11,15 @@ import spock.lang.Subject
 import spock.lang.Timeout
 
 import java.lang.ref.WeakReference
+import java.util.concurrent.Executors
 import java.util.concurrent.TimeUnit
 import java.util.concurrent.atomic.AtomicInteger
 
 import static datadog.trace.api.Config.PARTIAL_FLUSH_MIN_SPANS
+import static datadog.trace.api.Config.PENDING_TRACES_MAX_SPANS
+import static datadog.trace.api.Config.PRIORITY_SAMPLING_DROP_EARLY
+import static datadog.trace.api.Config.SPAN_LEAK_DETECTION_SAMPLE_RATE
+import static datadog.trace.api.Config.TRACE_MAX_SPANS
 
 class PendingTraceTest extends Specification {
   static {
@@ -26,7 +33,10 @@ class PendingTraceTest extends Specification {
       PendingTraceTest.this.traceCount.incrementAndGet()
     }
   }
-  def tracer = new DDTracer(writer)
+  // Track every trace for leaks so that weak references can be checked.
+  def tracer = ConfigUtils.withConfigOverride(SPAN_LEAK_DETECTION_SAMPLE_RATE, "1") {
+    new DDTracer(writer)
+  }
 
   def traceId = System.identityHashCode(this)
   String traceIdStr = String.valueOf(traceId)
@@ -138,6 +148,30 @@ class PendingTraceTest extends Specification {
     !PendingTrace.SPAN_CLEANER.get().pendingTraces.contains(trace)
   }
 
+  def "trace not sampled for leak detection only counts references"() {
+    setup:
+    def tracer = new DDTracer(writer)
+    def trace = new PendingTrace(tracer, traceIdStr, [:])
+    def rootSpan = SpanFactory.newSpanOf(trace)
+    def child = tracer.buildSpan("child").asChildOf(rootSpan).start()
+
+    expect:
+    trace.pendingReferenceCount.get() == 2
+    trace.weakReferences == null
+    rootSpan.ref == null
+    !trace.clean()
+    !PendingTrace.SPAN_CLEANER.get().pendingTraces.contains(trace)
+
+    when:
+    child.finish()
+    child.finish()
+    rootSpan.finish()
+
+    then:
+    trace.pendingReferenceCount.get() == 0
+    writer == [[rootSpan, child]]
+  }
+
   def "add unfinished span to trace fails"() {
     setup:
     trace.addSpan(rootSpan)
@@ -199,7 +233,9 @@ class PendingTraceTest extends Specification {
     def properties = new Properties()
     properties.setProperty(PARTIAL_FLUSH_MIN_SPANS, "1")
     def config = Config.get(properties)
-    def tracer = new DDTracer(config, writer)
+    def tracer = ConfigUtils.withConfigOverride(SPAN_LEAK_DETECTION_SAMPLE_RATE, "1") {
+      new DDTracer(config, writer)
+    }
     def trace = new PendingTrace(tracer, traceIdStr, [:])
     def rootSpan = SpanFactory.newSpanOf(trace)
     def child1 = tracer.buildSpan("child1").asChildOf(rootSpan).start()
@@ -235,9 +271,9 @@ class PendingTraceTest extends Specification {
     then:
     trace.pendingReferenceCount.get() == 0
     trace.weakReferences.size() == 0
-    trace.asList() == [child2, rootSpan]
-    writer == [[child1], [child2, rootSpan]]
-    traceCount.get() == 2
+    trace.asList() == [rootSpan]
+    writer == [[child1], [child2], [rootSpan]]
+    traceCount.get() == 3
   }
 
   def "partial flush with root span closed last"() {
@@ -245,7 +281,9 @@ class PendingTraceTest extends Specification {
     def properties = new Properties()
     properties.setProperty(PARTIAL_FLUSH_MIN_SPANS, "1")
     def config = Config.get(properties)
-    def tracer = new DDTracer(config, writer)
+    def tracer = ConfigUtils.withConfigOverride(SPAN_LEAK_DETECTION_SAMPLE_RATE, "1") {
+      new DDTracer(config, writer)
+    }
     def trace = new PendingTrace(tracer, traceIdStr, [:])
     def rootSpan = SpanFactory.newSpanOf(trace)
     def child1 = tracer.buildSpan("child1").asChildOf(rootSpan).start()
@@ -271,8 +309,8 @@ class PendingTraceTest extends Specification {
     then:
     trace.pendingReferenceCount.get() == 1
     trace.weakReferences.size() == 1
-    trace.asList() == []
-    writer == [[child2, child1]]
+    trace.asList() == [child1]
+    writer == [[child2]]
     traceCount.get() == 1
 
     when:
@@ -281,8 +319,252 @@ class PendingTraceTest extends Specification {
     then:
     trace.pendingReferenceCount.get() == 0
     trace.weakReferences.size() == 0
-    trace.asList() == [rootSpan]
-    writer == [[child2, child1], [rootSpan]]
+    trace.asList() == [child1, rootSpan]
+    writer == [[child2], [child1, rootSpan]]
     traceCount.get() == 2
   }
+
+  def "spans of a chunk which isn't full are written with the trace"() {
+    setup:
+    def properties = new Properties()
+    properties.setProperty(PARTIAL_FLUSH_MIN_SPANS, "3")
+    def tracer = new DDTracer(Config.get(properties), writer)
+    def trace = new PendingTrace(tracer, traceIdStr, [:])
+    def rootSpan = SpanFactory.newSpanOf(trace)
+    def children = (1..7).collect { tracer.buildSpan("child").asChildOf(rootSpan).start() }
+
+    when:
+    children.each { it.finish() }
+    rootSpan.finish()
+
+    then:
+    writer == [
+      [children[3], children[4], children[5]],
+      [rootSpan, children[6], children[2], children[1], children[0]]
+    ]
+  }
+
+  def "concurrent partial flushes write every span once"() {
+    setup:
+    def properties = new Properties()
+    properties.setProperty(PARTIAL_FLUSH_MIN_SPANS, "10")
+    def tracer = new DDTracer(Config.get(properties), writer)
+    def trace = new PendingTrace(tracer, traceIdStr, [:])
+    def rootSpan = SpanFactory.newSpanOf(trace)
+    def children = (1..1000).collect { tracer.buildSpan("child").asChildOf(rootSpan).start() }
+    def executor = Executors.newFixedThreadPool(8)
+
+    when:
+    children.collate(100).collect { batch ->
+      executor.submit { batch.each { it.finish() } }
+    }.each { it.get() }
+    rootSpan.finish()
+
+    then:
+    trace.pendingReferenceCount.get() == 0
+    writer.size() > 1
+    writer.flatten().size() == 1001
+    writer.flatten().toSet() == (children + rootSpan).toSet()
+    writer.last().contains(rootSpan)
+
+    cleanup:
+    executor.shutdownNow()
+  }
+
+  def "trace exceeding its span cap keeps root, error and sampled spans"() {
+    setup:
+    def tracer = ConfigUtils.withConfigOverride(TRACE_MAX_SPANS, "10") {
+      new DDTracer(writer)
+    }
+    def rootSpan = tracer.buildSpan("root").start()
+    def children = (1..300).collect { tracer.buildSpan("child").asChildOf(rootSpan).start() }
+    children[150].setError(true)
+
+    when:
+    children.each { it.finish() }
+    rootSpan.finish()
+
+    then:
+    writer.size() == 1
+    writer[0].size() == 14
+    writer[0].containsAll(children[0..9])
+    writer[0].contains(children[150])
+    writer[0].contains(rootSpan)
+    rootSpan.metrics.get(TraceLimits.DROPPED_SPANS_METRIC) == 287
+  }
+
+  def "spans are dropped while pending traces exceed the global cap"() {
+    setup:
+    def tracer = ConfigUtils.withConfigOverride(PENDING_TRACES_MAX_SPANS, "5") {
+      new DDTracer(writer)
+    }
+    def firstRoot = tracer.buildSpan("first").start()
+    def secondRoot = tracer.buildSpan("second").start()
+
+    when:
+    5.times { tracer.buildSpan("child").asChildOf(firstRoot).start().finish() }
+    def dropped = tracer.buildSpan("child").asChildOf(secondRoot).start()
+    dropped.finish()
+
+    then:
+    tracer.traceLimits.pendingSpans == 5
+    secondRoot.context().trace.isEmpty()
+
+    when:
+    firstRoot.finish()
+    def kept = tracer.buildSpan("child").asChildOf(secondRoot).start()
+    kept.finish()
+    secondRoot.finish()
+
+    then:
+    tracer.traceLimits.pendingSpans == 0
+    writer.size() == 2
+    writer[0].size() == 6
+    writer[1] == [secondRoot, kept]
+    secondRoot.metrics.get(TraceLimits.DROPPED_SPANS_METRIC) == 1
+  }
+
+  @Timeout(value = 60, unit = TimeUnit.SECONDS)
+  def "spans of a trace leaking a span are released once the trace is collected"() {
+    setup:
+    def tracer = ConfigUtils.withConfigOverride(PENDING_TRACES_MAX_SPANS, "5") {
+      new DDTracer(writer)
+    }
+    def leakedRoot = tracer.buildSpan("leaked").start()
+    3.times { tracer.buildSpan("child").asChildOf(leakedRoot).start().finish() }
+    def traceRef = new WeakReference<>(leakedRoot.context().trace)
+
+    expect:
+    tracer.traceLimits.pendingSpans == 3
+
+    when:
+    leakedRoot = null
+    GCUtils.awaitGC(traceRef)
+    // The reference is enqueued after being cleared, by another thread.
+    def deadline = System.currentTimeMillis() + 5000
+    while (tracer.traceLimits.pendingSpans != 0 && System.currentTimeMillis() < deadline) {
+      tracer.traceLimits.releaseCollectedTraces()
+      Thread.sleep(10)
+    }
+    def root = tracer.buildSpan("root").start()
+    5.times { tracer.buildSpan("child").asChildOf(root).start().finish() }
+
+    then:
+    tracer.traceLimits.pendingSpans == 5
+    root.context().trace.size() == 5
+    writer.isEmpty()
+
+    when:
+    root.finish()
+
+    then:
+    tracer.traceLimits.pendingSpans == 0
+    writer.size() == 1
+  }
+
+  @Timeout(value = 60, unit = TimeUnit.SECONDS)
+  def "trace leaking a span is counted once collected without being sampled for leak detection"() {
+    setup:
+    def tracer = new DDTracer(writer)
+    def leakedRoot = tracer.buildSpan("leaked").start()
+    tracer.buildSpan("child").asChildOf(leakedRoot).start().finish()
+    def traceRef = new WeakReference<>(leakedRoot.context().trace)
+
+    when:
+    leakedRoot = null
+    GCUtils.awaitGC(traceRef)
+    // The reference is enqueued after being cleared, by another thread.
+    def deadline = System.currentTimeMillis() + 5000
+    while (traceCount.get() == 0 && System.currentTimeMillis() < deadline) {
+      tracer.traceLimits.releaseCollectedTraces()
+      Thread.sleep(10)
+    }
+
+    then:
+    traceCount.get() == 1
+    writer.isEmpty()
+  }
+
+  def "spans of a trace dropped early only propagate the context"() {
+    setup:
+    def tracer = ConfigUtils.withConfigOverride(PRIORITY_SAMPLING_DROP_EARLY, "true") {
+      new DDTracer(writer)
+    }
+    def rootSpan = tracer.buildSpan("root").start()
+    def recorded = tracer.buildSpan("recorded").asChildOf(rootSpan).start()
+
+    when:
+    rootSpan.setSamplingPriority(PrioritySampling.SAMPLER_DROP)
+    def unrecorded = tracer.buildSpan("unrecorded").asChildOf(rootSpan).withTag("key", "value").start()
+    def grandChild = tracer.buildSpan("grandchild").asChildOf(unrecorded).start()
+    unrecorded.setTag("other", "value")
+
+    then:
+    !unrecorded.context().recorded
+    !grandChild.context().recorded
+    unrecorded.traceId == rootSpan.traceId
+    grandChild.parentId == unrecorded.spanId
+    unrecorded.tags.isEmpty()
+    unrecorded.samplingPriority == PrioritySampling.SAMPLER_DROP
+    rootSpan.context().trace.pendingReferenceCount.get() == 2
+
+    when:
+    grandChild.finish()
+    unrecorded.finish()
+    recorded.finish()
+    rootSpan.finish()
+
+    then:
+    writer == [[rootSpan, recorded]]
+    rootSpan.metrics.get(TraceLimits.DROPPED_SPANS_METRIC) == 2
+  }
+
+  def "spans are recorded again once a trace dropped early is kept"() {
+    setup:
+    def tracer = ConfigUtils.withConfigOverride(PRIORITY_SAMPLING_DROP_EARLY, "true") {
+      new DDTracer(writer)
+    }
+    def rootSpan = tracer.buildSpan("root").start()
+    rootSpan.setSamplingPriority(PrioritySampling.SAMPLER_DROP)
+    def unrecorded = tracer.buildSpan("unrecorded").asChildOf(rootSpan).start()
+
+    when:
+    rootSpan.setSamplingPriority(PrioritySampling.USER_KEEP)
+    def recorded = tracer.buildSpan("recorded").asChildOf(rootSpan).start()
+    recorded.finish()
+    unrecorded.finish()
+    rootSpan.finish()
+
+    then:
+    writer == [[rootSpan, recorded]]
+    rootSpan.metrics.get(TraceLimits.DROPPED_SPANS_METRIC) == 1
+  }
+
+  def "manual keep on an unrecorded span records the later spans of the trace"() {
+    setup:
+    def tracer = ConfigUtils.withConfigOverride(PRIORITY_SAMPLING_DROP_EARLY, "true") {
+      new DDTracer(writer)
+    }
+    def rootSpan = tracer.buildSpan("root").start()
+    rootSpan.setSamplingPriority(PrioritySampling.SAMPLER_DROP)
+    def unrecorded = tracer.buildSpan("unrecorded").asChildOf(rootSpan).start()
+
+    when:
+    unrecorded.setTag(DDTags.MANUAL_KEEP, true)
+    def recorded = tracer.buildSpan("recorded").asChildOf(unrecorded).start()
+
+    then:
+    !unrecorded.context().recorded
+    unrecorded.tags.isEmpty()
+    rootSpan.samplingPriority == PrioritySampling.USER_KEEP
+    recorded.context().recorded
+
+    when:
+    recorded.finish()
+    unrecorded.finish()
+    rootSpan.finish()
+
+    then:
+    writer == [[rootSpan, recorded]]
+  }
 }
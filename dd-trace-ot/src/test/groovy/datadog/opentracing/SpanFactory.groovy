@@ -55,8 +55,8 @@ class SpanFactory {
   static DDSpan newSpanOf(PendingTrace trace) {
     def context = new DDSpanContext(
       trace.traceId,
-      "1",
-      "0",
+      1L,
+      0L,
       "fakeService",
       "fakeOperation",
       "fakeResource",
@@ -0,0 +1,168 @@
+package datadog.opentracing
+
+import datadog.trace.agent.test.utils.ConfigUtils
+import datadog.trace.api.sampling.PrioritySampling
+import datadog.trace.common.writer.ListWriter
+import spock.lang.Specification
+
+import static datadog.trace.api.Config.SPAN_RECYCLING_ENABLED
+
+class SpanPoolTest extends Specification {
+  static {
+    ConfigUtils.makeConfigInstanceModifiable()
+  }
+
+  def writer = new ListWriter()
+
+  def "pool is bounded"() {
+    setup:
+    def pool = new SpanPool(16)
+    def tables = (1..17).collect { new SpanTables() }
+
+    expect:
+    tables.take(16).every { pool.offer(it) }
+    !pool.offer(tables.last())
+
+    when:
+    def polled = (1..8).collect { pool.poll() }
+
+    then:
+    polled.every { it != null }
+    polled.toSet().size() == 8
+    tables.containsAll(polled)
+    // This thread's slots are empty now
+    pool.poll() == null
+  }
+
+  def "tables of written spans are reused by new spans"() {
+    setup:
+    def tracer = recyclingTracer()
+    (1..SpanPool.DEFAULT_CAPACITY).each {
+      tracer.buildSpan("old").withTag("old-tag", "value").start().finish()
+    }
+    def oldSpans = writer.collect { it[0] }
+    def oldTables = oldSpans.collect { it.context().tables }
+
+    when:
+    writer.each { tracer.recycle(it) }
+    def span = tracer.buildSpan("new").withTag("new-tag", "value").start()
+
+    then:
+    oldTables.any { it.is(span.context().tables) }
+    oldSpans.every { !it.is(span) && it.tags.isEmpty() && it.metrics.isEmpty() }
+    oldSpans[0].context().trace.rootSpan.is(oldSpans[0])
+    !span.finished
+    span.operationName == "new"
+    span.tags["new-tag"] == "value"
+    span.tags["old-tag"] == null
+    span.context().trace.rootSpan.is(span)
+
+    when:
+    span.finish()
+
+    then:
+    writer.size() == SpanPool.DEFAULT_CAPACITY + 1
+    writer.last() == [span]
+  }
+
+  def "written spans don't change the span reusing their tables"() {
+    setup:
+    def tracer = recyclingTracer()
+    (1..SpanPool.DEFAULT_CAPACITY).each {
+      tracer.buildSpan("old").start().finish()
+    }
+    def written = new ArrayList<>(writer)
+    written.each { tracer.recycle(it) }
+    def span = tracer.buildSpan("new").start()
+    def oldTrace = written.find { it[0].context().tables.is(span.context().tables) }
+    def oldSpan = oldTrace[0]
+    def oldDuration = oldSpan.durationNano
+
+    expect:
+    oldSpan.durationNano > 0
+
+    when:
+    oldSpan.setTag("old-tag", "value")
+    oldSpan.setTag("thread.name", (String) null)
+    oldSpan.context().setMetric("old-metric", 1)
+    oldSpan.setSamplingPriority(PrioritySampling.USER_DROP)
+    oldSpan.finish()
+    // Released tables are only offered once
+    tracer.recycle(oldTrace)
+
+    then:
+    oldSpan.tags.isEmpty()
+    oldSpan.metrics.isEmpty()
+    oldSpan.durationNano == oldDuration
+    span.tags["old-tag"] == null
+    span.tags["thread.name"] != null
+    span.metrics["old-metric"] == null
+    span.samplingPriority != PrioritySampling.USER_DROP
+    !span.finished
+    writer.size() == SpanPool.DEFAULT_CAPACITY
+    (1..SpanPool.DEFAULT_CAPACITY).every {
+      !tracer.buildSpan("other").start().context().tables.is(span.context().tables)
+    }
+  }
+
+  def "tags and metrics held on to don't show the span reusing their tables"() {
+    setup:
+    def tracer = recyclingTracer()
+    (1..SpanPool.DEFAULT_CAPACITY).each {
+      def span = tracer.buildSpan("old").withTag("old-tag", "value").start()
+      span.context().setMetric("old-metric", 1)
+      span.finish()
+    }
+    def written = new ArrayList<>(writer)
+    def tags = written.collect { it[0].tags }
+    def metrics = written.collect { it[0].metrics }
+    def iterators = tags.collect { it.entrySet().iterator() }
+
+    expect:
+    tags.every { it["old-tag"] == "value" }
+    metrics.every { it["old-metric"] == 1 }
+    iterators.every { it.hasNext() }
+
+    when:
+    written.each { tracer.recycle(it) }
+    def span = tracer.buildSpan("new").withTag("new-tag", "value").start()
+    span.context().setMetric("new-metric", 2)
+    def index = written.findIndexOf { it[0].context().tables.is(span.context().tables) }
+    // The first entry was read before the tables were reused
+    iterators[index].next()
+
+    then:
+    index >= 0
+    tags[index].isEmpty()
+    tags[index]["new-tag"] == null
+    !tags[index].containsKey("new-tag")
+    metrics[index].isEmpty()
+    metrics[index]["new-metric"] == null
+    !iterators[index].hasNext()
+    span.tags["new-tag"] == "value"
+    span.metrics["new-metric"] == 2
+  }
+
+  def "spans are not recycled by default"() {
+    setup:
+    def tracer = new DDTracer(writer)
+    def span = tracer.buildSpan("old").start()
+    span.finish()
+
+    when:
+    tracer.recycle(writer[0])
+
+    then:
+    span.tags["thread.name"] != null
+    span.context().trace.rootSpan.is(span)
+  }
+
+  def recyclingTracer() {
+    def tracer = ConfigUtils.withConfigOverride(SPAN_RECYCLING_ENABLED, "true") {
+      new DDTracer(writer)
+    } as DDTracer
+    // Interceptors could keep references to the spans
+    tracer.interceptors.clear()
+    return tracer
+  }
+}
@@ -0,0 +1,70 @@
+package datadog.opentracing
+
+import spock.lang.Specification
+
+class TagMapTest extends Specification {
+  def map = new TagMap()
+
+  def "behaves like a map as it grows and shrinks"() {
+    setup:
+    def expected = [:]
+
+    when:
+    (1..100).each {
+      map.put("key" + it, it)
+      expected.put("key" + it, it)
+    }
+    (1..100).step(3) {
+      map.remove("key" + it)
+      expected.remove("key" + it)
+    }
+    map.put("key2", "replaced")
+    expected.put("key2", "replaced")
+
+    then:
+    map == expected
+    map.size() == expected.size()
+    expected.every { k, v -> map.get(k) == v && map.containsKey(k) }
+    map.get("key1") == null
+    !map.containsKey("missing")
+  }
+
+  def "remove returns the previous value"() {
+    setup:
+    map.put("a", 1)
+    map.put("b", 2)
+
+    expect:
+    map.put("a", 3) == 1
+    map.remove("a") == 3
+    map.remove("a") == null
+    map == [b: 2]
+  }
+
+  def "iteration is weakly consistent"() {
+    setup:
+    (1..10).each { map.put("key" + it, it) }
+    def iterator = map.entrySet().iterator()
+
+    when:
+    (11..50).each { map.put("key" + it, it) }
+    def seen = iterator.collect { it.key }
+
+    then:
+    seen.containsAll((1..10).collect { "key" + it })
+    seen.size() == seen.toSet().size()
+  }
+
+  def "null keys and values are rejected"() {
+    when:
+    map.put(key, value)
+
+    then:
+    thrown(NullPointerException)
+
+    where:
+    key   | value
+    null  | "value"
+    "key" | null
+  }
+}
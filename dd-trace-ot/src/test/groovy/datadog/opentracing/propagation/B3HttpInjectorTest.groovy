@@ -66,44 +66,4 @@ class B3HttpInjectorTest extends Specification {
     UINT64_MAX.toString()          | UINT64_MAX.minus(1).toString() | PrioritySampling.UNSET        | null
     UINT64_MAX.minus(1).toString() | UINT64_MAX.toString()          | PrioritySampling.SAMPLER_KEEP | 1
   }
-
-  def "unparseable ids"() {
-    setup:
-    def writer = new ListWriter()
-    def tracer = new DDTracer(writer)
-    final DDSpanContext mockedContext =
-      new DDSpanContext(
-        traceId,
-        spanId,
-        "0",
-        "fakeService",
-        "fakeOperation",
-        "fakeResource",
-        samplingPriority,
-        "fakeOrigin",
-        new HashMap<String, String>() {
-          {
-            put("k1", "v1")
-            put("k2", "v2")
-          }
-        },
-        false,
-        "fakeType",
-        null,
-        new PendingTrace(tracer, "1", [:]),
-        tracer)
-
-    final Map<String, String> carrier = Mock()
-
-    when:
-    injector.inject(mockedContext, new TextMapInjectAdapter(carrier))
-
-    then:
-    0 * _
-
-    where:
-    traceId | spanId | samplingPriority
-    "abc"   | "1"    | PrioritySampling.UNSET
-    "1"     | "cbd"  | PrioritySampling.SAMPLER_KEEP
-  }
 }
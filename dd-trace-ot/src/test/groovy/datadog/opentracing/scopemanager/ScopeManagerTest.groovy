@@ -10,6 +10,7 @@ import datadog.trace.util.gc.GCUtils
 import io.opentracing.Scope
 import io.opentracing.Span
 import io.opentracing.noop.NoopSpan
+import spock.lang.Requires
 import spock.lang.Specification
 import spock.lang.Subject
 import spock.lang.Timeout
@@ -20,6 +21,7 @@ import java.util.concurrent.atomic.AtomicBoolean
 import java.util.concurrent.atomic.AtomicInteger
 import java.util.concurrent.atomic.AtomicReference
 
+import static datadog.trace.api.Config.SPAN_LEAK_DETECTION_SAMPLE_RATE
 import static java.util.concurrent.TimeUnit.SECONDS
 
 class ScopeManagerTest extends Specification {
@@ -41,7 +43,10 @@ class ScopeManagerTest extends Specification {
         currentLatch.countDown()
       }
     }
-    tracer = new DDTracer(writer)
+    // Some tests rely on leaked continuations being noticed.
+    tracer = ConfigUtils.withConfigOverride(SPAN_LEAK_DETECTION_SAMPLE_RATE, "1") {
+      new DDTracer(writer)
+    }
     scopeManager = tracer.scopeManager()
   }
 
@@ -317,6 +322,32 @@ class ScopeManagerTest extends Specification {
     false     | true
   }
 
+  def "continuation of a trace not sampled for leaks holds up the trace without a weak reference"() {
+    setup:
+    def untrackedTracer = ConfigUtils.withConfigOverride(SPAN_LEAK_DETECTION_SAMPLE_RATE, "0") {
+      new DDTracer(writer)
+    }
+    def scope = (ContinuableScope) untrackedTracer.buildSpan("test").startActive(true)
+    scope.setAsyncPropagation(true)
+    def continuation = scope.capture()
+    def trace = ((DDSpanContext) scope.span().context()).trace
+    scope.close()
+
+    expect:
+    continuation.ref == null
+    trace.weakReferences == null
+    !spanFinished(scope.span())
+    writer.empty
+
+    when:
+    continuation.activate().close()
+    writer.waitForTraces(1)
+
+    then:
+    spanFinished(scope.span())
+    writer == [[scope.span()]]
+  }
+
   def "continuation restores trace"() {
     setup:
     def parentScope = tracer.buildSpan("parent").startActive(true)
@@ -410,7 +441,7 @@ class ScopeManagerTest extends Specification {
     def scope = (AtomicReferenceScope) builder.startActive(true)
 
     expect:
-    scopeManager.tlsScope.get() == null
+    scopeManager.tlsScope.get()?.active() == null
     scopeManager.active() == scope
     contexts[active].get() == scope.get()
     writer.empty
@@ -435,7 +466,7 @@ class ScopeManagerTest extends Specification {
       it.get() != null
     } == []
 
-    scopeManager.tlsScope.get() == scope
+    scopeManager.tlsScope.get()?.active() == scope
     scopeManager.active() == scope
     writer.empty
 
@@ -453,14 +484,14 @@ class ScopeManagerTest extends Specification {
     scope.setAsyncPropagation(true)
 
     expect:
-    scopeManager.tlsScope.get() == scope
+    scopeManager.tlsScope.get()?.active() == scope
 
     when:
     def cont = scope.capture()
     scope.close()
 
     then:
-    scopeManager.tlsScope.get() == null
+    scopeManager.tlsScope.get()?.active() == null
 
     when:
     scopeManager.addScopeContext(new AtomicReferenceScope(true))
@@ -468,7 +499,7 @@ class ScopeManagerTest extends Specification {
 
     then:
     newScope != scope
-    scopeManager.tlsScope.get() == newScope
+    scopeManager.tlsScope.get()?.active() == newScope
   }
 
   def "context to threadlocal (#contexts.size)"() {
@@ -481,7 +512,7 @@ class ScopeManagerTest extends Specification {
 
     expect:
     scope instanceof AtomicReferenceScope
-    scopeManager.tlsScope.get() == null
+    scopeManager.tlsScope.get()?.active() == null
 
     when:
     scope.close()
@@ -492,7 +523,7 @@ class ScopeManagerTest extends Specification {
 
     then:
     scope instanceof ContinuableScope
-    scopeManager.tlsScope.get() == scope
+    scopeManager.tlsScope.get()?.active() == scope
 
     where:
     contexts                                                         | _
@@ -500,6 +531,96 @@ class ScopeManagerTest extends Specification {
     [new AtomicReferenceScope(true), new AtomicReferenceScope(true)] | _
   }
 
+  def "deeply nested scopes are restored in order"() {
+    setup:
+    def scopes = (1..40).collect { tracer.buildSpan("span-$it").startActive(true) }
+
+    expect:
+    scopeManager.active() == scopes.last()
+
+    when:
+    scopes.reverse().each {
+      assert scopeManager.active() == it
+      it.close()
+    }
+
+    then:
+    scopeManager.active() == null
+    writer.waitForTraces(1)
+    writer[0].size() == 40
+  }
+
+  def "scope closed out of order or by another thread stays active"() {
+    setup:
+    def parent = tracer.buildSpan("parent").startActive(true)
+    def child = tracer.buildSpan("child").startActive(true)
+
+    when:
+    parent.close()
+
+    then:
+    scopeManager.active() == child
+
+    when:
+    def thread = new Thread({ child.close() })
+    thread.start()
+    thread.join()
+
+    then:
+    scopeManager.active() == child
+
+    when:
+    child.close()
+
+    then:
+    scopeManager.active() == parent
+  }
+
+  def "scope stack is only allocated on activation"() {
+    expect:
+    scopeManager.active() == null
+    scopeManager.tlsScope.get() == null
+
+    when:
+    def scope = tracer.buildSpan("test").startActive(true)
+    def stack = scopeManager.tlsScope.get()
+
+    then:
+    !stack.compact
+    stack.active() == scope
+
+    when:
+    scope.close()
+
+    then:
+    // Stacks of platform threads are kept for reuse.
+    scopeManager.tlsScope.get() == stack
+    stack.active() == null
+  }
+
+  @Requires({ ContextualScopeManager.VIRTUAL_THREAD_CLASS != null })
+  def "virtual threads keep their scope stack out of thread locals while a scope is active"() {
+    setup:
+    def virtualScopeManager = new ContextualScopeManager(true)
+    def span = tracer.buildSpan("test").start()
+    def results = []
+
+    when:
+    def thread = Thread.ofVirtual().start {
+      def scope = virtualScopeManager.activate(span, true)
+      results << (virtualScopeManager.active() == scope)
+      results << virtualScopeManager.virtualThreadScopes.get(Thread.currentThread()).compact
+      scope.close()
+      results << virtualScopeManager.active()
+      results << virtualScopeManager.virtualThreadScopes.containsKey(Thread.currentThread())
+    }
+    thread.join()
+
+    then:
+    results == [true, true, null, false]
+    spanFinished(span)
+  }
+
   def "add scope listener"() {
     setup:
     AtomicInteger activatedCount = new AtomicInteger(0)
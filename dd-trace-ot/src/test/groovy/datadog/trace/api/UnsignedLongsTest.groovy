@@ -0,0 +1,46 @@
+package datadog.trace.api
+
+import datadog.trace.common.util.UnsignedLongs
+import spock.lang.Specification
+
+class UnsignedLongsTest extends Specification {
+  static final BigInteger UINT64_MAX = BigInteger.valueOf(2).pow(64).subtract(BigInteger.ONE)
+
+  def "parse and format #value"() {
+    setup:
+    def parsed = UnsignedLongs.parse(value.toString(), 10)
+
+    expect:
+    UnsignedLongs.toString(parsed) == value.toString()
+    UnsignedLongs.parse(value.toString(16), 16) == parsed
+    Long.toHexString(parsed) == value.toString(16)
+
+    where:
+    value                                                  | _
+    BigInteger.ZERO                                        | _
+    BigInteger.ONE                                         | _
+    BigInteger.valueOf(Long.MAX_VALUE)                     | _
+    BigInteger.valueOf(Long.MAX_VALUE).add(BigInteger.ONE) | _
+    UINT64_MAX.subtract(BigInteger.TEN)                    | _
+    UINT64_MAX                                             | _
+  }
+
+  def "parse rejects #value"() {
+    when:
+    UnsignedLongs.parse(value, radix)
+
+    then:
+    thrown(NumberFormatException)
+
+    where:
+    value                                          | radix
+    ""                                             | 10
+    "-1"                                           | 10
+    "1.0"                                          | 10
+    "abc"                                          | 10
+    UINT64_MAX.add(BigInteger.ONE).toString()      | 10
+    UINT64_MAX.multiply(BigInteger.TEN).toString() | 10
+    "1" + "0" * 16                                 | 16
+    "g"                                            | 16
+  }
+}
@@ -6,8 +6,6 @@ import datadog.opentracing.SpanFactory
 import datadog.trace.common.sampling.RateByServiceSampler
 import spock.lang.Specification
 
-import static datadog.trace.common.sampling.RateByServiceSampler.DEFAULT_KEY
-
 class RateByServiceSamplerTest extends Specification {
 
   def "invalid rate -> 1"() {
@@ -17,7 +15,7 @@ class RateByServiceSamplerTest extends Specification {
     String response = '{"rate_by_service": {"service:,env:":' + rate + '}}'
     serviceSampler.onResponse("traces", serializer.readTree(response))
     expect:
-    serviceSampler.serviceRates[DEFAULT_KEY].sampleRate == expectedRate
+    serviceSampler.serviceRates.defaultSampler.sampleRate == expectedRate
 
     where:
     rate | expectedRate
@@ -68,4 +66,41 @@ class RateByServiceSamplerTest extends Specification {
     // RateByServiceSamler must not set the sample rate
     span.getMetrics().get("_sample_rate") == null
   }
+
+  def "rates are looked up by service and env"() {
+    setup:
+    RateByServiceSampler serviceSampler = new RateByServiceSampler()
+    ObjectMapper serializer = new ObjectMapper()
+    String response = '{"rate_by_service": {"service:,env:":0.2, "service:spock,env:test":0.4, "service:spock,env:":0.6, "invalid":0.8}}'
+    serviceSampler.onResponse("traces", serializer.readTree(response))
+
+    expect:
+    serviceSampler.serviceRates.get(service, env).sampleRate == expectedRate
+
+    where:
+    service | env    | expectedRate
+    "spock" | "test" | 0.4
+    "spock" | ""     | 0.6
+    "spock" | "prod" | 0.2
+    "other" | "test" | 0.2
+    ""      | ""     | 0.2
+  }
+
+  def "sampling decision is derived from the trace id"() {
+    setup:
+    def sampler = new RateByServiceSampler.RateSampler(rate)
+    def otherSampler = new RateByServiceSampler.RateSampler(rate)
+    def random = new Random(42)
+    def traceIds = (1..10000).collect { random.nextLong() }
+
+    when:
+    def decisions = traceIds.collect { sampler.sample(it) }
+
+    then:
+    decisions == traceIds.collect { otherSampler.sample(it) }
+    Math.abs(decisions.count { it } - rate * traceIds.size()) <= 0.02 * traceIds.size()
+
+    where:
+    rate << [0.0, 0.1, 0.5, 0.9, 1.0]
+  }
 }
@@ -0,0 +1,201 @@
+package datadog.trace.api.sampling
+
+import datadog.opentracing.DDSpan
+import datadog.opentracing.DDTracer
+import datadog.trace.common.sampling.AllSampler
+import datadog.trace.common.sampling.RateByServiceSampler
+import datadog.trace.common.sampling.RateLimitingSampler
+import datadog.trace.common.sampling.Sampler
+import datadog.trace.common.sampling.TokenBucket
+import datadog.trace.common.writer.ListWriter
+import spock.lang.Specification
+
+import java.util.concurrent.TimeUnit
+
+class RateLimitingSamplerTest extends Specification {
+  def tracer = new DDTracer("service", new ListWriter(), new AllSampler())
+
+  DDSpan trace(String resource, long durationMillis = 1, boolean error = false) {
+    def span = tracer.buildSpan("operation").withResourceName(resource).withStartTimestamp(1000).start()
+    if (error) {
+      span.setError(true)
+    }
+    span.finish(1000 + TimeUnit.MILLISECONDS.toMicros(durationMillis))
+    return span
+  }
+
+  def "token bucket holds one second of tokens"() {
+    setup:
+    def bucket = new TokenBucket(10)
+    def now = System.nanoTime()
+    def second = TimeUnit.SECONDS.toNanos(1)
+
+    expect:
+    (1..10).every { bucket.tryAcquire(0, now) }
+    !bucket.tryAcquire(0, now)
+    bucket.tryAcquire(0, now + (long) (second / 10))
+    !bucket.tryAcquire(0, now + (long) (second / 10))
+    (1..10).every { bucket.tryAcquire(0, now + 2 * second) }
+    !bucket.tryAcquire(0, now + 2 * second)
+  }
+
+  def "token bucket keeps reserved tokens"() {
+    setup:
+    def bucket = new TokenBucket(10)
+    def now = System.nanoTime()
+
+    expect:
+    (1..8).every { bucket.tryAcquire(2, now) }
+    !bucket.tryAcquire(2, now)
+    bucket.tryAcquire(0, now)
+    bucket.tryAcquire(0, now)
+    !bucket.tryAcquire(0, now)
+  }
+
+  def "global limit"() {
+    setup:
+    def sampler = new RateLimitingSampler(new AllSampler(), 20, 0, 1000)
+    def traces = (1..19).collect { trace("resource-$it") }
+    def errors = (1..2).collect { trace("other", 1, true) }
+    def slow = trace("other", 2000)
+
+    expect:
+    traces.collect { sampler.sample(it) } == [true] * 18 + [false]
+    // Error and slow traces may use the reserved tokens.
+    sampler.sample(errors[0])
+    sampler.sample(slow)
+    !sampler.sample(errors[1])
+  }
+
+  def "per endpoint limit"() {
+    setup:
+    def sampler = new RateLimitingSampler(new AllSampler(), 0, 2, 1000)
+    def first = (1..3).collect { trace("first") }
+    def second = trace("second")
+    def error = trace("first", 1, true)
+    def slow = trace("first", 2000)
+
+    expect:
+    first.collect { sampler.sample(it) } == [true, true, false]
+    sampler.sample(second)
+    sampler.sample(error)
+    sampler.sample(slow)
+  }
+
+  def "endpoints beyond the maximum share a budget"() {
+    setup:
+    def sampler = new RateLimitingSampler(new AllSampler(), 0, 1, 1000)
+    def overflow = (1..2).collect { trace("overflow-$it") }
+
+    when:
+    (1..RateLimitingSampler.MAX_ENDPOINTS).each { sampler.sample(trace("resource-$it")) }
+
+    then:
+    sampler.endpointCount.get() == RateLimitingSampler.MAX_ENDPOINTS
+    overflow.collect { sampler.sample(it) } == [true, false]
+    sampler.endpointCount.get() == RateLimitingSampler.MAX_ENDPOINTS
+  }
+
+  def "delegate decides first"() {
+    setup:
+    def delegate = Mock(Sampler)
+    def sampler = new RateLimitingSampler(delegate, 10, 10, 1000)
+    def span = trace("resource")
+
+    when:
+    def sampled = sampler.sample(span)
+
+    then:
+    1 * delegate.sample(span) >> false
+    !sampled
+  }
+
+  def "partial traces are kept or dropped with the rest of their trace"() {
+    setup:
+    def writer = new ListWriter()
+    def sampler = new RateLimitingSampler(new AllSampler(), 1, 0, 1000)
+    def tracer = new DDTracer("service", writer, sampler, [:], [:], [:], [:], 1)
+    def root = tracer.buildSpan("root").start()
+    def children = (1..3).collect { tracer.buildSpan("child").asChildOf(root).start() }
+
+    when:
+    children.each { it.finish() }
+    def other = tracer.buildSpan("other").start()
+    other.finish()
+    root.finish()
+
+    then:
+    writer.size() == 3
+    writer.flatten().toSet() == (children + root).toSet()
+    root.context().trace.rateLimitDecision
+    !other.context().trace.rateLimitDecision
+  }
+
+  def "slow running root span gives priority to partial traces"() {
+    setup:
+    def sampler = new RateLimitingSampler(new AllSampler(), 0, 1, 1000)
+    def now = TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis())
+
+    expect:
+    sampler.sample(trace("resource"))
+    !sampler.sample(trace("resource"))
+
+    when:
+    def root = tracer.buildSpan("operation").withResourceName("resource")
+      .withStartTimestamp(now - TimeUnit.SECONDS.toMicros(2)).start()
+    def child = tracer.buildSpan("child").asChildOf(root).start()
+    child.finish()
+
+    then:
+    !root.finished
+    sampler.sample(child)
+  }
+
+  def "traces kept by the user or propagated as kept are not limited"() {
+    setup:
+    def sampler = new RateLimitingSampler(new AllSampler(), 1, 1, 1000)
+    def userKeep = trace("resource")
+    userKeep.setSamplingPriority(PrioritySampling.USER_KEEP)
+    def propagated = trace("resource")
+    propagated.setSamplingPriority(PrioritySampling.SAMPLER_KEEP)
+    propagated.context().lockSamplingPriority()
+    def samplerKeep = trace("resource")
+    samplerKeep.setSamplingPriority(PrioritySampling.SAMPLER_KEEP)
+
+    expect:
+    sampler.sample(trace("resource"))
+    sampler.sample(userKeep)
+    sampler.sample(propagated)
+    !sampler.sample(samplerKeep)
+  }
+
+  def "traces already dropped are sent without using tokens"() {
+    setup:
+    def sampler = new RateLimitingSampler(new RateByServiceSampler(), 1, 1, 1000)
+    def samplerDrop = trace("resource")
+    samplerDrop.setSamplingPriority(PrioritySampling.SAMPLER_DROP)
+    def userDrop = trace("resource")
+    userDrop.setSamplingPriority(PrioritySampling.USER_DROP)
+    def kept = trace("resource")
+    kept.setSamplingPriority(PrioritySampling.SAMPLER_KEEP)
+
+    expect:
+    sampler.sample(samplerDrop)
+    sampler.sample(userDrop)
+    sampler.sample(kept)
+    kept.samplingPriority == PrioritySampling.SAMPLER_KEEP
+    samplerDrop.samplingPriority == PrioritySampling.SAMPLER_DROP
+    userDrop.samplingPriority == PrioritySampling.USER_DROP
+  }
+
+  def "traces beyond the limit are sent marked dropped with priority sampling"() {
+    setup:
+    def sampler = new RateLimitingSampler(new RateByServiceSampler(), 1, 0, 1000)
+    def traces = (1..2).collect { trace("resource-$it") }
+    traces.each { it.setSamplingPriority(PrioritySampling.SAMPLER_KEEP) }
+
+    expect:
+    traces.collect { sampler.sample(it) } == [true, true]
+    traces*.samplingPriority == [PrioritySampling.SAMPLER_KEEP, PrioritySampling.SAMPLER_DROP]
+  }
+}
@@ -0,0 +1,55 @@
+package datadog.trace.api.writer
+
+import datadog.trace.common.writer.AdaptiveFlushPolicy
+import spock.lang.Specification
+
+import java.util.concurrent.TimeUnit
+
+class AdaptiveFlushPolicyTest extends Specification {
+  def policy = new AdaptiveFlushPolicy(100, 2000, 1000)
+  def now = System.nanoTime()
+
+  def "waits the max delay when nothing arrives"() {
+    expect:
+    policy.delayMillis == 2000
+    flushAfter(1000, 0) == 2000
+  }
+
+  def "delay is the time to fill the target payload"() {
+    when:
+    // 1 byte per milli for long enough to converge
+    def delay = (1..30).collect { flushAfter(500, 500) }.last()
+
+    then:
+    Math.abs(delay - 1000) <= 10
+  }
+
+  def "delay is bounded"() {
+    expect:
+    (1..30).collect { flushAfter(100, 100_000) }.last() == 100
+    (1..30).collect { flushAfter(2000, 10) }.last() == 2000
+  }
+
+  def "bursts shorten the delay gradually"() {
+    setup:
+    (1..30).each { flushAfter(500, 500) }
+
+    when:
+    def afterBurst = flushAfter(1000, 10_000)
+
+    then:
+    afterBurst < 1000
+    afterBurst > 100
+
+    when:
+    def delays = (1..30).collect { flushAfter(1000, 1000) }
+
+    then:
+    Math.abs(delays.last() - 1000) <= 10
+  }
+
+  def flushAfter(long millis, int bytes) {
+    now += TimeUnit.MILLISECONDS.toNanos(millis)
+    return policy.onFlush(bytes, now)
+  }
+}
@@ -4,13 +4,19 @@ import datadog.opentracing.DDSpan
 import datadog.opentracing.DDSpanContext
 import datadog.opentracing.DDTracer
 import datadog.opentracing.PendingTrace
+import datadog.trace.api.Config
 import datadog.trace.api.sampling.PrioritySampling
 import datadog.trace.common.writer.DDAgentWriter
 import datadog.trace.common.writer.DDApi
+import datadog.trace.common.writer.TraceSerializer
 import spock.lang.Specification
 import spock.lang.Timeout
 
+import javax.management.ObjectName
+import java.lang.management.ManagementFactory
+import java.util.concurrent.CountDownLatch
 import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
 
 import static datadog.opentracing.SpanFactory.newSpanOf
 import static datadog.trace.common.writer.DDAgentWriter.DISRUPTOR_BUFFER_SIZE
@@ -22,7 +28,7 @@ class DDAgentWriterTest extends Specification {
 
   def "test happy path"() {
     setup:
-    def writer = new DDAgentWriter(api, 2, -1)
+    def writer = new DDAgentWriter(api, 2, false)
     writer.start()
 
     when:
@@ -31,8 +37,7 @@ class DDAgentWriterTest extends Specification {
     writer.flush()
 
     then:
-    2 * api.serializeTrace(_) >> { trace -> callRealMethod() }
-    1 * api.sendSerializedTraces(2, _, { it.size() == 2 })
+    1 * api.sendSerializedTraces(2, { it.traceCount == 2 })
     0 * _
 
     cleanup:
@@ -44,7 +49,7 @@ class DDAgentWriterTest extends Specification {
 
   def "test flood of traces"() {
     setup:
-    def writer = new DDAgentWriter(api, disruptorSize, -1)
+    def writer = new DDAgentWriter(api, disruptorSize, false)
     writer.start()
 
     when:
@@ -54,8 +59,7 @@ class DDAgentWriterTest extends Specification {
     writer.flush()
 
     then:
-    _ * api.serializeTrace(_) >> { trace -> callRealMethod() }
-    1 * api.sendSerializedTraces(traceCount, _, { it.size() < traceCount })
+    1 * api.sendSerializedTraces(traceCount, { it.traceCount < traceCount })
     0 * _
 
     cleanup:
@@ -69,22 +73,22 @@ class DDAgentWriterTest extends Specification {
 
   def "test flush by size"() {
     setup:
-    def writer = new DDAgentWriter(api, DISRUPTOR_BUFFER_SIZE, -1)
-    def phaser = writer.apiPhaser
+    def writer = new DDAgentWriter(api, DISRUPTOR_BUFFER_SIZE, false)
+    def sent = new CountDownLatch(2)
     writer.start()
-    phaser.register()
 
     when:
     (1..6).each {
       writer.write(trace)
     }
     // Wait for 2 flushes of 3 by size
-    phaser.awaitAdvanceInterruptibly(phaser.arrive())
-    phaser.awaitAdvanceInterruptibly(phaser.arriveAndDeregister())
+    sent.await()
 
     then:
-    6 * api.serializeTrace(_) >> { trace -> callRealMethod() }
-    2 * api.sendSerializedTraces(3, _, { it.size() == 3 })
+    2 * api.sendSerializedTraces(3, { it.traceCount == 3 }) >> {
+      sent.countDown()
+      true
+    }
 
     when:
     (1..2).each {
@@ -94,23 +98,21 @@ class DDAgentWriterTest extends Specification {
     writer.flush()
 
     then:
-    2 * api.serializeTrace(_) >> { trace -> callRealMethod() }
-    1 * api.sendSerializedTraces(2, _, { it.size() == 2 })
+    1 * api.sendSerializedTraces(2, { it.traceCount == 2 })
     0 * _
 
     cleanup:
     writer.close()
 
     where:
-    span = [newSpanOf(0, "fixed-thread-name")]
+    span = newSpanOf(0, "fixed-thread-name")
     trace = (0..10000).collect { span }
   }
 
   def "test flush by time"() {
     setup:
     def writer = new DDAgentWriter(api)
-    def phaser = writer.apiPhaser
-    phaser.register()
+    def sent = new CountDownLatch(1)
     writer.start()
     writer.flush()
 
@@ -118,24 +120,26 @@ class DDAgentWriterTest extends Specification {
     (1..5).each {
       writer.write(trace)
     }
-    phaser.awaitAdvanceInterruptibly(phaser.arriveAndDeregister())
+    sent.await()
 
     then:
-    5 * api.serializeTrace(_) >> { trace -> callRealMethod() }
-    1 * api.sendSerializedTraces(5, _, { it.size() == 5 })
+    1 * api.sendSerializedTraces(5, { it.traceCount == 5 }) >> {
+      sent.countDown()
+      true
+    }
     0 * _
 
     cleanup:
     writer.close()
 
     where:
-    span = [newSpanOf(0, "fixed-thread-name")]
+    span = newSpanOf(0, "fixed-thread-name")
     trace = (1..10).collect { span }
   }
 
   def "test default buffer size"() {
     setup:
-    def writer = new DDAgentWriter(api, DISRUPTOR_BUFFER_SIZE, -1)
+    def writer = new DDAgentWriter(api, DISRUPTOR_BUFFER_SIZE, false)
     writer.start()
 
     when:
@@ -150,8 +154,7 @@ class DDAgentWriterTest extends Specification {
     writer.flush()
 
     then:
-    (maxedPayloadTraceCount + 1) * api.serializeTrace(_) >> { trace -> callRealMethod() }
-    1 * api.sendSerializedTraces(maxedPayloadTraceCount, _, { it.size() == maxedPayloadTraceCount })
+    1 * api.sendSerializedTraces(maxedPayloadTraceCount, { it.traceCount == maxedPayloadTraceCount })
 
     cleanup:
     writer.close()
@@ -174,10 +177,117 @@ class DDAgentWriterTest extends Specification {
       Mock(DDTracer))
     minimalSpan = new DDSpan(0, minimalContext)
     minimalTrace = [minimalSpan]
-    traceSize = DDApi.OBJECT_MAPPER.writeValueAsBytes(minimalTrace).length
+    traceSize = new TraceSerializer().serialize(minimalTrace)
     maxedPayloadTraceCount = ((int) (DDAgentWriter.FLUSH_PAYLOAD_BYTES / traceSize)) + 1
   }
 
+  def "test sharded writer"() {
+    setup:
+    def properties = new Properties()
+    properties.setProperty(Config.WRITER_SHARDS, "4")
+    def writer = new DDAgentWriter(api, DISRUPTOR_BUFFER_SIZE, false, Config.get(properties))
+    def sentTraces = new AtomicInteger()
+    def representedTraces = new AtomicInteger()
+    writer.start()
+
+    when:
+    def threads = (1..8).collect {
+      Thread.start {
+        (1..50).each { writer.write(trace) }
+      }
+    }
+    threads*.join()
+    writer.flush()
+
+    then:
+    (1..4) * api.sendSerializedTraces(_, _) >> { int count, payload ->
+      representedTraces.addAndGet(count)
+      sentTraces.addAndGet(payload.traceCount)
+      true
+    }
+    0 * _
+    sentTraces.get() == 400
+    representedTraces.get() == 400
+
+    cleanup:
+    writer.close()
+
+    where:
+    trace = [newSpanOf(0, "fixed-thread-name")]
+  }
+
+  def "flush waits for the payload of every shard while scheduled flushes run"() {
+    setup:
+    def properties = new Properties()
+    properties.setProperty(Config.WRITER_SHARDS, "4")
+    properties.setProperty(Config.WRITER_SENDER_THREADS, "4")
+    properties.setProperty(Config.WRITER_FLUSH_MIN_DELAY, "1")
+    properties.setProperty(Config.WRITER_FLUSH_MAX_DELAY, "1")
+    properties.setProperty(Config.WRITER_MAX_PENDING_PAYLOADS, "1000")
+    def writer = new DDAgentWriter(api, DISRUPTOR_BUFFER_SIZE, true, Config.get(properties))
+    def sentTraces = new AtomicInteger()
+    writer.start()
+
+    when:
+    def threads = (1..8).collect {
+      Thread.start {
+        (1..50).each { writer.write(trace) }
+      }
+    }
+    threads*.join()
+    writer.flush()
+    def sentOnFlush = sentTraces.get()
+
+    then:
+    _ * api.sendSerializedTraces(_, _) >> { int count, payload ->
+      // Slow enough for scheduled flushes of other shards to complete in the meantime.
+      Thread.sleep(20)
+      sentTraces.addAndGet(payload.traceCount)
+      true
+    }
+    sentOnFlush == 400
+
+    cleanup:
+    writer.close()
+
+    where:
+    trace = [newSpanOf(0, "fixed-thread-name")]
+  }
+
+  def "health metrics are exposed over JMX"() {
+    setup:
+    def properties = new Properties()
+    properties.setProperty(Config.HEALTH_METRICS_ENABLED, "true")
+    def writer = new DDAgentWriter(api, 2, false, Config.get(properties))
+    def server = ManagementFactory.platformMBeanServer
+    def name = new ObjectName("datadog.trace:type=AgentWriter")
+    writer.start()
+
+    when:
+    writer.write(trace)
+    writer.write(trace)
+    writer.flush()
+
+    then:
+    1 * api.sendSerializedTraces(2, _) >> true
+    server.getAttribute(name, "TracesSerialized") == 2
+    server.getAttribute(name, "SpansSerialized") == 6
+    server.getAttribute(name, "SerializationNanos") > 0
+    server.getAttribute(name, "RingBufferSize") == 2
+    server.getAttribute(name, "RingBufferOccupancy") == 0
+    server.getAttribute(name, "PendingPayloads") == 0
+    server.getAttribute(name, "DroppedTraces") == 0
+
+    when:
+    writer.close()
+
+    then:
+    !server.isRegistered(name)
+
+    where:
+    trace = (1..3).collect { newSpanOf(0, "fixed-thread-name") }
+  }
+
   def "check that are no interactions after close"() {
 
     setup:
@@ -9,6 +9,7 @@ import spock.lang.Specification
 
 import java.util.concurrent.atomic.AtomicLong
 import java.util.concurrent.atomic.AtomicReference
+import java.util.zip.GZIPInputStream
 
 import static datadog.trace.agent.test.server.http.TestHttpServer.httpServer
 
@@ -35,6 +36,10 @@ class DDApiTest extends Specification {
     expect:
     client.tracesUrl.toString() == "http://localhost:${agent.address.port}/v0.4/traces"
     client.sendTraces([])
+    client.sendCount == 1
+    client.sentBytes == 1
+    client.sendNanos > 0
+    client.getResponseCount(2) == 1
 
     cleanup:
     agent.close()
@@ -54,6 +59,8 @@ class DDApiTest extends Specification {
     expect:
     client.tracesUrl.toString() == "http://localhost:${agent.address.port}/v0.3/traces"
     !client.sendTraces([])
+    client.getResponseCount(4) == 1
+    client.getResponseCount(2) == 0
 
     cleanup:
     agent.close()
@@ -117,6 +124,29 @@ class DDApiTest extends Specification {
     ])]]
   }
 
+  def "content is gzip compressed when enabled"() {
+    setup:
+    def agent = httpServer {
+      handlers {
+        put("v0.4/traces") {
+          response.send()
+        }
+      }
+    }
+    def client = new DDApi("localhost", agent.address.port, null, 1, 1, true, false)
+    def traces = [[SpanFactory.newSpanOf(1L)], [SpanFactory.newSpanOf(2L), SpanFactory.newSpanOf(3L)]]
+
+    expect:
+    client.sendTraces(traces)
+    agent.lastRequest.contentType == "application/msgpack"
+    agent.lastRequest.headers.get("Content-Encoding") == "gzip"
+    agent.lastRequest.headers.get("X-Datadog-Trace-Count") == "2"
+    convertList(new GZIPInputStream(new ByteArrayInputStream(agent.lastRequest.body)).bytes)*.size() == [1, 2]
+
+    cleanup:
+    agent.close()
+  }
+
   def "Api ResponseListeners see 200 responses"() {
     setup:
     def agentResponse = new AtomicReference<String>(null)
@@ -200,6 +230,38 @@ class DDApiTest extends Specification {
     "v0.3"          | 30000      | false
   }
 
+  def "Api uses v0.5 if enabled and available"() {
+    setup:
+    def agent = httpServer {
+      handlers {
+        if (v05Available) {
+          put("v0.5/traces") {
+            response.send()
+          }
+        }
+        put("v0.4/traces") {
+          response.send()
+        }
+      }
+    }
+    def client = new DDApi("localhost", agent.address.port, null, 1, 1, false, v05Enabled)
+
+    expect:
+    client.tracesUrl.toString() == "http://localhost:${agent.address.port}/$endpointVersion/traces"
+    client.usesStringTable() == (endpointVersion == "v0.5")
+    client.sendTraces([[SpanFactory.newSpanOf(1L)]])
+    agent.lastRequest.path == "/$endpointVersion/traces"
+
+    cleanup:
+    agent.close()
+
+    where:
+    v05Enabled | v05Available | endpointVersion
+    true       | true         | "v0.5"
+    true       | false        | "v0.4"
+    false      | true         | "v0.4"
+  }
+
   def "verify content length"() {
     setup:
     def receivedContentLength = new AtomicLong()
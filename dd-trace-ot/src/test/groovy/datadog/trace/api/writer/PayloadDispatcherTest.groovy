@@ -0,0 +1,262 @@
+package datadog.trace.api.writer
+
+import datadog.trace.api.Config
+import datadog.trace.common.writer.BufferPool
+import datadog.trace.common.writer.DDApi
+import datadog.trace.common.writer.Payload
+import datadog.trace.common.writer.PayloadDispatcher
+import datadog.trace.common.writer.PayloadSpool
+import spock.lang.Specification
+
+import java.nio.ByteBuffer
+import java.nio.file.Files
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executor
+
+import static datadog.trace.api.Config.WriterDropPolicy.DROP_NEWEST
+import static datadog.trace.api.Config.WriterDropPolicy.DROP_OLDEST
+
+class PayloadDispatcherTest extends Specification {
+  def api = Mock(DDApi)
+  def pool = new BufferPool(100, 10)
+  def tasks = []
+  def executor = { tasks.add(it) } as Executor
+  def completed = (0..<3).collect { new CountDownLatch(1) }
+
+  def "oldest payload is dropped when too many are pending"() {
+    setup:
+    def dispatcher = newDispatcher(2, 1000, DROP_OLDEST)
+    def first = newPayload(1, 10)
+    def second = newPayload(2, 10)
+    def third = newPayload(3, 10)
+
+    when:
+    dispatcher.dispatch(first, 1, completed[0])
+    dispatcher.dispatch(second, 2, completed[1])
+    dispatcher.dispatch(third, 4, completed[2])
+
+    then:
+    tasks.size() == 2
+    dispatcher.droppedTraces == 1
+    dispatcher.droppedSpans == 1
+    dispatcher.droppedBytes == first.sizeInBytes
+    completed*.count == [0, 1, 1]
+
+    when:
+    tasks.each { it.run() }
+
+    then:
+    // The dropped traces are still reported to the agent.
+    1 * api.sendSerializedTraces(3, second) >> true
+
+    then:
+    1 * api.sendSerializedTraces(4, third) >> true
+    0 * _
+    completed*.count == [0, 0, 0]
+  }
+
+  def "newest payload is dropped when too many are pending"() {
+    setup:
+    def dispatcher = newDispatcher(2, 1000, DROP_NEWEST)
+    def first = newPayload(1, 10)
+    def second = newPayload(2, 10)
+    def third = newPayload(3, 10)
+
+    when:
+    dispatcher.dispatch(first, 1, completed[0])
+    dispatcher.dispatch(second, 2, completed[1])
+    dispatcher.dispatch(third, 4, completed[2])
+
+    then:
+    tasks.size() == 2
+    completed*.count == [1, 1, 1]
+    dispatcher.droppedTraces == 3
+    dispatcher.droppedSpans == 3
+    dispatcher.droppedBytes == third.sizeInBytes
+
+    when:
+    tasks.each { it.run() }
+
+    then:
+    1 * api.sendSerializedTraces(5, first) >> true
+
+    then:
+    1 * api.sendSerializedTraces(2, second) >> true
+    0 * _
+    completed*.count == [0, 0, 0]
+  }
+
+  def "pending bytes are bounded"() {
+    setup:
+    def dispatcher = newDispatcher(10, 250, DROP_OLDEST)
+    def payloads = (1..3).collect { newPayload(it, 100) }
+
+    when:
+    payloads.each { dispatcher.dispatch(it, it.traceCount) }
+    tasks.each { it.run() }
+
+    then:
+    dispatcher.droppedTraces == 1
+    1 * api.sendSerializedTraces(3, payloads[1]) >> true
+    1 * api.sendSerializedTraces(3, payloads[2]) >> true
+    0 * _
+  }
+
+  def "payload larger than the limit is sent when nothing else is pending"() {
+    setup:
+    def dispatcher = newDispatcher(1, 10, policy)
+    def payload = newPayload(1, 100)
+
+    when:
+    dispatcher.dispatch(payload, 1)
+    tasks.each { it.run() }
+
+    then:
+    1 * api.sendSerializedTraces(1, payload) >> true
+    0 * _
+    dispatcher.droppedTraces == 0
+
+    where:
+    policy << [DROP_OLDEST, DROP_NEWEST]
+  }
+
+  def "payload in flight is not dropped"() {
+    setup:
+    def dispatcher = newDispatcher(1, 1000, DROP_OLDEST)
+    def first = newPayload(1, 10)
+    def second = newPayload(2, 10)
+
+    when:
+    dispatcher.dispatch(first, 1)
+    tasks.each { it.run() }
+
+    then:
+    1 * api.sendSerializedTraces(1, first) >> {
+      dispatcher.dispatch(second, 1)
+      true
+    }
+    0 * _
+    dispatcher.droppedTraces == 2
+  }
+
+  def "payloads completing out of order are signalled in dispatch order"() {
+    setup:
+    def dispatcher = newDispatcher(10, 1000, DROP_OLDEST)
+    def first = newPayload(1, 10)
+    def second = newPayload(1, 10)
+    def countsAfterSecond = null
+
+    when:
+    dispatcher.dispatch(first, 1, completed[0])
+    dispatcher.dispatch(second, 1, completed[1])
+    dispatcher.dispatchEmpty(completed[2])
+
+    then:
+    tasks.size() == 2
+    completed*.count == [1, 1, 1]
+
+    when:
+    tasks[0].run()
+
+    then:
+    1 * api.sendSerializedTraces(1, first) >> {
+      // Second sender finishes while the first one is still busy
+      tasks[1].run()
+      countsAfterSecond = completed*.count
+      true
+    }
+    1 * api.sendSerializedTraces(1, second) >> true
+    0 * _
+    countsAfterSecond == [1, 1, 1]
+    completed*.count == [0, 0, 0]
+  }
+
+  def "only the given latch is counted down"() {
+    setup:
+    def dispatcher = newDispatcher(10, 1000, DROP_OLDEST)
+    def first = newPayload(1, 10)
+    def second = newPayload(2, 10)
+
+    when:
+    dispatcher.dispatch(first, 1)
+    dispatcher.dispatch(second, 2, completed[0])
+    tasks[0].run()
+
+    then:
+    1 * api.sendSerializedTraces(1, first) >> true
+    // Completing other payloads doesn't count as the flushed one.
+    completed[0].count == 1
+
+    when:
+    tasks[1].run()
+
+    then:
+    1 * api.sendSerializedTraces(2, second) >> true
+    0 * _
+    completed[0].count == 0
+  }
+
+  def "failed payloads are spooled and replayed before the next payload is sent"() {
+    setup:
+    def dir = Files.createTempDirectory("spool").toFile()
+    def spool = new PayloadSpool(dir, 1000, 10_000, 60_000)
+    def dispatcher = new PayloadDispatcher(api, executor, 10, 1000, DROP_OLDEST, spool)
+    def first = newPayload(1, 10)
+    def second = newPayload(2, 10)
+    def third = newPayload(3, 10)
+
+    when:
+    dispatcher.dispatch(first, 1, completed[0])
+    tasks.each { it.run() }
+
+    then:
+    1 * api.sendSerializedTraces(1, first) >> false
+    0 * _
+    completed[0].count == 0
+
+    when:
+    tasks.clear()
+    dispatcher.dispatch(second, 2, completed[1])
+    tasks.each { it.run() }
+
+    then:
+    1 * api.sendSerializedTraces(1, { it.traceCount == 1 && it.sizeInBytes == 10 }) >> {
+      throw new IOException("agent down")
+    }
+    // Spooled behind the first one rather than sent ahead of it.
+    0 * _
+    dispatcher.droppedTraces == 0
+    completed[1].count == 0
+
+    when:
+    tasks.clear()
+    dispatcher.dispatch(third, 3, completed[2])
+    tasks.each { it.run() }
+
+    then:
+    1 * api.sendSerializedTraces(1, { it.traceCount == 1 }) >> true
+
+    then:
+    1 * api.sendSerializedTraces(2, { it.traceCount == 2 }) >> true
+
+    then:
+    1 * api.sendSerializedTraces(3, third) >> true
+    0 * _
+    completed[2].count == 0
+    spool.peek() == null
+
+    cleanup:
+    dir.deleteDir()
+  }
+
+  def newDispatcher(int maxPayloads, long maxBytes, Config.WriterDropPolicy policy) {
+    return new PayloadDispatcher(api, executor, maxPayloads, maxBytes, policy)
+  }
+
+  def newPayload(int traceCount, int size) {
+    def segment = pool.acquire()
+    segment.position(size - 1)
+    segment.flip()
+    return new Payload(pool, [0x90 | traceCount] as byte[], [segment] as List<ByteBuffer>, traceCount, traceCount)
+  }
+}
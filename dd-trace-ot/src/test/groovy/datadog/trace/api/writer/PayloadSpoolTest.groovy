@@ -0,0 +1,199 @@
+package datadog.trace.api.writer
+
+import datadog.trace.common.writer.Payload
+import datadog.trace.common.writer.PayloadSpool
+import spock.lang.Specification
+
+import java.nio.ByteBuffer
+import java.nio.channels.Channels
+import java.nio.file.Files
+
+class PayloadSpoolTest extends Specification {
+  def dir = Files.createTempDirectory("spool").toFile()
+
+  def cleanup() {
+    dir.deleteDir()
+  }
+
+  def "payloads are replayed in order"() {
+    setup:
+    def spool = new PayloadSpool(dir, 100, 10_000, 60_000)
+
+    when:
+    (1..5).each { assert spool.append(newPayload(it, 20), it * 10) }
+
+    then:
+    // Doesn't fit in a single segment
+    dir.listFiles().size() > 1
+
+    when:
+    def replayed = []
+    def entry
+    while ((entry = spool.peek()) != null) {
+      replayed << [entry.payload.traceCount, entry.representativeCount, toBytes(entry.payload)]
+      spool.commit(entry)
+    }
+
+    then:
+    replayed == (1..5).collect { [it, it * 10, bytes(it, 20)] }
+    dir.listFiles().size() == 1
+  }
+
+  def "entry is returned until committed"() {
+    setup:
+    def spool = new PayloadSpool(dir, 100, 10_000, 60_000)
+    spool.append(newPayload(1, 10), 1)
+    spool.append(newPayload(2, 10), 2)
+
+    expect:
+    spool.peek().payload.traceCount == 1
+    spool.peek().payload.traceCount == 1
+
+    when:
+    spool.commit(spool.peek())
+
+    then:
+    spool.peek().payload.traceCount == 2
+  }
+
+  def "oldest segments are dropped when the spool is full"() {
+    setup:
+    def spool = new PayloadSpool(dir, 100, 400, 60_000)
+
+    when:
+    (1..6).each { spool.append(newPayload(it, 40), it) }
+    def remaining = []
+    def entry
+    while ((entry = spool.peek()) != null) {
+      remaining << entry.payload.traceCount
+      spool.commit(entry)
+    }
+
+    then:
+    remaining == [3, 4, 5, 6]
+    spool.droppedTraces == 1 + 2
+    spool.droppedBytes == 2 * 40
+  }
+
+  def "payload larger than the spool is dropped"() {
+    setup:
+    def spool = new PayloadSpool(dir, 100, 100, 60_000)
+
+    expect:
+    !spool.append(newPayload(3, 200), 3)
+    spool.peek() == null
+    spool.droppedTraces == 3
+  }
+
+  def "payload larger than a segment gets its own segment"() {
+    setup:
+    def spool = new PayloadSpool(dir, 100, 10_000, 60_000)
+
+    when:
+    spool.append(newPayload(1, 500), 1)
+
+    then:
+    toBytes(spool.peek().payload) == bytes(1, 500)
+  }
+
+  def "segments are no larger than the spool"() {
+    setup:
+    def spool = new PayloadSpool(dir, 1000, 200, 60_000)
+
+    when:
+    (1..6).each { assert spool.append(newPayload(it, 40), it) }
+
+    then:
+    dir.listFiles()*.length() == [200L]
+    spool.peek().payload.traceCount == 5
+  }
+
+  def "expired payloads are skipped"() {
+    setup:
+    def spool = new PayloadSpool(dir, 100, 10_000, 1)
+    spool.append(newPayload(1, 10), 1)
+    Thread.sleep(10)
+
+    expect:
+    spool.peek() == null
+    spool.droppedTraces == 1
+  }
+
+  def "spooled payloads survive a restart"() {
+    setup:
+    def spool = new PayloadSpool(dir, 100, 10_000, 60_000)
+    (1..4).each { spool.append(newPayload(it, 30), it) }
+    spool.commit(spool.peek())
+
+    when:
+    def reopened = new PayloadSpool(dir, 100, 10_000, 60_000)
+    reopened.append(newPayload(5, 30), 5)
+    def remaining = []
+    def entry
+    while ((entry = reopened.peek()) != null) {
+      remaining << [entry.payload.traceCount, toBytes(entry.payload)]
+      reopened.commit(entry)
+    }
+
+    then:
+    remaining == (2..5).collect { [it, bytes(it, 30)] }
+  }
+
+  def "records of another format version are skipped"() {
+    setup:
+    def spool = new PayloadSpool(dir, 100, 10_000, 60_000)
+    spool.append(newPayload(1, 10), 1)
+    spool.append(newPayload(2, 10), 2)
+    spool.close()
+    def file = dir.listFiles()[0]
+    def raf = new RandomAccessFile(file, "rw")
+    raf.seek(4)
+    raf.writeInt(PayloadSpool.FORMAT_VERSION + 1)
+    raf.close()
+
+    when:
+    def reopened = new PayloadSpool(dir, 100, 10_000, 60_000)
+
+    then:
+    reopened.peek().payload.traceCount == 2
+    reopened.droppedBytes == 10
+  }
+
+  def "closing keeps the spooled payloads"() {
+    setup:
+    def spool = new PayloadSpool(dir, 100, 10_000, 60_000)
+    spool.append(newPayload(1, 20), 1)
+    def entry = spool.peek()
+
+    when:
+    spool.close()
+
+    then:
+    // The entry being replayed stays readable until released.
+    toBytes(entry.payload) == bytes(1, 20)
+    spool.peek() == null
+    !spool.append(newPayload(2, 20), 2)
+
+    when:
+    spool.release(entry)
+    def reopened = new PayloadSpool(dir, 100, 10_000, 60_000)
+
+    then:
+    reopened.peek().payload.traceCount == 1
+  }
+
+  def newPayload(int traceCount, int size) {
+    def content = bytes(traceCount, size)
+    return new Payload(null, content[0..0] as byte[], [ByteBuffer.wrap(content, 1, size - 1)], traceCount, traceCount)
+  }
+
+  static byte[] bytes(int traceCount, int size) {
+    return (0..<size).collect { (byte) (traceCount + it) } as byte[]
+  }
+
+  static byte[] toBytes(Payload payload) {
+    def out = new ByteArrayOutputStream()
+    payload.writeTo(Channels.newChannel(out))
+    return out.toByteArray()
+  }
+}
@@ -0,0 +1,150 @@
+package datadog.trace.api.writer
+
+import datadog.opentracing.DDSpan
+import datadog.opentracing.DDSpanContext
+import datadog.opentracing.DDTracer
+import datadog.opentracing.PendingTrace
+import datadog.trace.agent.test.utils.ConfigUtils
+import datadog.trace.api.sampling.PrioritySampling
+import datadog.trace.common.writer.BufferPool
+import datadog.trace.common.writer.ListWriter
+import datadog.trace.common.writer.StringTableTraceSerializer
+import org.msgpack.core.MessagePack
+import spock.lang.Shared
+import spock.lang.Specification
+
+import java.nio.channels.Channels
+
+class StringTableTraceSerializerTest extends Specification {
+  static {
+    ConfigUtils.makeConfigInstanceModifiable()
+  }
+
+  @Shared
+  def tracer = new DDTracer(new ListWriter())
+
+  def "spans refer to the string table"() {
+    setup:
+    def span = newSpan("18446744073709551615", "2", ["a-baggage": "b", "shadowed": "b"], ["shadowed": 12, "bool": true])
+    span.context().setMetric("_sample_rate", 0.5f)
+    span.context().setMetric("some.count", 5)
+    span.finish(133L)
+    def serializer = new StringTableTraceSerializer()
+
+    when:
+    serializer.serialize([span, span])
+    def decoded = decode(finish(serializer))
+
+    then:
+    decoded.strings[0] == ""
+    decoded.strings.size() == decoded.strings.toSet().size()
+    decoded.traces.size() == 1
+    decoded.traces[0].size() == 2
+    decoded.traces[0].every {
+      it == [
+        service  : "fakeService",
+        name     : "fakeOperation",
+        resource : "fakeResource",
+        trace_id : new BigInteger("18446744073709551615"),
+        span_id  : 2G,
+        parent_id: 0G,
+        start    : 100L * 1000,
+        duration : 33L * 1000,
+        error    : 0,
+        meta     : [
+          "a-baggage"  : "b",
+          "shadowed"   : "12",
+          "bool"       : "true",
+          "thread.name": Thread.currentThread().name,
+          "thread.id"  : Thread.currentThread().id.toString()
+        ],
+        metrics  : ["_sample_rate": 0.5d, "some.count": 5d],
+        type     : ""
+      ]
+    }
+  }
+
+  def "string table is reset between payloads"() {
+    setup:
+    def serializer = new StringTableTraceSerializer(new BufferPool(16, 2))
+
+    when:
+    serializer.serialize([newSpan("1", "2", [:], ["first": "value"])])
+    def first = decode(finish(serializer))
+    serializer.serialize([newSpan("3", "4", [:], ["second": "value"])])
+    serializer.serialize([newSpan("5", "6", [:], ["second": "value"])])
+    def payloadSize = serializer.payloadSize
+    def bytes = finish(serializer)
+    def second = decode(bytes)
+
+    then:
+    first.strings.contains("first")
+    !second.strings.contains("first")
+    second.strings.count { it == "second" } == 1
+    second.traces*.getAt(0)*.span_id == [4G, 6G]
+    // The string table is accounted for, the outer headers aren't yet.
+    payloadSize == bytes.length - 3
+  }
+
+  def newSpan(String traceId, String spanId, Map<String, String> baggage, Map<String, Object> tags) {
+    def context = new DDSpanContext(
+      traceId,
+      spanId,
+      "0",
+      "fakeService",
+      "fakeOperation",
+      "fakeResource",
+      PrioritySampling.UNSET,
+      null,
+      new HashMap<>(baggage),
+      false,
+      null,
+      tags,
+      new PendingTrace(tracer, traceId, [:]),
+      tracer)
+    return new DDSpan(100L, context)
+  }
+
+  def finish(StringTableTraceSerializer serializer) {
+    def payload = serializer.finishPayload()
+    try {
+      def out = new ByteArrayOutputStream()
+      payload.writeTo(Channels.newChannel(out))
+      return out.toByteArray()
+    } finally {
+      payload.release()
+    }
+  }
+
+  /** Resolves the string indexes, giving spans back as maps. */
+  def decode(byte[] bytes) {
+    def unpacker = MessagePack.newDefaultUnpacker(bytes)
+    assert unpacker.unpackArrayHeader() == 2
+    def strings = (1..unpacker.unpackArrayHeader()).collect { unpacker.unpackString() }
+    def traces = (0..<unpacker.unpackArrayHeader()).collect {
+      (0..<unpacker.unpackArrayHeader()).collect {
+        assert unpacker.unpackArrayHeader() == 12
+        def span = [:]
+        span.service = strings[unpacker.unpackInt()]
+        span.name = strings[unpacker.unpackInt()]
+        span.resource = strings[unpacker.unpackInt()]
+        span.trace_id = unpacker.unpackBigInteger()
+        span.span_id = unpacker.unpackBigInteger()
+        span.parent_id = unpacker.unpackBigInteger()
+        span.start = unpacker.unpackLong()
+        span.duration = unpacker.unpackLong()
+        span.error = unpacker.unpackInt()
+        span.meta = (0..<unpacker.unpackMapHeader()).collectEntries {
+          [(strings[unpacker.unpackInt()]): strings[unpacker.unpackInt()]]
+        }
+        span.metrics = (0..<unpacker.unpackMapHeader()).collectEntries {
+          [(strings[unpacker.unpackInt()]): unpacker.unpackDouble()]
+        }
+        span.type = strings[unpacker.unpackInt()]
+        return span
+      }
+    }
+    assert !unpacker.hasNext()
+    return [strings: strings, traces: traces]
+  }
+}
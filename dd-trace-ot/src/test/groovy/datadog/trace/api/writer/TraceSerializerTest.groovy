@@ -0,0 +1,202 @@
+package datadog.trace.api.writer
+
+import com.fasterxml.jackson.core.type.TypeReference
+import com.fasterxml.jackson.databind.ObjectMapper
+import datadog.opentracing.DDSpan
+import datadog.opentracing.DDSpanContext
+import datadog.opentracing.DDTracer
+import datadog.opentracing.PendingTrace
+import datadog.trace.agent.test.utils.ConfigUtils
+import datadog.trace.api.sampling.PrioritySampling
+import datadog.trace.common.writer.BufferPool
+import datadog.trace.common.writer.ListWriter
+import datadog.trace.common.writer.Payload
+import datadog.trace.common.writer.TraceSerializer
+import org.msgpack.core.MessagePack
+import org.msgpack.jackson.dataformat.MessagePackFactory
+import org.msgpack.value.ValueType
+import spock.lang.Shared
+import spock.lang.Specification
+
+import java.nio.channels.Channels
+
+class TraceSerializerTest extends Specification {
+  static {
+    ConfigUtils.makeConfigInstanceModifiable()
+  }
+
+  @Shared
+  def mapper = new ObjectMapper(new MessagePackFactory())
+  @Shared
+  def tracer = new DDTracer(new ListWriter())
+
+  def "serializer output matches jackson serialization"() {
+    setup:
+    def span = newSpan(traceId, spanId, baggage, tags)
+    span.context().setMetric("_sample_rate", 0.5f)
+    span.context().setMetric("some.count", 5)
+    span.finish(133L)
+    def trace = [span, span]
+    def serializer = new TraceSerializer()
+
+    when:
+    def size = serializer.serialize(trace)
+
+    then:
+    size == mapper.writeValueAsBytes(trace).length
+    convert(finish(serializer)) == convert(mapper.writeValueAsBytes([trace]))
+
+    where:
+    traceId                | spanId | baggage              | tags
+    "1"                    | "2"    | [:]                  | [:]
+    "9223372036854775807"  | "3"    | ["a-baggage": "b"]   | ["some.tag": "value"]
+    "18446744073709551615" | "4"    | ["shadowed": "b"]    | ["shadowed": 12, "bool": true]
+  }
+
+  def "serializer is reusable"() {
+    setup:
+    def serializer = new TraceSerializer()
+    def first = [newSpan("1", "2", [:], ["tag": "first"])]
+    def second = [newSpan("3", "4", [:], [:])]
+
+    when:
+    serializer.serialize(first)
+    finish(serializer)
+    serializer.serialize(second)
+
+    then:
+    serializer.traceCount == 1
+    convert(finish(serializer)) == convert(mapper.writeValueAsBytes([second]))
+    serializer.traceCount == 0
+    serializer.payloadSize == 0
+  }
+
+  def "payload spans multiple segments"() {
+    setup:
+    def serializer = new TraceSerializer(new BufferPool(16, 2))
+    def traces = (1..traceCount).collect { [newSpan("$it", "$it", [:], ["tag": "value $it"])] }
+
+    when:
+    traces.each { serializer.serialize(it) }
+    def payload = serializer.finishPayload()
+    def bytes = toBytes(payload)
+
+    then:
+    payload.traceCount == traceCount
+    payload.spanCount == traceCount
+    payload.sizeInBytes == bytes.length
+    convert(bytes) == convert(mapper.writeValueAsBytes(traces))
+    // Retries write the payload again
+    toBytes(payload) == bytes
+
+    cleanup:
+    payload?.release()
+
+    where:
+    traceCount << [1, 15, 16, 300]
+  }
+
+  def "failed trace is discarded from the payload with #segmentSize byte segments"() {
+    setup:
+    def serializer = new TraceSerializer(new BufferPool(segmentSize, 2))
+    def good = [newSpan("1", "2", [:], ["tag": "value"])]
+    def bad = [newSpan("3", "4", [:], ["tag": "value"]), newSpan("3", "5", [:], ["tag": new BrokenTag()])]
+
+    when:
+    serializer.serialize(good)
+    def sizeBefore = serializer.payloadSize
+    serializer.serialize(bad)
+
+    then:
+    thrown(IllegalStateException)
+    serializer.payloadSize == sizeBefore
+
+    when:
+    serializer.serialize(good)
+
+    then:
+    serializer.traceCount == 2
+    convert(finish(serializer)) == convert(mapper.writeValueAsBytes([good, good]))
+
+    where:
+    segmentSize << [16, 200, 64 * 1024]
+  }
+
+  def "ids are serialized as unsigned integers #value"() {
+    setup:
+    def serializer = new TraceSerializer()
+    serializer.serialize([newSpan(value.toString(), value.toString(), [:], [:])])
+    def unpacker = MessagePack.newDefaultUnpacker(finish(serializer))
+    unpacker.unpackArrayHeader()
+    unpacker.unpackArrayHeader()
+    int size = unpacker.unpackMapHeader()
+
+    expect:
+    for (int i = 0; i < size; i++) {
+      String key = unpacker.unpackString()
+
+      switch (key) {
+        case "trace_id":
+        case "span_id":
+          assert unpacker.nextFormat.valueType == ValueType.INTEGER
+          assert unpacker.unpackBigInteger() == value
+          break
+        default:
+          unpacker.unpackValue()
+      }
+    }
+
+    where:
+    value                                                       | _
+    BigInteger.ZERO                                             | _
+    BigInteger.ONE                                              | _
+    BigInteger.valueOf(Long.MAX_VALUE)                          | _
+    BigInteger.valueOf(Long.MAX_VALUE).add(BigInteger.ONE)      | _
+    BigInteger.valueOf(2).pow(64).subtract(BigInteger.ONE)      | _
+  }
+
+  def newSpan(String traceId, String spanId, Map<String, String> baggage, Map<String, Object> tags) {
+    def context = new DDSpanContext(
+      traceId,
+      spanId,
+      "0",
+      "fakeService",
+      "fakeOperation",
+      null,
+      PrioritySampling.UNSET,
+      null,
+      new HashMap<>(baggage),
+      false,
+      "fakeType",
+      tags,
+      new PendingTrace(tracer, traceId, [:]),
+      tracer)
+    return new DDSpan(100L, context)
+  }
+
+  def finish(TraceSerializer serializer) {
+    def payload = serializer.finishPayload()
+    try {
+      return toBytes(payload)
+    } finally {
+      payload.release()
+    }
+  }
+
+  def toBytes(Payload payload) {
+    def out = new ByteArrayOutputStream()
+    payload.writeTo(Channels.newChannel(out))
+    return out.toByteArray()
+  }
+
+  def convert(byte[] bytes) {
+    return mapper.readValue(bytes, new TypeReference<List<List<TreeMap<String, Object>>>>() {})
+  }
+}
+
+class BrokenTag {
+  @Override
+  String toString() {
+    throw new IllegalStateException("broken tag")
+  }
+}